@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.store.billing.IIabService;
+import com.soomla.store.billing.IabCallbacks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Initializes the billing service for <code>SoomlaStore</code>'s operations, one setup at a time.
+ *
+ * An operation that needs the billing service while a setup is running joins it instead of
+ * starting another one. Once a setup succeeded, operations go straight on while the billing
+ * service says it's initialized, until <code>stopIabServiceInBg</code> is called. A failed setup
+ * isn't tried again for a backoff that starts at <code>baseBackoffMillis</code> and doubles with
+ * every failure in a row up to <code>maxBackoffMillis</code>; operations in the meantime fail
+ * right away with the setup's error.
+ */
+public class BillingInitializer {
+
+    public static final long DEFAULT_BASE_BACKOFF_MILLIS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 60 * 1000;
+
+    /**
+     * Constructor
+     */
+    BillingInitializer() {
+    }
+
+    /**
+     * Makes sure the given billing service is initialized, and calls the given listener when it
+     * is or when it failed. Only the listener of the operation that actually started the setup
+     * gets <code>alreadyInBg</code> as the billing service reported it; every other listener gets
+     * true, so the service's start is announced once.
+     *
+     * @param service the billing service to initialize
+     * @param listener the listener to call when the service is initialized or failed to
+     */
+    void initialize(IIabService service, IabCallbacks.IabInitListener listener) {
+        boolean startSetup = false;
+        String failure = null;
+        synchronized (this) {
+            if (mState == STATE_IN_FLIGHT) {
+                mAvoidedCount++;
+                mListeners.add(listener);
+                return;
+            }
+
+            if (mState == STATE_READY && service.isIabServiceInitialized()) {
+                mAvoidedCount++;
+            } else if (mState == STATE_FAILED && System.currentTimeMillis() < mRetryAt) {
+                mBackedOffCount++;
+                failure = mLastFailure;
+            } else {
+                // never set up, failed long enough ago, or the service dropped its connection
+                mState = STATE_IN_FLIGHT;
+                mSetupsCount++;
+                mListeners.add(listener);
+                mSetupStartedAt = System.currentTimeMillis();
+                startSetup = true;
+            }
+        }
+
+        if (startSetup) {
+            service.initializeBillingService(new IabCallbacks.IabInitListener() {
+                @Override
+                public void success(boolean alreadyInBg) {
+                    finished(alreadyInBg, null);
+                }
+
+                @Override
+                public void fail(String message) {
+                    finished(false, message);
+                }
+            });
+        } else if (failure != null) {
+            SoomlaUtils.LogDebug(TAG, "Billing setup failed recently, not trying again yet.");
+            listener.fail(failure);
+        } else {
+            listener.success(true);
+        }
+    }
+
+    /**
+     * Marks the billing service as initialized, when it was started outside of this
+     * initializer (in the background).
+     */
+    synchronized void ready() {
+        if (mState != STATE_IN_FLIGHT) {
+            mState = STATE_READY;
+            mFailuresInRow = 0;
+        }
+    }
+
+    /**
+     * Forgets a successful setup, so the next operation sets the billing service up again.
+     */
+    synchronized void reset() {
+        if (mState != STATE_IN_FLIGHT) {
+            mState = STATE_IDLE;
+        }
+    }
+
+
+    /** Metrics **/
+
+    /**
+     * Retrieves the number of setups this initializer started.
+     *
+     * @return the number of setups since the app started
+     */
+    public synchronized int getSetupsCount() {
+        return mSetupsCount;
+    }
+
+    /**
+     * Retrieves the number of operations that didn't start a setup of their own: they joined a
+     * running setup or used a successful one.
+     *
+     * @return the number of avoided setups since the app started
+     */
+    public synchronized int getAvoidedSetupsCount() {
+        return mAvoidedCount;
+    }
+
+    /**
+     * Retrieves the number of operations that failed right away because a setup failed shortly
+     * before them.
+     *
+     * @return the number of backed off operations since the app started
+     */
+    public synchronized int getBackedOffCount() {
+        return mBackedOffCount;
+    }
+
+    /**
+     * Retrieves the average time a finished setup took.
+     *
+     * @return the average setup time in milliseconds, or 0 if no setup finished yet
+     */
+    public synchronized long getAverageSetupMillis() {
+        return mFinishedCount == 0 ? 0 : mTotalSetupMillis / mFinishedCount;
+    }
+
+    /**
+     * Retrieves the longest time a finished setup took.
+     *
+     * @return the maximal setup time in milliseconds
+     */
+    public synchronized long getMaxSetupMillis() {
+        return mMaxSetupMillis;
+    }
+
+
+    /** Setters and Getters **/
+
+    public long getBaseBackoffMillis() {
+        return mBaseBackoffMillis;
+    }
+
+    public void setBaseBackoffMillis(long baseBackoffMillis) {
+        if (baseBackoffMillis < 1) {
+            throw new IllegalArgumentException("baseBackoffMillis must be positive");
+        }
+        mBaseBackoffMillis = baseBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return mMaxBackoffMillis;
+    }
+
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        if (maxBackoffMillis < 1) {
+            throw new IllegalArgumentException("maxBackoffMillis must be positive");
+        }
+        mMaxBackoffMillis = maxBackoffMillis;
+    }
+
+
+    /** Private functions **/
+
+    private void finished(boolean alreadyInBg, String failure) {
+        List<IabCallbacks.IabInitListener> listeners;
+        synchronized (this) {
+            long setupMillis = System.currentTimeMillis() - mSetupStartedAt;
+            mFinishedCount++;
+            mTotalSetupMillis += setupMillis;
+            mMaxSetupMillis = Math.max(mMaxSetupMillis, setupMillis);
+
+            if (failure == null) {
+                mState = STATE_READY;
+                mFailuresInRow = 0;
+            } else {
+                mState = STATE_FAILED;
+                mLastFailure = failure;
+                long backoff = mBaseBackoffMillis << Math.min(mFailuresInRow, 20);
+                mRetryAt = System.currentTimeMillis() + Math.min(backoff, mMaxBackoffMillis);
+                mFailuresInRow++;
+            }
+            listeners = new ArrayList<IabCallbacks.IabInitListener>(mListeners);
+            mListeners.clear();
+        }
+
+        for (int i = 0; i < listeners.size(); i++) {
+            if (failure == null) {
+                listeners.get(i).success(i == 0 ? alreadyInBg : true);
+            } else {
+                listeners.get(i).fail(failure);
+            }
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA BillingInitializer"; //used for Log messages
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_IN_FLIGHT = 1;
+    private static final int STATE_READY = 2;
+    private static final int STATE_FAILED = 3;
+
+    private int mState = STATE_IDLE;
+    private final List<IabCallbacks.IabInitListener> mListeners =
+            new ArrayList<IabCallbacks.IabInitListener>();
+    private long mSetupStartedAt;
+    private int mFailuresInRow = 0;
+    private long mRetryAt = 0;
+    private String mLastFailure;
+
+    private volatile long mBaseBackoffMillis = DEFAULT_BASE_BACKOFF_MILLIS;
+    private volatile long mMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+    private int mSetupsCount = 0;
+    private int mAvoidedCount = 0;
+    private int mBackedOffCount = 0;
+    private int mFinishedCount = 0;
+    private long mTotalSetupMillis = 0;
+    private long mMaxSetupMillis = 0;
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store;
+
+import android.text.TextUtils;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.billing.IIabService;
+import com.soomla.store.billing.IabCallbacks;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.data.PurchaseLedger;
+import com.soomla.store.data.StorageManager;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumes granted purchases with the billing service's <code>consumeAsync</code>, one at a
+ * time, until each of them succeeds.
+ *
+ * The queue is persisted in <code>KeyValueStorage</code>, so purchases that weren't consumed when
+ * the app was closed are consumed on the next run. Purchases are deduped by their token, and
+ * purchases that <code>PurchaseLedger</code> recorded as consumed are not queued again.
+ * A purchase whose consumption failed is retried after an exponential backoff, starting at
+ * <code>baseBackoffMillis</code> and doubling up to <code>maxBackoffMillis</code>.
+ * {@link #drainNow()} retries all purchases right away; <code>SoomlaStore</code> calls it when the
+ * billing service is started in the background and when transactions were restored on start.
+ *
+ * NOTE: Billing services that are based on <code>IabHelper</code> run one asynchronous operation
+ * at a time. When the billing service is busy, the queue tries again after
+ * <code>baseBackoffMillis</code> without counting an attempt.
+ */
+public class ConsumeQueue {
+
+    public static final long DEFAULT_BASE_BACKOFF_MILLIS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30 * 60 * 1000;
+
+    /**
+     * Constructor
+     *
+     * @param store the store whose billing service consumes the purchases
+     */
+    ConsumeQueue(SoomlaStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Adds the given purchases to the queue, unless they're already in it or the purchase ledger
+     * says they were consumed, and starts consuming them.
+     *
+     * @param purchases the purchases to consume
+     */
+    public void enqueue(Collection<IabPurchase> purchases) {
+        PurchaseLedger ledger = StorageManager.getPurchaseLedger();
+        synchronized (this) {
+            ensureLoaded();
+            boolean added = false;
+            for (IabPurchase purchase : purchases) {
+                if (TextUtils.isEmpty(purchase.getToken())
+                        || mPending.containsKey(purchase.getToken())
+                        || ledger.getConsumeStatus(PurchaseLedger.keyOf(purchase.getOrderId(),
+                        purchase.getToken())) == PurchaseLedger.ConsumeStatus.CONSUMED) {
+                    continue;
+                }
+                mPending.put(purchase.getToken(), new PendingConsume(purchase));
+                added = true;
+            }
+            if (added) {
+                save();
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Works like {@link #enqueue(java.util.Collection)} for a single purchase.
+     *
+     * @param purchase the purchase to consume
+     */
+    public void enqueue(IabPurchase purchase) {
+        enqueue(Collections.singletonList(purchase));
+    }
+
+    /**
+     * Drops the backoff of all queued purchases and starts consuming them.
+     */
+    public void drainNow() {
+        synchronized (this) {
+            ensureLoaded();
+            for (PendingConsume pending : mPending.values()) {
+                pending.nextAttemptAt = 0;
+            }
+        }
+        drain();
+    }
+
+
+    /** Metrics **/
+
+    /**
+     * Retrieves the number of purchases that wait to be consumed.
+     *
+     * @return the queue's depth
+     */
+    public synchronized int getDepth() {
+        ensureLoaded();
+        return mPending.size();
+    }
+
+    /**
+     * Retrieves the number of consumptions that failed and were scheduled to be retried.
+     *
+     * @return the number of retries since the app started
+     */
+    public synchronized int getRetriesCount() {
+        return mRetriesCount;
+    }
+
+    /**
+     * Retrieves the number of purchases that were consumed.
+     *
+     * @return the number of consumed purchases since the app started
+     */
+    public synchronized int getConsumedCount() {
+        return mConsumedCount;
+    }
+
+    /**
+     * Retrieves the average time a successful <code>consumeAsync</code> took.
+     *
+     * @return the average consume latency in milliseconds, or 0 if nothing was consumed yet
+     */
+    public synchronized long getAverageConsumeLatencyMillis() {
+        return mConsumedCount == 0 ? 0 : mTotalLatencyMillis / mConsumedCount;
+    }
+
+    /**
+     * Retrieves the longest time a successful <code>consumeAsync</code> took.
+     *
+     * @return the maximal consume latency in milliseconds
+     */
+    public synchronized long getMaxConsumeLatencyMillis() {
+        return mMaxLatencyMillis;
+    }
+
+
+    /** Setters and Getters **/
+
+    public long getBaseBackoffMillis() {
+        return mBaseBackoffMillis;
+    }
+
+    public void setBaseBackoffMillis(long baseBackoffMillis) {
+        if (baseBackoffMillis < 1) {
+            throw new IllegalArgumentException("baseBackoffMillis must be positive");
+        }
+        mBaseBackoffMillis = baseBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return mMaxBackoffMillis;
+    }
+
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        if (maxBackoffMillis < 1) {
+            throw new IllegalArgumentException("maxBackoffMillis must be positive");
+        }
+        mMaxBackoffMillis = maxBackoffMillis;
+    }
+
+
+    /** Private functions **/
+
+    /**
+     * Starts consuming the next purchase that is due, unless a consumption is already in flight.
+     * If no purchase is due, schedules the next attempt.
+     */
+    private void drain() {
+        final PendingConsume next;
+        final IIabService billingService = mStore.getInAppBillingService();
+        synchronized (this) {
+            ensureLoaded();
+            if (mInFlight != null || mPending.isEmpty()) {
+                return;
+            }
+            if (billingService == null) {
+                SoomlaUtils.LogDebug(TAG, "Billing service is not loaded. Consuming later.");
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            PendingConsume due = null;
+            long nextAttemptAt = Long.MAX_VALUE;
+            for (PendingConsume pending : mPending.values()) {
+                if (pending.nextAttemptAt <= now) {
+                    due = pending;
+                    break;
+                }
+                nextAttemptAt = Math.min(nextAttemptAt, pending.nextAttemptAt);
+            }
+            if (due == null) {
+                schedule(nextAttemptAt - now);
+                return;
+            }
+            next = due;
+            mInFlight = next;
+            next.startedAt = now;
+        }
+
+        try {
+            billingService.consumeAsync(next.purchase, new IabCallbacks.OnConsumeListener() {
+                @Override
+                public void success(IabPurchase purchase) {
+                    consumed(next);
+                }
+
+                @Override
+                public void fail(String message) {
+                    failed(next, message, true);
+                }
+            });
+        } catch (IllegalStateException e) {
+            failed(next, e.getMessage(), false);
+        }
+    }
+
+    private void consumed(PendingConsume consumed) {
+        synchronized (this) {
+            long latency = System.currentTimeMillis() - consumed.startedAt;
+            mConsumedCount++;
+            mTotalLatencyMillis += latency;
+            mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latency);
+
+            mPending.remove(consumed.purchase.getToken());
+            mInFlight = null;
+            save();
+        }
+        SoomlaUtils.LogDebug(TAG, "Consumed productId: " + consumed.purchase.getSku());
+
+        StorageManager.getPurchaseLedger().markConsumed(Collections.singletonList(
+                PurchaseLedger.keyOf(consumed.purchase.getOrderId(), consumed.purchase.getToken())));
+        drain();
+    }
+
+    /**
+     * Schedules another attempt of the given purchase.
+     *
+     * @param counts false if the billing service was busy, so the purchase wasn't really tried
+     */
+    private void failed(PendingConsume failed, String message, boolean counts) {
+        synchronized (this) {
+            long backoff = mBaseBackoffMillis;
+            if (counts) {
+                failed.attempts++;
+                mRetriesCount++;
+                backoff = Math.min(mMaxBackoffMillis,
+                        mBaseBackoffMillis << Math.min(failed.attempts - 1, 30));
+                save();
+            }
+            failed.nextAttemptAt = System.currentTimeMillis() + backoff;
+            mInFlight = null;
+            SoomlaUtils.LogError(TAG, "Couldn't consume productId: " + failed.purchase.getSku()
+                    + ". Trying again in " + backoff + "ms. error: " + message);
+        }
+        drain();
+    }
+
+    /**
+     * Runs {@link #drain()} after the given delay, replacing an earlier scheduled drain.
+     * Callers must hold the queue's lock.
+     */
+    private void schedule(long delayMillis) {
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SOOMLA ConsumeQueue");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if (mScheduledDrain != null) {
+            mScheduledDrain.cancel(false);
+        }
+        mScheduledDrain = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Loads the persisted queue on the first access. Callers must hold the queue's lock.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        String val = KeyValueStorage.getValue(KEY_QUEUE);
+        if (TextUtils.isEmpty(val)) {
+            return;
+        }
+        try {
+            JSONArray records = new JSONArray(val);
+            for (int i = 0; i < records.length(); i++) {
+                PendingConsume pending = fromJSONObject(records.getJSONObject(i));
+                mPending.put(pending.purchase.getToken(), pending);
+            }
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't read the consume queue. " + e.getMessage());
+        }
+        SoomlaUtils.LogDebug(TAG, "Loaded " + mPending.size() + " purchases to consume");
+    }
+
+    /**
+     * Persists the queue. Callers must hold the queue's lock.
+     */
+    private void save() {
+        if (mPending.isEmpty()) {
+            KeyValueStorage.deleteKeyValue(KEY_QUEUE);
+            return;
+        }
+        JSONArray records = new JSONArray();
+        try {
+            for (PendingConsume pending : mPending.values()) {
+                records.put(toJSONObject(pending));
+            }
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't save the consume queue. " + e.getMessage());
+            return;
+        }
+        KeyValueStorage.setValue(KEY_QUEUE, records.toString());
+    }
+
+    private static JSONObject toJSONObject(PendingConsume pending) throws JSONException {
+        IabPurchase purchase = pending.purchase;
+        JSONObject record = new JSONObject();
+        record.put(RECORD_ITEM_TYPE, purchase.getItemType());
+        record.put(RECORD_ATTEMPTS, pending.attempts);
+        if (purchase.getOriginalJson() != null) {
+            record.put(RECORD_ORIGINAL_JSON, purchase.getOriginalJson());
+            record.put(RECORD_SIGNATURE, purchase.getSignature());
+        } else {
+            record.put(RECORD_SKU, purchase.getSku());
+            record.put(RECORD_TOKEN, purchase.getToken());
+            record.put(RECORD_ORDER_ID, purchase.getOrderId());
+            record.put(RECORD_USER_ID, purchase.getUserId());
+        }
+        return record;
+    }
+
+    private static PendingConsume fromJSONObject(JSONObject record) throws JSONException {
+        String itemType = record.getString(RECORD_ITEM_TYPE);
+        IabPurchase purchase;
+        if (record.has(RECORD_ORIGINAL_JSON)) {
+            purchase = new IabPurchase(itemType, record.getString(RECORD_ORIGINAL_JSON),
+                    record.optString(RECORD_SIGNATURE, null));
+        } else {
+            purchase = new IabPurchase(itemType, record.getString(RECORD_SKU),
+                    record.getString(RECORD_TOKEN), record.optString(RECORD_ORDER_ID, null), 0,
+                    record.optString(RECORD_USER_ID, null));
+        }
+        PendingConsume pending = new PendingConsume(purchase);
+        pending.attempts = record.optInt(RECORD_ATTEMPTS);
+        return pending;
+    }
+
+    /**
+     * A purchase that waits to be consumed.
+     */
+    private static class PendingConsume {
+        PendingConsume(IabPurchase purchase) {
+            this.purchase = purchase;
+        }
+
+        final IabPurchase purchase;
+        int attempts;
+        long nextAttemptAt;
+        long startedAt;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA ConsumeQueue"; //used for Log messages
+
+    private static final String KEY_QUEUE = "store.consume.queue";
+
+    private static final String RECORD_ITEM_TYPE = "itemType";
+    private static final String RECORD_ORIGINAL_JSON = "originalJson";
+    private static final String RECORD_SIGNATURE = "signature";
+    private static final String RECORD_SKU = "sku";
+    private static final String RECORD_TOKEN = "token";
+    private static final String RECORD_ORDER_ID = "orderId";
+    private static final String RECORD_USER_ID = "userId";
+    private static final String RECORD_ATTEMPTS = "attempts";
+
+    private final SoomlaStore mStore;
+
+    // token -> purchase, in the order they were queued
+    private final LinkedHashMap<String, PendingConsume> mPending =
+            new LinkedHashMap<String, PendingConsume>();
+
+    private PendingConsume mInFlight;
+    private boolean mLoaded = false;
+
+    private ScheduledExecutorService mScheduler;
+    private ScheduledFuture<?> mScheduledDrain;
+
+    private volatile long mBaseBackoffMillis = DEFAULT_BASE_BACKOFF_MILLIS;
+    private volatile long mMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+    private int mRetriesCount = 0;
+    private int mConsumedCount = 0;
+    private long mTotalLatencyMillis = 0;
+    private long mMaxLatencyMillis = 0;
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store;
+
+import com.soomla.store.data.ItemHandles;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.data.VirtualCurrencyStorage;
+import com.soomla.store.data.VirtualGoodsStorage;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The balances, equip states and upgrade levels of all currencies and goods, kept in parallel
+ * primitive arrays indexed by item handle (see {@link StoreInventory#getItemHandle(String)}).
+ *
+ * A snapshot is meant to be reused: {@link StoreInventory#fillSnapshot(InventorySnapshot)}
+ * overwrites it in place and only allocates when new items were added to the catalog, so
+ * exporting the inventory periodically creates no garbage.
+ *
+ * All values are read from the storages' in-memory state. Each value is current when it's read,
+ * but balance changes that run concurrently with the fill may be seen for some items and not
+ * for others.
+ *
+ * Real Game Example:
+ * <code>
+ *  InventorySnapshot snapshot = new InventorySnapshot();
+ *  // every minute:
+ *  StoreInventory.fillSnapshot(snapshot);
+ *  int[] balances = snapshot.getBalances();
+ *  for (int handle = 0; handle < snapshot.getSize(); handle++) {
+ *      if (snapshot.contains(handle)) {
+ *          export(ItemHandles.itemIdOf(handle), balances[handle]);
+ *      }
+ *  }
+ * </code>
+ */
+public class InventorySnapshot {
+
+    /**
+     * Checks if the item with the given handle is a currency or good of the catalog, so the
+     * snapshot has its values.
+     *
+     * @param handle the item's handle
+     * @return true if the snapshot has the item's values
+     */
+    public boolean contains(int handle) {
+        return handle >= 0 && handle < mSize && mContains[handle];
+    }
+
+    /**
+     * Retrieves the number of handles this snapshot covers. The arrays returned by the getters
+     * may be longer; only the first <code>getSize()</code> entries belong to the snapshot.
+     *
+     * @return the number of handles covered
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getBalance(int handle) {
+        return contains(handle) ? mBalances[handle] : 0;
+    }
+
+    public boolean isEquipped(int handle) {
+        return contains(handle) && mEquipped[handle];
+    }
+
+    /**
+     * Retrieves the level of the current upgrade of the good with the given handle, as in
+     * {@link StoreInventory#getGoodUpgradeLevel(String)}.
+     *
+     * @param handle the good's handle
+     * @return the upgrade level, or 0 if the good has no upgrade
+     */
+    public int getUpgradeLevel(int handle) {
+        return contains(handle) ? mUpgradeLevels[handle] : 0;
+    }
+
+
+    /** Setters and Getters **/
+
+    public boolean[] getContains() {
+        return mContains;
+    }
+
+    public int[] getBalances() {
+        return mBalances;
+    }
+
+    public boolean[] getEquipped() {
+        return mEquipped;
+    }
+
+    public int[] getUpgradeLevels() {
+        return mUpgradeLevels;
+    }
+
+
+    /** Package functions **/
+
+    /**
+     * Overwrites this snapshot with the current state of all currencies and goods.
+     */
+    void fill() {
+        int size = ItemHandles.count();
+        if (size > mContains.length) {
+            int capacity = Math.max(size, mContains.length * 2);
+            mContains = new boolean[capacity];
+            mBalances = new int[capacity];
+            mEquipped = new boolean[capacity];
+            mUpgradeLevels = new int[capacity];
+        } else {
+            Arrays.fill(mContains, 0, size, false);
+        }
+        mSize = size;
+
+        // indexed loops, so no iterator is allocated
+        VirtualCurrencyStorage currencyStorage = StorageManager.getVirtualCurrencyStorage();
+        List<VirtualCurrency> currencies = StoreInfo.getCurrencies();
+        for (int i = 0; i < currencies.size(); i++) {
+            int handle = currencies.get(i).getHandle();
+            if (handle >= size) {
+                continue;
+            }
+            mContains[handle] = true;
+            mBalances[handle] = currencyStorage.getBalance(handle);
+            mEquipped[handle] = false;
+            mUpgradeLevels[handle] = 0;
+        }
+
+        VirtualGoodsStorage goodsStorage = StorageManager.getVirtualGoodsStorage();
+        List<VirtualGood> goods = StoreInfo.getGoods();
+        for (int i = 0; i < goods.size(); i++) {
+            VirtualGood good = goods.get(i);
+            int handle = good.getHandle();
+            if (handle >= size) {
+                continue;
+            }
+            mContains[handle] = true;
+            mBalances[handle] = goodsStorage.getBalance(handle);
+            mEquipped[handle] = good instanceof EquippableVG && goodsStorage.isEquipped(handle);
+
+            String upgradeItemId = StoreInfo.hasUpgrades(good.getItemId())
+                    ? goodsStorage.getCurrentUpgrade(handle) : null;
+            mUpgradeLevels[handle] = upgradeItemId != null
+                    ? StoreInfo.getUpgradeLevel(upgradeItemId) : 0;
+        }
+    }
+
+
+    /** Private Members **/
+
+    private int mSize = 0;
+
+    private boolean[] mContains = new boolean[0];
+    private int[] mBalances = new int[0];
+    private boolean[] mEquipped = new boolean[0];
+    private int[] mUpgradeLevels = new int[0];
+}
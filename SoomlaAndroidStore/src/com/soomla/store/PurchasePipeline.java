@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store;
+
+import android.os.Handler;
+import android.os.Looper;
+import com.soomla.BusProvider;
+import com.soomla.SoomlaUtils;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.data.BalanceTransaction;
+import com.soomla.store.data.PurchaseLedger;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.events.ItemPurchasedEvent;
+import com.soomla.store.events.MarketPurchaseEvent;
+import com.soomla.store.events.MarketRefundEvent;
+import com.soomla.store.events.UnexpectedStoreErrorEvent;
+import com.soomla.store.exceptions.InsufficientFundsException;
+import com.soomla.store.exceptions.VirtualItemNotFoundException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finishes the purchases that the billing service reported, off the main thread.
+ *
+ * Every submitted group of purchases (a single purchase, or all purchases of a restore) goes
+ * through the same stages on a dedicated worker:
+ *  validate - finds the purchased item, checks the purchase's state and verification, and skips
+ *             consumable purchases that <code>PurchaseLedger</code> already granted and
+ *             non-consumables that are already owned.
+ *  grant    - records the items of all valid purchases in one <code>BalanceTransaction</code>.
+ *  persist  - commits the transaction together with the ledger entries of the group, so the
+ *             whole group is written in a single batch, and schedules the expiry of the
+ *             subscriptions it granted.
+ *  consume  - queues the consumable purchases in the store's <code>ConsumeQueue</code>.
+ *  notify   - posts the purchase and balance events on the main thread, then reports that the
+ *             group is finished.
+ *
+ * Groups are never processed on the submitting (main) thread. The worker's queue is bounded:
+ * a restore that is submitted while another one still waits is merged into the waiting one,
+ * since restores are idempotent through the ledger and balance checks. Any other group that
+ * doesn't fit is rejected with an <code>UnexpectedStoreErrorEvent</code>; its purchases weren't
+ * granted or consumed, so the next restore reports them again.
+ */
+class PurchasePipeline {
+
+    static final int QUEUE_CAPACITY = 16;
+
+    /**
+     * Constructor
+     *
+     * @param store the store whose billing service consumes the purchases
+     */
+    PurchasePipeline(SoomlaStore store) {
+        mStore = store;
+        mWorker = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SOOMLA PurchasePipeline");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues the given purchases to be processed by the worker.
+     *
+     * @param purchases the purchases to process
+     * @param isRestoring true if the purchases come from restoring transactions
+     * @param onFinished called on the main thread after all events of the purchases were posted.
+     *                   May be null.
+     * @return false if the queue is full and the purchases were rejected. An
+     *         <code>UnexpectedStoreErrorEvent</code> is posted then, and onFinished never runs.
+     */
+    boolean submit(List<IabPurchase> purchases, boolean isRestoring, Runnable onFinished) {
+        synchronized (mQueueLock) {
+            if (isRestoring && mWaitingRestore != null) {
+                SoomlaUtils.LogDebug(TAG, "Merging a restore into the one that is waiting.");
+                mWaitingRestore.purchases.addAll(purchases);
+                if (onFinished != null) {
+                    mWaitingRestore.onFinished.add(onFinished);
+                }
+                return true;
+            }
+
+            final Group group = new Group(purchases, isRestoring, onFinished);
+            try {
+                mWorker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (mQueueLock) {
+                            // nothing is merged into the group once it started
+                            if (mWaitingRestore == group) {
+                                mWaitingRestore = null;
+                            }
+                        }
+                        process(group.purchases, group.isRestoring, group.finished());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                SoomlaUtils.LogError(TAG, "Too many purchases are waiting. Rejected "
+                        + purchases.size() + " purchases.");
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        BusProvider.getInstance().post(new UnexpectedStoreErrorEvent(
+                                UnexpectedStoreErrorEvent.ErrorCode.PURCHASE_FAIL));
+                    }
+                });
+                return false;
+            }
+            if (isRestoring) {
+                mWaitingRestore = group;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Runs all stages of the given purchases on the calling thread.
+     *
+     * @param purchases the purchases to process
+     * @param isRestoring true if the purchases come from restoring transactions
+     * @param onFinished called on the main thread after all events of the purchases were posted.
+     *                   May be null.
+     */
+    void process(List<IabPurchase> purchases, boolean isRestoring, Runnable onFinished) {
+        Batch batch = new Batch(isRestoring);
+        for (IabPurchase purchase : purchases) {
+            validate(purchase, batch);
+        }
+        grant(batch);
+        persist(batch);
+        consume(batch);
+        notify(batch, onFinished);
+    }
+
+
+    /** Private functions **/
+
+    /**
+     * Checks the state of the purchase and either adds it to the batch's grants, or schedules
+     * the refund or error it stands for.
+     */
+    private void validate(IabPurchase purchase, Batch batch) {
+        String sku = purchase.getSku();
+
+        final PurchasableVirtualItem pvi;
+        try {
+            pvi = StoreInfo.getPurchasableItem(sku);
+        } catch (VirtualItemNotFoundException e) {
+            SoomlaUtils.LogError(TAG, "(handleSuccessfulPurchase - purchase or query-inventory) "
+                    + "ERROR : Couldn't find the " +
+                    " VirtualCurrencyPack OR MarketItem  with productId: " + sku +
+                    ". It's unexpected so an unexpected error is being emitted.");
+            batch.post(new UnexpectedStoreErrorEvent(
+                    UnexpectedStoreErrorEvent.ErrorCode.PURCHASE_FAIL));
+            return;
+        }
+
+        switch (purchase.getPurchaseState()) {
+            case 0: {
+                if (!purchase.isServerVerified()) {
+                    batch.post(new UnexpectedStoreErrorEvent(
+                            purchase.getVerificationErrorCode() != null ?
+                                    purchase.getVerificationErrorCode() :
+                                    UnexpectedStoreErrorEvent.ErrorCode.GENERAL));
+                    break;
+                }
+
+                String key = PurchaseLedger.keyOf(purchase.getOrderId(), purchase.getToken());
+                if (StoreInfo.isItemNonConsumable(pvi)) {
+                    // if the purchasable item is non-consumable and it already exists then we
+                    // don't fire any events.
+                    // fixes: https://github.com/soomla/unity3d-store/issues/192
+                    // the market reports the same token on every restore, so the balance decides,
+                    // not the ledger: a taken non-consumable is granted again.
+                    if (StorageManager.getVirtualItemStorage(pvi).getBalance(pvi.getItemId()) == 1
+                            || !batch.nonConsumables.add(pvi.getItemId())) {
+                        break;
+                    }
+                } else {
+                    PurchaseLedger ledger = StorageManager.getPurchaseLedger();
+                    if (ledger.isGranted(key) || (key != null && !batch.keys.add(key))) {
+                        SoomlaUtils.LogDebug(TAG, "IabPurchase was already granted. key: " + key);
+                        // it may have been granted but not consumed before the app was closed
+                        if (ledger.getConsumeStatus(key) == PurchaseLedger.ConsumeStatus.PENDING) {
+                            batch.pendingConsumes.add(new Grant(purchase, pvi, key));
+                        }
+                        break;
+                    }
+                }
+                batch.grants.add(new Grant(purchase, pvi, key));
+                break;
+            }
+            case 1:
+            case 2:
+                if (!StorageManager.getPurchaseLedger().markRefunded(
+                        PurchaseLedger.keyOf(purchase.getOrderId(), purchase.getToken()))) {
+                    SoomlaUtils.LogDebug(TAG, "IabPurchase refund was already handled.");
+                    break;
+                }
+                final String developerPayload = purchase.getDeveloperPayload();
+                // refunds are rare, so they're taken together with their event
+                batch.notifications.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        SoomlaUtils.LogDebug(TAG, "IabPurchase refunded.");
+                        if (!StoreConfig.friendlyRefunds) {
+                            pvi.take(1);
+                        }
+                        BusProvider.getInstance().post(new MarketRefundEvent(pvi, developerPayload));
+                    }
+                });
+                break;
+        }
+    }
+
+    private void grant(Batch batch) {
+        for (Grant grant : batch.grants) {
+            batch.transaction.give(grant.pvi, 1);
+        }
+    }
+
+    private void persist(Batch batch) {
+        List<String> keys = new ArrayList<String>(batch.grants.size());
+        List<Boolean> needsConsume = new ArrayList<Boolean>(batch.grants.size());
+        for (Grant grant : batch.grants) {
+            keys.add(grant.key);
+            needsConsume.add(!StoreInfo.isItemNonConsumable(grant.pvi));
+        }
+        try {
+            StorageManager.getPurchaseLedger().commitGranted(keys, needsConsume,
+                    batch.transaction);
+            batch.committed = true;
+            SoomlaUtils.LogDebug(TAG, "IabPurchases successful. Granted " + batch.grants.size()
+                    + " purchases");
+        } catch (InsufficientFundsException e) {
+            // purchases only credit balances, so this is not expected to happen
+            SoomlaUtils.LogError(TAG, "Couldn't grant the purchases. " + e.getMessage());
+            batch.post(new UnexpectedStoreErrorEvent(
+                    UnexpectedStoreErrorEvent.ErrorCode.PURCHASE_FAIL));
+            return;
+        }
+
+        // a restore's subscriptions are reconciled by the store once it's finished
+        if (!batch.isRestoring) {
+            for (Grant grant : batch.grants) {
+                mStore.getSubscriptionManager().purchased(grant.purchase);
+            }
+        }
+    }
+
+
+    /**
+     * Queues the granted purchases, and the ones that were granted before but weren't consumed,
+     * to be consumed by the store's <code>ConsumeQueue</code>.
+     * Purchases that weren't granted aren't consumed, so they're reported again on the next
+     * restore.
+     */
+    private void consume(Batch batch) {
+        List<Grant> grants = new ArrayList<Grant>(batch.pendingConsumes);
+        if (batch.committed) {
+            grants.addAll(batch.grants);
+        }
+
+        List<IabPurchase> consumes = new ArrayList<IabPurchase>();
+        for (Grant grant : grants) {
+            if (!StoreInfo.isItemNonConsumable(grant.pvi)) {
+                consumes.add(grant.purchase);
+            }
+        }
+        if (!consumes.isEmpty()) {
+            mStore.getConsumeQueue().enqueue(consumes);
+        }
+    }
+
+    /**
+     * Posts all events of the batch on the main thread: refunds and errors first, then the
+     * <code>MarketPurchaseEvent</code>s, the balance changes of the whole batch and the
+     * <code>ItemPurchasedEvent</code>s, which is the order a single purchase always had.
+     */
+    private void notify(final Batch batch, final Runnable onFinished) {
+        final List<Object> marketPurchases = new ArrayList<Object>();
+        final List<Object> itemsPurchased = new ArrayList<Object>();
+        if (batch.committed) {
+            for (Grant grant : batch.grants) {
+                IabPurchase purchase = grant.purchase;
+                HashMap<String, String> extraInfo = new HashMap<String, String>();
+                extraInfo.put("token", purchase.getToken());
+                extraInfo.put("orderId", purchase.getOrderId());
+                extraInfo.put("originalJson", purchase.getOriginalJson());
+                extraInfo.put("signature", purchase.getSignature());
+                extraInfo.put("userId", purchase.getUserId());
+
+                String developerPayload = purchase.getDeveloperPayload();
+                marketPurchases.add(new MarketPurchaseEvent(grant.pvi, batch.isRestoring,
+                        developerPayload, extraInfo, null));
+                itemsPurchased.add(new ItemPurchasedEvent(grant.pvi.getItemId(),
+                        batch.isRestoring, developerPayload));
+            }
+        }
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable notification : batch.notifications) {
+                    notification.run();
+                }
+                for (Object event : marketPurchases) {
+                    BusProvider.getInstance().post(event);
+                }
+                if (batch.committed) {
+                    batch.transaction.postEvents();
+                }
+                for (Object event : itemsPurchased) {
+                    BusProvider.getInstance().post(event);
+                }
+                if (onFinished != null) {
+                    onFinished.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * A purchase that passed validation, together with the item it grants.
+     */
+    private static class Grant {
+        Grant(IabPurchase purchase, PurchasableVirtualItem pvi, String key) {
+            this.purchase = purchase;
+            this.pvi = pvi;
+            this.key = key;
+        }
+
+        final IabPurchase purchase;
+        final PurchasableVirtualItem pvi;
+        final String key;
+    }
+
+    /**
+     * A submitted group of purchases that waits for the worker.
+     */
+    private static class Group {
+        Group(List<IabPurchase> purchases, boolean isRestoring, Runnable onFinished) {
+            this.purchases = new ArrayList<IabPurchase>(purchases);
+            this.isRestoring = isRestoring;
+            if (onFinished != null) {
+                this.onFinished.add(onFinished);
+            }
+        }
+
+        Runnable finished() {
+            if (onFinished.isEmpty()) {
+                return null;
+            }
+            return new Runnable() {
+                @Override
+                public void run() {
+                    for (Runnable runnable : onFinished) {
+                        runnable.run();
+                    }
+                }
+            };
+        }
+
+        final List<IabPurchase> purchases;
+        final boolean isRestoring;
+        final List<Runnable> onFinished = new ArrayList<Runnable>();
+    }
+
+    /**
+     * The state of one group of purchases as it moves through the stages.
+     */
+    private static class Batch {
+        Batch(boolean isRestoring) {
+            this.isRestoring = isRestoring;
+        }
+
+        void post(final Object event) {
+            notifications.add(new Runnable() {
+                @Override
+                public void run() {
+                    BusProvider.getInstance().post(event);
+                }
+            });
+        }
+
+        final boolean isRestoring;
+        final List<Grant> grants = new ArrayList<Grant>();
+        final List<Grant> pendingConsumes = new ArrayList<Grant>();
+        final BalanceTransaction transaction = new BalanceTransaction();
+        final List<Runnable> notifications = new ArrayList<Runnable>();
+
+        // ledger keys and non-consumable itemIds granted in this batch, so each is granted once
+        final HashSet<String> keys = new HashSet<String>();
+        final HashSet<String> nonConsumables = new HashSet<String>();
+        boolean committed;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA PurchasePipeline"; //used for Log messages
+
+    private final SoomlaStore mStore;
+    private final ThreadPoolExecutor mWorker;
+
+    // the restore that waits in the worker's queue, if any. Guarded by mQueueLock.
+    private final Object mQueueLock = new Object();
+    private Group mWaitingRestore;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+}
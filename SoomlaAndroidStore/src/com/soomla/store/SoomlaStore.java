@@ -18,6 +18,7 @@ package com.soomla.store;
 
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.text.TextUtils;
 import com.soomla.BusProvider;
 import com.soomla.SoomlaApp;
 import com.soomla.SoomlaConfig;
@@ -25,26 +26,23 @@ import com.soomla.SoomlaUtils;
 import com.soomla.store.billing.IIabService;
 import com.soomla.store.billing.IabHelper;
 import com.soomla.store.billing.IabCallbacks;
-import com.soomla.store.billing.IabException;
 import com.soomla.store.billing.IabPurchase;
 import com.soomla.store.billing.IabSkuDetails;
+import com.soomla.store.billing.SkuDetailsFetcher;
+import com.soomla.store.data.KeyValueBatch;
 import com.soomla.store.data.StorageManager;
 import com.soomla.store.data.StoreInfo;
 import com.soomla.store.domain.MarketItem;
 import com.soomla.store.domain.PurchasableVirtualItem;
 import com.soomla.store.domain.VirtualItem;
-import com.soomla.store.domain.virtualGoods.VirtualGood;
 import com.soomla.store.events.BillingNotSupportedEvent;
 import com.soomla.store.events.BillingSupportedEvent;
 import com.soomla.store.events.IabServiceStartedEvent;
-import com.soomla.store.events.ItemPurchasedEvent;
 import com.soomla.store.events.MarketItemsRefreshFailedEvent;
 import com.soomla.store.events.MarketItemsRefreshFinishedEvent;
 import com.soomla.store.events.MarketItemsRefreshStartedEvent;
 import com.soomla.store.events.MarketPurchaseCancelledEvent;
-import com.soomla.store.events.MarketPurchaseEvent;
 import com.soomla.store.events.MarketPurchaseStartedEvent;
-import com.soomla.store.events.MarketRefundEvent;
 import com.soomla.store.events.RestoreTransactionsFinishedEvent;
 import com.soomla.store.events.RestoreTransactionsStartedEvent;
 import com.soomla.store.events.SoomlaStoreInitializedEvent;
@@ -52,9 +50,10 @@ import com.soomla.store.events.UnexpectedStoreErrorEvent;
 import com.soomla.store.events.VerificationStartedEvent;
 import com.soomla.store.exceptions.VirtualItemNotFoundException;
 import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import org.json.JSONException;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -86,10 +85,20 @@ public class SoomlaStore {
 
         if (!loadBillingService()) return false;
 
+        // finish a balance batch that was interrupted by the process being killed
+        KeyValueBatch.recover();
+
         StoreInfo.setStoreAssets(storeAssets);
 
         refreshInventory();
 
+        // takes the subscriptions that expired while the app was closed
+        mSubscriptionManager.revokeExpired();
+
+        // takes the time-limited goods that expired while the app was closed, and schedules the
+        // expiry of the others
+        StorageManager.getGoodExpiryEngine().advance();
+
         mInitialized = true;
         BusProvider.getInstance().post(new SoomlaStoreInitializedEvent());
         return true;
@@ -108,6 +117,7 @@ public class SoomlaStore {
 
             @Override
             public void success(boolean alreadyInBg) {
+                mBillingInitializer.ready();
                 if (!alreadyInBg) {
                     notifyIabServiceStarted();
                     SoomlaUtils.LogDebug(TAG, "Successfully started billing service in background.");
@@ -115,6 +125,9 @@ public class SoomlaStore {
                     SoomlaUtils.LogDebug(TAG, "Couldn't start billing service in background. "
                             + "Was already started.");
                 }
+
+                // purchases that couldn't be consumed before can be consumed now
+                mConsumeQueue.drainNow();
             }
 
             @Override
@@ -136,6 +149,8 @@ public class SoomlaStore {
             return;
         }
 
+        // the operations after this one have to set the billing service up again
+        mBillingInitializer.reset();
         mInAppBillingService.stopIabServiceInBg(new IabCallbacks.IabInitListener() {
 
             @Override
@@ -160,7 +175,7 @@ public class SoomlaStore {
             return;
         }
 
-        mInAppBillingService.initializeBillingService(
+        mBillingInitializer.initialize(mInAppBillingService,
                 new IabCallbacks.IabInitListener() {
 
                     @Override
@@ -174,7 +189,7 @@ public class SoomlaStore {
 
                         IabCallbacks.OnRestorePurchasesListener restorePurchasesListener = new IabCallbacks.OnRestorePurchasesListener() {
                             @Override
-                            public void success(List<IabPurchase> purchases) {
+                            public void success(final List<IabPurchase> purchases) {
                                 SoomlaUtils.LogDebug(TAG, "Transactions restored");
 
                                 if (purchases.size() > 0) {
@@ -187,20 +202,28 @@ public class SoomlaStore {
                                         SoomlaUtils.LogDebug(TAG, "Got owned items: " + ownedSkus);
                                     }
 
-                                    handleSuccessfulPurchases(purchases, true, new HandleSuccessfulPurchasesFinishedHandler() {
+                                    Runnable onFinished = new Runnable() {
                                         @Override
-                                        public void onFinished() {
+                                        public void run() {
 
                                             // Restore transactions always finished successfully even if
                                             // something wrong happened when handling a specific item.
 
+                                            mSubscriptionManager.reconcile(purchases);
                                             BusProvider.getInstance().post(
                                                     new RestoreTransactionsFinishedEvent(true));
+                                            mConsumeQueue.drainNow();
                                         }
-                                    });
+                                    };
+                                    if (!mPurchasePipeline.submit(purchases, true, onFinished)) {
+                                        BusProvider.getInstance().post(
+                                                new RestoreTransactionsFinishedEvent(false));
+                                    }
                                 } else {
+                                    mSubscriptionManager.reconcile(purchases);
                                     BusProvider.getInstance().post(
                                             new RestoreTransactionsFinishedEvent(true));
+                                    mConsumeQueue.drainNow();
                                 }
                             }
 
@@ -216,55 +239,6 @@ public class SoomlaStore {
                             }
                         };
 
-                        IabCallbacks.OnRestorePurchasesListener restoreSubscriptionsListener = new IabCallbacks.OnRestorePurchasesListener() {
-                            @Override
-                            public void success(List<IabPurchase> purchases) {
-
-                                // collect subscription ids list
-                                List<String> subscriptionIds = new ArrayList<String>();
-                                for (IabPurchase purchase : purchases) {
-                                    subscriptionIds.add(purchase.getSku());
-                                }
-
-                                // collect subscriptionVG list
-                                List<VirtualGood> subscriptions = new ArrayList<VirtualGood>();
-                                for (VirtualGood good : StoreInfo.getGoods()) {
-                                    if ((good.getPurchaseType() instanceof PurchaseWithMarket) && ((PurchaseWithMarket)good.getPurchaseType()).isSubscription()) {
-                                        subscriptions.add(good);
-                                    }
-                                }
-
-                                // give unset subscriptions and take expired
-                                for (VirtualGood subscription : subscriptions) {
-                                    String productId = ((PurchaseWithMarket)subscription.getPurchaseType()).getMarketItem().getProductId();
-                                    if (subscriptionIds.contains(productId)) {
-                                        // TODO: is here should be 1 to give? Maybe current item has not only just 0/1 state
-                                        subscription.give(1, false);
-                                    } else {
-                                        try {
-                                            subscription.take(StoreInventory.getVirtualItemBalance(subscription.getItemId()), false);
-                                        }
-                                        catch (VirtualItemNotFoundException ex) {
-                                            // possibly unreachable block
-                                        }
-                                    }
-                                }
-                                // TODO: Should we notify user about repaired or expired subscriptions?
-                            }
-
-                            @Override
-                            public void fail(String message) {
-                                SoomlaUtils.LogDebug(TAG, "Subscriptions restoring failed: " + message);
-                            }
-
-                            @Override
-                            public void verificationStarted(List<IabPurchase> purchases) {
-                                // should we do it in subscription restoring? possibly it should be empty
-                            }
-                        };
-
-                        // no events like in restore purchases - keep subscription restoring silent for end-user
-
                         try {
                             mInAppBillingService.restorePurchasesAsync(restorePurchasesListener);
                         } catch (IllegalStateException ex) {
@@ -303,7 +277,7 @@ public class SoomlaStore {
             return;
         }
 
-        mInAppBillingService.initializeBillingService(
+        mBillingInitializer.initialize(mInAppBillingService,
                 new IabCallbacks.IabInitListener() {
 
                     @Override
@@ -344,18 +318,31 @@ public class SoomlaStore {
                                                             getPurchasableItem(productId);
                                                     MarketItem mi = ((PurchaseWithMarket)
                                                             pvi.getPurchaseType()).getMarketItem();
-                                                    mi.setMarketInformation(price, title, desc, currencyCode, priceMicros);
 
+                                                    // unchanged items don't need to be saved again.
+                                                    // the published item is shared with readers,
+                                                    // so the new details go on a copy of it.
+                                                    if (!hasMarketInformation(mi, iabSkuDetails)) {
+                                                        pvi = StoreInfo.copyOf(pvi);
+                                                        mi = ((PurchaseWithMarket)
+                                                                pvi.getPurchaseType()).getMarketItem();
+                                                        mi.setMarketInformation(price, title, desc, currencyCode, priceMicros);
+                                                        virtualItems.add(pvi);
+                                                    }
                                                     marketItems.add(mi);
-                                                    virtualItems.add(pvi);
                                                 } catch (VirtualItemNotFoundException e) {
                                                     String msg = "(refreshInventory) Couldn't find a "
                                                             + "purchasable item associated with: " + productId;
                                                     SoomlaUtils.LogError(TAG, msg);
+                                                } catch (JSONException e) {
+                                                    SoomlaUtils.LogError(TAG, "(refreshInventory) Couldn't copy "
+                                                            + "the item of: " + productId + " " + e.getMessage());
                                                 }
                                             }
 
-                                            StoreInfo.save(virtualItems);
+                                            if (!virtualItems.isEmpty()) {
+                                                StoreInfo.save(virtualItems);
+                                            }
                                         }
                                         BusProvider.getInstance().post(new MarketItemsRefreshFinishedEvent(marketItems));
 
@@ -380,16 +367,8 @@ public class SoomlaStore {
 
                         BusProvider.getInstance().post(new MarketItemsRefreshStartedEvent());
 
-                        try {
-                            mInAppBillingService.fetchSkusDetailsAsync(purchasableProductIds, fetchSkusDetailsListener);
-                        } catch (IllegalStateException ex) {
-                            SoomlaUtils.LogError(TAG, "Can't proceed with fetchSkusDetails. error: " + ex.getMessage());
-                            fetchSkusDetailsListener.fail("Can't proceed with fetchSkusDetails. error: " + ex.getMessage());
-
-                            if (followedByRestoreTransactions) {
-                                restoreTransactions();
-                            }
-                        }
+                        mSkuDetailsFetcher.fetch(mInAppBillingService, purchasableProductIds,
+                                fetchSkusDetailsListener);
                     }
 
                     @Override
@@ -445,8 +424,8 @@ public class SoomlaStore {
             return;
         }
 
-        mInAppBillingService.initializeBillingService
-                (new IabCallbacks.IabInitListener() {
+        mBillingInitializer.initialize(mInAppBillingService,
+                new IabCallbacks.IabInitListener() {
 
                     @Override
                     public void success(boolean alreadyInBg) {
@@ -459,7 +438,8 @@ public class SoomlaStore {
 
                                     @Override
                                     public void success(IabPurchase purchase) {
-                                        handleSuccessfulPurchase(purchase, false);
+                                        mPurchasePipeline.submit(
+                                                Collections.singletonList(purchase), false, null);
                                     }
 
                                     @Override
@@ -539,6 +519,47 @@ public class SoomlaStore {
         return mInAppBillingService;
     }
 
+    /**
+     * Retrieves the fetcher of market items details. Use it to configure how details are
+     * requested from the billing service and how long they're cached, or to drop the cache
+     * before calling {@link #refreshMarketItemsDetails()}.
+     *
+     * @return the fetcher of market items details.
+     */
+    public SkuDetailsFetcher getSkuDetailsFetcher() {
+        return mSkuDetailsFetcher;
+    }
+
+    /**
+     * Retrieves the initializer that sets the billing service up for the store's operations. Use
+     * it to configure the backoff after a failed setup, or to read how many setups were avoided.
+     *
+     * @return the billing service's initializer.
+     */
+    public BillingInitializer getBillingInitializer() {
+        return mBillingInitializer;
+    }
+
+    /**
+     * Retrieves the queue of purchases that wait to be consumed. Use it to configure the retries
+     * of failed consumptions, or to read the queue's metrics.
+     *
+     * @return the queue of purchases to consume.
+     */
+    public ConsumeQueue getConsumeQueue() {
+        return mConsumeQueue;
+    }
+
+    /**
+     * Retrieves the manager of subscription goods. Use it to read when subscriptions expire, or
+     * to read the manager's metrics.
+     *
+     * @return the manager of subscription goods.
+     */
+    public SubscriptionManager getSubscriptionManager() {
+        return mSubscriptionManager;
+    }
+
     /**
      * This function loads the billing service that was set in the AndroidManifest.xml
      * This is automatically ran when you initialize SoomlaStore and you're usually not supposed to
@@ -583,6 +604,21 @@ public class SoomlaStore {
         BusProvider.getInstance().post(new IabServiceStartedEvent());
     }
 
+    /**
+     * Checks if the given market item already has the market information in the given details.
+     *
+     * @param mi the market item to check
+     * @param details the details fetched from the market
+     * @return true if the market item doesn't need to be updated
+     */
+    private static boolean hasMarketInformation(MarketItem mi, IabSkuDetails details) {
+        return TextUtils.equals(mi.getMarketPriceAndCurrency(), details.getPrice())
+                && TextUtils.equals(mi.getMarketTitle(), details.getTitle())
+                && TextUtils.equals(mi.getMarketDescription(), details.getDescription())
+                && TextUtils.equals(mi.getMarketCurrencyCode(), details.getCurrencyCode())
+                && mi.getMarketPriceMicros() == details.getPriceMicros();
+    }
+
     /**
      * Reports that in-app billing service initialization failed.
      *
@@ -596,68 +632,6 @@ public class SoomlaStore {
     }
 
 
-    private interface HandleSuccessfulPurchasesFinishedHandler {
-        void onFinished();
-    }
-
-    private void handleSuccessfulPurchases(List<IabPurchase> purchases, boolean isRestoring, HandleSuccessfulPurchasesFinishedHandler handler) {
-        for (IabPurchase purchase : purchases) {
-            handleSuccessfulPurchase(purchase, isRestoring);
-        }
-
-        if (handler != null) {
-            handler.onFinished();
-        }
-
-    }
-
-    /**
-     * Checks the state of the purchase and responds accordingly, giving the user an item,
-     * throwing an error, or taking the item away and paying the user back.
-     *
-     * @param purchase purchase whose state is to be checked.
-     */
-    private void handleSuccessfulPurchase(IabPurchase purchase, boolean isRestoring) {
-        String sku = purchase.getSku();
-
-        PurchasableVirtualItem pvi;
-        try {
-            pvi = StoreInfo.getPurchasableItem(sku);
-        } catch (VirtualItemNotFoundException e) {
-            SoomlaUtils.LogError(TAG, "(handleSuccessfulPurchase - purchase or query-inventory) "
-                    + "ERROR : Couldn't find the " +
-                    " VirtualCurrencyPack OR MarketItem  with productId: " + sku +
-                    ". It's unexpected so an unexpected error is being emitted.");
-            BusProvider.getInstance().post(new UnexpectedStoreErrorEvent(
-                    UnexpectedStoreErrorEvent.ErrorCode.PURCHASE_FAIL));
-            return;
-        }
-
-        switch (purchase.getPurchaseState()) {
-            case 0: {
-                if (purchase.isServerVerified()) {
-                    this.finalizeTransaction(purchase, pvi, isRestoring);
-                } else {
-                    BusProvider.getInstance().post(
-                            new UnexpectedStoreErrorEvent(
-                                    purchase.getVerificationErrorCode() != null?
-                                            purchase.getVerificationErrorCode() :
-                                            UnexpectedStoreErrorEvent.ErrorCode.GENERAL));
-                }
-
-                break;
-            }
-            case 1:
-            case 2:
-                SoomlaUtils.LogDebug(TAG, "IabPurchase refunded.");
-                if (!StoreConfig.friendlyRefunds) {
-                    pvi.take(1);
-                }
-                BusProvider.getInstance().post(new MarketRefundEvent(pvi, purchase.getDeveloperPayload()));
-                break;
-        }
-    }
-
     /**
      * Handles a cancelled purchase by either posting an event containing a
      * <code>PurchasableVirtualItem</code> corresponding to the given purchase, or an unexpected
@@ -700,20 +674,13 @@ public class SoomlaStore {
     }
 
     /**
-     * Consumes the given purchase, or writes error message to log if unable to consume
+     * Queues the given purchase to be consumed, unless its item is non-consumable.
      *
      * @param purchase purchase to be consumed
      */
     private void consumeIfConsumable(IabPurchase purchase, PurchasableVirtualItem pvi) {
-        try {
-            if (!StoreInfo.isItemNonConsumable(pvi)) {
-                mInAppBillingService.consume(purchase);
-            }
-        } catch (IabException e) {
-            SoomlaUtils.LogDebug(TAG, "Error while consuming: itemId: " + pvi.getItemId() +
-                    "   productId: " + purchase.getSku());
-            SoomlaUtils.LogError(TAG, e.getMessage());
-            BusProvider.getInstance().post(new UnexpectedStoreErrorEvent(UnexpectedStoreErrorEvent.ErrorCode.PURCHASE_FAIL));
+        if (!StoreInfo.isItemNonConsumable(pvi)) {
+            mConsumeQueue.enqueue(purchase);
         }
     }
 
@@ -755,41 +722,6 @@ public class SoomlaStore {
         SoomlaUtils.LogError(TAG, "ERROR: SoomlaStore failure: " + message);
     }
 
-    private void finalizeTransaction(IabPurchase purchase, PurchasableVirtualItem pvi, boolean isRestoring) {
-        SoomlaUtils.LogDebug(TAG, "IabPurchase successful. Finalizing transaction");
-
-        // if the purchasable item is non-consumable and it already exists then we
-        // don't fire any events.
-        // fixes: https://github.com/soomla/unity3d-store/issues/192
-        // TODO: update on the issue in github
-        if (StoreInfo.isItemNonConsumable(pvi)) {
-            if (StorageManager.getVirtualItemStorage(pvi).getBalance(pvi.getItemId()) == 1) {
-                return;
-            }
-        }
-
-
-        String developerPayload = purchase.getDeveloperPayload();
-        final String token = purchase.getToken();
-        final String orderId = purchase.getOrderId();
-        final String originalJson = purchase.getOriginalJson();
-        final String signature = purchase.getSignature();
-        final String userId = purchase.getUserId();
-
-        BusProvider.getInstance().post(new MarketPurchaseEvent(pvi, isRestoring, developerPayload, new HashMap<String, String>() {{
-                    put("token", token);
-                    put("orderId", orderId);
-                    put("originalJson", originalJson);
-                    put("signature", signature);
-                    put("userId", userId);
-                }}, null));
-
-        pvi.give(1);
-        BusProvider.getInstance().post(new ItemPurchasedEvent(pvi.getItemId(), isRestoring, developerPayload));
-
-        consumeIfConsumable(purchase, pvi);
-    }
-
     /* Singleton */
     private static SoomlaStore sInstance = null;
 
@@ -817,5 +749,10 @@ public class SoomlaStore {
     private static final String TAG = "SOOMLA SoomlaStore"; //used for Log messages
     private boolean mInitialized = false;
     private IIabService mInAppBillingService;
+    private final SkuDetailsFetcher mSkuDetailsFetcher = new SkuDetailsFetcher();
+    private final PurchasePipeline mPurchasePipeline = new PurchasePipeline(this);
+    private final ConsumeQueue mConsumeQueue = new ConsumeQueue(this);
+    private final BillingInitializer mBillingInitializer = new BillingInitializer();
+    private final SubscriptionManager mSubscriptionManager = new SubscriptionManager();
 
 }
@@ -27,6 +27,12 @@ public class StoreConfig {
     // after a refund or not. (default: false)
     public static final boolean friendlyRefunds = false;
 
+    // A lazyCatalog tells android-store to load only an index of the store's metadata on start,
+    // and to create every VirtualItem the first time it's used. Saves start time and memory when
+    // your catalog is big and a session only uses a small part of it. Set it before initializing
+    // SoomlaStore. (default: false)
+    public static boolean lazyCatalog = false;
+
     /**
      * ---NEVER!--- CHANGE THE VALUE FOR THIS VARIABLE !!!
      * This value defines the version of the metadata located in your database.
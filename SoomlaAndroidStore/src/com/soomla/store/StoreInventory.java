@@ -18,12 +18,12 @@ package com.soomla.store;
 
 import android.text.TextUtils;
 import com.soomla.SoomlaUtils;
-import com.soomla.data.KeyValueStorage;
+import com.soomla.store.data.BalanceTransaction;
+import com.soomla.store.data.InventoryReset;
 import com.soomla.store.data.StorageManager;
 import com.soomla.store.data.StoreInfo;
-import com.soomla.store.data.VirtualCurrencyStorage;
-import com.soomla.store.data.VirtualGoodsStorage;
 import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualCategory;
 import com.soomla.store.domain.VirtualItem;
 import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
 import com.soomla.store.domain.virtualGoods.EquippableVG;
@@ -36,6 +36,7 @@ import com.soomla.store.exceptions.VirtualItemNotFoundException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class will help you do your day to day virtual economy operations easily.
@@ -74,6 +75,31 @@ public class StoreInventory {
         return StorageManager.getVirtualItemStorage(item).getBalance(item.getItemId());
     }
 
+    /**
+     * Retrieves the handle of the virtual item with the given <code>itemId</code>.
+     * Keep it and pass it to {@link #getVirtualItemBalance(int)} to read the item's balance
+     * without looking up the itemId on every read.
+     *
+     * @param itemId id of the virtual item to be fetched
+     * @return the handle of the item with the given id
+     * @throws VirtualItemNotFoundException
+     */
+    public static int getItemHandle(String itemId) throws VirtualItemNotFoundException {
+        return StoreInfo.getVirtualItem(itemId).getHandle();
+    }
+
+    /**
+     * Retrieves the balance of the virtual item with the given handle.
+     *
+     * @param handle the handle of the virtual item, see {@link #getItemHandle(String)}
+     * @return balance of the virtual item with the given handle
+     * @throws VirtualItemNotFoundException
+     */
+    public static int getVirtualItemBalance(int handle) throws VirtualItemNotFoundException {
+        VirtualItem item = StoreInfo.getVirtualItem(handle);
+        return StorageManager.getVirtualItemStorage(item).getBalance(handle);
+    }
+
     /**
      * Gives your user the given amount of the virtual item with the given <code>itemId</code>.
      * For example, when your user plays your game for the first time you GIVE him/her 1000 gems.
@@ -106,6 +132,17 @@ public class StoreInventory {
         item.take(amount);
     }
 
+    /**
+     * Starts a new <code>BalanceTransaction</code>. Use it to change the balances of several
+     * virtual items all-or-nothing, for example paying with two currencies at once.
+     * Nothing is changed until {@link BalanceTransaction#commit()} is called.
+     *
+     * @return a new, empty transaction
+     */
+    public static BalanceTransaction beginTransaction() {
+        return new BalanceTransaction();
+    }
+
     /** VIRTUAL GOODS **/
 
     /**
@@ -192,14 +229,7 @@ public class StoreInventory {
             return 0; //no upgrade
         }
 
-        UpgradeVG first = StoreInfo.getGoodFirstUpgrade(goodItemId);
-        int level = 1;
-        while (!first.equals(upgradeVG)) {
-            first = (UpgradeVG) StoreInfo.getVirtualItem(first.getNextItemId());
-            level++;
-        }
-
-        return level;
+        return StoreInfo.getUpgradeLevel(upgradeVG.getItemId());
     }
 
     /**
@@ -254,11 +284,10 @@ public class StoreInventory {
         }
 
         if (upgradeVG != null) {
-            String nextItemId = upgradeVG.getNextItemId();
-            if (TextUtils.isEmpty(nextItemId)) {
+            UpgradeVG vgu = StoreInfo.getNextUpgrade(upgradeVG.getItemId());
+            if (vgu == null) {
                 return;
             }
-            UpgradeVG vgu = (UpgradeVG) StoreInfo.getVirtualItem(nextItemId);
             vgu.buy("");
         } else {
             UpgradeVG first = StoreInfo.getGoodFirstUpgrade(goodItemId);
@@ -302,6 +331,20 @@ public class StoreInventory {
         StorageManager.getVirtualGoodsStorage().removeUpgrades(good.getItemId());
     }
 
+    /**
+     * Fills the given snapshot with the balances, equip states and upgrade levels of all
+     * currencies and goods. Unlike {@link #allItemsBalances()}, this keeps the values in
+     * primitive arrays indexed by item handle and reuses them on every call, so it's the
+     * cheaper way to export the whole inventory periodically.
+     *
+     * @param snapshot the snapshot to overwrite
+     * @return the given snapshot
+     */
+    public static InventorySnapshot fillSnapshot(InventorySnapshot snapshot) {
+        snapshot.fill();
+        return snapshot;
+    }
+
     public static HashMap<String, HashMap<String, Object>> allItemsBalances() {
         SoomlaUtils.LogDebug(TAG, "Fetching all items balances");
 
@@ -340,6 +383,17 @@ public class StoreInventory {
         return itemsDict;
     }
 
+    /**
+     * Replaces the balances, equip states and upgrades of all items with the given ones, in the
+     * format of {@link #allItemsBalances()}. Items that aren't given are left with a balance of
+     * 0, unequipped and without an upgrade.
+     *
+     * All values are written in one batch, and one <code>BalancesChangedEvent</code> is posted
+     * for the items whose balance changed.
+     *
+     * @param replaceBalances the new values, keyed by itemId
+     * @return true if the inventory was replaced
+     */
     public static boolean resetAllItemsBalances(HashMap<String, HashMap<String, Object>> replaceBalances) {
         if (replaceBalances == null) {
             return false;
@@ -347,60 +401,60 @@ public class StoreInventory {
 
         SoomlaUtils.LogDebug(TAG, "Resetting balances");
 
-        clearCurrentState();
-
-        SoomlaUtils.LogDebug(TAG, "Current state was cleared");
-
         try {
+            HashMap<VirtualItem, HashMap<String, Object>> updates =
+                    new HashMap<VirtualItem, HashMap<String, Object>>();
             for (String itemId : replaceBalances.keySet()) {
-                HashMap<String, Object> updatedValues = replaceBalances.get(itemId);
-
-                VirtualItem item = null;
                 try {
-                    item = StoreInfo.getVirtualItem(itemId);
+                    updates.put(StoreInfo.getVirtualItem(itemId), replaceBalances.get(itemId));
                 } catch (VirtualItemNotFoundException e) {
                     SoomlaUtils.LogError(TAG, "The given itemId " + itemId + " was not found. Can't force it.");
-                    continue;
                 }
+            }
+
+            InventoryReset reset = new InventoryReset();
 
-                Object rawBalance = updatedValues.get("balance");
+            // balances go first, so equipping and upgrading see the new balances whatever the
+            // order of the given items is
+            for (Map.Entry<VirtualItem, HashMap<String, Object>> entry : updates.entrySet()) {
+                Object rawBalance = entry.getValue().get("balance");
                 if (rawBalance != null) {
-                    Integer updatedBalance = (Integer) rawBalance;
-                    if (item != null) {
-                        item.resetBalance(updatedBalance, false);
-                        SoomlaUtils.LogDebug(TAG, "finished balance sync for itemId: " + itemId);
-                    }
+                    reset.setBalance(entry.getKey().getItemId(), (Integer) rawBalance);
+                    SoomlaUtils.LogDebug(TAG, "finished balance sync for itemId: " + entry.getKey().getItemId());
                 }
+            }
 
-                Object rawEquippedState = updatedValues.get("equipped");
+            for (Map.Entry<VirtualItem, HashMap<String, Object>> entry : updates.entrySet()) {
+                Object rawEquippedState = entry.getValue().get("equipped");
                 if (rawEquippedState != null) {
-                    try {
-                        EquippableVG equippableItem = (EquippableVG) item;
-                        if (equippableItem != null) {
-                            Boolean equipState = (Boolean) rawEquippedState;
-                            if (equipState) {
-                                equippableItem.equip(false);
-                            } else {
-                                equippableItem.unequip(false);
-                            }
-                        }
-                        SoomlaUtils.LogDebug(TAG, "finished equip balance sync for itemId: " + itemId);
-                    } catch (NotEnoughGoodsException e) {
-                        SoomlaUtils.LogError(TAG, "the item " + itemId + " was not purchased, so cannot be equipped");
-                    } catch (ClassCastException exx) {
+                    String itemId = entry.getKey().getItemId();
+                    if (!(entry.getKey() instanceof EquippableVG)) {
                         SoomlaUtils.LogError(TAG, "tried to equip a non-equippable item: " + itemId);
+                        continue;
+                    }
+                    if ((Boolean) rawEquippedState) {
+                        stageEquip(reset, (EquippableVG) entry.getKey());
+                    } else {
+                        reset.setEquipped(itemId, false);
                     }
+                    SoomlaUtils.LogDebug(TAG, "finished equip balance sync for itemId: " + itemId);
                 }
+            }
 
-                Object rawCurrentUpgrade = updatedValues.get("currentUpgrade");
+            for (Map.Entry<VirtualItem, HashMap<String, Object>> entry : updates.entrySet()) {
+                Object rawCurrentUpgrade = entry.getValue().get("currentUpgrade");
                 if (rawCurrentUpgrade != null) {
                     String currentUpgradeId = (String) rawCurrentUpgrade;
                     if (!TextUtils.isEmpty(currentUpgradeId)) {
                         try {
                             UpgradeVG upgradeVG = (UpgradeVG) StoreInfo.getVirtualItem(currentUpgradeId);
-                            upgradeVG.give(1, false);
+                            reset.setCurrentUpgrade(upgradeVG.getGoodItemId(), upgradeVG.getItemId());
+                            // an assigned upgrade is always owned, as in UpgradeVG.give
+                            if (reset.getBalance(upgradeVG.getItemId()) < 1) {
+                                reset.setBalance(upgradeVG.getItemId(), 1);
+                            }
 
-                            SoomlaUtils.LogDebug(TAG, "finished upgrade balance sync for itemId: " + itemId);
+                            SoomlaUtils.LogDebug(TAG, "finished upgrade balance sync for itemId: " + entry.getKey().getItemId());
                         } catch (VirtualItemNotFoundException ex) {
                             SoomlaUtils.LogError(TAG, "The given upgradeId " + currentUpgradeId + " was not found. Can't force it.");
                         } catch (ClassCastException ex) {
@@ -410,6 +464,10 @@ public class StoreInventory {
                 }
             }
 
+            reset.commit(true);
+
+            SoomlaUtils.LogDebug(TAG, "Current state was replaced");
+
             return true;
         }
         catch (Exception e) {
@@ -419,16 +477,40 @@ public class StoreInventory {
         return false;
     }
 
-    private static void clearCurrentState() {
-        List<String> allKeys = KeyValueStorage.getEncryptedKeys();
+    /**
+     * Stages equipping the given good, applying its equipping model on the staged values the
+     * same way {@link EquippableVG#equip(boolean)} applies it on the stored ones.
+     *
+     * @param reset the reset to stage the equip in
+     * @param good the good to equip
+     */
+    private static void stageEquip(InventoryReset reset, EquippableVG good) {
+        if (reset.getBalance(good.getItemId()) <= 0) {
+            SoomlaUtils.LogError(TAG, "the item " + good.getItemId() + " was not purchased, so cannot be equipped");
+            return;
+        }
 
-        for (String key : allKeys) {
-            if (key.startsWith(StoreInfo.DB_NONCONSUMABLE_KEY_PREFIX) ||
-                    key.startsWith(VirtualCurrencyStorage.DB_CURRENCY_KEY_PREFIX) ||
-                    key.startsWith(VirtualGoodsStorage.DB_KEY_GOOD_PREFIX)) {
-                KeyValueStorage.deleteKeyValue(key);
+        if (good.getEquippingModel() == EquippableVG.EquippingModel.CATEGORY) {
+            VirtualCategory category;
+            try {
+                category = StoreInfo.getCategory(good.getItemId());
+            } catch (VirtualItemNotFoundException e) {
+                SoomlaUtils.LogError(TAG, "Tried to unequip all other category VirtualGoods but there was no " +
+                        "associated category. virtual good itemId: " + good.getItemId());
+                return;
+            }
+            for (String goodItemId : category.getGoodsItemIds()) {
+                reset.setEquipped(goodItemId, false);
+            }
+        } else if (good.getEquippingModel() == EquippableVG.EquippingModel.GLOBAL) {
+            for (VirtualGood other : StoreInfo.getGoods()) {
+                if (other instanceof EquippableVG) {
+                    reset.setEquipped(other.getItemId(), false);
+                }
             }
         }
+
+        reset.setEquipped(good.getItemId(), true);
     }
 
     private static final String TAG = "SOOMLA StoreInventory"; //used for Log messages
@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store;
+
+import android.text.TextUtils;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.data.TimingWheel;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.exceptions.VirtualItemNotFoundException;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the balances of subscription goods (goods with a <code>PurchaseWithMarket</code> that
+ * is a subscription) in line with the subscriptions the user owns in the market.
+ *
+ * {@link #reconcile(java.util.Collection)} runs after every restore: it gives the subscriptions
+ * the market reports as owned and takes the ones it doesn't, without events, as the restore
+ * announces itself. Only a subscription that expired locally is given back with an event, since
+ * its expiry was announced with one.
+ *
+ * A subscription with a known period also gets an expiry time: its purchase time plus as many
+ * periods as it takes to reach the future, since the market keeps reporting a renewed
+ * subscription with its first purchase time. Expiry times are persisted in
+ * <code>KeyValueStorage</code> and scheduled in a {@link TimingWheel}. A single wake-up is
+ * scheduled for the wheel's next expiry, so a subscription is taken (with events) when it
+ * expires, without waiting for the next restore. If the subscription was renewed, the next
+ * restore gives it back.
+ */
+public class SubscriptionManager {
+
+    public static final long TICK_MILLIS = 60 * 1000;
+
+    /**
+     * Constructor
+     */
+    SubscriptionManager() {
+    }
+
+    /**
+     * Gives the subscriptions in the given restored purchases, takes every other subscription,
+     * and schedules the expiry of the given ones.
+     *
+     * @param purchases all purchases the user owns in the market
+     */
+    public void reconcile(Collection<IabPurchase> purchases) {
+        long startedAt = System.nanoTime();
+        List<VirtualGood> toGive = new ArrayList<VirtualGood>();
+        List<VirtualGood> toGiveWithEvents = new ArrayList<VirtualGood>();
+        List<VirtualGood> toTake = new ArrayList<VirtualGood>();
+        synchronized (this) {
+            ensureLoaded();
+            Map<String, VirtualGood> subscriptions = subscriptions();
+
+            Map<String, IabPurchase> owned = new HashMap<String, IabPurchase>();
+            for (IabPurchase purchase : purchases) {
+                if (subscriptions.containsKey(purchase.getSku())) {
+                    owned.put(purchase.getSku(), purchase);
+                }
+            }
+
+            long now = mClock.currentTimeMillis();
+            for (Map.Entry<String, VirtualGood> entry : subscriptions.entrySet()) {
+                VirtualGood good = entry.getValue();
+                IabPurchase purchase = owned.get(entry.getKey());
+                int balance = StorageManager.getVirtualGoodsStorage().getBalance(good.getItemId());
+                if (purchase != null) {
+                    if (balance == 0) {
+                        if (mRevoked.contains(good.getItemId())) {
+                            toGiveWithEvents.add(good);
+                        } else {
+                            toGive.add(good);
+                        }
+                    }
+                    track(good, purchase, now);
+                } else {
+                    if (balance > 0) {
+                        toTake.add(good);
+                    }
+                    untrack(good.getItemId());
+                }
+            }
+            mRevoked.clear();
+            mReconcilesCount++;
+            mTotalReconcileNanos += System.nanoTime() - startedAt;
+            save();
+            updateWakeup();
+        }
+
+        for (VirtualGood good : toGive) {
+            good.give(1, false);
+        }
+        // the renewal of a subscription that expired locally, e.g. on startup before the restore
+        for (VirtualGood good : toGiveWithEvents) {
+            good.give(1, true);
+        }
+        for (VirtualGood good : toTake) {
+            good.take(StorageManager.getVirtualGoodsStorage().getBalance(good.getItemId()), false);
+        }
+    }
+
+    /**
+     * Schedules the expiry of the subscription in the given purchase, if it's one. The purchase
+     * itself is given by the store as any other purchase.
+     *
+     * @param purchase a purchase that was just verified and granted
+     */
+    public void purchased(IabPurchase purchase) {
+        synchronized (this) {
+            ensureLoaded();
+            VirtualGood good = subscriptions().get(purchase.getSku());
+            if (good == null) {
+                return;
+            }
+            track(good, purchase, mClock.currentTimeMillis());
+            save();
+            updateWakeup();
+        }
+    }
+
+    /**
+     * Takes the subscriptions whose expiry time passed. Runs when the next subscription is due to
+     * expire, and when the store is initialized.
+     *
+     * @return the number of expired subscriptions
+     */
+    public int revokeExpired() {
+        List<String> expired;
+        synchronized (this) {
+            ensureLoaded();
+            expired = mWheel.advanceTo(mClock.currentTimeMillis());
+            for (String itemId : expired) {
+                mTimeouts.remove(itemId);
+                mRevoked.add(itemId);
+            }
+            if (!expired.isEmpty()) {
+                mExpiredCount += expired.size();
+                save();
+            }
+            updateWakeup();
+        }
+
+        for (String itemId : expired) {
+            int balance = StorageManager.getVirtualGoodsStorage().getBalance(itemId);
+            if (balance <= 0) {
+                continue;
+            }
+            SoomlaUtils.LogDebug(TAG, "Subscription expired: " + itemId);
+            try {
+                StoreInfo.getVirtualItem(itemId).take(balance, true);
+            } catch (VirtualItemNotFoundException e) {
+                // the item was removed from the catalog, there's nothing to take
+                SoomlaUtils.LogError(TAG, "Couldn't take expired subscription " + itemId
+                        + ". " + e.getMessage());
+            }
+        }
+        return expired.size();
+    }
+
+    /**
+     * Retrieves the time the given subscription expires at.
+     *
+     * @param itemId the id of the subscription good
+     * @return the expiry time in milliseconds, or 0 if the subscription doesn't expire locally
+     */
+    public synchronized long getExpiresAt(String itemId) {
+        ensureLoaded();
+        TimingWheel.Timeout<String> timeout = mTimeouts.get(itemId);
+        return timeout == null ? 0 : timeout.getDeadlineMillis();
+    }
+
+
+    /** Metrics **/
+
+    /**
+     * Retrieves the number of subscriptions that wait to expire.
+     *
+     * @return the number of scheduled expiries
+     */
+    public synchronized int getScheduledCount() {
+        ensureLoaded();
+        return mWheel.size();
+    }
+
+    /**
+     * Retrieves the number of subscriptions that expired locally.
+     *
+     * @return the number of expiries since the app started
+     */
+    public synchronized int getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    /**
+     * Retrieves the number of reconciliations with restored purchases.
+     *
+     * @return the number of reconciliations since the app started
+     */
+    public synchronized int getReconcilesCount() {
+        return mReconcilesCount;
+    }
+
+    /**
+     * Retrieves the average time a reconciliation took, without giving and taking the goods.
+     *
+     * @return the average reconciliation time in microseconds
+     */
+    public synchronized long getAverageReconcileMicros() {
+        return mReconcilesCount == 0 ? 0 : mTotalReconcileNanos / mReconcilesCount / 1000;
+    }
+
+
+    /** Setters and Getters **/
+
+    /**
+     * Replaces the clock that expiry times are compared with, for tests. Call it before the
+     * manager is used.
+     *
+     * @param clock the clock to use
+     */
+    public synchronized void setClock(TimingWheel.Clock clock) {
+        mClock = clock;
+        cancelWakeup();
+        mWheel = null;
+        mTimeouts.clear();
+        mLoaded = false;
+    }
+
+
+    /** Private functions **/
+
+    /**
+     * Retrieves the subscription goods by their product ids, indexed once per catalog.
+     * Callers must hold the manager's lock.
+     */
+    private Map<String, VirtualGood> subscriptions() {
+        List<VirtualGood> goods = StoreInfo.getGoods();
+        if (goods != mIndexedGoods) {
+            mSubscriptions.clear();
+            for (VirtualGood good : goods) {
+                if (good.getPurchaseType() instanceof PurchaseWithMarket) {
+                    PurchaseWithMarket pwm = (PurchaseWithMarket) good.getPurchaseType();
+                    if (pwm.isSubscription()) {
+                        mSubscriptions.put(pwm.getMarketItem().getProductId(), good);
+                    }
+                }
+            }
+            mIndexedGoods = goods;
+        }
+        return mSubscriptions;
+    }
+
+    /**
+     * Schedules the expiry of the given subscription, replacing an earlier one. Callers must
+     * hold the manager's lock.
+     */
+    private void track(VirtualGood good, IabPurchase purchase, long now) {
+        long period = ((PurchaseWithMarket) good.getPurchaseType()).getSubscriptionPeriodMillis();
+        if (period <= 0) {
+            return;
+        }
+        long expiresAt = (purchase.getPurchaseTime() > 0 ? purchase.getPurchaseTime() : now)
+                + period;
+        if (expiresAt <= now) {
+            expiresAt += ((now - expiresAt) / period + 1) * period;
+        }
+        schedule(good.getItemId(), expiresAt);
+    }
+
+    private void untrack(String itemId) {
+        TimingWheel.Timeout<String> timeout = mTimeouts.remove(itemId);
+        if (timeout != null) {
+            mWheel.cancel(timeout);
+        }
+    }
+
+    private void schedule(String itemId, long expiresAt) {
+        TimingWheel.Timeout<String> timeout = mTimeouts.get(itemId);
+        if (timeout != null) {
+            if (timeout.getDeadlineMillis() == expiresAt) {
+                return;
+            }
+            mWheel.cancel(timeout);
+        }
+        mTimeouts.put(itemId, mWheel.schedule(itemId, expiresAt));
+    }
+
+    /**
+     * Schedules {@link #revokeExpired()} for the wheel's next expiry, or cancels it if there's
+     * nothing to expire. Only the system clock gets a wake-up. Callers must hold the manager's
+     * lock.
+     */
+    private void updateWakeup() {
+        long next = mWheel.nextExpiryMillis();
+        if (next == Long.MAX_VALUE || mClock != TimingWheel.Clock.SYSTEM) {
+            cancelWakeup();
+            return;
+        }
+        if (mWakeup != null && !mWakeup.isDone() && mWakeupAt == next) {
+            return;
+        }
+        cancelWakeup();
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SOOMLA SubscriptionManager");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        mWakeupAt = next;
+        mWakeup = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                revokeExpired();
+            }
+        }, Math.max(next - mClock.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelWakeup() {
+        if (mWakeup != null) {
+            mWakeup.cancel(false);
+            mWakeup = null;
+        }
+    }
+
+    /**
+     * Loads the persisted expiry times on the first access. Callers must hold the manager's lock.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        mWheel = new TimingWheel<String>(TICK_MILLIS, WHEEL_SIZE, mClock.currentTimeMillis());
+
+        String val = KeyValueStorage.getValue(KEY_EXPIRIES);
+        if (TextUtils.isEmpty(val)) {
+            return;
+        }
+        try {
+            JSONObject expiries = new JSONObject(val);
+            for (Iterator<?> keys = expiries.keys(); keys.hasNext(); ) {
+                String itemId = (String) keys.next();
+                // an expiry time that passed while the app was closed expires on the next tick
+                schedule(itemId, expiries.getLong(itemId));
+            }
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't read the subscription expiries. " + e.getMessage());
+        }
+        SoomlaUtils.LogDebug(TAG, "Loaded " + mTimeouts.size() + " subscription expiries");
+    }
+
+    /**
+     * Persists the expiry times. Callers must hold the manager's lock.
+     */
+    private void save() {
+        if (mTimeouts.isEmpty()) {
+            KeyValueStorage.deleteKeyValue(KEY_EXPIRIES);
+            return;
+        }
+        JSONObject expiries = new JSONObject();
+        try {
+            for (TimingWheel.Timeout<String> timeout : mTimeouts.values()) {
+                expiries.put(timeout.getValue(), timeout.getDeadlineMillis());
+            }
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't save the subscription expiries. " + e.getMessage());
+            return;
+        }
+        KeyValueStorage.setValue(KEY_EXPIRIES, expiries.toString());
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA SubscriptionManager"; //used for Log messages
+
+    private static final String KEY_EXPIRIES = "store.subscriptions.expiries";
+
+    // a turn of the first level is about 8.5 hours; longer periods start on the coarser levels
+    private static final int WHEEL_SIZE = 512;
+
+    private TimingWheel.Clock mClock = TimingWheel.Clock.SYSTEM;
+
+    // productId -> subscription good, for the goods list in mIndexedGoods
+    private final Map<String, VirtualGood> mSubscriptions = new HashMap<String, VirtualGood>();
+    private List<VirtualGood> mIndexedGoods = Collections.emptyList();
+
+    // itemId -> scheduled expiry
+    private final Map<String, TimingWheel.Timeout<String>> mTimeouts =
+            new HashMap<String, TimingWheel.Timeout<String>>();
+    private TimingWheel<String> mWheel;
+    private boolean mLoaded = false;
+
+    // itemIds of the subscriptions that expired locally since the last reconciliation
+    private final Set<String> mRevoked = new HashSet<String>();
+
+    private ScheduledExecutorService mScheduler;
+    private ScheduledFuture<?> mWakeup;
+    private long mWakeupAt;
+
+    private int mExpiredCount = 0;
+    private int mReconcilesCount = 0;
+    private long mTotalReconcileNanos = 0;
+}
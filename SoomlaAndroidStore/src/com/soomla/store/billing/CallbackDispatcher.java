@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.billing;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the callbacks of <code>IabHelper</code>: the listeners of its operations and its own
+ * follow-ups, like starting the next queued operation or failing one that timed out.
+ *
+ * <code>mainThread()</code> is the default, and the only mode for a running app, as listeners
+ * expect to be called on the UI thread. <code>direct()</code> and <code>manual()</code> run the
+ * billing flow without a <code>Looper</code>, for unit tests and benchmarks.
+ */
+public abstract class CallbackDispatcher {
+
+    /**
+     * Runs the given callback as soon as possible, after the callbacks dispatched before it.
+     *
+     * @param callback the callback to run
+     */
+    public abstract void dispatch(Runnable callback);
+
+    /**
+     * Runs the given callback after the given delay, unless it's cancelled before.
+     *
+     * @param callback the callback to run
+     * @param delayMillis the delay in milliseconds
+     */
+    public abstract void dispatchDelayed(Runnable callback, long delayMillis);
+
+    /**
+     * Cancels the given callback if it was dispatched and didn't run yet.
+     *
+     * @param callback the callback to cancel
+     */
+    public abstract void cancel(Runnable callback);
+
+    /**
+     * Retrieves the dispatcher that runs callbacks on the main thread. All callbacks that are
+     * dispatched until the main thread gets to them run in one message, instead of a message
+     * each.
+     *
+     * @return the shared main thread dispatcher
+     */
+    public static synchronized CallbackDispatcher mainThread() {
+        if (sMainThread == null) {
+            sMainThread = new MainThread();
+        }
+        return sMainThread;
+    }
+
+    /**
+     * Retrieves a dispatcher that runs callbacks right away, on the thread that dispatches them.
+     * Delayed callbacks run on a background thread.
+     *
+     * @return the shared direct dispatcher
+     */
+    public static synchronized CallbackDispatcher direct() {
+        if (sDirect == null) {
+            sDirect = new Direct();
+        }
+        return sDirect;
+    }
+
+    /**
+     * Creates a dispatcher that runs nothing by itself: callbacks run when the caller calls
+     * <code>runPending</code> or <code>advanceBy</code>, on the caller's thread and with a clock
+     * of its own. Makes timeouts testable without waiting for them.
+     *
+     * @return a new manual dispatcher
+     */
+    public static Manual manual() {
+        return new Manual();
+    }
+
+
+    /**
+     * Posts to the main looper through a single <code>Handler</code>, and a single message for
+     * all callbacks that wait for it.
+     */
+    private static class MainThread extends CallbackDispatcher {
+
+        @Override
+        public void dispatch(Runnable callback) {
+            synchronized (this) {
+                mPending.add(callback);
+                if (mDrainPosted) {
+                    return;
+                }
+                mDrainPosted = true;
+            }
+            mHandler.post(mDrain);
+        }
+
+        @Override
+        public void dispatchDelayed(Runnable callback, long delayMillis) {
+            mHandler.postDelayed(callback, delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable callback) {
+            mHandler.removeCallbacks(callback);
+            synchronized (this) {
+                mPending.remove(callback);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable callback;
+                synchronized (this) {
+                    if (mPending.isEmpty()) {
+                        mDrainPosted = false;
+                        return;
+                    }
+                    callback = mPending.remove(0);
+                }
+                boolean ran = false;
+                try {
+                    callback.run();
+                    ran = true;
+                } finally {
+                    // a failing callback mustn't take the ones after it down with it
+                    if (!ran) {
+                        mHandler.post(mDrain);
+                    }
+                }
+            }
+        }
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        private final List<Runnable> mPending = new ArrayList<Runnable>();
+        private boolean mDrainPosted = false;
+        private final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    private static class Direct extends CallbackDispatcher {
+
+        @Override
+        public void dispatch(Runnable callback) {
+            callback.run();
+        }
+
+        @Override
+        public synchronized void dispatchDelayed(final Runnable callback, long delayMillis) {
+            mDelayed.put(callback, mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Direct.this) {
+                        mDelayed.remove(callback);
+                    }
+                    callback.run();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public void cancel(Runnable callback) {
+            ScheduledFuture<?> delayed;
+            boolean purge;
+            synchronized (this) {
+                delayed = mDelayed.remove(callback);
+                purge = delayed != null && ++mCancelledCount % PURGE_EVERY == 0;
+            }
+            if (delayed != null) {
+                delayed.cancel(false);
+            }
+            // cancelled callbacks stay in the scheduler's queue until they're due
+            if (purge) {
+                mScheduler.purge();
+            }
+        }
+
+        private final Map<Runnable, ScheduledFuture<?>> mDelayed =
+                new HashMap<Runnable, ScheduledFuture<?>>();
+        private static final int PURGE_EVERY = 64;
+
+        private int mCancelledCount = 0;
+        private final ScheduledThreadPoolExecutor mScheduler =
+                new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "SOOMLA CallbackDispatcher");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * A dispatcher for tests: see <code>manual()</code>.
+     */
+    public static class Manual extends CallbackDispatcher {
+
+        @Override
+        public synchronized void dispatch(Runnable callback) {
+            mPending.add(new Delayed(callback, mNowMillis, mNextSequence++));
+        }
+
+        @Override
+        public synchronized void dispatchDelayed(Runnable callback, long delayMillis) {
+            mPending.add(new Delayed(callback, mNowMillis + delayMillis, mNextSequence++));
+        }
+
+        @Override
+        public synchronized void cancel(Runnable callback) {
+            for (Iterator<Delayed> i = mPending.iterator(); i.hasNext(); ) {
+                if (i.next().callback == callback) {
+                    i.remove();
+                }
+            }
+        }
+
+        /**
+         * Runs the callbacks that are due, including the ones they dispatch.
+         *
+         * @return the number of callbacks that ran
+         */
+        public int runPending() {
+            int ran = 0;
+            Runnable next;
+            while ((next = takeDue()) != null) {
+                next.run();
+                ran++;
+            }
+            return ran;
+        }
+
+        /**
+         * Moves the dispatcher's clock forward, running the callbacks that are due on the way in
+         * the order of their due time.
+         *
+         * @param millis the time to move the clock by
+         * @return the number of callbacks that ran
+         */
+        public int advanceBy(long millis) {
+            long target;
+            synchronized (this) {
+                target = mNowMillis + millis;
+            }
+            int ran = runPending();
+            while (true) {
+                synchronized (this) {
+                    Delayed earliest = earliest();
+                    if (earliest == null || earliest.dueMillis > target) {
+                        mNowMillis = target;
+                        return ran;
+                    }
+                    mNowMillis = earliest.dueMillis;
+                }
+                ran += runPending();
+            }
+        }
+
+        public synchronized long getNowMillis() {
+            return mNowMillis;
+        }
+
+        private synchronized Runnable takeDue() {
+            Delayed earliest = earliest();
+            if (earliest == null || earliest.dueMillis > mNowMillis) {
+                return null;
+            }
+            mPending.remove(earliest);
+            return earliest.callback;
+        }
+
+        private Delayed earliest() {
+            Delayed earliest = null;
+            for (Delayed delayed : mPending) {
+                if (earliest == null || delayed.dueMillis < earliest.dueMillis
+                        || (delayed.dueMillis == earliest.dueMillis
+                            && delayed.sequence < earliest.sequence)) {
+                    earliest = delayed;
+                }
+            }
+            return earliest;
+        }
+
+        private static class Delayed {
+            Delayed(Runnable callback, long dueMillis, long sequence) {
+                this.callback = callback;
+                this.dueMillis = dueMillis;
+                this.sequence = sequence;
+            }
+
+            final Runnable callback;
+            final long dueMillis;
+            final long sequence;
+        }
+
+        private final List<Delayed> mPending = new ArrayList<Delayed>();
+        private long mNowMillis = 0;
+        private long mNextSequence = 0;
+    }
+
+
+    /** Private Members **/
+
+    private static CallbackDispatcher sMainThread;
+    private static CallbackDispatcher sDirect;
+}
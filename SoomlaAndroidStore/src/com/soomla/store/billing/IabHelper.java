@@ -17,12 +17,13 @@
 package com.soomla.store.billing;
 
 import android.app.Activity;
-import android.os.Handler;
-import android.os.Looper;
 import com.soomla.SoomlaUtils;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 /**
  * This abstract class should be implemented by any billing service plugin to android-store.
@@ -94,11 +95,7 @@ public abstract class IabHelper {
     public void launchPurchaseFlow(Activity act, String itemType, String sku,
                                    OnIabPurchaseFinishedListener listener, String extraData) {
         checkSetupDoneAndThrow("launchPurchaseFlow");
-        flagStartAsync("launchPurchaseFlow");
-
-        mPurchaseListener = listener;
-        mLastOperationSKU = sku;
-        launchPurchaseFlowInner(act, itemType, sku, extraData);
+        enqueueAsync(new PendingPurchase(act, itemType, sku, listener, extraData));
     }
 
     /**
@@ -118,42 +115,35 @@ public abstract class IabHelper {
      */
     public void launchPurchaseFlow(Activity act, String sku,
                                    OnIabPurchaseFinishedListener listener, String extraData) {
-        checkSetupDoneAndThrow("launchPurchaseFlow");
-        flagStartAsync("launchPurchaseFlow");
-
-        mPurchaseListener = listener;
-        mLastOperationSKU = sku;
-        launchPurchaseFlowInner(act, ITEM_TYPE_INAPP, sku, extraData);
+        launchPurchaseFlow(act, ITEM_TYPE_INAPP, sku, listener, extraData);
     }
 
     /**
      * Initiates the restore purchases process. All purchases that weren't consumed will be fetched
      * and returned to the user.
      * This method is asynchronous and will invoke the listener when the process is finished.
+     * A restore that is called while another one waits in the queue joins it, and both listeners
+     * get its result.
      *
      * @param listener The listener to notify when the restore purchases process finishes
      */
     public void restorePurchasesAsync(RestorePurchasessFinishedListener listener) {
         checkSetupDoneAndThrow("restorePurchases");
-        flagStartAsync("restore purchases");
-
-        mRestorePurchasessFinishedListener = listener;
-        restorePurchasesAsyncInner();
+        enqueueAsync(new PendingRestore(listener));
     }
 
     /**
      * Initiates the fetching of items details. This will fetch the price, title, description or
      * any other information associated with your items in the market.
      * This method is asynchronous and will invoke the listener when the process is finished.
+     * A fetch of the same skus that is called while another one waits in the queue joins it,
+     * and both listeners get its result.
      *
      * @param listener The listener to notify when the fetching of items details finishes
      */
     public void fetchSkusDetailsAsync(List<String> skus, final FetchSkusDetailsFinishedListener listener) {
         checkSetupDoneAndThrow("fetchSkusDetails");
-        flagStartAsync("fetch skus details");
-
-        mFetchSkusDetailsFinishedListener = listener;
-        fetchSkusDetailsAsyncInner(skus);
+        enqueueAsync(new PendingFetch(skus, listener));
     }
 
     /**
@@ -166,6 +156,121 @@ public abstract class IabHelper {
     }
 
 
+    /** Metrics **/
+
+    /**
+     * Retrieves the number of asynchronous operations that wait for the running one to finish.
+     *
+     * @return the queue's depth
+     */
+    public synchronized int getPendingAsyncCount() {
+        return mPendingAsync.size();
+    }
+
+    /**
+     * Retrieves the average time operations of the given type waited in the queue before they
+     * started.
+     *
+     * @param type the type of the operations
+     * @return the average queue wait in milliseconds, or 0 if no such operation started yet
+     */
+    public synchronized long getAverageAsyncWaitMillis(AsyncOperationType type) {
+        int started = mStartedCount[type.ordinal()];
+        return started == 0 ? 0 : mTotalWaitMillis[type.ordinal()] / started;
+    }
+
+    /**
+     * Retrieves the longest time an operation of the given type waited in the queue before it
+     * started.
+     *
+     * @param type the type of the operations
+     * @return the maximal queue wait in milliseconds
+     */
+    public synchronized long getMaxAsyncWaitMillis(AsyncOperationType type) {
+        return mMaxWaitMillis[type.ordinal()];
+    }
+
+    /**
+     * Retrieves the number of operations of the given type that failed because they didn't
+     * finish in time.
+     *
+     * @param type the type of the operations
+     * @return the number of timeouts since the helper was created
+     */
+    public synchronized int getTimedOutAsyncCount(AsyncOperationType type) {
+        return mTimedOutCount[type.ordinal()];
+    }
+
+    /**
+     * Retrieves the number of operations that joined an identical operation already waiting in
+     * the queue instead of running on their own.
+     *
+     * @return the number of joined operations since the helper was created
+     */
+    public synchronized int getDedupedAsyncCount() {
+        return mDedupedCount;
+    }
+
+    /**
+     * Retrieves the number of operations that failed because the queue was full.
+     *
+     * @return the number of rejected operations since the helper was created
+     */
+    public synchronized int getRejectedAsyncCount() {
+        return mRejectedCount;
+    }
+
+
+    /** Setters and Getters **/
+
+    public synchronized long getAsyncTimeoutMillis(AsyncOperationType type) {
+        return mTimeoutMillis[type.ordinal()];
+    }
+
+    /**
+     * Sets how long an operation of the given type may run before it fails with
+     * <code>IABHELPER_TIMEOUT</code> and the next one starts.
+     *
+     * @param type the type of the operations
+     * @param timeoutMillis the timeout in milliseconds, or 0 to wait for the result forever
+     */
+    public synchronized void setAsyncTimeoutMillis(AsyncOperationType type, long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis can't be negative");
+        }
+        mTimeoutMillis[type.ordinal()] = timeoutMillis;
+    }
+
+    public CallbackDispatcher getCallbackDispatcher() {
+        return mDispatcher;
+    }
+
+    /**
+     * Sets how the listeners of this helper are called. Keep the default,
+     * <code>CallbackDispatcher.mainThread()</code>, unless you run the billing flow in a test or a
+     * benchmark. Set it before starting the setup.
+     *
+     * @param dispatcher the dispatcher to run the callbacks with
+     */
+    public void setCallbackDispatcher(CallbackDispatcher dispatcher) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("dispatcher can't be null");
+        }
+        mDispatcher = dispatcher;
+    }
+
+    public synchronized int getMaxPendingAsync() {
+        return mMaxPendingAsync;
+    }
+
+    public synchronized void setMaxPendingAsync(int maxPendingAsync) {
+        if (maxPendingAsync < 1) {
+            throw new IllegalArgumentException("maxPendingAsync must be positive");
+        }
+        mMaxPendingAsync = maxPendingAsync;
+    }
+
+
     /** Listeners **/
 
     /**
@@ -230,6 +335,17 @@ public abstract class IabHelper {
     public static final String ITEM_TYPE_INAPP = "inapp";
     public static final String ITEM_TYPE_SUBS = "subs";
 
+    /**
+     * The asynchronous operations, by priority: when the running operation finishes, a waiting
+     * purchase starts before a waiting restore, and a restore before a fetch of skus details.
+     * Operations of the same type start in the order they were called.
+     */
+    public enum AsyncOperationType {
+        PURCHASE,
+        RESTORE_PURCHASES,
+        FETCH_SKUS_DETAILS
+    }
+
 
 
     /** Protected Functions **/
@@ -256,10 +372,42 @@ public abstract class IabHelper {
 
     /**
      * This will be called when the helper is disposed.
+     * The running operation and all waiting ones fail with <code>IABHELPER_DISPOSED</code>, and
+     * their timeouts are cancelled, so no listener is left waiting for a result that can't come.
      */
     protected void dispose() {
-        mSetupDone = false;
-        mSetupFinishedListeners = null;
+        List<PendingAsync> dropped = new ArrayList<PendingAsync>();
+        synchronized (this) {
+            mSetupDone = false;
+            mSetupFinishedListeners = null;
+
+            if (mCurrentAsync != null) {
+                mDispatcher.cancel(mCurrentAsync.mTimeout);
+                if (!mCurrentAsync.mFinished) {
+                    dropped.add(mCurrentAsync);
+                }
+                mCurrentAsync = null;
+            }
+            mEndedAsync = null;
+            while (!mPendingAsync.isEmpty()) {
+                dropped.add(mPendingAsync.poll());
+            }
+            mAsyncOperation = "";
+            mAsyncInProgress = false;
+
+            // a late result of a dropped operation is dropped as well
+            for (PendingAsync operation : dropped) {
+                operation.mFinished = true;
+            }
+        }
+
+        if (!dropped.isEmpty()) {
+            SoomlaUtils.LogDebug(TAG, "Disposed. Failing " + dropped.size()
+                    + " async operations.");
+        }
+        for (PendingAsync operation : dropped) {
+            operation.fail(new IabResult(IabResult.IABHELPER_DISPOSED, null));
+        }
     }
 
 
@@ -273,19 +421,11 @@ public abstract class IabHelper {
      */
     protected void restorePurchasesSuccess(final IabInventory inventory) {
 
-        // make sure to end the async operation...
-        flagEndAsync();
-
-        if (mRestorePurchasessFinishedListener != null) {
-            final Handler handler = new Handler(Looper.getMainLooper());
-            handler.post(new Runnable() {
-                public void run() {
-                    IabResult result = new IabResult(IabResult.BILLING_RESPONSE_RESULT_OK, "IabInventory restore successful.");
-                    mRestorePurchasessFinishedListener.onRestorePurchasessFinished(
-                            result, inventory);
-                    mRestorePurchasessFinishedListener = null;
-                }
-            });
+        PendingRestore restore = (PendingRestore) takeAsync(AsyncOperationType.RESTORE_PURCHASES);
+        if (restore != null) {
+            restore.finish(new IabResult(IabResult.BILLING_RESPONSE_RESULT_OK,
+                    "IabInventory restore successful."), inventory);
+            endAsync(restore);
         }
     }
 
@@ -297,17 +437,10 @@ public abstract class IabHelper {
      */
     protected void restorePurchasesFailed(final IabResult result) {
 
-        flagEndAsync();
-
-        if (mRestorePurchasessFinishedListener != null) {
-            final Handler handler = new Handler(Looper.getMainLooper());
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mRestorePurchasessFinishedListener.onRestorePurchasessFinished(result, null);
-                    mRestorePurchasessFinishedListener = null;
-                }
-            });
+        PendingAsync restore = takeAsync(AsyncOperationType.RESTORE_PURCHASES);
+        if (restore != null) {
+            restore.fail(result);
+            endAsync(restore);
         }
     }
 
@@ -319,21 +452,12 @@ public abstract class IabHelper {
      */
     protected void fetchSkusDetailsSuccess(final IabInventory inventory) {
 
-        // make sure to end the async operation...
-        flagEndAsync();
-
-        if (mFetchSkusDetailsFinishedListener != null) {
-            final Handler handler = new Handler(Looper.getMainLooper());
-            handler.post(new Runnable() {
-                public void run() {
-                    IabResult result = new IabResult(IabResult.BILLING_RESPONSE_RESULT_OK, "IabInventory fetch details successful.");
-                    mFetchSkusDetailsFinishedListener.onFetchSkusDetailsFinished(
-                            result, inventory);
-                    mFetchSkusDetailsFinishedListener = null;
-                }
-            });
+        PendingFetch fetch = (PendingFetch) takeAsync(AsyncOperationType.FETCH_SKUS_DETAILS);
+        if (fetch != null) {
+            fetch.finish(new IabResult(IabResult.BILLING_RESPONSE_RESULT_OK,
+                    "IabInventory fetch details successful."), inventory);
+            endAsync(fetch);
         }
-
     }
 
     /**
@@ -344,17 +468,10 @@ public abstract class IabHelper {
      */
     protected void fetchSkusDetailsFailed(final IabResult result) {
 
-        flagEndAsync();
-
-        if (mFetchSkusDetailsFinishedListener != null) {
-            final Handler handler = new Handler(Looper.getMainLooper());
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mFetchSkusDetailsFinishedListener.onFetchSkusDetailsFinished(result, null);
-                    mFetchSkusDetailsFinishedListener = null;
-                }
-            });
+        PendingAsync fetch = takeAsync(AsyncOperationType.FETCH_SKUS_DETAILS);
+        if (fetch != null) {
+            fetch.fail(result);
+            endAsync(fetch);
         }
     }
 
@@ -369,20 +486,11 @@ public abstract class IabHelper {
      */
     protected void purchaseFailed(final IabResult result, final IabPurchase purchase) {
 
-        // make sure to end the async operation...
-        flagEndAsync();
-
-        final Handler handler = new Handler(Looper.getMainLooper());
-        final OnIabPurchaseFinishedListener purchaseListener = IabHelper.this.mPurchaseListener;
-        if (purchaseListener != null) {
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    purchaseListener.onIabPurchaseFinished(result, purchase);
-                }
-            });
+        PendingPurchase pending = (PendingPurchase) takeAsync(AsyncOperationType.PURCHASE);
+        if (pending != null) {
+            pending.finish(result, purchase);
+            endAsync(pending);
         }
-
     }
 
     /**
@@ -393,20 +501,11 @@ public abstract class IabHelper {
      */
     protected void purchaseSucceeded(final IabPurchase purchase) {
 
-        // make sure to end the async operation...
-        flagEndAsync();
-
-        final OnIabPurchaseFinishedListener purchaseListener = IabHelper.this.mPurchaseListener;
-        if (purchaseListener != null) {
-            final Handler handler = new Handler(Looper.getMainLooper());
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    purchaseListener.onIabPurchaseFinished(
-                            new IabResult(IabResult.BILLING_RESPONSE_RESULT_OK, "Success"),
-                            purchase);
-                }
-            });
+        PendingPurchase pending = (PendingPurchase) takeAsync(AsyncOperationType.PURCHASE);
+        if (pending != null) {
+            pending.finish(new IabResult(IabResult.BILLING_RESPONSE_RESULT_OK, "Success"),
+                    purchase);
+            endAsync(pending);
         }
     }
 
@@ -420,19 +519,7 @@ public abstract class IabHelper {
      */
     protected void setupSuccess() {
         mSetupDone = true;
-        if (mSetupFinishedListeners != null) {
-            final Handler handler = new Handler(Looper.getMainLooper());
-            for (final OnIabSetupFinishedListener listener : mSetupFinishedListeners) {
-                handler.post(new Runnable() {
-
-
-                    @Override
-                    public void run() {
-                        listener.onIabSetupFinished(new IabResult(IabResult.BILLING_RESPONSE_RESULT_OK, "Setup successful."));
-                    }
-                });
-            }
-        }
+        notifySetupFinished(new IabResult(IabResult.BILLING_RESPONSE_RESULT_OK, "Setup successful."));
     }
 
     /**
@@ -443,19 +530,7 @@ public abstract class IabHelper {
      */
     protected void setupFailed(final IabResult result) {
         mSetupDone = false;
-        if (mSetupFinishedListeners != null) {
-            final Handler handler = new Handler(Looper.getMainLooper());
-            for (final OnIabSetupFinishedListener listener : mSetupFinishedListeners) {
-                handler.post(new Runnable() {
-
-
-                    @Override
-                    public void run() {
-                        listener.onIabSetupFinished(result);
-                    }
-                });
-            }
-        }
+        notifySetupFinished(result);
     }
 
     /**
@@ -476,8 +551,11 @@ public abstract class IabHelper {
 
     /**
      * Sets necessary params when an async process starts.
+     * The public operations go through the queue; this is for the operations a subclass runs on
+     * its own (like consuming), which fail if the helper is busy.
      *
      * @param operation the async process's name.
+     * @throws IllegalStateException if another async operation is in progress
      */
     protected synchronized void flagStartAsync(String operation) {
         if (mAsyncInProgress) throw new IllegalStateException("Can't start async operation (" +
@@ -488,12 +566,26 @@ public abstract class IabHelper {
     }
 
     /**
-     * Sets necessary params when an async process ends.
+     * Sets necessary params when an async process ends, and starts the next operation that waits
+     * in the queue.
      */
-    protected synchronized void flagEndAsync() {
-        SoomlaUtils.LogDebug(TAG, "Ending async operation: " + mAsyncOperation);
-        mAsyncOperation = "";
-        mAsyncInProgress = false;
+    protected void flagEndAsync() {
+        synchronized (this) {
+            SoomlaUtils.LogDebug(TAG, "Ending async operation: " + mAsyncOperation);
+            if (mCurrentAsync != null) {
+                mDispatcher.cancel(mCurrentAsync.mTimeout);
+                mEndedAsync = mCurrentAsync;
+                mCurrentAsync = null;
+            }
+            mAsyncOperation = "";
+            mAsyncInProgress = false;
+            if (mPendingAsync.isEmpty()) {
+                return;
+            }
+        }
+
+        // the next operation may have to start on the UI thread (purchases do)
+        mDispatcher.dispatch(mStartNextAsync);
     }
 
     /**
@@ -511,6 +603,324 @@ public abstract class IabHelper {
     protected String mLastOperationSKU;
 
 
+    /** Private functions **/
+
+    private void notifySetupFinished(final IabResult result) {
+        if (mSetupFinishedListeners == null) {
+            return;
+        }
+        final List<OnIabSetupFinishedListener> listeners =
+                new ArrayList<OnIabSetupFinishedListener>(mSetupFinishedListeners);
+        mDispatcher.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                for (OnIabSetupFinishedListener listener : listeners) {
+                    listener.onIabSetupFinished(result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the given operation to the queue and starts it if nothing else runs. If an identical
+     * operation already waits, the given one joins it. If the queue is full, the operation fails
+     * through its listener.
+     */
+    private void enqueueAsync(PendingAsync operation) {
+        boolean rejected = false;
+        synchronized (this) {
+            for (PendingAsync pending : mPendingAsync) {
+                if (pending.join(operation)) {
+                    mDedupedCount++;
+                    SoomlaUtils.LogDebug(TAG, "Joined a waiting async operation: " + operation.mType);
+                    return;
+                }
+            }
+            if (mPendingAsync.size() >= mMaxPendingAsync) {
+                mRejectedCount++;
+                rejected = true;
+            } else {
+                mPendingAsync.add(operation);
+            }
+        }
+
+        if (rejected) {
+            SoomlaUtils.LogError(TAG, "Too many async operations are waiting. Rejecting: "
+                    + operation.mType);
+            operation.mFinished = true;
+            operation.fail(new IabResult(IabResult.IABHELPER_QUEUE_FULL, null));
+            return;
+        }
+        startNextAsync();
+    }
+
+    private void startNextAsync() {
+        final PendingAsync next;
+        long timeoutMillis;
+        synchronized (this) {
+            if (mAsyncInProgress || mPendingAsync.isEmpty()) {
+                return;
+            }
+            next = mPendingAsync.poll();
+            mAsyncInProgress = true;
+            mAsyncOperation = next.mType.name();
+            mCurrentAsync = next;
+
+            int type = next.mType.ordinal();
+            long waitMillis = System.currentTimeMillis() - next.mEnqueuedAt;
+            mStartedCount[type]++;
+            mTotalWaitMillis[type] += waitMillis;
+            mMaxWaitMillis[type] = Math.max(mMaxWaitMillis[type], waitMillis);
+            timeoutMillis = mTimeoutMillis[type];
+        }
+        SoomlaUtils.LogDebug(TAG, "Starting async operation: " + next.mType);
+
+        // scheduled before starting, as the operation may finish before start returns
+        if (timeoutMillis > 0) {
+            mDispatcher.dispatchDelayed(next.mTimeout, timeoutMillis);
+        }
+        next.start();
+    }
+
+    /**
+     * Takes the operation a result of the given type belongs to: the running one, or the one
+     * that has just ended if the subclass ended it by itself before reporting its result.
+     *
+     * @return the operation, or null if there's none or it already got its result (for example
+     *     because it timed out)
+     */
+    private synchronized PendingAsync takeAsync(AsyncOperationType type) {
+        PendingAsync taken = mCurrentAsync != null && mCurrentAsync.mType == type
+                ? mCurrentAsync : mEndedAsync;
+        if (taken == null || taken.mType != type || taken.mFinished) {
+            SoomlaUtils.LogDebug(TAG, "Dropping a result of " + type
+                    + " that no waiting listener expects.");
+            return null;
+        }
+        taken.mFinished = true;
+        return taken;
+    }
+
+    /**
+     * Ends the given operation if it's still running, once its listeners were dispatched, so
+     * they're called before the next operation starts.
+     */
+    private void endAsync(PendingAsync operation) {
+        synchronized (this) {
+            if (mCurrentAsync != operation) {
+                return;
+            }
+        }
+        flagEndAsync();
+    }
+
+    private void timedOut(PendingAsync operation) {
+        synchronized (this) {
+            if (mCurrentAsync != operation || operation.mFinished) {
+                return;
+            }
+            operation.mFinished = true;
+            mTimedOutCount[operation.mType.ordinal()]++;
+        }
+        SoomlaUtils.LogError(TAG, "Async operation timed out: " + operation.mType);
+        operation.fail(new IabResult(IabResult.IABHELPER_TIMEOUT, null));
+        endAsync(operation);
+    }
+
+
+    /**
+     * An asynchronous operation that was called, with everything needed to start it and to
+     * deliver its result.
+     */
+    private abstract class PendingAsync implements Comparable<PendingAsync> {
+
+        PendingAsync(AsyncOperationType type) {
+            mType = type;
+            mEnqueuedAt = System.currentTimeMillis();
+            synchronized (IabHelper.this) {
+                mSequence = mNextSequence++;
+            }
+        }
+
+        public int compareTo(PendingAsync other) {
+            if (mType != other.mType) {
+                return mType.ordinal() < other.mType.ordinal() ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+
+        /**
+         * Adds the listeners of the given operation to this one if both would do the same.
+         *
+         * @return true if the given operation joined this one
+         */
+        boolean join(PendingAsync other) {
+            return false;
+        }
+
+        abstract void start();
+
+        abstract void fail(IabResult result);
+
+        final AsyncOperationType mType;
+        final long mEnqueuedAt;
+        final long mSequence;
+        // set once a result was delivered, so a late result of a timed out operation is dropped
+        boolean mFinished = false;
+        final Runnable mTimeout = new Runnable() {
+            @Override
+            public void run() {
+                timedOut(PendingAsync.this);
+            }
+        };
+    }
+
+    // purchases are never joined: every one shows its own purchase flow
+    private class PendingPurchase extends PendingAsync {
+
+        PendingPurchase(Activity act, String itemType, String sku,
+                        OnIabPurchaseFinishedListener listener, String extraData) {
+            super(AsyncOperationType.PURCHASE);
+            mAct = act;
+            mItemType = itemType;
+            mSku = sku;
+            mListener = listener;
+            mExtraData = extraData;
+        }
+
+        @Override
+        void start() {
+            mLastOperationSKU = mSku;
+            launchPurchaseFlowInner(mAct, mItemType, mSku, mExtraData);
+        }
+
+        @Override
+        void fail(IabResult result) {
+            finish(result, null);
+        }
+
+        void finish(final IabResult result, final IabPurchase purchase) {
+            if (mListener != null) {
+                mDispatcher.dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onIabPurchaseFinished(result, purchase);
+                    }
+                });
+            }
+        }
+
+        private final Activity mAct;
+        private final String mItemType;
+        private final String mSku;
+        private final OnIabPurchaseFinishedListener mListener;
+        private final String mExtraData;
+    }
+
+    private class PendingRestore extends PendingAsync {
+
+        PendingRestore(RestorePurchasessFinishedListener listener) {
+            super(AsyncOperationType.RESTORE_PURCHASES);
+            if (listener != null) {
+                mListeners.add(listener);
+            }
+        }
+
+        @Override
+        boolean join(PendingAsync other) {
+            if (!(other instanceof PendingRestore)) {
+                return false;
+            }
+            mListeners.addAll(((PendingRestore) other).mListeners);
+            return true;
+        }
+
+        @Override
+        void start() {
+            restorePurchasesAsyncInner();
+        }
+
+        @Override
+        void fail(IabResult result) {
+            finish(result, null);
+        }
+
+        void finish(final IabResult result, final IabInventory inventory) {
+            // joined operations have several listeners, they're all called in one callback
+            if (mListeners.isEmpty()) {
+                return;
+            }
+            mDispatcher.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (RestorePurchasessFinishedListener listener : mListeners) {
+                        listener.onRestorePurchasessFinished(result, inventory);
+                    }
+                }
+            });
+        }
+
+        private final List<RestorePurchasessFinishedListener> mListeners =
+                new ArrayList<RestorePurchasessFinishedListener>();
+    }
+
+    private class PendingFetch extends PendingAsync {
+
+        PendingFetch(List<String> skus, FetchSkusDetailsFinishedListener listener) {
+            super(AsyncOperationType.FETCH_SKUS_DETAILS);
+            mSkus = skus;
+            mSkuSet = new HashSet<String>(skus);
+            if (listener != null) {
+                mListeners.add(listener);
+            }
+        }
+
+        @Override
+        boolean join(PendingAsync other) {
+            if (!(other instanceof PendingFetch)) {
+                return false;
+            }
+            PendingFetch fetch = (PendingFetch) other;
+            if (!mSkuSet.equals(fetch.mSkuSet)) {
+                return false;
+            }
+            mListeners.addAll(fetch.mListeners);
+            return true;
+        }
+
+        @Override
+        void start() {
+            fetchSkusDetailsAsyncInner(mSkus);
+        }
+
+        @Override
+        void fail(IabResult result) {
+            finish(result, null);
+        }
+
+        void finish(final IabResult result, final IabInventory inventory) {
+            // joined operations have several listeners, they're all called in one callback
+            if (mListeners.isEmpty()) {
+                return;
+            }
+            mDispatcher.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (FetchSkusDetailsFinishedListener listener : mListeners) {
+                        listener.onFetchSkusDetailsFinished(result, inventory);
+                    }
+                }
+            });
+        }
+
+        private final List<String> mSkus;
+        // for joining, the order of the skus doesn't matter
+        private final Set<String> mSkuSet;
+        private final List<FetchSkusDetailsFinishedListener> mListeners =
+                new ArrayList<FetchSkusDetailsFinishedListener>();
+    }
+
+
     /** Private Members **/
 
     private static String TAG = "SOOMLA PurchaseObserver";
@@ -523,27 +933,39 @@ public abstract class IabHelper {
     // Is setup started?
     private boolean mSetupStarted = false;
     // Is an asynchronous operation in progress?
-    // (only one at a time can be in progress)
+    // (only one at a time can be in progress, the others wait in mPendingAsync)
     private boolean mAsyncInProgress = false;
     // (for logging/debugging)
-    // if mAsyncInP!?*.java;!?*.form;!?*.class;!?*.groovy;!?*.scala;!?*.flex;!?*.kt;!?*.cljrogress == true, what asynchronous operation is in progress?
+    // if mAsyncInProgress == true, what asynchronous operation is in progress?
     private String mAsyncOperation = "";
     // The listeners registered on setup, which we have to call back when
     // the purchase finishes
     private List<OnIabSetupFinishedListener> mSetupFinishedListeners;
-    // The listener registered on launchPurchaseFlow, which we have to call back when
-    // the purchase finishes.
-    // We only keep one and not a list b/c the purchase operation can only run one-at-a-time
-    private OnIabPurchaseFinishedListener mPurchaseListener;
-    // The listener registered on restore purchases, which we have to call back when
-    // the restore process finishes.
-    private RestorePurchasessFinishedListener mRestorePurchasessFinishedListener;
-    // The listener registered on restore subscriptions, which we have to call back when
-    // the restore process finishes.
-    private RestorePurchasessFinishedListener mRestoreSubscriptionsFinishedListener;
-
-    // The listener registered on restore purchases, which we have to call back when
-    // the restore process finishes.
-    private FetchSkusDetailsFinishedListener mFetchSkusDetailsFinishedListener;
 
+    // The operations that wait for the running one, by priority and then by call order
+    private final PriorityQueue<PendingAsync> mPendingAsync = new PriorityQueue<PendingAsync>();
+    // The running operation, null if none or if it was started by a subclass
+    private PendingAsync mCurrentAsync;
+    // The last operation that ended, in case its result is reported after it ended
+    private PendingAsync mEndedAsync;
+    private long mNextSequence = 0;
+    private int mMaxPendingAsync = 16;
+    // purchases wait for the user, so they have no timeout by default
+    private final long[] mTimeoutMillis = {0, 60 * 1000, 30 * 1000};
+
+    // Runs the listeners and the queue's own callbacks
+    private volatile CallbackDispatcher mDispatcher = CallbackDispatcher.mainThread();
+    private final Runnable mStartNextAsync = new Runnable() {
+        @Override
+        public void run() {
+            startNextAsync();
+        }
+    };
+
+    private final int[] mStartedCount = new int[AsyncOperationType.values().length];
+    private final long[] mTotalWaitMillis = new long[AsyncOperationType.values().length];
+    private final long[] mMaxWaitMillis = new long[AsyncOperationType.values().length];
+    private final int[] mTimedOutCount = new int[AsyncOperationType.values().length];
+    private int mDedupedCount = 0;
+    private int mRejectedCount = 0;
 }
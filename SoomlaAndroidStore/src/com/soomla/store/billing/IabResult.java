@@ -48,6 +48,9 @@ public class IabResult {
     public static final int IABHELPER_UNKNOWN_ERROR = -1008;
     public static final int IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE = -1009;
     public static final int IABHELPER_INVALID_CONSUMPTION = -1010;
+    public static final int IABHELPER_QUEUE_FULL = -1011;
+    public static final int IABHELPER_TIMEOUT = -1012;
+    public static final int IABHELPER_DISPOSED = -1013;
 
 
     int mResponse;
@@ -77,29 +80,33 @@ public class IabResult {
      *     It also includes the result code numerically.
      */
     public static String getResponseDesc(int code) {
-        String[] iab_msgs = ("0:OK/1:User Canceled/2:Unknown/" +
-                "3:Billing Unavailable/4:Item unavailable/" +
-                "5:Developer Error/6:Error/7:Item Already Owned/" +
-                "8:Item not owned").split("/");
-        String[] iabhelper_msgs = ("0:OK/-1001:Remote exception during initialization/" +
-                "-1002:Bad response received/" +
-                "-1003:IabPurchase signature verification failed/" +
-                "-1004:Send intent failed/" +
-                "-1005:User cancelled/" +
-                "-1006:Unknown purchase response/" +
-                "-1007:Missing token/" +
-                "-1008:Unknown error/" +
-                "-1009:Subscriptions not available/" +
-                "-1010:Invalid consumption attempt").split("/");
-
         if (code <= IABHELPER_ERROR_BASE) {
             int index = IABHELPER_ERROR_BASE - code;
-            if (index >= 0 && index < iabhelper_msgs.length) return iabhelper_msgs[index];
+            if (index >= 0 && index < IABHELPER_MSGS.length) return IABHELPER_MSGS[index];
             else return String.valueOf(code) + ":Unknown IAB Helper Error";
         }
-        else if (code < 0 || code >= iab_msgs.length)
+        else if (code < 0 || code >= IAB_MSGS.length)
             return String.valueOf(code) + ":Unknown";
         else
-            return iab_msgs[code];
+            return IAB_MSGS[code];
     }
+
+    // split once, as every result builds its message from them
+    private static final String[] IAB_MSGS = ("0:OK/1:User Canceled/2:Unknown/" +
+            "3:Billing Unavailable/4:Item unavailable/" +
+            "5:Developer Error/6:Error/7:Item Already Owned/" +
+            "8:Item not owned").split("/");
+    private static final String[] IABHELPER_MSGS = ("0:OK/-1001:Remote exception during initialization/" +
+            "-1002:Bad response received/" +
+            "-1003:IabPurchase signature verification failed/" +
+            "-1004:Send intent failed/" +
+            "-1005:User cancelled/" +
+            "-1006:Unknown purchase response/" +
+            "-1007:Missing token/" +
+            "-1008:Unknown error/" +
+            "-1009:Subscriptions not available/" +
+            "-1010:Invalid consumption attempt/" +
+            "-1011:Too many operations are waiting/" +
+            "-1012:Operation timed out/" +
+            "-1013:The billing helper was disposed").split("/");
 }
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.billing;
+
+import android.text.TextUtils;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Fetches skus details from an <code>IIabService</code> in chunks, and keeps the details it
+ * fetched in a cache that is persisted in <code>KeyValueStorage</code>.
+ *
+ * Details that were fetched less than <code>ttlMillis</code> ago are served from the cache, so
+ * only the skus that are missing or expired go to the billing service. These are split into
+ * chunks of <code>chunkSize</code> skus, and up to <code>maxParallelChunks</code> chunks are
+ * requested at the same time.
+ *
+ * NOTE: Billing services that are based on <code>IabHelper</code> can run only one asynchronous
+ * operation at a time, which is why chunks are requested one after the other by default.
+ * Only raise <code>maxParallelChunks</code> for a billing service that supports parallel
+ * requests.
+ */
+public class SkuDetailsFetcher {
+
+    public static final int DEFAULT_CHUNK_SIZE = 20;
+    public static final int DEFAULT_MAX_PARALLEL_CHUNKS = 1;
+    public static final long DEFAULT_TTL_MILLIS = 6 * 60 * 60 * 1000L;
+
+    /**
+     * Fetches the details of the given skus, from the cache when they're fresh and from the given
+     * billing service otherwise, and notifies the given listener with the details of all of them.
+     * If one of the chunks fails, the listener's <code>fail</code> is called once all chunks are
+     * done. The chunks that succeeded are still cached, so the next fetch only requests the rest.
+     *
+     * @param service the billing service to fetch the missing details from
+     * @param skus the skus to fetch the details of
+     * @param listener the listener to notify when all skus details are available
+     */
+    public void fetch(IIabService service, List<String> skus,
+                      IabCallbacks.OnFetchSkusDetailsListener listener) {
+        List<IabSkuDetails> cached = new ArrayList<IabSkuDetails>();
+        List<String> missing = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        synchronized (mCache) {
+            for (String sku : skus) {
+                CachedDetails entry = cached(sku);
+                if (entry != null && now - entry.fetchedAt < mTtlMillis
+                        && entry.fetchedAt >= invalidatedAt()) {
+                    cached.add(entry.details);
+                } else {
+                    missing.add(sku);
+                }
+            }
+        }
+
+        SoomlaUtils.LogDebug(TAG, cached.size() + " skus details are cached, fetching "
+                + missing.size());
+        if (missing.isEmpty()) {
+            listener.success(cached);
+            return;
+        }
+
+        LinkedList<List<String>> chunks = new LinkedList<List<String>>();
+        for (int i = 0; i < missing.size(); i += mChunkSize) {
+            chunks.add(new ArrayList<String>(
+                    missing.subList(i, Math.min(i + mChunkSize, missing.size()))));
+        }
+        new Fetch(service, chunks, cached, listener).dispatch();
+    }
+
+    /**
+     * Drops all cached skus details, so the next fetch requests all skus again.
+     */
+    public void invalidate() {
+        synchronized (mCache) {
+            for (String sku : mCache.keySet()) {
+                KeyValueStorage.deleteKeyValue(keySkuDetails(sku));
+            }
+            mCache.clear();
+            // details that were persisted but not loaded yet are older than this
+            mInvalidatedAt = System.currentTimeMillis();
+            KeyValueStorage.setValue(keyInvalidatedAt(), String.valueOf(mInvalidatedAt));
+        }
+    }
+
+
+    /** Setters and Getters **/
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        mChunkSize = chunkSize;
+    }
+
+    public int getMaxParallelChunks() {
+        return mMaxParallelChunks;
+    }
+
+    public void setMaxParallelChunks(int maxParallelChunks) {
+        if (maxParallelChunks < 1) {
+            throw new IllegalArgumentException("maxParallelChunks must be positive");
+        }
+        mMaxParallelChunks = maxParallelChunks;
+    }
+
+    public long getTtlMillis() {
+        return mTtlMillis;
+    }
+
+    /**
+     * Sets how long fetched skus details are used before they are fetched again.
+     * 0 turns the cache off.
+     *
+     * @param ttlMillis the time to keep skus details, in milliseconds
+     */
+    public void setTtlMillis(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+
+    /** Private functions **/
+
+    /**
+     * Retrieves the cached details of the given sku, loading them from
+     * <code>KeyValueStorage</code> on the first access. Callers must hold the cache's lock.
+     *
+     * @param sku the sku to look for
+     * @return the cached details, or null if there are none
+     */
+    private CachedDetails cached(String sku) {
+        if (mCache.containsKey(sku)) {
+            return mCache.get(sku);
+        }
+
+        CachedDetails entry = null;
+        String val = KeyValueStorage.getValue(keySkuDetails(sku));
+        if (!TextUtils.isEmpty(val)) {
+            try {
+                JSONObject record = new JSONObject(val);
+                entry = new CachedDetails(
+                        new IabSkuDetails(record.getString(RECORD_ITEM_TYPE),
+                                record.getString(RECORD_DETAILS)),
+                        record.getLong(RECORD_FETCHED_AT));
+            } catch (JSONException e) {
+                SoomlaUtils.LogError(TAG, "Couldn't read the cached details of " + sku
+                        + ". It will be fetched again. " + e.getMessage());
+            }
+        }
+        mCache.put(sku, entry);
+        return entry;
+    }
+
+    /**
+     * Retrieves the last time the cache was invalidated, loading it from
+     * <code>KeyValueStorage</code> on the first access. Callers must hold the cache's lock.
+     */
+    private long invalidatedAt() {
+        if (mInvalidatedAt < 0) {
+            String val = KeyValueStorage.getValue(keyInvalidatedAt());
+            mInvalidatedAt = TextUtils.isEmpty(val) ? 0 : Long.parseLong(val);
+        }
+        return mInvalidatedAt;
+    }
+
+    /**
+     * Caches and persists the given skus details that were just fetched.
+     *
+     * @param skuDetails the fetched skus details
+     * @param fetchedAt the time the fetch started, so an invalidation during the fetch wins
+     */
+    private void store(List<IabSkuDetails> skuDetails, long fetchedAt) {
+        synchronized (mCache) {
+            if (fetchedAt < invalidatedAt()) {
+                return;
+            }
+            for (IabSkuDetails details : skuDetails) {
+                try {
+                    JSONObject record = new JSONObject();
+                    record.put(RECORD_ITEM_TYPE, details.getItemType());
+                    record.put(RECORD_DETAILS, toJSON(details));
+                    record.put(RECORD_FETCHED_AT, fetchedAt);
+                    KeyValueStorage.setValue(keySkuDetails(details.getSku()), record.toString());
+                    mCache.put(details.getSku(), new CachedDetails(details, fetchedAt));
+                } catch (JSONException e) {
+                    SoomlaUtils.LogError(TAG, "Couldn't cache the details of " + details.getSku()
+                            + ". " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves the market JSON of the given skus details. Billing services that create the
+     * details from their fields don't have one, so it is built in the same format.
+     */
+    private static String toJSON(IabSkuDetails details) throws JSONException {
+        if (details.getJson() != null) {
+            return details.getJson();
+        }
+        JSONObject o = new JSONObject();
+        o.put("productId", details.getSku());
+        o.put("type", details.getType());
+        o.put("price", details.getPrice());
+        o.put("title", details.getTitle());
+        o.put("description", details.getDescription());
+        o.put("price_amount_micros", details.getPriceMicros());
+        o.put("price_currency_code", details.getCurrencyCode());
+        return o.toString();
+    }
+
+    private static String keySkuDetails(String sku) {
+        return "meta.skudetails." + sku;
+    }
+
+    private static String keyInvalidatedAt() {
+        return "meta.skudetails_invalidated";
+    }
+
+    /**
+     * The cached details of a single sku, together with the time they were fetched.
+     */
+    private static class CachedDetails {
+        CachedDetails(IabSkuDetails details, long fetchedAt) {
+            this.details = details;
+            this.fetchedAt = fetchedAt;
+        }
+
+        final IabSkuDetails details;
+        final long fetchedAt;
+    }
+
+    /**
+     * A single fetch that is in progress: requests its chunks, collects their details and
+     * notifies the listener once the last chunk is done.
+     */
+    private class Fetch {
+        Fetch(IIabService service, LinkedList<List<String>> chunks, List<IabSkuDetails> cached,
+              IabCallbacks.OnFetchSkusDetailsListener listener) {
+            mService = service;
+            mChunks = chunks;
+            mResults = cached;
+            mListener = listener;
+        }
+
+        void dispatch() {
+            while (true) {
+                final List<String> chunk;
+                synchronized (this) {
+                    if (mChunks.isEmpty() || mInFlight >= mMaxParallelChunks) {
+                        return;
+                    }
+                    chunk = mChunks.removeFirst();
+                    mInFlight++;
+                }
+
+                final long startedAt = System.currentTimeMillis();
+                try {
+                    mService.fetchSkusDetailsAsync(chunk,
+                            new IabCallbacks.OnFetchSkusDetailsListener() {
+                                @Override
+                                public void success(List<IabSkuDetails> skuDetails) {
+                                    store(skuDetails, startedAt);
+                                    synchronized (Fetch.this) {
+                                        mResults.addAll(skuDetails);
+                                    }
+                                    chunkDone();
+                                }
+
+                                @Override
+                                public void fail(String message) {
+                                    chunkFailed(message);
+                                }
+                            });
+                } catch (IllegalStateException e) {
+                    chunkFailed("Can't proceed with fetchSkusDetails. error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void chunkFailed(String message) {
+            SoomlaUtils.LogError(TAG, "A chunk of skus details failed to fetch: " + message);
+            synchronized (this) {
+                if (mFailure == null) {
+                    mFailure = message;
+                }
+            }
+            chunkDone();
+        }
+
+        private void chunkDone() {
+            boolean finished;
+            String failure;
+            synchronized (this) {
+                mInFlight--;
+                finished = mInFlight == 0 && mChunks.isEmpty();
+                failure = mFailure;
+            }
+
+            if (!finished) {
+                dispatch();
+            } else if (failure != null) {
+                mListener.fail(failure);
+            } else {
+                mListener.success(mResults);
+            }
+        }
+
+        private final IIabService mService;
+        private final LinkedList<List<String>> mChunks;
+        private final List<IabSkuDetails> mResults;
+        private final IabCallbacks.OnFetchSkusDetailsListener mListener;
+        private int mInFlight = 0;
+        private String mFailure;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA SkuDetailsFetcher"; //used for Log messages
+
+    private static final String RECORD_ITEM_TYPE = "itemType";
+    private static final String RECORD_DETAILS = "details";
+    private static final String RECORD_FETCHED_AT = "fetchedAt";
+
+    // sku -> cached details, or null when the sku is known not to be cached
+    private final HashMap<String, CachedDetails> mCache = new HashMap<String, CachedDetails>();
+
+    private volatile int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile int mMaxParallelChunks = DEFAULT_MAX_PARALLEL_CHUNKS;
+    private volatile long mTtlMillis = DEFAULT_TTL_MILLIS;
+
+    // the last time the cache was invalidated, -1 until it's loaded
+    private long mInvalidatedAt = -1;
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The in-memory balances of a <code>VirtualItemStorage</code>, kept in front of
+ * <code>KeyValueStorage</code>.
+ *
+ * Every catalog item's balance lives in its own atomic {@link Counter}, loaded from
+ * <code>KeyValueStorage</code> on the first access and kept by the item's handle (see
+ * {@link ItemHandles}). ItemIds that aren't in the catalog get a new counter, loaded from
+ * <code>KeyValueStorage</code>, on every access and are always written through; they are
+ * neither kept nor linearizable. Balance changes are compare-and-set
+ * operations on that counter, so they are linearizable without any lock, and persistence happens
+ * after the counter was updated:
+ *  - write-through (default): the counter's latest value is written right after the change.
+ *  - write-back: the counter is only marked dirty and written on the next {@link #flush()},
+ *    which <code>StorageManager</code> runs on a fixed schedule and when the application goes
+ *    to the background.
+ *
+ * NOTE: In write-back mode, balances that were not flushed yet are lost if the process is killed.
+ * Only enable it (see {@link StorageManager#enableBalanceCache(long)}) if you can live with that
+ * window.
+ */
+public class BalanceCache {
+
+    /**
+     * Constructor
+     *
+     * @param storage the storage whose balances are cached
+     */
+    public BalanceCache(VirtualItemStorage storage) {
+        mStorage = storage;
+    }
+
+    /**
+     * Retrieves the balance of the given virtual item, loading it from
+     * <code>KeyValueStorage</code> on the first access.
+     *
+     * @param itemId the required virtual item's itemId
+     * @return the balance of the required virtual item
+     */
+    public int getBalance(String itemId) {
+        return counter(itemId).balance.get();
+    }
+
+    /**
+     * Retrieves the balance of the virtual item with the given handle, loading it from
+     * <code>KeyValueStorage</code> on the first access.
+     *
+     * @param handle the required virtual item's handle
+     * @return the balance of the required virtual item
+     */
+    public int getBalance(int handle) {
+        return counter(handle).balance.get();
+    }
+
+    /**
+     * Writes all dirty balances to <code>KeyValueStorage</code> in one
+     * <code>KeyValueBatch</code>, so a flush is applied all-or-nothing.
+     * Balances keep changing while the flush runs; a change that races with the flush is simply
+     * written by the next one.
+     *
+     * @return the number of balances written
+     */
+    public int flush() {
+        synchronized (mFlushLock) {
+            KeyValueBatch batch = new KeyValueBatch();
+            int count = 0;
+            for (int i = 0; i < mCounters.capacity(); i++) {
+                Counter counter = mCounters.get(i);
+                // clear the flag before reading, so a concurrent change marks it again
+                if (counter != null && counter.dirty) {
+                    counter.dirty = false;
+                    batch.setValue(counter.key, String.valueOf(counter.balance.get()));
+                    count++;
+                }
+            }
+            batch.commit();
+
+            if (count > 0) {
+                SoomlaUtils.LogDebug(TAG, "flushed " + count + " balances to storage");
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Drops all in-memory balances without writing them.
+     * Use this after balances were changed directly in <code>KeyValueStorage</code>.
+     *
+     * NOTE: Balance changes that run concurrently with this call may be lost.
+     */
+    public void invalidate() {
+        mCounters.clear();
+    }
+
+
+    /** Setters and Getters **/
+
+    public boolean isWriteBack() {
+        return mWriteBack;
+    }
+
+    /**
+     * Switches between write-back and write-through. Switching to write-through flushes the
+     * balances that are still pending.
+     *
+     * @param writeBack true to only write balances on {@link #flush()}
+     */
+    public void setWriteBack(boolean writeBack) {
+        mWriteBack = writeBack;
+        if (!writeBack) {
+            flush();
+        }
+    }
+
+
+    /** Package functions **/
+
+    /**
+     * Retrieves the counter of the given virtual item, creating it from the persisted balance
+     * on the first access. An itemId that isn't in the catalog gets a new counter that isn't
+     * kept.
+     *
+     * @param itemId the required virtual item's itemId
+     * @return the item's counter
+     */
+    Counter counter(String itemId) {
+        int handle = ItemHandles.handleOf(itemId);
+        if (handle < 0) {
+            return new Counter(itemId, mStorage.keyBalance(itemId), mStorage.loadBalance(itemId),
+                    false);
+        }
+        return counter(handle);
+    }
+
+    /**
+     * Retrieves the counter of the virtual item with the given handle, creating it from the
+     * persisted balance on the first access.
+     *
+     * @param handle the required virtual item's handle
+     * @return the item's counter
+     */
+    Counter counter(int handle) {
+        Counter counter = mCounters.get(handle);
+        if (counter == null) {
+            String itemId = ItemHandles.itemIdOf(handle);
+            counter = mCounters.putIfAbsent(handle, new Counter(itemId, mStorage.keyBalance(itemId),
+                    mStorage.loadBalance(itemId), true));
+        }
+        return counter;
+    }
+
+    /**
+     * Persists the given counter after it was changed: marks it dirty in write-back mode,
+     * otherwise writes its latest value. Writes of the same counter are serialized and always
+     * read the value under the counter's lock, so a slower writer can never store an older
+     * balance over a newer one.
+     *
+     * @param counter the counter that was changed
+     */
+    void persist(Counter counter) {
+        if (mWriteBack && counter.cached) {
+            counter.dirty = true;
+            return;
+        }
+        if (!counter.cached) {
+            StoreKeyIndex.register(counter.itemId);
+        }
+        counter.lock.lock();
+        try {
+            KeyValueStorage.setValue(counter.key, String.valueOf(counter.balance.get()));
+        } finally {
+            counter.lock.unlock();
+        }
+    }
+
+    /**
+     * Stages the given counter's latest value in the given batch. Callers must hold the
+     * counter's lock until the batch is committed.
+     *
+     * @param counter the counter that was changed
+     * @param batch the batch to add the write to
+     */
+    void stage(Counter counter, KeyValueBatch batch) {
+        if (mWriteBack && counter.cached) {
+            counter.dirty = true;
+        } else {
+            if (!counter.cached) {
+                StoreKeyIndex.register(counter.itemId);
+            }
+            batch.setValue(counter.key, String.valueOf(counter.balance.get()));
+        }
+    }
+
+    /**
+     * The balance of a single virtual item, together with its itemId and storage key.
+     */
+    static class Counter {
+        Counter(String itemId, String key, int balance, boolean cached) {
+            this.balance = new AtomicInteger(balance);
+            this.itemId = itemId;
+            this.key = key;
+            this.cached = cached;
+        }
+
+        final AtomicInteger balance;
+        final String itemId;
+        final String key;
+        // false for the counters of itemIds that aren't in the catalog
+        final boolean cached;
+        volatile boolean dirty;
+        // held while the balance is written, see BalanceTransaction
+        final ReentrantLock lock = new ReentrantLock();
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA BalanceCache"; //used for Log messages
+
+    private final VirtualItemStorage mStorage;
+
+    // the counters by item handle
+    private final HandleMap<Counter> mCounters = new HandleMap<Counter>();
+
+    private volatile boolean mWriteBack = false;
+
+    // serializes flushes so an older snapshot can never overwrite a newer one
+    private final Object mFlushLock = new Object();
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import com.soomla.BusProvider;
+import com.soomla.SoomlaUtils;
+import com.soomla.store.events.BalancesChangedEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the balance changes of <code>VirtualItemStorage</code> and posts one balance event
+ * per item, carrying the item's final balance and the sum of all amounts added, instead of one
+ * event per change.
+ *
+ * Changes are collected while a scope is open ({@link StorageManager#beginBalanceEvents()} until
+ * the matching {@link StorageManager#endBalanceEvents()}) or, when a frame window is set, for
+ * <code>windowMillis</code> after the first change of the window. Otherwise every change is
+ * posted right away, which is the default. Scopes belong to the thread that opened them: they
+ * only collect the changes made on that thread.
+ *
+ * If batch events are enabled, a {@link BalancesChangedEvent} with all changes of the scope or
+ * window is posted after the per-item events.
+ */
+class BalanceEventCoalescer {
+
+    /**
+     * Posts the given balance change, or collects it if changes are currently coalesced.
+     *
+     * @param storage the storage that holds the item's balance
+     * @param itemId id of the virtual item whose balance changed
+     * @param balance the new balance
+     * @param amountAdded the amount added to the balance
+     */
+    void post(VirtualItemStorage storage, String itemId, int balance, int amountAdded) {
+        // an open scope of this thread posts the change when it ends
+        Scope scope = mScope.get();
+        if (scope.depth > 0) {
+            collect(scope.pending, storage, itemId, balance, amountAdded);
+            return;
+        }
+
+        long windowMillis;
+        synchronized (this) {
+            if (mWindowMillis <= 0) {
+                windowMillis = 0;
+            } else {
+                collect(mPending, storage, itemId, balance, amountAdded);
+
+                // an already scheduled flush will post the change
+                if (mFlushScheduled) {
+                    return;
+                }
+                mFlushScheduled = true;
+                windowMillis = mWindowMillis;
+            }
+        }
+
+        if (windowMillis > 0) {
+            mMainHandler.postDelayed(mWindowFlush, windowMillis);
+        } else {
+            storage.postBalanceChangeEvent(itemId, balance, amountAdded);
+        }
+    }
+
+    /**
+     * Opens a scope on the calling thread. Scopes may be nested; changes are posted when the
+     * outermost one ends. Changes made on other threads are not collected by this scope.
+     */
+    void beginScope() {
+        mScope.get().depth++;
+    }
+
+    /**
+     * Closes a scope of the calling thread and, if it was the outermost one, posts the changes
+     * the scope collected on the calling thread.
+     */
+    void endScope() {
+        Scope scope = mScope.get();
+        if (scope.depth == 0) {
+            throw new IllegalStateException("No balance events scope is open.");
+        }
+        scope.depth--;
+        if (scope.depth > 0) {
+            return;
+        }
+        postPending(scope.takePending());
+    }
+
+    /**
+     * Posts all changes collected so far by the current window and by the scopes of the
+     * calling thread.
+     */
+    void flush() {
+        postPending(mScope.get().takePending());
+
+        LinkedHashMap<String, PendingChange> pending;
+        synchronized (this) {
+            pending = mPending;
+            mPending = new LinkedHashMap<String, PendingChange>();
+        }
+        postPending(pending);
+    }
+
+
+    /** Setters and Getters **/
+
+    synchronized void setWindowMillis(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    synchronized void setPostBatchEvents(boolean postBatchEvents) {
+        mPostBatchEvents = postBatchEvents;
+    }
+
+
+    /** Private functions **/
+
+    private static void collect(LinkedHashMap<String, PendingChange> pending,
+                                VirtualItemStorage storage, String itemId, int balance,
+                                int amountAdded) {
+        PendingChange change = pending.get(itemId);
+        if (change == null) {
+            change = new PendingChange(storage);
+            pending.put(itemId, change);
+        }
+        change.balance = balance;
+        change.amountAdded += amountAdded;
+    }
+
+    private void postPending(LinkedHashMap<String, PendingChange> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        boolean postBatch;
+        synchronized (this) {
+            postBatch = mPostBatchEvents;
+        }
+
+        SoomlaUtils.LogDebug(TAG, "posting the balance changes of " + pending.size() + " items");
+
+        for (Map.Entry<String, PendingChange> entry : pending.entrySet()) {
+            PendingChange change = entry.getValue();
+            change.storage.postBalanceChangeEvent(entry.getKey(), change.balance,
+                    change.amountAdded);
+        }
+
+        if (postBatch) {
+            List<String> itemIds = new ArrayList<String>(pending.keySet());
+            Map<String, Integer> balances = new HashMap<String, Integer>();
+            Map<String, Integer> amountsAdded = new HashMap<String, Integer>();
+            for (Map.Entry<String, PendingChange> entry : pending.entrySet()) {
+                balances.put(entry.getKey(), entry.getValue().balance);
+                amountsAdded.put(entry.getKey(), entry.getValue().amountAdded);
+            }
+            BusProvider.getInstance().post(
+                    new BalancesChangedEvent(itemIds, balances, amountsAdded));
+        }
+    }
+
+    /**
+     * The changes of a single item's balance since the last flush.
+     */
+    private static class PendingChange {
+        PendingChange(VirtualItemStorage storage) {
+            this.storage = storage;
+        }
+
+        final VirtualItemStorage storage;
+        int balance;
+        int amountAdded;
+    }
+
+    /**
+     * The open scopes of a single thread and the changes they collected.
+     */
+    private static class Scope {
+        LinkedHashMap<String, PendingChange> takePending() {
+            LinkedHashMap<String, PendingChange> taken = pending;
+            pending = new LinkedHashMap<String, PendingChange>();
+            return taken;
+        }
+
+        int depth;
+        LinkedHashMap<String, PendingChange> pending = new LinkedHashMap<String, PendingChange>();
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA BalanceEventCoalescer"; //used for Log messages
+
+    // the changes of the current window, keyed by itemId, kept in the order the items first
+    // changed
+    private LinkedHashMap<String, PendingChange> mPending =
+            new LinkedHashMap<String, PendingChange>();
+
+    // scopes are per thread, so a scope never holds back or posts another thread's changes
+    private final ThreadLocal<Scope> mScope = new ThreadLocal<Scope>() {
+        @Override
+        protected Scope initialValue() {
+            return new Scope();
+        }
+    };
+
+    private long mWindowMillis = 0;
+    private boolean mPostBatchEvents = false;
+    private boolean mFlushScheduled = false;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mWindowFlush = new Runnable() {
+        @Override
+        public void run() {
+            LinkedHashMap<String, PendingChange> pending;
+            synchronized (BalanceEventCoalescer.this) {
+                mFlushScheduled = false;
+                pending = mPending;
+                mPending = new LinkedHashMap<String, PendingChange>();
+            }
+            postPending(pending);
+        }
+    };
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaUtils;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.events.GoodUpgradeEvent;
+import com.soomla.store.exceptions.InsufficientFundsException;
+import com.soomla.store.exceptions.VirtualItemNotFoundException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A group of balance changes over <code>VirtualCurrencyStorage</code> and
+ * <code>VirtualGoodsStorage</code> that is applied all-or-nothing.
+ *
+ * Debits and credits are only recorded until {@link #commit()} is called. The commit applies the
+ * debits to the items' balance counters first; if one of them can't be covered, the debits
+ * already applied are given back and nothing else happens. Then the credits are applied and all
+ * new balances are persisted in one <code>KeyValueBatch</code>. Balance events are posted only
+ * after the commit succeeded.
+ *
+ * NOTE: The commit takes no global lock. Concurrent readers may briefly see a debit that is given
+ * back a moment later, but never a balance below 0 and never a partially persisted transaction.
+ *
+ * Real Game Example:
+ *  Buying a 'Sword' for 100 'Gems' debits 100 'Gems' and credits 1 'Sword'. Either both happen
+ *  or, if the user doesn't have 100 'Gems', none.
+ *
+ * <code>
+ *  BalanceTransaction transaction = StoreInventory.beginTransaction();
+ *  transaction.debit("gem", 100).credit("sword", 1);
+ *  transaction.commit();
+ * </code>
+ */
+public class BalanceTransaction {
+
+    /**
+     * Records a debit of the given amount from the virtual item with the given itemId.
+     *
+     * @param itemId id of the virtual item to debit
+     * @param amount the amount to debit
+     * @return this transaction
+     * @throws VirtualItemNotFoundException if no item with the given itemId exists
+     */
+    public BalanceTransaction debit(String itemId, int amount) throws VirtualItemNotFoundException {
+        return debit(storageOf(itemId), itemId, amount);
+    }
+
+    /**
+     * Records a credit of the given amount to the virtual item with the given itemId.
+     *
+     * @param itemId id of the virtual item to credit
+     * @param amount the amount to credit
+     * @return this transaction
+     * @throws VirtualItemNotFoundException if no item with the given itemId exists
+     */
+    public BalanceTransaction credit(String itemId, int amount) throws VirtualItemNotFoundException {
+        return credit(storageOf(itemId), itemId, amount);
+    }
+
+    /**
+     * Records a debit of the given amount from the given item's balance in the given storage.
+     * The commit fails with <code>InsufficientFundsException</code> if the balance is lower
+     * than the total debited amount.
+     *
+     * @param storage the storage that holds the item's balance
+     * @param itemId id of the virtual item to debit
+     * @param amount the amount to debit
+     * @return this transaction
+     */
+    public BalanceTransaction debit(VirtualItemStorage storage, String itemId, int amount) {
+        change(storage, itemId).delta -= amount;
+        return this;
+    }
+
+    /**
+     * Records a credit of the given amount to the given item's balance in the given storage.
+     *
+     * @param storage the storage that holds the item's balance
+     * @param itemId id of the virtual item to credit
+     * @param amount the amount to credit
+     * @return this transaction
+     */
+    public BalanceTransaction credit(VirtualItemStorage storage, String itemId, int amount) {
+        change(storage, itemId).delta += amount;
+        return this;
+    }
+
+    /**
+     * Works like {@link #credit(VirtualItemStorage, String, int)}, but never lets the balance
+     * go above <code>maxBalance</code>. This is how items that can only be owned once (like
+     * <code>LifetimeVG</code>) are given.
+     *
+     * @param storage the storage that holds the item's balance
+     * @param itemId id of the virtual item to credit
+     * @param amount the amount to credit
+     * @param maxBalance the highest balance the item may reach
+     * @return this transaction
+     */
+    public BalanceTransaction credit(VirtualItemStorage storage, String itemId, int amount,
+                                     int maxBalance) {
+        Change change = change(storage, itemId);
+        change.delta += amount;
+        change.maxBalance = Math.min(change.maxBalance, maxBalance);
+        return this;
+    }
+
+    /**
+     * Records the giving of the given amount of the given item, by the item's
+     * <code>give(int, BalanceTransaction)</code>.
+     * An item whose class overrides <code>give(int, boolean)</code> but not the transactional
+     * <code>give</code>, like subclasses written before transactions existed, is given by its
+     * <code>give(int, boolean)</code> once this transaction is committed instead.
+     *
+     * @param item the item to give
+     * @param amount the amount to give
+     * @return this transaction
+     */
+    public BalanceTransaction give(final VirtualItem item, final int amount) {
+        if (hasOwnGive(item.getClass())) {
+            afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    item.give(amount, true);
+                }
+            });
+        } else {
+            item.give(amount, this);
+        }
+        return this;
+    }
+
+    /**
+     * Records the assignment of the given upgrade to the given virtual good.
+     *
+     * @param goodItemId id of the virtual good to upgrade
+     * @param upgradeVGItemId id of the upgrade to assign
+     * @return this transaction
+     */
+    public BalanceTransaction assignUpgrade(String goodItemId, String upgradeVGItemId) {
+        mUpgrades.put(goodItemId, upgradeVGItemId);
+        return this;
+    }
+
+    /**
+     * Registers an action that runs once this transaction is committed, right after the balances
+     * are persisted and before any event is posted. Nothing runs if the commit fails.
+     *
+     * @param action the action to run
+     * @return this transaction
+     */
+    public BalanceTransaction afterCommit(Runnable action) {
+        if (mCommitted) {
+            throw new IllegalStateException("This transaction was already committed.");
+        }
+        mAfterCommit.add(action);
+        return this;
+    }
+
+    /**
+     * Commits this transaction and posts the balance change events.
+     *
+     * @throws InsufficientFundsException if one of the debited items doesn't have enough balance.
+     *                                    Nothing is changed in that case.
+     */
+    public void commit() throws InsufficientFundsException {
+        commit(true);
+    }
+
+    /**
+     * Checks all debits against the current balances and, if they can all be covered, applies
+     * every change of this transaction and persists them in a single batch.
+     *
+     * @param notify if true post balance change events after the commit
+     * @throws InsufficientFundsException if one of the debited items doesn't have enough balance.
+     *                                    Nothing is changed in that case.
+     */
+    public void commit(boolean notify) throws InsufficientFundsException {
+        commit(notify, new KeyValueBatch());
+    }
+
+    /**
+     * Works like {@link #commit(boolean)}, but persists the new balances as part of the given
+     * batch, so other writes that belong with this transaction are committed together with it.
+     *
+     * @param notify if true post balance change events after the commit
+     * @param batch the batch to persist the balances with. It is committed by this call.
+     * @throws InsufficientFundsException if one of the debited items doesn't have enough balance.
+     *                                    Nothing is changed in that case, and the batch isn't
+     *                                    committed.
+     */
+    public void commit(boolean notify, KeyValueBatch batch) throws InsufficientFundsException {
+        if (mCommitted) {
+            throw new IllegalStateException("This transaction was already committed.");
+        }
+
+        // debits go first: they are the only changes that can fail, and undoing them is safe
+        List<Change> applied = new ArrayList<Change>();
+        for (Change change : mChanges.values()) {
+            if (change.delta < 0 && !apply(change)) {
+                for (Change debit : applied) {
+                    debit.counter.balance.addAndGet(-debit.amount);
+                    // a concurrent change may have persisted the debited balance in the meantime
+                    debit.storage.getBalanceCache().persist(debit.counter);
+                }
+                throw new InsufficientFundsException(change.itemId);
+            }
+            if (change.amount != 0) {
+                applied.add(change);
+            }
+        }
+        for (Change change : mChanges.values()) {
+            if (change.delta >= 0) {
+                apply(change);
+                if (change.amount != 0) {
+                    applied.add(change);
+                }
+            }
+        }
+
+        // lock the counters in key order, so concurrent commits can't deadlock
+        List<Change> ordered = new ArrayList<Change>(applied);
+        Collections.sort(ordered, new Comparator<Change>() {
+            @Override
+            public int compare(Change lhs, Change rhs) {
+                return lhs.counter.key.compareTo(rhs.counter.key);
+            }
+        });
+        persist(ordered, batch);
+        mCommitted = true;
+
+        mApplied = applied;
+
+        for (Runnable action : mAfterCommit) {
+            action.run();
+        }
+
+        SoomlaUtils.LogDebug(TAG, "Committed " + applied.size() + " balance changes and "
+                + mUpgrades.size() + " upgrades.");
+
+        if (notify) {
+            postEvents();
+        }
+    }
+
+    /**
+     * Posts the upgrade and balance change events of this transaction. Use it to notify about a
+     * transaction that was committed with <code>notify</code> false, e.g. from another thread.
+     */
+    public void postEvents() {
+        if (!mCommitted) {
+            throw new IllegalStateException("This transaction wasn't committed yet.");
+        }
+        for (Map.Entry<String, String> upgrade : mUpgrades.entrySet()) {
+            BusProvider.getInstance().post(
+                    new GoodUpgradeEvent(upgrade.getKey(), upgrade.getValue()));
+        }
+        for (Change change : mApplied) {
+            StorageManager.getBalanceEventCoalescer().post(change.storage, change.itemId,
+                    change.balance, change.amount);
+        }
+    }
+
+
+    /** Private functions **/
+
+    private static VirtualItemStorage storageOf(String itemId)
+            throws VirtualItemNotFoundException {
+        VirtualItem item = StoreInfo.getVirtualItem(itemId);
+        return StorageManager.getVirtualItemStorage(item);
+    }
+
+    /**
+     * Checks if the given item class overrides <code>give(int, boolean)</code> below the class
+     * that declares the <code>give</code> it has for transactions.
+     */
+    private static boolean hasOwnGive(Class<?> itemClass) {
+        synchronized (OWN_GIVE) {
+            Boolean ownGive = OWN_GIVE.get(itemClass);
+            if (ownGive == null) {
+                try {
+                    Class<?> giveOwner = itemClass.getMethod("give", int.class, boolean.class)
+                            .getDeclaringClass();
+                    Class<?> transactionGiveOwner = itemClass.getMethod("give", int.class,
+                            BalanceTransaction.class).getDeclaringClass();
+                    ownGive = giveOwner != transactionGiveOwner
+                            && transactionGiveOwner.isAssignableFrom(giveOwner);
+                } catch (NoSuchMethodException e) {
+                    // both are public members of VirtualItem
+                    ownGive = false;
+                }
+                if (ownGive) {
+                    SoomlaUtils.LogDebug(TAG, itemClass.getName() + " only overrides "
+                            + "give(int, boolean). It's given after the transaction commits.");
+                }
+                OWN_GIVE.put(itemClass, ownGive);
+            }
+            return ownGive;
+        }
+    }
+
+    /**
+     * Applies the given change to its item's counter with a compare-and-set loop.
+     *
+     * @param change the change to apply
+     * @return false if the change is a debit that the current balance can't cover
+     */
+    private static boolean apply(Change change) {
+        BalanceCache.Counter counter = change.storage.getBalanceCache().counter(change.itemId);
+        int balance;
+        int newBalance;
+        do {
+            balance = counter.balance.get();
+            newBalance = balance + change.delta;
+            if (newBalance < 0) {
+                return false;
+            }
+            newBalance = Math.min(newBalance, Math.max(balance, change.maxBalance));
+        } while (!counter.balance.compareAndSet(balance, newBalance));
+
+        change.counter = counter;
+        change.balance = newBalance;
+        change.amount = newBalance - balance;
+        return true;
+    }
+
+    /**
+     * Takes the locks of the given changes' counters in order, and commits the batch once all
+     * of them are held. This keeps single balance writes from storing an older value over the
+     * batch.
+     */
+    private void persist(List<Change> ordered, KeyValueBatch batch) {
+        int locked = 0;
+        try {
+            for (Change change : ordered) {
+                change.counter.lock.lock();
+                locked++;
+                change.storage.getBalanceCache().stage(change.counter, batch);
+            }
+            for (Map.Entry<String, String> upgrade : mUpgrades.entrySet()) {
+                StorageManager.getVirtualGoodsStorage().stageUpgrade(upgrade.getKey(),
+                        upgrade.getValue(), batch);
+            }
+            batch.commit();
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                ordered.get(i).counter.lock.unlock();
+            }
+        }
+    }
+
+    private Change change(VirtualItemStorage storage, String itemId) {
+        if (mCommitted) {
+            throw new IllegalStateException("This transaction was already committed.");
+        }
+        Change change = mChanges.get(itemId);
+        if (change == null) {
+            change = new Change(storage, itemId);
+            mChanges.put(itemId, change);
+        }
+        return change;
+    }
+
+    /**
+     * The accumulated change of a single item's balance.
+     */
+    private static class Change {
+        Change(VirtualItemStorage storage, String itemId) {
+            this.storage = storage;
+            this.itemId = itemId;
+        }
+
+        final VirtualItemStorage storage;
+        final String itemId;
+        int delta;
+        int maxBalance = Integer.MAX_VALUE;
+
+        // filled in on commit
+        BalanceCache.Counter counter;
+        int balance;
+        int amount;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA BalanceTransaction"; //used for Log messages
+
+    // item class -> whether it's given outside of transactions, see hasOwnGive
+    private static final Map<Class<?>, Boolean> OWN_GIVE = new HashMap<Class<?>, Boolean>();
+
+    // keyed by itemId, kept in the order the items were first touched
+    private final LinkedHashMap<String, Change> mChanges = new LinkedHashMap<String, Change>();
+
+    private final LinkedHashMap<String, String> mUpgrades = new LinkedHashMap<String, String>();
+
+    private final List<Runnable> mAfterCommit = new ArrayList<Runnable>();
+
+    // the changes that actually moved a balance, filled in on commit
+    private List<Change> mApplied;
+
+    private boolean mCommitted = false;
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import android.text.TextUtils;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualGoods.TimeLimitedVG;
+import com.soomla.store.exceptions.VirtualItemNotFoundException;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives and takes the grants of time-limited goods ({@link TimeLimitedVG}), and takes every grant
+ * when its lifetime is over.
+ *
+ * Every running grant is scheduled in a hierarchical {@link TimingWheel}, so a grant is scheduled
+ * and cancelled in O(1) and the engine never looks at grants that aren't due. Instead of ticking
+ * periodically, the engine wakes up at the wheel's next expiry and takes the expired grants, with
+ * a <code>GoodBalanceChangedEvent</code> per good.
+ *
+ * The expiry times are persisted in <code>VirtualGoodsStorage</code>, and the ids of the goods
+ * that have running grants under a key of their own, so loading the grants doesn't go over the
+ * catalog. Grants that expired while the app was closed are taken by the first
+ * {@link #advance()}, which runs when <code>SoomlaStore</code> is initialized.
+ */
+public class GoodExpiryEngine {
+
+    public static final long TICK_MILLIS = 1;
+
+    /**
+     * Constructor
+     */
+    GoodExpiryEngine() {
+    }
+
+    /**
+     * Gives the given amount of grants of the given good. See {@link TimeLimitedVG.Stacking} for
+     * how they add up.
+     *
+     * @param good the good to give
+     * @param amount the number of grants to give
+     * @param notify if true post balance change event
+     * @return the balance after the giving process
+     */
+    public synchronized int grant(TimeLimitedVG good, int amount, boolean notify) {
+        String itemId = good.getItemId();
+        VirtualGoodsStorage storage = StorageManager.getVirtualGoodsStorage();
+        if (amount <= 0) {
+            return storage.getBalance(itemId);
+        }
+
+        ensureLoaded();
+        addGrants(good, amount, mClock.currentTimeMillis());
+        updateWakeup();
+
+        if (good.getStacking() == TimeLimitedVG.Stacking.STACK) {
+            return storage.add(itemId, amount, notify);
+        }
+        int balance = storage.getBalance(itemId);
+        return balance < 1 ? storage.add(itemId, 1, notify) : balance;
+    }
+
+    /**
+     * Schedules the expiry of grants that a committed <code>BalanceTransaction</code> already
+     * added to the given good's balance.
+     *
+     * @param good the good that was given
+     * @param amount the number of grants that were given
+     */
+    public synchronized void recordGrants(TimeLimitedVG good, int amount) {
+        if (amount <= 0) {
+            return;
+        }
+        ensureLoaded();
+        addGrants(good, amount, mClock.currentTimeMillis());
+        updateWakeup();
+    }
+
+    /**
+     * Takes the given amount of grants of the given good, the ones that expire first. Unless the
+     * good stacks, this takes its only grant.
+     *
+     * @param good the good to take
+     * @param amount the number of grants to take
+     * @param notify if true post balance change event
+     * @return the balance after the taking process
+     */
+    public synchronized int revoke(TimeLimitedVG good, int amount, boolean notify) {
+        String itemId = good.getItemId();
+        VirtualGoodsStorage storage = StorageManager.getVirtualGoodsStorage();
+        if (amount <= 0) {
+            return storage.getBalance(itemId);
+        }
+        if (good.getStacking() != TimeLimitedVG.Stacking.STACK) {
+            amount = 1;
+        }
+
+        ensureLoaded();
+        cancelGrants(itemId, amount);
+        saveGrants(itemId);
+        updateWakeup();
+
+        if (storage.getBalance(itemId) > 0) {
+            return storage.remove(itemId, amount, notify);
+        }
+        return 0;
+    }
+
+    /**
+     * Replaces the running grants of the given good with the given number of new ones.
+     *
+     * @param good the good to reset
+     * @param balance the new balance. Unless the good stacks, it's at most 1.
+     * @param notify if true post balance change event
+     * @return the balance after the reset process
+     */
+    public synchronized int reset(TimeLimitedVG good, int balance, boolean notify) {
+        String itemId = good.getItemId();
+        if (good.getStacking() != TimeLimitedVG.Stacking.STACK) {
+            balance = Math.min(balance, 1);
+        }
+
+        ensureLoaded();
+        cancelGrants(itemId, Integer.MAX_VALUE);
+        if (balance > 0) {
+            addGrants(good, balance, mClock.currentTimeMillis());
+        } else {
+            saveGrants(itemId);
+        }
+        updateWakeup();
+
+        return StorageManager.getVirtualGoodsStorage().setBalance(itemId, Math.max(balance, 0),
+                notify);
+    }
+
+    /**
+     * Takes the grants whose lifetime is over. Runs whenever the next grant expires, and when
+     * the store is initialized.
+     *
+     * @return the number of expired grants
+     */
+    public synchronized int advance() {
+        ensureLoaded();
+        mAdvancesCount++;
+        List<String> expired = mWheel.advanceTo(mClock.currentTimeMillis());
+        if (expired.isEmpty()) {
+            updateWakeup();
+            return 0;
+        }
+
+        // the expired grants of a good are always its earliest ones
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        for (String itemId : expired) {
+            Integer count = counts.get(itemId);
+            counts.put(itemId, count == null ? 1 : count + 1);
+        }
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            List<TimingWheel.Timeout<String>> grants = mGrants.get(entry.getKey());
+            grants.subList(0, entry.getValue()).clear();
+            saveGrants(entry.getKey());
+        }
+        mExpiredCount += expired.size();
+        updateWakeup();
+
+        VirtualGoodsStorage storage = StorageManager.getVirtualGoodsStorage();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            String itemId = entry.getKey();
+            int balance = storage.getBalance(itemId);
+            if (balance <= 0) {
+                continue;
+            }
+            SoomlaUtils.LogDebug(TAG, entry.getValue() + " grants of " + itemId + " expired.");
+            storage.remove(itemId, stacks(itemId) ? entry.getValue() : balance, true);
+        }
+        return expired.size();
+    }
+
+    /**
+     * Retrieves the time until the last running grant of the given good expires.
+     *
+     * @param itemId the id of the <code>TimeLimitedVG</code>
+     * @return the time left in milliseconds, or 0 if the good has no running grant
+     */
+    public synchronized long getTimeLeftMillis(String itemId) {
+        ensureLoaded();
+        List<TimingWheel.Timeout<String>> grants = mGrants.get(itemId);
+        if (grants == null) {
+            return 0;
+        }
+        long expiresAt = grants.get(grants.size() - 1).getDeadlineMillis();
+        return Math.max(expiresAt - mClock.currentTimeMillis(), 0);
+    }
+
+
+    /** Metrics **/
+
+    /**
+     * Retrieves the number of running grants of all goods.
+     *
+     * @return the number of scheduled expiries
+     */
+    public synchronized int getScheduledCount() {
+        ensureLoaded();
+        return mWheel.size();
+    }
+
+    /**
+     * Retrieves the number of grants that expired.
+     *
+     * @return the number of expiries since the app started
+     */
+    public synchronized int getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    /**
+     * Retrieves the number of times the engine looked for expired grants. With no periodic
+     * ticks, it stays close to the number of expiries.
+     *
+     * @return the number of advances since the app started
+     */
+    public synchronized int getAdvancesCount() {
+        return mAdvancesCount;
+    }
+
+
+    /** Setters and Getters **/
+
+    /**
+     * Replaces the clock that expiry times are compared with, for tests. With any clock but
+     * <code>TimingWheel.Clock.SYSTEM</code> the engine doesn't wake up by itself, and grants
+     * expire only when {@link #advance()} is called. The grants are loaded again from storage.
+     *
+     * @param clock the clock to use
+     */
+    public synchronized void setClock(TimingWheel.Clock clock) {
+        mClock = clock;
+        invalidate();
+    }
+
+
+    /**
+     * Drops the loaded grants, so they are loaded again from storage on the next access.
+     */
+    synchronized void invalidate() {
+        cancelWakeup();
+        mWheel = null;
+        mGrants.clear();
+        mLoaded = false;
+    }
+
+
+    /** Private functions **/
+
+    /**
+     * Schedules new grants of the given good, by its stacking rule, and persists them. Callers
+     * must hold the engine's lock.
+     */
+    private void addGrants(TimeLimitedVG good, int amount, long now) {
+        String itemId = good.getItemId();
+        long lifetime = good.getLifetimeMillis();
+        List<TimingWheel.Timeout<String>> grants = mGrants.get(itemId);
+
+        switch (good.getStacking()) {
+            case STACK:
+                for (int i = 0; i < amount; i++) {
+                    schedule(itemId, now + lifetime);
+                }
+                break;
+            case EXTEND:
+                long from = grants == null || grants.isEmpty()
+                        ? now : grants.get(grants.size() - 1).getDeadlineMillis();
+                cancelGrants(itemId, Integer.MAX_VALUE);
+                schedule(itemId, from + lifetime * amount);
+                break;
+            case RESTART:
+                cancelGrants(itemId, Integer.MAX_VALUE);
+                schedule(itemId, now + lifetime);
+                break;
+        }
+        saveGrants(itemId);
+    }
+
+    /**
+     * Cancels the given number of the given good's earliest grants. Callers must hold the
+     * engine's lock, and persist the grants afterwards.
+     */
+    private void cancelGrants(String itemId, int amount) {
+        List<TimingWheel.Timeout<String>> grants = mGrants.get(itemId);
+        if (grants == null) {
+            return;
+        }
+        List<TimingWheel.Timeout<String>> cancelled =
+                grants.subList(0, Math.min(amount, grants.size()));
+        for (TimingWheel.Timeout<String> timeout : cancelled) {
+            mWheel.cancel(timeout);
+        }
+        cancelled.clear();
+    }
+
+    /**
+     * Schedules a grant of the given good, keeping its grants ordered by expiry time. Callers
+     * must hold the engine's lock.
+     */
+    private void schedule(String itemId, long expiresAt) {
+        List<TimingWheel.Timeout<String>> grants = mGrants.get(itemId);
+        if (grants == null) {
+            grants = new ArrayList<TimingWheel.Timeout<String>>();
+            mGrants.put(itemId, grants);
+            mIndexChanged = true;
+        }
+        int index = grants.size();
+        while (index > 0 && grants.get(index - 1).getDeadlineMillis() > expiresAt) {
+            index--;
+        }
+        grants.add(index, mWheel.schedule(itemId, expiresAt));
+    }
+
+    /**
+     * Persists the expiry times of the given good's grants, and the ids of the goods that have
+     * any if they changed. A good that has no grants left is dropped. Callers must hold the
+     * engine's lock.
+     */
+    private void saveGrants(String itemId) {
+        List<TimingWheel.Timeout<String>> grants = mGrants.get(itemId);
+        if (grants != null && grants.isEmpty()) {
+            mGrants.remove(itemId);
+            grants = null;
+            mIndexChanged = true;
+        }
+
+        long[] expiries = new long[grants == null ? 0 : grants.size()];
+        for (int i = 0; i < expiries.length; i++) {
+            expiries[i] = grants.get(i).getDeadlineMillis();
+        }
+        StorageManager.getVirtualGoodsStorage().setExpiries(itemId, expiries);
+
+        if (mIndexChanged) {
+            mIndexChanged = false;
+            if (mGrants.isEmpty()) {
+                KeyValueStorage.deleteKeyValue(KEY_EXPIRING_GOODS);
+            } else {
+                KeyValueStorage.setValue(KEY_EXPIRING_GOODS,
+                        new JSONArray(mGrants.keySet()).toString());
+            }
+        }
+    }
+
+    private boolean stacks(String itemId) {
+        try {
+            VirtualItem item = StoreInfo.getVirtualItem(itemId);
+            return !(item instanceof TimeLimitedVG)
+                    || ((TimeLimitedVG) item).getStacking() == TimeLimitedVG.Stacking.STACK;
+        } catch (VirtualItemNotFoundException e) {
+            // the good was removed from the catalog, take exactly the expired grants
+            return true;
+        }
+    }
+
+    /**
+     * Wakes the engine up at the wheel's next expiry, and doesn't while the wheel is empty.
+     * Callers must hold the engine's lock.
+     */
+    private void updateWakeup() {
+        long next = mWheel.nextExpiryMillis();
+        if (next == Long.MAX_VALUE || mClock != TimingWheel.Clock.SYSTEM) {
+            cancelWakeup();
+            return;
+        }
+        if (mWakeup != null && !mWakeup.isDone() && mWakeupAt == next) {
+            return;
+        }
+        cancelWakeup();
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SOOMLA GoodExpiryEngine");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        mWakeupAt = next;
+        mWakeup = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                advance();
+            }
+        }, Math.max(next - mClock.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelWakeup() {
+        if (mWakeup != null) {
+            mWakeup.cancel(false);
+            mWakeup = null;
+        }
+    }
+
+    /**
+     * Loads the persisted grants on the first access. Callers must hold the engine's lock.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        Map<String, long[]> persisted = new LinkedHashMap<String, long[]>();
+        long start = mClock.currentTimeMillis();
+        String val = KeyValueStorage.getValue(KEY_EXPIRING_GOODS);
+        if (!TextUtils.isEmpty(val)) {
+            try {
+                JSONArray itemIds = new JSONArray(val);
+                for (int i = 0; i < itemIds.length(); i++) {
+                    String itemId = itemIds.getString(i);
+                    long[] expiries = StorageManager.getVirtualGoodsStorage().getExpiries(itemId);
+                    if (expiries.length > 0) {
+                        persisted.put(itemId, expiries);
+                        start = Math.min(start, expiries[0] - TICK_MILLIS);
+                    }
+                }
+            } catch (JSONException e) {
+                SoomlaUtils.LogError(TAG, "Couldn't read the expiring goods. " + e.getMessage());
+            }
+        }
+
+        // the wheel starts before the earliest expiry, so the grants that expired while the app
+        // was closed are taken by the next advance
+        mWheel = new TimingWheel<String>(TICK_MILLIS, WHEEL_SIZE, start);
+        for (Map.Entry<String, long[]> entry : persisted.entrySet()) {
+            for (long expiresAt : entry.getValue()) {
+                schedule(entry.getKey(), expiresAt);
+            }
+        }
+        mIndexChanged = false;
+        SoomlaUtils.LogDebug(TAG, "Loaded " + mWheel.size() + " grants of "
+                + mGrants.size() + " time-limited goods");
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA GoodExpiryEngine"; //used for Log messages
+
+    // the goods with running grants, cleared with the inventory by StoreKeyIndex
+    static final String KEY_EXPIRING_GOODS = "store.goods.expiring";
+
+    // a turn of the first level is 64 ms, and every further level is 64 times longer
+    private static final int WHEEL_SIZE = 64;
+
+    private TimingWheel.Clock mClock = TimingWheel.Clock.SYSTEM;
+
+    // itemId -> the good's running grants, earliest first
+    private final Map<String, List<TimingWheel.Timeout<String>>> mGrants =
+            new HashMap<String, List<TimingWheel.Timeout<String>>>();
+    private TimingWheel<String> mWheel;
+    private boolean mLoaded = false;
+    private boolean mIndexChanged = false;
+
+    private ScheduledExecutorService mScheduler;
+    private ScheduledFuture<?> mWakeup;
+    private long mWakeupAt;
+
+    private int mExpiredCount = 0;
+    private int mAdvancesCount = 0;
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A map from item handles (see {@link ItemHandles}) to values, kept in an array that grows with
+ * the handles. Reads take no lock and allocate nothing; writes are serialized.
+ *
+ * @param <V> the type of the values
+ */
+class HandleMap<V> {
+
+    /**
+     * Retrieves the value of the given handle.
+     *
+     * @param handle the item's handle
+     * @return the value, or null if there's none
+     */
+    V get(int handle) {
+        AtomicReferenceArray<V> values = mValues;
+        return handle < values.length() ? values.get(handle) : null;
+    }
+
+    /**
+     * Sets the value of the given handle, unless it already has one.
+     *
+     * @param handle the item's handle
+     * @param value the value to set
+     * @return the handle's value after the call
+     */
+    synchronized V putIfAbsent(int handle, V value) {
+        V existing = get(handle);
+        if (existing != null) {
+            return existing;
+        }
+        grow(handle).set(handle, value);
+        return value;
+    }
+
+    /**
+     * Retrieves the number of handles that may have a value. All handles with a value are lower
+     * than it.
+     *
+     * @return the current capacity
+     */
+    int capacity() {
+        return mValues.length();
+    }
+
+    /**
+     * Removes all values.
+     */
+    synchronized void clear() {
+        mValues = new AtomicReferenceArray<V>(mValues.length());
+    }
+
+
+    /** Private functions **/
+
+    private AtomicReferenceArray<V> grow(int handle) {
+        AtomicReferenceArray<V> values = mValues;
+        if (handle < values.length()) {
+            return values;
+        }
+        AtomicReferenceArray<V> grown = new AtomicReferenceArray<V>(
+                Math.max(handle + 1, values.length() * 2));
+        for (int i = 0; i < values.length(); i++) {
+            grown.set(i, values.get(i));
+        }
+        mValues = grown;
+        return grown;
+    }
+
+
+    /** Private Members **/
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // replaced when it grows or is cleared
+    private volatile AtomicReferenceArray<V> mValues =
+            new AtomicReferenceArray<V>(INITIAL_CAPACITY);
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaUtils;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualGoods.TimeLimitedVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.events.BalancesChangedEvent;
+import com.soomla.store.exceptions.VirtualItemNotFoundException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces the whole inventory at once: all balances, equip states and upgrades of the store
+ * are cleared and the values staged in this reset are written instead, in one
+ * <code>KeyValueBatch</code>. Items that get no value are left with a balance of 0, unequipped
+ * and without an upgrade.
+ *
+ * Staging only changes this object. Nothing is checked against the current inventory, so the
+ * caller applies the rules of the items (e.g. equipping models) on the staged values. The only
+ * exception are time-limited goods: their running grants are replaced by new ones for the staged
+ * balance, as <code>TimeLimitedVG.resetBalance</code> does.
+ *
+ * Real Game Example:
+ * <code>
+ *  InventoryReset reset = new InventoryReset();
+ *  reset.setBalance("currency_coin", 250);
+ *  reset.setBalance("green_hat", 1);
+ *  reset.setEquipped("green_hat", true);
+ *  reset.commit(true);
+ * </code>
+ */
+public class InventoryReset {
+
+    /**
+     * Stages the balance of the given currency or good. A <code>TimeLimitedVG</code> that
+     * doesn't stack gets a balance of at most 1.
+     *
+     * @param itemId id of the currency or good
+     * @param balance the new balance
+     * @throws VirtualItemNotFoundException if the item isn't in the catalog
+     */
+    public void setBalance(String itemId, int balance) throws VirtualItemNotFoundException {
+        VirtualItem item = StoreInfo.getVirtualItem(itemId);
+        if (item instanceof VirtualCurrency) {
+            mCurrencyBalances.put(itemId, balance);
+        } else if (item instanceof TimeLimitedVG) {
+            if (((TimeLimitedVG) item).getStacking() != TimeLimitedVG.Stacking.STACK) {
+                balance = Math.min(balance, 1);
+            }
+            mGoodBalances.put(itemId, balance);
+            mTimeLimitedGoods.put(itemId, (TimeLimitedVG) item);
+        } else if (item instanceof VirtualGood) {
+            mGoodBalances.put(itemId, balance);
+        } else {
+            SoomlaUtils.LogError(TAG, "Someone tried to reset the balance of " + itemId
+                    + ", which has no balance. That's not right.");
+        }
+    }
+
+    /**
+     * Stages the equip state of the given good.
+     *
+     * @param goodItemId id of the good
+     * @param equipped true if the good is equipped
+     */
+    public void setEquipped(String goodItemId, boolean equipped) {
+        mEquipped.put(goodItemId, equipped);
+    }
+
+    /**
+     * Stages the current upgrade of the given good.
+     *
+     * @param goodItemId id of the good
+     * @param upgradeItemId id of the good's current upgrade, or null for none
+     */
+    public void setCurrentUpgrade(String goodItemId, String upgradeItemId) {
+        mUpgrades.put(goodItemId, upgradeItemId);
+    }
+
+    /**
+     * Retrieves the staged balance of the given item.
+     *
+     * @param itemId id of the currency or good
+     * @return the staged balance, or 0 if none was staged
+     */
+    public int getBalance(String itemId) {
+        Integer balance = mCurrencyBalances.get(itemId);
+        if (balance == null) {
+            balance = mGoodBalances.get(itemId);
+        }
+        return balance != null ? balance : 0;
+    }
+
+    public boolean isEquipped(String goodItemId) {
+        Boolean equipped = mEquipped.get(goodItemId);
+        return equipped != null && equipped;
+    }
+
+    public String getCurrentUpgrade(String goodItemId) {
+        return mUpgrades.get(goodItemId);
+    }
+
+    /**
+     * Clears the store's inventory and writes the staged values, all-or-nothing.
+     * The in-memory state of the storages is dropped afterwards, so it's reloaded with the new
+     * values.
+     *
+     * NOTE: Balance changes that run concurrently with the commit may be lost.
+     *
+     * @param notify if true, posts one <code>BalancesChangedEvent</code> with all currencies and
+     *               goods whose balance changed
+     */
+    public void commit(boolean notify) {
+        synchronized (COMMIT_LOCK) {
+            Map<String, Integer> oldBalances = notify ? catalogBalances() : null;
+
+            KeyValueBatch batch = new KeyValueBatch();
+            StoreKeyIndex.stageClear(batch);
+            for (Map.Entry<String, Integer> entry : mCurrencyBalances.entrySet()) {
+                batch.setValue(VirtualCurrencyStorage.keyCurrencyBalance(entry.getKey()),
+                        String.valueOf(entry.getValue()));
+            }
+            for (Map.Entry<String, Integer> entry : mGoodBalances.entrySet()) {
+                batch.setValue(VirtualGoodsStorage.keyGoodBalance(entry.getKey()),
+                        String.valueOf(entry.getValue()));
+            }
+            for (Map.Entry<String, Boolean> entry : mEquipped.entrySet()) {
+                if (entry.getValue()) {
+                    batch.setValue(VirtualGoodsStorage.keyGoodEquipped(entry.getKey()), "");
+                }
+            }
+            for (Map.Entry<String, String> entry : mUpgrades.entrySet()) {
+                if (entry.getValue() != null) {
+                    batch.setValue(VirtualGoodsStorage.keyGoodUpgrade(entry.getKey()),
+                            entry.getValue());
+                }
+            }
+            batch.commit();
+            StoreKeyIndex.cleared();
+
+            // the values were replaced behind the storages' back
+            StorageManager.invalidateBalanceCache();
+
+            // the cleared grants are gone, the staged balances start new ones
+            GoodExpiryEngine engine = StorageManager.getGoodExpiryEngine();
+            for (TimeLimitedVG good : mTimeLimitedGoods.values()) {
+                int balance = getBalance(good.getItemId());
+                if (balance > 0) {
+                    engine.reset(good, balance, false);
+                }
+            }
+
+            SoomlaUtils.LogDebug(TAG, "Reset the inventory with "
+                    + (mCurrencyBalances.size() + mGoodBalances.size()) + " balances");
+
+            if (notify) {
+                postBalancesChanged(oldBalances);
+            }
+        }
+    }
+
+
+    /** Private functions **/
+
+    private static Map<String, Integer> catalogBalances() {
+        // in catalog order, which is the order of the event's itemIds
+        Map<String, Integer> balances = new LinkedHashMap<String, Integer>();
+        VirtualCurrencyStorage currencyStorage = StorageManager.getVirtualCurrencyStorage();
+        for (VirtualCurrency currency : StoreInfo.getCurrencies()) {
+            balances.put(currency.getItemId(), currencyStorage.getBalance(currency.getItemId()));
+        }
+        VirtualGoodsStorage goodsStorage = StorageManager.getVirtualGoodsStorage();
+        for (VirtualGood good : StoreInfo.getGoods()) {
+            balances.put(good.getItemId(), goodsStorage.getBalance(good.getItemId()));
+        }
+        return balances;
+    }
+
+    private void postBalancesChanged(Map<String, Integer> oldBalances) {
+        List<String> itemIds = new ArrayList<String>();
+        Map<String, Integer> balances = new HashMap<String, Integer>();
+        Map<String, Integer> amountsAdded = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : oldBalances.entrySet()) {
+            int balance = getBalance(entry.getKey());
+            if (balance != entry.getValue()) {
+                itemIds.add(entry.getKey());
+                balances.put(entry.getKey(), balance);
+                amountsAdded.put(entry.getKey(), balance - entry.getValue());
+            }
+        }
+        BusProvider.getInstance().post(new BalancesChangedEvent(itemIds, balances, amountsAdded));
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA InventoryReset"; //used for Log messages
+
+    // resets replace the whole inventory, so they never run together
+    private static final Object COMMIT_LOCK = new Object();
+
+    private final LinkedHashMap<String, Integer> mCurrencyBalances =
+            new LinkedHashMap<String, Integer>();
+    private final LinkedHashMap<String, Integer> mGoodBalances =
+            new LinkedHashMap<String, Integer>();
+    private final LinkedHashMap<String, Boolean> mEquipped = new LinkedHashMap<String, Boolean>();
+    private final LinkedHashMap<String, String> mUpgrades = new LinkedHashMap<String, String>();
+    private final LinkedHashMap<String, TimeLimitedVG> mTimeLimitedGoods =
+            new LinkedHashMap<String, TimeLimitedVG>();
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Assigns every catalog itemId a dense integer handle: the first itemId gets 0, the next one 1,
+ * and so on. A handle never changes while the process runs, also when the catalog is reloaded,
+ * so the storage classes can keep their per-item state (balance counters, storage keys) in arrays
+ * indexed by handle instead of in maps keyed by itemId.
+ *
+ * Only <code>StoreCatalog</code> assigns handles, to the items of a catalog when it's built.
+ * Other itemIds (typos, items that were removed from the catalog) never get one, so they can't
+ * grow the storage classes' arrays; the storages read and write them without keeping anything.
+ * Use {@link com.soomla.store.domain.VirtualItem#getHandle()} or
+ * <code>StoreInventory.getItemHandle</code> to get an item's handle.
+ */
+public final class ItemHandles {
+
+    /**
+     * Retrieves the handle of the given itemId.
+     *
+     * @param itemId the itemId to look up
+     * @return the itemId's handle, or -1 if it isn't the itemId of a catalog item
+     */
+    public static int handleOf(String itemId) {
+        Integer handle = mHandles.get(itemId);
+        return handle != null ? handle : -1;
+    }
+
+    /**
+     * Retrieves the handle of the given catalog itemId, assigning the next free handle if it
+     * doesn't have one yet.
+     *
+     * @param itemId the itemId of an item in a catalog that is being built
+     * @return the itemId's handle
+     */
+    static int assign(String itemId) {
+        Integer handle = mHandles.get(itemId);
+        if (handle != null) {
+            return handle;
+        }
+        synchronized (ItemHandles.class) {
+            handle = mHandles.get(itemId);
+            if (handle != null) {
+                return handle;
+            }
+            int next = mCount;
+            AtomicReferenceArray<String> itemIds = mItemIds;
+            if (next == itemIds.length()) {
+                AtomicReferenceArray<String> grown =
+                        new AtomicReferenceArray<String>(itemIds.length() * 2);
+                for (int i = 0; i < next; i++) {
+                    grown.set(i, itemIds.get(i));
+                }
+                mItemIds = grown;
+                itemIds = grown;
+            }
+            itemIds.set(next, itemId);
+            // the reverse lookup is filled before the handle is published
+            mHandles.put(itemId, next);
+            mCount = next + 1;
+            return next;
+        }
+    }
+
+    /**
+     * Retrieves the itemId of the given handle.
+     *
+     * @param handle a handle returned by {@link #handleOf(String)}
+     * @return the handle's itemId
+     * @throws IllegalArgumentException if no itemId has the given handle
+     */
+    public static String itemIdOf(int handle) {
+        AtomicReferenceArray<String> itemIds = mItemIds;
+        String itemId = handle >= 0 && handle < itemIds.length() ? itemIds.get(handle) : null;
+        if (itemId == null) {
+            throw new IllegalArgumentException("No item has the handle " + handle);
+        }
+        return itemId;
+    }
+
+    /**
+     * Retrieves the number of handles assigned so far. All handles are lower than this number.
+     *
+     * @return the number of handles
+     */
+    public static int count() {
+        return mCount;
+    }
+
+
+    /** Private functions **/
+
+    private ItemHandles() {
+    }
+
+
+    /** Private Members **/
+
+    private static final ConcurrentHashMap<String, Integer> mHandles =
+            new ConcurrentHashMap<String, Integer>();
+
+    // the itemId of every handle, grown under the class lock
+    private static volatile AtomicReferenceArray<String> mItemIds =
+            new AtomicReferenceArray<String>(64);
+
+    private static volatile int mCount = 0;
+}
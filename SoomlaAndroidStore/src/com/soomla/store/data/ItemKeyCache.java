@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+/**
+ * The <code>KeyValueStorage</code> keys of one kind of per-item value (e.g. "good.ID.balance"),
+ * built once per catalog item and kept by the item's handle. The keys of other itemIds are
+ * built on every call, so they don't grow the cache.
+ */
+class ItemKeyCache {
+
+    /**
+     * Constructor
+     *
+     * @param prefix the part of the key before the itemId
+     * @param suffix the part of the key after the itemId
+     */
+    ItemKeyCache(String prefix, String suffix) {
+        mPrefix = prefix;
+        mSuffix = suffix;
+    }
+
+    /**
+     * Retrieves the key of the given itemId.
+     *
+     * @param itemId the item's itemId
+     * @return the item's key
+     */
+    String keyOf(String itemId) {
+        int handle = ItemHandles.handleOf(itemId);
+        if (handle < 0) {
+            return mPrefix + itemId + mSuffix;
+        }
+        return keyOf(handle);
+    }
+
+    /**
+     * Retrieves the key of the item with the given handle.
+     *
+     * @param handle the item's handle
+     * @return the item's key
+     */
+    String keyOf(int handle) {
+        String key = mKeys.get(handle);
+        if (key == null) {
+            // catalog items are in StoreKeyIndex since their catalog was published
+            key = mKeys.putIfAbsent(handle, mPrefix + ItemHandles.itemIdOf(handle) + mSuffix);
+        }
+        return key;
+    }
+
+
+    /** Private Members **/
+
+    private final String mPrefix;
+    private final String mSuffix;
+
+    private final HandleMap<String> mKeys = new HandleMap<String>();
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import android.text.TextUtils;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A group of <code>KeyValueStorage</code> writes that are applied all-or-nothing.
+ *
+ * <code>KeyValueStorage</code> only offers single-key writes, so the batch is first added to
+ * the journal record. That single write is the commit point: once it is in the database the
+ * batch is applied even if the process dies half-way, because {@link #recover()} replays a
+ * leftover journal on the next start. The batch is removed from the journal after all its keys
+ * were written.
+ *
+ * Only the journal record itself is written under a lock, so batches of different keys are
+ * applied concurrently. Callers that write the same keys from several threads must order those
+ * batches themselves, like <code>BalanceTransaction</code> does with its counter locks.
+ */
+public class KeyValueBatch {
+
+    /**
+     * Sets the value of the given key when the batch is committed.
+     *
+     * @param key the key to set
+     * @param val the new value
+     */
+    public void setValue(String key, String val) {
+        mWrites.put(key, val);
+    }
+
+    /**
+     * Deletes the given key when the batch is committed.
+     *
+     * @param key the key to delete
+     */
+    public void deleteKeyValue(String key) {
+        mWrites.put(key, null);
+    }
+
+    /**
+     * Checks if this batch has any writes.
+     *
+     * @return true if nothing was added to this batch
+     */
+    public boolean isEmpty() {
+        return mWrites.isEmpty();
+    }
+
+    /**
+     * Writes all the values of this batch to <code>KeyValueStorage</code>.
+     * A batch with a single write skips the journal, since that write is atomic by itself.
+     */
+    public void commit() {
+        if (mWrites.isEmpty()) {
+            return;
+        }
+
+        if (mWrites.size() == 1) {
+            Map.Entry<String, String> write = mWrites.entrySet().iterator().next();
+            apply(write.getKey(), write.getValue());
+            mWrites.clear();
+            return;
+        }
+
+        Long journalId = journal();
+
+        for (Map.Entry<String, String> write : mWrites.entrySet()) {
+            apply(write.getKey(), write.getValue());
+        }
+
+        if (journalId != null) {
+            synchronized (JOURNAL_LOCK) {
+                PENDING.remove(journalId);
+                writeJournal();
+            }
+        }
+
+        mWrites.clear();
+    }
+
+    /**
+     * Replays a batch that was committed but not fully applied, which only happens if the
+     * process was killed during {@link #commit()}. Call this once on start, before any balance
+     * is read.
+     */
+    public static void recover() {
+        synchronized (JOURNAL_LOCK) {
+            String val = KeyValueStorage.getValue(KEY_JOURNAL);
+            if (TextUtils.isEmpty(val)) {
+                return;
+            }
+
+            SoomlaUtils.LogDebug(TAG, "Found unfinished batches. Replaying them.");
+            try {
+                JSONArray journal = new JSONArray(val);
+                for (int i = 0; i < journal.length(); i++) {
+                    JSONObject batch = journal.getJSONObject(i);
+                    Iterator<?> keys = batch.keys();
+                    while (keys.hasNext()) {
+                        String key = (String) keys.next();
+                        apply(key, batch.isNull(key) ? null : batch.getString(key));
+                    }
+                }
+            } catch (JSONException e) {
+                SoomlaUtils.LogError(TAG, "The batch journal is corrupted. Dropping it. "
+                        + e.getMessage());
+            }
+
+            KeyValueStorage.deleteKeyValue(KEY_JOURNAL);
+            PENDING.clear();
+        }
+    }
+
+
+    /** Private functions **/
+
+    /**
+     * Adds this batch to the journal. If it can't be built, the batch is still applied, only
+     * without the protection against being killed half-way: the callers already changed their
+     * in-memory state, and dropping the writes would leave it ahead of the database for good.
+     *
+     * @return the id of this batch in the journal, or null if it wasn't journaled
+     */
+    private Long journal() {
+        JSONObject record = new JSONObject();
+        try {
+            for (Map.Entry<String, String> write : mWrites.entrySet()) {
+                record.put(write.getKey(),
+                        write.getValue() == null ? JSONObject.NULL : write.getValue());
+            }
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't create the batch journal. Applying the batch "
+                    + "without it. " + e.getMessage());
+            return null;
+        }
+
+        synchronized (JOURNAL_LOCK) {
+            Long journalId = mNextJournalId++;
+            PENDING.put(journalId, record);
+            writeJournal();
+            return journalId;
+        }
+    }
+
+    /**
+     * Writes the batches that are being applied as the journal record, or deletes the record if
+     * there are none. Callers must hold <code>JOURNAL_LOCK</code>.
+     */
+    private static void writeJournal() {
+        if (PENDING.isEmpty()) {
+            KeyValueStorage.deleteKeyValue(KEY_JOURNAL);
+            return;
+        }
+        JSONArray journal = new JSONArray();
+        for (JSONObject record : PENDING.values()) {
+            journal.put(record);
+        }
+        KeyValueStorage.setValue(KEY_JOURNAL, journal.toString());
+    }
+
+    private static void apply(String key, String val) {
+        if (val == null) {
+            KeyValueStorage.deleteKeyValue(key);
+        } else {
+            KeyValueStorage.setValue(key, val);
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA KeyValueBatch"; //used for Log messages
+
+    private static final String KEY_JOURNAL = "store.batch.journal";
+
+    private static final Object JOURNAL_LOCK = new Object();
+
+    // the records of the batches that are being applied by id, guarded by JOURNAL_LOCK
+    private static final LinkedHashMap<Long, JSONObject> PENDING =
+            new LinkedHashMap<Long, JSONObject>();
+
+    private static long mNextJournalId = 0;
+
+    // ordered so batches are applied in the order they were built
+    private final LinkedHashMap<String, String> mWrites = new LinkedHashMap<String, String>();
+}
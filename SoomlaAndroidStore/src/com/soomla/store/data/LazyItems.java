@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The items of a lazy {@link StoreCatalog}. Only the index of the binary metadata is loaded, see
+ * {@link StoreInfoBinary.Index}, and every item is created from its record the first time it's
+ * asked for. The created item is kept and shared with all later snapshots of the catalog, so
+ * every record is read at most once.
+ *
+ * Items replaced after loading, see {@link #replace(VirtualItem)}, are kept per snapshot on top
+ * of the index.
+ */
+final class LazyItems {
+
+    /**
+     * Constructor
+     *
+     * @param index the index of the binary metadata
+     */
+    LazyItems(StoreInfoBinary.Index index) {
+        mIndex = index;
+        mHydrated = new AtomicReferenceArray<VirtualItem>(index.size());
+        mReplaced = new VirtualItem[index.size()];
+        mPurchasableSlots = new HashMap<String, Integer>();
+        for (int slot = 0; slot < index.size(); slot++) {
+            String productId = index.productIdAt(slot);
+            if (productId != null) {
+                mPurchasableSlots.put(productId, slot);
+            }
+        }
+
+        // assigns the handles of new items before sizing the array. the handles also map the
+        // itemIds to their slots, so there's no hash of itemIds
+        for (int slot = 0; slot < index.size(); slot++) {
+            ItemHandles.assign(index.itemIdAt(slot));
+        }
+        mSlotsByHandle = new int[ItemHandles.count()];
+        Arrays.fill(mSlotsByHandle, -1);
+        for (int slot = 0; slot < index.size(); slot++) {
+            mSlotsByHandle[ItemHandles.handleOf(index.itemIdAt(slot))] = slot;
+        }
+    }
+
+    /**
+     * Constructor
+     * Creates a copy of the given items, to replace some of them with {@link #replace}. The
+     * copy shares the created items with the original.
+     *
+     * @param items the items to copy
+     */
+    LazyItems(LazyItems items) {
+        mIndex = items.mIndex;
+        mHydrated = items.mHydrated;
+        mSlotsByHandle = items.mSlotsByHandle;
+        mReplaced = items.mReplaced.clone();
+        mPurchasableSlots = new HashMap<String, Integer>(items.mPurchasableSlots);
+    }
+
+    /**
+     * Replaces the item with the same itemId as the given one. Only an item of the same kind
+     * (currency, currency pack or good) can be replaced in place, anything else changes the
+     * lists and needs a full <code>StoreCatalog.Builder</code>. Must only be called before the
+     * snapshot holding these items is published.
+     *
+     * @param virtualItem the item to replace the old one with
+     * @return false if there's no item to replace in place, in which case nothing was changed
+     */
+    boolean replace(VirtualItem virtualItem) {
+        int slot = getSlot(virtualItem.getItemId());
+        if (slot < 0 || !fitsSlot(virtualItem, slot)) {
+            return false;
+        }
+
+        // the replaced item may have been sold under another productId
+        VirtualItem oldItem = mReplaced[slot];
+        String oldProductId = null;
+        if (oldItem == null) {
+            oldProductId = mIndex.productIdAt(slot);
+        } else if (oldItem instanceof PurchasableVirtualItem) {
+            oldProductId = StoreCatalog.productIdOf((PurchasableVirtualItem) oldItem);
+        }
+        Integer oldSlot = oldProductId != null ? mPurchasableSlots.get(oldProductId) : null;
+        if (oldSlot != null && oldSlot == slot) {
+            mPurchasableSlots.remove(oldProductId);
+        }
+        if (virtualItem instanceof PurchasableVirtualItem) {
+            String productId = StoreCatalog.productIdOf((PurchasableVirtualItem) virtualItem);
+            if (productId != null) {
+                mPurchasableSlots.put(productId, slot);
+            }
+        }
+
+        mReplaced[slot] = virtualItem;
+        return true;
+    }
+
+
+    /** Setters and Getters **/
+
+    VirtualItem get(String itemId) {
+        int slot = getSlot(itemId);
+        return slot >= 0 ? get(slot) : null;
+    }
+
+    VirtualItem getByHandle(int handle) {
+        int slot = handle >= 0 && handle < mSlotsByHandle.length ? mSlotsByHandle[handle] : -1;
+        return slot >= 0 ? get(slot) : null;
+    }
+
+    PurchasableVirtualItem getPurchasable(String productId) {
+        Integer slot = mPurchasableSlots.get(productId);
+        return slot != null ? (PurchasableVirtualItem) get(slot) : null;
+    }
+
+    Set<String> getProductIds() {
+        return mPurchasableSlots.keySet();
+    }
+
+    List<VirtualCurrency> getCurrencies() {
+        return this.<VirtualCurrency>getSection(0, packsStart());
+    }
+
+    List<VirtualCurrencyPack> getCurrencyPacks() {
+        return this.<VirtualCurrencyPack>getSection(packsStart(), goodsStart());
+    }
+
+    List<VirtualGood> getGoods() {
+        return this.<VirtualGood>getSection(goodsStart(), mIndex.size());
+    }
+
+    /**
+     * Retrieves the upgrades among the goods, in the goods' order. Only the upgrades are
+     * created, not the other goods.
+     */
+    List<UpgradeVG> getUpgrades() {
+        List<UpgradeVG> upgrades = new ArrayList<UpgradeVG>();
+        for (int slot = goodsStart(); slot < mIndex.size(); slot++) {
+            VirtualItem item = mReplaced[slot];
+            if (item == null && mIndex.isUpgrade(slot)) {
+                item = get(slot);
+            }
+            if (item instanceof UpgradeVG) {
+                upgrades.add((UpgradeVG) item);
+            }
+        }
+        return upgrades;
+    }
+
+    /**
+     * Retrieves the itemIds of the currencies and goods without creating them.
+     */
+    List<String> getBalanceItemIds() {
+        List<String> itemIds = new ArrayList<String>(mIndex.size());
+        for (int slot = 0; slot < mIndex.size(); slot++) {
+            if (slot < packsStart() || slot >= goodsStart()) {
+                itemIds.add(mIndex.itemIdAt(slot));
+            }
+        }
+        return itemIds;
+    }
+
+
+    /** Private functions **/
+
+    private int getSlot(String itemId) {
+        // unknown itemIds must not be assigned handles
+        int handle = ItemHandles.handleOf(itemId);
+        return handle >= 0 && handle < mSlotsByHandle.length ? mSlotsByHandle[handle] : -1;
+    }
+
+    private VirtualItem get(int slot) {
+        VirtualItem item = mReplaced[slot];
+        if (item != null) {
+            return item;
+        }
+        item = mHydrated.get(slot);
+        return item != null ? item : hydrate(slot);
+    }
+
+    /**
+     * Creates the item in the given slot from its record.
+     *
+     * @return the item, or null if its record is corrupted
+     */
+    private VirtualItem hydrate(int slot) {
+        VirtualItem item;
+        try {
+            item = mIndex.readItem(slot);
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Can't read the item " + mIndex.itemIdAt(slot)
+                    + " from the binary metadata. " + e.getMessage());
+            return null;
+        }
+
+        // two threads may read the same record at once, all of them get the first one's item
+        if (!mHydrated.compareAndSet(slot, null, item)) {
+            item = mHydrated.get(slot);
+        }
+        return item;
+    }
+
+    /**
+     * Creates all items in the given range of slots at once, skipping corrupted ones.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends VirtualItem> List<T> getSection(int from, int to) {
+        List<T> items = new ArrayList<T>(to - from);
+        for (int slot = from; slot < to; slot++) {
+            VirtualItem item = get(slot);
+            if (item != null) {
+                items.add((T) item);
+            }
+        }
+        return items;
+    }
+
+    private boolean fitsSlot(VirtualItem virtualItem, int slot) {
+        if (slot < packsStart()) {
+            return virtualItem instanceof VirtualCurrency;
+        } else if (slot < goodsStart()) {
+            return virtualItem instanceof VirtualCurrencyPack;
+        }
+        return virtualItem instanceof VirtualGood;
+    }
+
+    private int packsStart() {
+        return mIndex.currencyCount();
+    }
+
+    private int goodsStart() {
+        return mIndex.currencyCount() + mIndex.currencyPackCount();
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA LazyItems"; //used for Log messages
+
+    private final StoreInfoBinary.Index mIndex;
+
+    // the items created from their records, shared by all copies
+    private final AtomicReferenceArray<VirtualItem> mHydrated;
+
+    // the items replaced in this copy, null where the slot's record is used
+    private final VirtualItem[] mReplaced;
+
+    // the slot of every handle, -1 where a handle belongs to no item of the index. shared by all
+    // copies, since replacing keeps the itemIds
+    private final int[] mSlotsByHandle;
+
+    // the slot of every productId
+    private final HashMap<String, Integer> mPurchasableSlots;
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import android.text.TextUtils;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.exceptions.InsufficientFundsException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A persistent record of every market purchase the store handled, keyed by the purchase's
+ * orderId (or its token, for purchases that have no orderId). It's used to grant every purchase
+ * exactly once, no matter how many times the billing service reports it.
+ *
+ * Each entry records whether the purchase was granted or refunded, and whether it still needs to
+ * be consumed. All entries are held in an in-memory index, so checking a purchase never reads the
+ * storage. In <code>KeyValueStorage</code> the entries are kept in segments of
+ * <code>SEGMENT_SIZE</code> entries, so recording a purchase rewrites a single small record.
+ *
+ * Entries that are old and need nothing more are dropped by {@link #compact(long)}. This happens
+ * automatically when the ledger is loaded, for entries older than
+ * <code>DEFAULT_RETENTION_MILLIS</code>.
+ */
+public class PurchaseLedger {
+
+    public static final int SEGMENT_SIZE = 32;
+    public static final long DEFAULT_RETENTION_MILLIS = 90L * 24 * 60 * 60 * 1000;
+
+    public enum GrantStatus {
+        GRANTED, REFUNDED
+    }
+
+    public enum ConsumeStatus {
+        PENDING, CONSUMED, NOT_NEEDED
+    }
+
+    /**
+     * Builds the key a purchase is recorded by.
+     *
+     * @param orderId the purchase's orderId
+     * @param token the purchase's token
+     * @return the purchase's orderId, or its token if it has no orderId, or null if it has neither
+     */
+    public static String keyOf(String orderId, String token) {
+        if (!TextUtils.isEmpty(orderId)) {
+            return orderId;
+        }
+        return TextUtils.isEmpty(token) ? null : token;
+    }
+
+    /**
+     * Checks if the purchase with the given key was already granted (or granted and refunded).
+     *
+     * @param key the purchase's key, see {@link #keyOf(String, String)}
+     * @return true if the purchase was already granted
+     */
+    public synchronized boolean isGranted(String key) {
+        ensureLoaded();
+        return key != null && mEntries.containsKey(key);
+    }
+
+    /**
+     * Retrieves the grant status of the purchase with the given key.
+     *
+     * @param key the purchase's key
+     * @return the purchase's grant status, or null if the purchase is not in the ledger
+     */
+    public synchronized GrantStatus getGrantStatus(String key) {
+        ensureLoaded();
+        Entry entry = key != null ? mEntries.get(key) : null;
+        return entry != null ? entry.grant : null;
+    }
+
+    /**
+     * Retrieves the consume status of the purchase with the given key.
+     *
+     * @param key the purchase's key
+     * @return the purchase's consume status, or null if the purchase is not in the ledger
+     */
+    public synchronized ConsumeStatus getConsumeStatus(String key) {
+        ensureLoaded();
+        Entry entry = key != null ? mEntries.get(key) : null;
+        return entry != null ? entry.consume : null;
+    }
+
+    /**
+     * Commits the given transaction, which grants the given purchases, and records the purchases
+     * as granted in the same storage batch. Either both the balances and the entries are
+     * persisted, or neither.
+     *
+     * @param keys the keys of the granted purchases
+     * @param needsConsume the matching flags of whether each purchase must be consumed
+     * @param transaction the transaction that grants the purchases. It is committed without
+     *                    posting events.
+     * @throws InsufficientFundsException if the transaction couldn't be committed. Nothing is
+     *                                    recorded in that case.
+     */
+    public synchronized void commitGranted(List<String> keys, List<Boolean> needsConsume,
+                                           BalanceTransaction transaction)
+            throws InsufficientFundsException {
+        ensureLoaded();
+        long now = System.currentTimeMillis();
+        List<Entry> added = new ArrayList<Entry>();
+        Set<Integer> touched = new HashSet<Integer>();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            if (key == null || mEntries.containsKey(key)) {
+                continue;
+            }
+            ConsumeStatus consume = needsConsume.get(i) ?
+                    ConsumeStatus.PENDING : ConsumeStatus.NOT_NEEDED;
+            Entry entry = new Entry(key, GrantStatus.GRANTED, consume, now);
+            touched.add(append(entry));
+            added.add(entry);
+        }
+
+        KeyValueBatch batch = new KeyValueBatch();
+        stageSegments(touched, batch);
+        try {
+            transaction.commit(false, batch);
+        } catch (InsufficientFundsException e) {
+            for (Entry entry : added) {
+                mEntries.remove(entry.key);
+                mSegments.get(entry.segment).remove(entry.key);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Records the refund of the purchase with the given key.
+     *
+     * @param key the refunded purchase's key
+     * @return false if the refund was already recorded, true otherwise
+     */
+    public synchronized boolean markRefunded(String key) {
+        ensureLoaded();
+        if (key == null) {
+            return true;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.grant == GrantStatus.REFUNDED) {
+            return false;
+        }
+
+        Set<Integer> touched = new HashSet<Integer>();
+        if (entry == null) {
+            touched.add(append(new Entry(key, GrantStatus.REFUNDED, ConsumeStatus.NOT_NEEDED,
+                    System.currentTimeMillis())));
+        } else {
+            entry.grant = GrantStatus.REFUNDED;
+            entry.time = System.currentTimeMillis();
+            touched.add(entry.segment);
+        }
+        writeSegments(touched);
+        return true;
+    }
+
+    /**
+     * Records that the purchases with the given keys were consumed.
+     *
+     * @param keys the keys of the consumed purchases
+     */
+    public synchronized void markConsumed(Collection<String> keys) {
+        ensureLoaded();
+        Set<Integer> touched = new HashSet<Integer>();
+        for (String key : keys) {
+            Entry entry = key != null ? mEntries.get(key) : null;
+            if (entry != null && entry.consume == ConsumeStatus.PENDING) {
+                entry.consume = ConsumeStatus.CONSUMED;
+                touched.add(entry.segment);
+            }
+        }
+        writeSegments(touched);
+    }
+
+    /**
+     * Retrieves the keys of the granted purchases that weren't consumed yet.
+     *
+     * @return the keys of the purchases that still need to be consumed
+     */
+    public synchronized List<String> getPendingConsumes() {
+        ensureLoaded();
+        List<String> keys = new ArrayList<String>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.consume == ConsumeStatus.PENDING) {
+                keys.add(entry.key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Drops the entries that are older than the given age and need nothing more, and rewrites
+     * the remaining entries into as few segments as possible.
+     * Purchases that still need to be consumed are always kept.
+     *
+     * @param maxAgeMillis the age above which finished entries are dropped
+     * @return the number of entries that were dropped
+     */
+    public synchronized int compact(long maxAgeMillis) {
+        ensureLoaded();
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        List<Entry> kept = new ArrayList<Entry>(mEntries.size());
+        for (LinkedHashMap<String, Entry> segment : mSegments) {
+            for (Entry entry : segment.values()) {
+                if (entry.consume == ConsumeStatus.PENDING || entry.time >= cutoff) {
+                    kept.add(entry);
+                }
+            }
+        }
+        int dropped = mEntries.size() - kept.size();
+        if (dropped == 0) {
+            return 0;
+        }
+
+        int oldSegmentsCount = mSegments.size();
+        mEntries.clear();
+        mSegments.clear();
+        for (Entry entry : kept) {
+            append(entry);
+        }
+
+        KeyValueBatch batch = new KeyValueBatch();
+        for (int i = 0; i < mSegments.size(); i++) {
+            stageSegment(i, batch);
+        }
+        for (int i = mSegments.size(); i < oldSegmentsCount; i++) {
+            batch.deleteKeyValue(keySegment(i));
+        }
+        batch.setValue(KEY_SEGMENTS_COUNT, String.valueOf(mSegments.size()));
+        batch.commit();
+        mStoredSegmentsCount = mSegments.size();
+
+        SoomlaUtils.LogDebug(TAG, "Compacted the purchase ledger. Dropped " + dropped
+                + " entries, kept " + kept.size());
+        return dropped;
+    }
+
+    /**
+     * Retrieves the number of purchases in the ledger.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        ensureLoaded();
+        return mEntries.size();
+    }
+
+    /**
+     * Drops the in-memory index, so the next access loads the ledger from
+     * <code>KeyValueStorage</code> again. This is needed whenever the ledger's records are
+     * changed directly in the database.
+     */
+    public synchronized void invalidate() {
+        mEntries.clear();
+        mSegments.clear();
+        mLoaded = false;
+    }
+
+
+    /** Private functions **/
+
+    /**
+     * Loads all segments into the in-memory index on the first access. Callers must hold the
+     * ledger's lock.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        String countVal = KeyValueStorage.getValue(KEY_SEGMENTS_COUNT);
+        int count = TextUtils.isEmpty(countVal) ? 0 : Integer.parseInt(countVal);
+        mStoredSegmentsCount = count;
+        for (int i = 0; i < count; i++) {
+            LinkedHashMap<String, Entry> segment = new LinkedHashMap<String, Entry>();
+            mSegments.add(segment);
+
+            String val = KeyValueStorage.getValue(keySegment(i));
+            if (TextUtils.isEmpty(val)) {
+                continue;
+            }
+            for (String line : val.split(ENTRIES_SEPARATOR)) {
+                String[] fields = line.split(FIELDS_SEPARATOR);
+                try {
+                    Entry entry = new Entry(fields[0],
+                            GrantStatus.values()[Integer.parseInt(fields[1])],
+                            ConsumeStatus.values()[Integer.parseInt(fields[2])],
+                            Long.parseLong(fields[3]));
+                    entry.segment = i;
+                    segment.put(entry.key, entry);
+                    mEntries.put(entry.key, entry);
+                } catch (RuntimeException e) {
+                    SoomlaUtils.LogError(TAG, "Couldn't read an entry in segment " + i
+                            + " of the purchase ledger: " + line);
+                }
+            }
+        }
+
+        SoomlaUtils.LogDebug(TAG, "Loaded " + mEntries.size() + " purchases from "
+                + count + " segments");
+        compact(DEFAULT_RETENTION_MILLIS);
+    }
+
+    /**
+     * Adds the given entry to the last segment, opening a new one when it's full.
+     *
+     * @return the segment the entry was added to
+     */
+    private int append(Entry entry) {
+        if (mSegments.isEmpty() || mSegments.get(mSegments.size() - 1).size() >= SEGMENT_SIZE) {
+            mSegments.add(new LinkedHashMap<String, Entry>());
+        }
+        int index = mSegments.size() - 1;
+        entry.segment = index;
+        mSegments.get(index).put(entry.key, entry);
+        mEntries.put(entry.key, entry);
+        return index;
+    }
+
+    private void writeSegments(Set<Integer> touched) {
+        KeyValueBatch batch = new KeyValueBatch();
+        stageSegments(touched, batch);
+        batch.commit();
+    }
+
+    private void stageSegments(Set<Integer> touched, KeyValueBatch batch) {
+        if (touched.isEmpty()) {
+            return;
+        }
+        for (int index : touched) {
+            stageSegment(index, batch);
+        }
+        if (mSegments.size() != mStoredSegmentsCount) {
+            batch.setValue(KEY_SEGMENTS_COUNT, String.valueOf(mSegments.size()));
+            mStoredSegmentsCount = mSegments.size();
+        }
+    }
+
+    /**
+     * Writes the given segment as one line per entry: key, grant status, consume status and
+     * time, separated by spaces. Segments are rewritten on every purchase, so they're kept in
+     * this plain format rather than JSON.
+     */
+    private void stageSegment(int index, KeyValueBatch batch) {
+        StringBuilder record = new StringBuilder();
+        for (Entry entry : mSegments.get(index).values()) {
+            if (record.length() > 0) {
+                record.append(ENTRIES_SEPARATOR);
+            }
+            record.append(entry.key).append(FIELDS_SEPARATOR)
+                    .append(entry.grant.ordinal()).append(FIELDS_SEPARATOR)
+                    .append(entry.consume.ordinal()).append(FIELDS_SEPARATOR)
+                    .append(entry.time);
+        }
+        batch.setValue(keySegment(index), record.toString());
+    }
+
+    private static String keySegment(int index) {
+        return "store.ledger.segment." + index;
+    }
+
+    /**
+     * The ledger's record of a single purchase.
+     */
+    private static class Entry {
+        Entry(String key, GrantStatus grant, ConsumeStatus consume, long time) {
+            this.key = key;
+            this.grant = grant;
+            this.consume = consume;
+            this.time = time;
+        }
+
+        final String key;
+        GrantStatus grant;
+        ConsumeStatus consume;
+        long time;
+        int segment;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA PurchaseLedger"; //used for Log messages
+
+    private static final String KEY_SEGMENTS_COUNT = "store.ledger.segments";
+
+    // orderIds and purchase tokens never contain whitespace
+    private static final String ENTRIES_SEPARATOR = "\n";
+    private static final String FIELDS_SEPARATOR = " ";
+
+    // purchase key -> entry, over all segments
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    // the entries of every segment, in the order they were added
+    private final ArrayList<LinkedHashMap<String, Entry>> mSegments =
+            new ArrayList<LinkedHashMap<String, Entry>>();
+
+    // the segments count that is in KeyValueStorage
+    private int mStoredSegmentsCount;
+
+    private boolean mLoaded = false;
+}
@@ -16,10 +16,20 @@
 
 package com.soomla.store.data;
 
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import com.soomla.SoomlaApp;
+import com.soomla.SoomlaUtils;
 import com.soomla.store.domain.VirtualItem;
 import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
 import com.soomla.store.domain.virtualGoods.VirtualGood;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 /**
  * In this class all the relevant storage classes are created.
  * This class contains static methods for you to retrieve the various storage bases.
@@ -37,6 +47,14 @@ public class StorageManager {
         return mVirtualGoodsStorage;
     }
 
+    public static PurchaseLedger getPurchaseLedger() {
+        return mPurchaseLedger;
+    }
+
+    public static GoodExpiryEngine getGoodExpiryEngine() {
+        return mGoodExpiryEngine;
+    }
+
     /**
      * Checks whether the given item belongs to <code>VirtualGoodStorage</code> or
      * <code>VirtualCurrencyStorage</code>.
@@ -54,6 +72,191 @@ public class StorageManager {
         return storage;
     }
 
+    /**
+     * Switches the in-memory balances of both goods and currencies to write-back.
+     * Once enabled, balance changes are persisted to <code>KeyValueStorage</code> every
+     * <code>flushIntervalMillis</code>, when the application goes to the background, and
+     * whenever {@link #flushBalanceCache()} is called, instead of on every change.
+     *
+     * Calling this again only changes the flush interval.
+     *
+     * @param flushIntervalMillis the time between scheduled flushes. A value of 0 or less
+     *                            disables scheduled flushes (lifecycle and manual flushes still
+     *                            happen).
+     */
+    public static synchronized void enableBalanceCache(long flushIntervalMillis) {
+        if (!mVirtualGoodsStorage.getBalanceCache().isWriteBack()) {
+            mVirtualGoodsStorage.getBalanceCache().setWriteBack(true);
+            mVirtualCurrencyStorage.getBalanceCache().setWriteBack(true);
+            registerLifecycleCallbacks();
+        }
+
+        if (mFlushExecutor != null) {
+            mFlushExecutor.shutdown();
+            mFlushExecutor = null;
+        }
+        if (flushIntervalMillis > 0) {
+            mFlushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SOOMLA BalanceCache flush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mFlushExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flushBalanceCache();
+                }
+            }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        SoomlaUtils.LogDebug(TAG, "Balance cache enabled. Flush interval (ms): " + flushIntervalMillis);
+    }
+
+    /**
+     * Flushes all pending balances and switches the balances back to write-through.
+     */
+    public static synchronized void disableBalanceCache() {
+        if (mFlushExecutor != null) {
+            mFlushExecutor.shutdown();
+            mFlushExecutor = null;
+        }
+        mVirtualGoodsStorage.getBalanceCache().setWriteBack(false);
+        mVirtualCurrencyStorage.getBalanceCache().setWriteBack(false);
+    }
+
+    /**
+     * Writes all pending balances of the balance cache to <code>KeyValueStorage</code>.
+     * Does nothing if the cache is not in write-back mode.
+     */
+    public static void flushBalanceCache() {
+        mVirtualGoodsStorage.getBalanceCache().flush();
+        mVirtualCurrencyStorage.getBalanceCache().flush();
+    }
+
+    /**
+     * Drops all cached balances, equip and upgrade states and grants of time-limited goods
+     * without writing them, so the next reads go to <code>KeyValueStorage</code>. This is needed
+     * whenever balances are changed directly in the database.
+     */
+    public static void invalidateBalanceCache() {
+        mVirtualGoodsStorage.getBalanceCache().invalidate();
+        mVirtualCurrencyStorage.getBalanceCache().invalidate();
+        mVirtualGoodsStorage.invalidateGoodStates();
+        mGoodExpiryEngine.invalidate();
+    }
+
+    /**
+     * Starts collecting balance changes, so every item that changes until the matching
+     * {@link #endBalanceEvents()} gets a single <code>GoodBalanceChangedEvent</code> or
+     * <code>CurrencyBalanceChangedEvent</code>, with its final balance and the sum of the amounts
+     * added.
+     *
+     * Scopes may be nested; the events are posted when the outermost scope ends. A scope belongs
+     * to the calling thread: changes made on other threads meanwhile are posted as usual.
+     * Use a try/finally block, so the scope is always closed:
+     *
+     * <code>
+     *  StorageManager.beginBalanceEvents();
+     *  try {
+     *      // give the loot
+     *  } finally {
+     *      StorageManager.endBalanceEvents();
+     *  }
+     * </code>
+     */
+    public static void beginBalanceEvents() {
+        mBalanceEventCoalescer.beginScope();
+    }
+
+    /**
+     * Ends the scope started by {@link #beginBalanceEvents()} on the calling thread. If it's the
+     * outermost scope, the collected balance events are posted on the calling thread.
+     *
+     * @throws IllegalStateException if no scope is open on the calling thread
+     */
+    public static void endBalanceEvents() {
+        mBalanceEventCoalescer.endScope();
+    }
+
+    /**
+     * Collects the balance changes of every frame window, outside of scopes as well: the first
+     * change starts a window, and the window's events are posted on the main thread
+     * <code>windowMillis</code> later.
+     *
+     * @param windowMillis the length of the window. A value of 0 or less posts every change right
+     *                     away, which is the default.
+     */
+    public static void coalesceBalanceEvents(long windowMillis) {
+        mBalanceEventCoalescer.setWindowMillis(windowMillis);
+    }
+
+    /**
+     * Sets whether a <code>BalancesChangedEvent</code> with all changes of a scope or window is
+     * posted after their balance events. Disabled by default.
+     *
+     * @param postBalancesChangedEvents true to post a <code>BalancesChangedEvent</code> for every
+     *                                  scope and window
+     */
+    public static void setPostBalancesChangedEvents(boolean postBalancesChangedEvents) {
+        mBalanceEventCoalescer.setPostBatchEvents(postBalancesChangedEvents);
+    }
+
+    /**
+     * Posts the balance changes collected so far without waiting for the scope or window to end.
+     */
+    public static void flushBalanceEvents() {
+        mBalanceEventCoalescer.flush();
+    }
+
+    /**
+     * Retrieves the coalescer that all balance change events go through.
+     *
+     * @return the balance event coalescer
+     */
+    static BalanceEventCoalescer getBalanceEventCoalescer() {
+        return mBalanceEventCoalescer;
+    }
+
+
+    /** Private functions **/
+
+    /**
+     * Flushes the balance cache when the application's UI is hidden or memory runs low, which is
+     * the last reliable point before the process may be killed.
+     */
+    private static void registerLifecycleCallbacks() {
+        if (mLifecycleCallbacksRegistered) {
+            return;
+        }
+        Context context = SoomlaApp.getAppContext();
+        if (context == null) {
+            SoomlaUtils.LogError(TAG, "No application context. The balance cache will only be "
+                    + "flushed on schedule or manually.");
+            return;
+        }
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                    flushBalanceCache();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                flushBalanceCache();
+            }
+        });
+        mLifecycleCallbacksRegistered = true;
+    }
+
 
     /** Private Members **/
 
@@ -65,4 +268,18 @@ public class StorageManager {
     // storage of all virtual currencies
     private static VirtualCurrencyStorage mVirtualCurrencyStorage = new VirtualCurrencyStorage();
 
+    // record of all market purchases that were handled
+    private static PurchaseLedger mPurchaseLedger = new PurchaseLedger();
+
+    // takes the grants of time-limited goods when they expire
+    private static GoodExpiryEngine mGoodExpiryEngine = new GoodExpiryEngine();
+
+    // posts or collects the balance change events of both storages
+    private static BalanceEventCoalescer mBalanceEventCoalescer = new BalanceEventCoalescer();
+
+    // runs the scheduled flushes of the balance cache, null when not scheduled
+    private static ScheduledExecutorService mFlushExecutor;
+
+    private static boolean mLifecycleCallbacksRegistered = false;
+
 }
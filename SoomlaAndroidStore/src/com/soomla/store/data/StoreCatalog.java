@@ -0,0 +1,579 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import android.text.TextUtils;
+import com.soomla.SoomlaUtils;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the store's metadata: all the items, categories and the convenient
+ * hashes over them.
+ *
+ * <code>StoreInfo</code> publishes the current snapshot through a single volatile reference.
+ * Readers take the reference once and get a consistent view without any lock. Writers copy the
+ * snapshot into a {@link Builder}, change the copy and publish the result, so a snapshot is never
+ * changed after it was published.
+ *
+ * A lazy snapshot, see {@link #lazy(StoreInfoBinary.Index)}, starts with no items at all and
+ * creates every item the first time it's looked up. The list getters create all items of their
+ * list at once, and the upgrade getters create all upgrades at once.
+ */
+final class StoreCatalog {
+
+    static final StoreCatalog EMPTY = new Builder().build();
+
+    /**
+     * Creates a lazy snapshot of the indexed binary metadata.
+     *
+     * @param index the index of the binary metadata
+     * @return the new snapshot
+     */
+    static StoreCatalog lazy(StoreInfoBinary.Index index) {
+        return new StoreCatalog(new LazyItems(index), index.categories());
+    }
+
+    /**
+     * Creates a builder that starts as a copy of this snapshot. A lazy snapshot creates all of
+     * its items for the copy.
+     *
+     * @return a new builder
+     */
+    Builder edit() {
+        if (mLazyItems == null) {
+            return new Builder(this);
+        }
+
+        Builder builder = new Builder();
+        for (VirtualCurrency currency : getCurrencies()) {
+            builder.addCurrency(currency);
+        }
+        for (VirtualCurrencyPack pack : getCurrencyPacks()) {
+            builder.addCurrencyPack(pack);
+        }
+        for (VirtualGood good : getGoods()) {
+            builder.addGood(good);
+        }
+        for (VirtualCategory category : mCategories) {
+            builder.addCategory(category);
+        }
+        return builder;
+    }
+
+    /**
+     * Creates a copy of this snapshot with the given items replaced, see
+     * {@link Builder#replace(VirtualItem)}. A lazy snapshot stays lazy as long as every item
+     * replaces an item of the same kind.
+     *
+     * @param virtualItems the items that replace the old ones
+     * @return the new snapshot
+     */
+    StoreCatalog replaceAll(List<? extends VirtualItem> virtualItems) {
+        if (mLazyItems != null) {
+            LazyItems lazyItems = new LazyItems(mLazyItems);
+            boolean replaced = true;
+            for (int i = 0; replaced && i < virtualItems.size(); i++) {
+                replaced = lazyItems.replace(virtualItems.get(i));
+            }
+            if (replaced) {
+                return new StoreCatalog(lazyItems, mCategories);
+            }
+        }
+
+        Builder builder = edit();
+        for (VirtualItem virtualItem : virtualItems) {
+            builder.replace(virtualItem);
+        }
+        return builder.build();
+    }
+
+
+    /** Setters and Getters **/
+
+    VirtualItem getVirtualItem(String itemId) {
+        if (mLazyItems != null) {
+            return mLazyItems.get(itemId);
+        }
+        return mVirtualItems.get(itemId);
+    }
+
+    VirtualItem getVirtualItem(int handle) {
+        if (mLazyItems != null) {
+            return mLazyItems.getByHandle(handle);
+        }
+        return handle >= 0 && handle < mItemsByHandle.length ? mItemsByHandle[handle] : null;
+    }
+
+    PurchasableVirtualItem getPurchasableItem(String productId) {
+        if (mLazyItems != null) {
+            return mLazyItems.getPurchasable(productId);
+        }
+        return mPurchasableItems.get(productId);
+    }
+
+    VirtualCategory getCategory(String goodItemId) {
+        return mGoodsCategories.get(goodItemId);
+    }
+
+    boolean hasUpgrades(String goodItemId) {
+        return upgrades().mGoodsUpgrades.containsKey(goodItemId);
+    }
+
+    List<UpgradeVG> getGoodUpgrades(String goodItemId) {
+        List<UpgradeVG> upgrades = upgrades().mGoodsUpgrades.get(goodItemId);
+        return upgrades != null ? upgrades : Collections.<UpgradeVG>emptyList();
+    }
+
+    /**
+     * Retrieves the upgrades of the given good in level order, or null if it has none.
+     * The returned array must not be changed.
+     */
+    UpgradeVG[] getUpgradeChain(String goodItemId) {
+        return upgrades().mGoodsUpgradeChains.get(goodItemId);
+    }
+
+    /**
+     * Retrieves the level of the given upgrade in its good's chain, starting from 1, or 0 if
+     * it isn't part of a chain.
+     */
+    int getUpgradeLevel(String upgradeItemId) {
+        Integer level = upgrades().mUpgradeLevels.get(upgradeItemId);
+        return level != null ? level : 0;
+    }
+
+    List<VirtualCurrency> getCurrencies() {
+        List<VirtualCurrency> currencies = mCurrencies;
+        if (currencies == null) {
+            // racing threads build equal lists of the same items
+            currencies = Collections.unmodifiableList(mLazyItems.getCurrencies());
+            mCurrencies = currencies;
+        }
+        return currencies;
+    }
+
+    List<VirtualCurrencyPack> getCurrencyPacks() {
+        List<VirtualCurrencyPack> currencyPacks = mCurrencyPacks;
+        if (currencyPacks == null) {
+            currencyPacks = Collections.unmodifiableList(mLazyItems.getCurrencyPacks());
+            mCurrencyPacks = currencyPacks;
+        }
+        return currencyPacks;
+    }
+
+    List<VirtualGood> getGoods() {
+        List<VirtualGood> goods = mGoods;
+        if (goods == null) {
+            goods = Collections.unmodifiableList(mLazyItems.getGoods());
+            mGoods = goods;
+        }
+        return goods;
+    }
+
+    List<VirtualCategory> getCategories() {
+        return mCategories;
+    }
+
+    List<String> getAllProductIds() {
+        if (mLazyItems != null) {
+            return new ArrayList<String>(mLazyItems.getProductIds());
+        }
+        return new ArrayList<String>(mPurchasableItems.keySet());
+    }
+
+    /**
+     * Retrieves the itemIds of the currencies and goods, the items that have balances. Doesn't
+     * create the items of a lazy snapshot.
+     */
+    List<String> getBalanceItemIds() {
+        if (mLazyItems != null) {
+            return mLazyItems.getBalanceItemIds();
+        }
+        List<String> itemIds = new ArrayList<String>(mCurrencies.size() + mGoods.size());
+        for (VirtualItem item : mCurrencies) {
+            itemIds.add(item.getItemId());
+        }
+        for (VirtualItem item : mGoods) {
+            itemIds.add(item.getItemId());
+        }
+        return itemIds;
+    }
+
+    /**
+     * Collects a new snapshot. Every call to one of the add methods or to {@link #replace} only
+     * changes the builder; {@link #build()} indexes the upgrade chains and creates the snapshot.
+     * A builder must not be used after <code>build()</code>.
+     */
+    static class Builder {
+
+        /**
+         * Constructor
+         * Creates an empty builder.
+         */
+        Builder() {
+            mCurrencies = new VirtualItemList<VirtualCurrency>();
+            mCurrencyPacks = new VirtualItemList<VirtualCurrencyPack>();
+            mGoods = new VirtualItemList<VirtualGood>();
+            mCategories = new ArrayList<VirtualCategory>();
+            mVirtualItems = new HashMap<String, VirtualItem>();
+            mPurchasableItems = new HashMap<String, PurchasableVirtualItem>();
+            mGoodsCategories = new HashMap<String, VirtualCategory>();
+            mGoodsUpgrades = new HashMap<String, List<UpgradeVG>>();
+        }
+
+        /**
+         * Constructor
+         * Creates a builder that starts as a copy of the given snapshot.
+         *
+         * @param catalog the snapshot to copy
+         */
+        Builder(StoreCatalog catalog) {
+            mCurrencies = new VirtualItemList<VirtualCurrency>(catalog.mCurrencies);
+            mCurrencyPacks = new VirtualItemList<VirtualCurrencyPack>(catalog.mCurrencyPacks);
+            mGoods = new VirtualItemList<VirtualGood>(catalog.mGoods);
+            mCategories = new ArrayList<VirtualCategory>(catalog.mCategories);
+            mVirtualItems = new HashMap<String, VirtualItem>(catalog.mVirtualItems);
+            mPurchasableItems = new HashMap<String, PurchasableVirtualItem>(
+                    catalog.mPurchasableItems);
+            mGoodsCategories = new HashMap<String, VirtualCategory>(catalog.mGoodsCategories);
+            mGoodsUpgrades = new HashMap<String, List<UpgradeVG>>();
+            for (Map.Entry<String, List<UpgradeVG>> entry
+                    : catalog.mUpgrades.mGoodsUpgrades.entrySet()) {
+                mGoodsUpgrades.put(entry.getKey(), new ArrayList<UpgradeVG>(entry.getValue()));
+            }
+        }
+
+        Builder addCurrency(VirtualCurrency currency) {
+            mCurrencies.add(currency);
+            mVirtualItems.put(currency.getItemId(), currency);
+            return this;
+        }
+
+        Builder addCurrencyPack(VirtualCurrencyPack pack) {
+            mCurrencyPacks.add(pack);
+            mVirtualItems.put(pack.getItemId(), pack);
+            putPurchasable(pack);
+            return this;
+        }
+
+        Builder addGood(VirtualGood good) {
+            mGoods.add(good);
+            mVirtualItems.put(good.getItemId(), good);
+            if (good instanceof UpgradeVG) {
+                upgradesOf(((UpgradeVG) good).getGoodItemId()).add((UpgradeVG) good);
+            }
+            putPurchasable(good);
+            return this;
+        }
+
+        Builder addCategory(VirtualCategory category) {
+            mCategories.add(category);
+            for (String goodItemId : category.getGoodsItemIds()) {
+                mGoodsCategories.put(goodItemId, category);
+            }
+            return this;
+        }
+
+        /**
+         * Replaces the item with the same itemId as the given one, keeping its position, or adds
+         * the given item if there's no such item. See
+         * {@link StoreInfo#replaceVirtualItem(VirtualItem)}.
+         *
+         * @param virtualItem the virtual item that replaces the old one if exists.
+         * @return this builder
+         */
+        Builder replace(VirtualItem virtualItem) {
+            VirtualItem oldItem = mVirtualItems.put(virtualItem.getItemId(), virtualItem);
+
+            // the replaced upgrade may have belonged to another good
+            if (oldItem instanceof UpgradeVG && !(virtualItem instanceof UpgradeVG
+                    && ((UpgradeVG) virtualItem).getGoodItemId().equals(
+                    ((UpgradeVG) oldItem).getGoodItemId()))) {
+                String oldGoodItemId = ((UpgradeVG) oldItem).getGoodItemId();
+                List<UpgradeVG> oldUpgrades = mGoodsUpgrades.get(oldGoodItemId);
+                if (oldUpgrades != null) {
+                    oldUpgrades.remove(oldItem);
+                    if (oldUpgrades.isEmpty()) {
+                        mGoodsUpgrades.remove(oldGoodItemId);
+                    }
+                }
+            }
+
+            // the replaced item may have been sold under another productId
+            if (oldItem instanceof PurchasableVirtualItem) {
+                String oldProductId = productIdOf((PurchasableVirtualItem) oldItem);
+                if (oldProductId != null && mPurchasableItems.get(oldProductId) == oldItem) {
+                    mPurchasableItems.remove(oldProductId);
+                }
+            }
+
+            if (virtualItem instanceof VirtualCurrency) {
+                mCurrencies.replace((VirtualCurrency) virtualItem);
+            }
+
+            if (virtualItem instanceof VirtualCurrencyPack) {
+                mCurrencyPacks.replace((VirtualCurrencyPack) virtualItem);
+                putPurchasable((VirtualCurrencyPack) virtualItem);
+            }
+
+            if (virtualItem instanceof VirtualGood) {
+                VirtualGood vg = (VirtualGood) virtualItem;
+                if (vg instanceof UpgradeVG) {
+                    List<UpgradeVG> upgrades = upgradesOf(((UpgradeVG) vg).getGoodItemId());
+                    int index = indexOfItemId(upgrades, vg.getItemId());
+                    if (index >= 0) {
+                        upgrades.set(index, (UpgradeVG) vg);
+                    } else {
+                        upgrades.add((UpgradeVG) vg);
+                    }
+                }
+                putPurchasable(vg);
+                mGoods.replace(vg);
+            }
+            return this;
+        }
+
+        /**
+         * Indexes the upgrade chains and creates the snapshot.
+         *
+         * @return the new snapshot
+         */
+        StoreCatalog build() {
+            return new StoreCatalog(this);
+        }
+
+        private List<UpgradeVG> upgradesOf(String goodItemId) {
+            List<UpgradeVG> upgrades = mGoodsUpgrades.get(goodItemId);
+            if (upgrades == null) {
+                upgrades = new ArrayList<UpgradeVG>();
+                mGoodsUpgrades.put(goodItemId, upgrades);
+            }
+            return upgrades;
+        }
+
+        private void putPurchasable(PurchasableVirtualItem item) {
+            String productId = productIdOf(item);
+            if (productId != null) {
+                mPurchasableItems.put(productId, item);
+            }
+        }
+
+        private final VirtualItemList<VirtualCurrency> mCurrencies;
+        private final VirtualItemList<VirtualCurrencyPack> mCurrencyPacks;
+        private final VirtualItemList<VirtualGood> mGoods;
+        private final List<VirtualCategory> mCategories;
+        private final HashMap<String, VirtualItem> mVirtualItems;
+        private final HashMap<String, PurchasableVirtualItem> mPurchasableItems;
+        private final HashMap<String, VirtualCategory> mGoodsCategories;
+        private final HashMap<String, List<UpgradeVG>> mGoodsUpgrades;
+    }
+
+
+    /** Private functions **/
+
+    private StoreCatalog(Builder builder) {
+        mLazyItems = null;
+        mCurrencies = Collections.unmodifiableList(builder.mCurrencies);
+        mCurrencyPacks = Collections.unmodifiableList(builder.mCurrencyPacks);
+        mGoods = Collections.unmodifiableList(builder.mGoods);
+        mCategories = Collections.unmodifiableList(builder.mCategories);
+        mVirtualItems = builder.mVirtualItems;
+        mPurchasableItems = builder.mPurchasableItems;
+        mGoodsCategories = builder.mGoodsCategories;
+
+        // assigns the handles of new items before sizing the array
+        for (VirtualItem item : mVirtualItems.values()) {
+            ItemHandles.assign(item.getItemId());
+        }
+        mItemsByHandle = new VirtualItem[ItemHandles.count()];
+        for (VirtualItem item : mVirtualItems.values()) {
+            mItemsByHandle[item.getHandle()] = item;
+        }
+
+        mUpgrades = new Upgrades(builder.mGoodsUpgrades);
+    }
+
+    private StoreCatalog(LazyItems lazyItems, List<VirtualCategory> categories) {
+        mLazyItems = lazyItems;
+        mCategories = Collections.unmodifiableList(categories);
+        mVirtualItems = null;
+        mItemsByHandle = null;
+        mPurchasableItems = null;
+        mGoodsCategories = new HashMap<String, VirtualCategory>();
+        for (VirtualCategory category : categories) {
+            for (String goodItemId : category.getGoodsItemIds()) {
+                mGoodsCategories.put(goodItemId, category);
+            }
+        }
+    }
+
+    private Upgrades upgrades() {
+        Upgrades upgrades = mUpgrades;
+        if (upgrades == null) {
+            HashMap<String, List<UpgradeVG>> goodsUpgrades =
+                    new HashMap<String, List<UpgradeVG>>();
+            for (UpgradeVG upgradeVG : mLazyItems.getUpgrades()) {
+                List<UpgradeVG> goodUpgrades = goodsUpgrades.get(upgradeVG.getGoodItemId());
+                if (goodUpgrades == null) {
+                    goodUpgrades = new ArrayList<UpgradeVG>();
+                    goodsUpgrades.put(upgradeVG.getGoodItemId(), goodUpgrades);
+                }
+                goodUpgrades.add(upgradeVG);
+            }
+            // racing threads build equal indexes of the same upgrades
+            upgrades = new Upgrades(goodsUpgrades);
+            mUpgrades = upgrades;
+        }
+        return upgrades;
+    }
+
+    /**
+     * The upgrades of every good. A snapshot built by a {@link Builder} indexes them right away,
+     * a lazy snapshot on the first upgrade lookup.
+     */
+    private static final class Upgrades {
+
+        Upgrades(Map<String, List<UpgradeVG>> goodsUpgrades) {
+            for (Map.Entry<String, List<UpgradeVG>> entry : goodsUpgrades.entrySet()) {
+                mGoodsUpgrades.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+                indexUpgradeChain(entry.getKey(), entry.getValue());
+            }
+        }
+
+        /**
+         * Builds the upgrade chain of the given good by following its upgrades' prev/next links
+         * from the first upgrade. The chain is kept as an array in level order, together with the
+         * level of every upgrade, so that all upgrade lookups are constant time.
+         *
+         * @param goodItemId the item id of the good
+         * @param upgrades the good's upgrades
+         */
+        private void indexUpgradeChain(String goodItemId, List<UpgradeVG> upgrades) {
+            if (upgrades.isEmpty()) {
+                return;
+            }
+
+            HashMap<String, UpgradeVG> upgradesById = new HashMap<String, UpgradeVG>();
+            UpgradeVG first = null;
+            for (UpgradeVG upgradeVG : upgrades) {
+                upgradesById.put(upgradeVG.getItemId(), upgradeVG);
+                if (first == null && TextUtils.isEmpty(upgradeVG.getPrevItemId())) {
+                    first = upgradeVG;
+                }
+            }
+
+            List<UpgradeVG> chain = new ArrayList<UpgradeVG>(upgrades.size());
+            UpgradeVG upgradeVG = first;
+            // the size check stops on cyclic links
+            while (upgradeVG != null && chain.size() < upgrades.size()) {
+                chain.add(upgradeVG);
+                String nextItemId = upgradeVG.getNextItemId();
+                upgradeVG = TextUtils.isEmpty(nextItemId) ? null : upgradesById.get(nextItemId);
+            }
+            if (chain.size() != upgrades.size()) {
+                SoomlaUtils.LogError(TAG, "The upgrades of " + goodItemId + " don't form a "
+                        + "single chain. Only " + chain.size() + " of " + upgrades.size()
+                        + " are reachable from the first upgrade.");
+            }
+            if (chain.isEmpty()) {
+                return;
+            }
+
+            UpgradeVG[] chainArr = chain.toArray(new UpgradeVG[chain.size()]);
+            mGoodsUpgradeChains.put(goodItemId, chainArr);
+            for (int i = 0; i < chainArr.length; i++) {
+                mUpgradeLevels.put(chainArr[i].getItemId(), i + 1);
+            }
+        }
+
+        // convenient hash of good-upgrades
+        final HashMap<String, List<UpgradeVG>> mGoodsUpgrades =
+                new HashMap<String, List<UpgradeVG>>();
+
+        // the upgrades of every good in level order, built from mGoodsUpgrades
+        final HashMap<String, UpgradeVG[]> mGoodsUpgradeChains =
+                new HashMap<String, UpgradeVG[]>();
+
+        // the level of every upgrade in its good's chain, starting from 1
+        final HashMap<String, Integer> mUpgradeLevels = new HashMap<String, Integer>();
+    }
+
+    static String productIdOf(PurchasableVirtualItem item) {
+        PurchaseType purchaseType = item.getPurchaseType();
+        if (purchaseType instanceof PurchaseWithMarket) {
+            return ((PurchaseWithMarket) purchaseType).getMarketItem().getProductId();
+        }
+        return null;
+    }
+
+    private static int indexOfItemId(List<? extends VirtualItem> items, String itemId) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).getItemId().equals(itemId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA StoreCatalog"; //used for Log messages
+
+    // the items of a lazy snapshot, null for a snapshot built by a Builder
+    private final LazyItems mLazyItems;
+
+    // list of virtual currencies, created on first use by a lazy snapshot
+    private volatile List<VirtualCurrency> mCurrencies;
+
+    // list of currency-packs, created on first use by a lazy snapshot
+    private volatile List<VirtualCurrencyPack> mCurrencyPacks;
+
+    // list of virtual goods, created on first use by a lazy snapshot
+    private volatile List<VirtualGood> mGoods;
+
+    // list of virtual categories
+    private final List<VirtualCategory> mCategories;
+
+    // convenient hash of virtual items, null for a lazy snapshot
+    private final HashMap<String, VirtualItem> mVirtualItems;
+
+    // the virtual items by their handle, null where a handle belongs to no item of this catalog
+    private final VirtualItem[] mItemsByHandle;
+
+    // convenient hash of purchasable virtual items, null for a lazy snapshot
+    private final HashMap<String, PurchasableVirtualItem> mPurchasableItems;
+
+    // convenient hash of goods-categories
+    private final HashMap<String, VirtualCategory> mGoodsCategories;
+
+    // the upgrades, indexed on first use by a lazy snapshot
+    private volatile Upgrades mUpgrades;
+}
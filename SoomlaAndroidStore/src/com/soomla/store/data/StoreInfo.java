@@ -19,6 +19,7 @@ package com.soomla.store.data;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.text.TextUtils;
+import android.util.Base64;
 import com.soomla.BusProvider;
 import com.soomla.SoomlaApp;
 import com.soomla.SoomlaConfig;
@@ -35,6 +36,7 @@ import com.soomla.store.domain.virtualGoods.EquippableVG;
 import com.soomla.store.domain.virtualGoods.LifetimeVG;
 import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
 import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.TimeLimitedVG;
 import com.soomla.store.domain.virtualGoods.UpgradeVG;
 import com.soomla.store.domain.virtualGoods.VirtualGood;
 import com.soomla.store.events.UnexpectedStoreErrorEvent;
@@ -46,13 +48,15 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.lang.IllegalArgumentException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * This class holds the store's metadata including:
@@ -117,7 +121,7 @@ public class StoreInfo {
         if (!loadFromDB()) {
             SoomlaUtils.LogDebug(TAG, "didn't find anything in DB to load. continuing with store assets json.");
             try {
-                fromJSONObject(new JSONObject(storeMetaJSON));
+                fromJSON(storeMetaJSON);
                 save();
             } catch (JSONException e) {
                 SoomlaUtils.LogError(TAG, "Can't parse store metadata json. That's a major issue." + storeMetaJSON);
@@ -137,11 +141,16 @@ public class StoreInfo {
     public static boolean loadFromDB() {
         checkAndResetMetadata();
 
+        if (loadFromBinary()) {
+            return true;
+        }
+
         String key = keyMetaStoreInfo();
         String val = KeyValueStorage.getValue(key);
 
         if (val == null || TextUtils.isEmpty(val)) {
             SoomlaUtils.LogDebug(TAG, "store json is not in DB yet.");
+            deleteItemRecords();
             return false;
         }
 
@@ -151,13 +160,17 @@ public class StoreInfo {
             SoomlaUtils.LogDebug(TAG, "the StoreInfo JSON is from an older version. " +
                     "we need to delete and let it be recreated.");
             KeyValueStorage.deleteKeyValue(key);
+            deleteItemRecords();
             return false;
         }
 
         SoomlaUtils.LogDebug(TAG, "the metadata-economy json (from DB) is " + val);
 
         try {
-            fromJSONObject(new JSONObject(val));
+            StoreCatalog.Builder catalog = readCatalog(val);
+            LinkedHashSet<String> recordIds = new LinkedHashSet<String>();
+            applyItemRecords(catalog, recordIds);
+            setCatalog(catalog.build(), recordIds);
 
             // everything went well... StoreInfo is initialized from the local DB.
             // it's ok to return now.
@@ -180,7 +193,7 @@ public class StoreInfo {
      * <code>goodItemId</code>, otherwise false.
      */
     public static boolean hasUpgrades(String goodItemId) {
-        return mGoodsUpgrades.containsKey(goodItemId);
+        return mCatalog.hasUpgrades(goodItemId);
     }
 
     /**
@@ -205,7 +218,7 @@ public class StoreInfo {
      *                                      <code>itemId</code> was found.
      */
     public static VirtualItem getVirtualItem(String itemId) throws VirtualItemNotFoundException {
-        VirtualItem item = mVirtualItems.get(itemId);
+        VirtualItem item = mCatalog.getVirtualItem(itemId);
         if (item == null) {
             throw new VirtualItemNotFoundException("itemId", itemId);
         }
@@ -213,6 +226,23 @@ public class StoreInfo {
         return item;
     }
 
+    /**
+     * Retrieves a single <code>VirtualItem</code> that resides in the metadata by its handle.
+     *
+     * @param handle the handle of the required <code>VirtualItem</code>
+     * @return virtual item for the given <code>handle</code>
+     * @throws VirtualItemNotFoundException if no <code>VirtualItem</code> with the given
+     *                                      <code>handle</code> was found.
+     */
+    public static VirtualItem getVirtualItem(int handle) throws VirtualItemNotFoundException {
+        VirtualItem item = mCatalog.getVirtualItem(handle);
+        if (item == null) {
+            throw new VirtualItemNotFoundException("handle", String.valueOf(handle));
+        }
+
+        return item;
+    }
+
     /**
      * Retrieves a single <code>PurchasableVirtualItem</code> that resides in the metadata.
      * IMPORTANT: The retrieved <code>PurchasableVirtualItem</code> has a <code>PurchaseType</code>
@@ -225,7 +255,7 @@ public class StoreInfo {
      */
     public static PurchasableVirtualItem getPurchasableItem(String productId)
             throws VirtualItemNotFoundException {
-        PurchasableVirtualItem item = mPurchasableItems.get(productId);
+        PurchasableVirtualItem item = mCatalog.getPurchasableItem(productId);
         if (item == null) {
             throw new VirtualItemNotFoundException("productId", productId);
         }
@@ -243,7 +273,7 @@ public class StoreInfo {
      */
     public static VirtualCategory getCategory(String goodItemId)
             throws VirtualItemNotFoundException {
-        VirtualCategory item = mGoodsCategories.get(goodItemId);
+        VirtualCategory item = mCatalog.getCategory(goodItemId);
         if (item == null) {
             throw new VirtualItemNotFoundException("goodItemId", goodItemId);
         }
@@ -260,15 +290,8 @@ public class StoreInfo {
      * null if it has no upgrades.
      */
     public static UpgradeVG getGoodFirstUpgrade(String goodItemId) {
-        List<UpgradeVG> upgrades = mGoodsUpgrades.get(goodItemId);
-        if (upgrades != null) {
-            for (UpgradeVG upgradeVG : upgrades) {
-                if (TextUtils.isEmpty(upgradeVG.getPrevItemId())) {
-                    return upgradeVG;
-                }
-            }
-        }
-        return null;
+        UpgradeVG[] chain = mCatalog.getUpgradeChain(goodItemId);
+        return chain != null ? chain[0] : null;
     }
 
     /**
@@ -280,15 +303,41 @@ public class StoreInfo {
      * if there are no upgrades.
      */
     public static UpgradeVG getGoodLastUpgrade(String goodItemId) {
-        List<UpgradeVG> upgrades = mGoodsUpgrades.get(goodItemId);
-        if (upgrades != null) {
-            for (UpgradeVG upgradeVG : upgrades) {
-                if (TextUtils.isEmpty(upgradeVG.getNextItemId())) {
-                    return upgradeVG;
-                }
-            }
-        }
-        return null;
+        UpgradeVG[] chain = mCatalog.getUpgradeChain(goodItemId);
+        return chain != null ? chain[chain.length - 1] : null;
+    }
+
+    /**
+     * Retrieves the level of the <code>UpgradeVG</code> with the given
+     * <code>upgradeItemId</code> in its good's upgrade chain. The first upgrade is level 1.
+     *
+     * @param upgradeItemId The item id of the <code>UpgradeVG</code>.
+     * @return the level of the upgrade, or 0 if it isn't part of an upgrade chain.
+     */
+    public static int getUpgradeLevel(String upgradeItemId) {
+        return mCatalog.getUpgradeLevel(upgradeItemId);
+    }
+
+    /**
+     * Retrieves the <code>UpgradeVG</code> that follows the one with the given
+     * <code>upgradeItemId</code> in its good's upgrade chain.
+     *
+     * @param upgradeItemId The item id of the current <code>UpgradeVG</code>.
+     * @return the next upgrade, or null if the given upgrade is the last one.
+     */
+    public static UpgradeVG getNextUpgrade(String upgradeItemId) {
+        return getUpgradeAtOffset(upgradeItemId, 1);
+    }
+
+    /**
+     * Retrieves the <code>UpgradeVG</code> that precedes the one with the given
+     * <code>upgradeItemId</code> in its good's upgrade chain.
+     *
+     * @param upgradeItemId The item id of the current <code>UpgradeVG</code>.
+     * @return the previous upgrade, or null if the given upgrade is the first one.
+     */
+    public static UpgradeVG getPreviousUpgrade(String upgradeItemId) {
+        return getUpgradeAtOffset(upgradeItemId, -1);
     }
 
     /**
@@ -298,32 +347,36 @@ public class StoreInfo {
      * @param goodItemId The item id of the <code>VirtualGood</code> whose upgrades we are looking
      *                   for.
      * @return list of all UpgradeVGs for the virtual good with the given <code>goodItemId</code>
+     * (empty if it has no upgrades). The list can't be modified.
      */
     public static List<UpgradeVG> getGoodUpgrades(String goodItemId) {
-        if (mGoodsUpgrades == null) {
-            return new LinkedList<UpgradeVG>();
-        }
-        return mGoodsUpgrades.get(goodItemId);
+        return mCatalog.getGoodUpgrades(goodItemId);
     }
 
+    /*
+     * NOTE: The catalog lists can't be modified. They belong to the snapshot of the catalog that
+     * was current when they were retrieved, and stay the same even if the catalog changes later.
+     * Use replaceVirtualItem or save to change the catalog.
+     */
+
     public static List<VirtualCurrency> getCurrencies() {
-        return mCurrencies;
+        return mCatalog.getCurrencies();
     }
 
     public static List<VirtualCurrencyPack> getCurrencyPacks() {
-        return mCurrencyPacks;
+        return mCatalog.getCurrencyPacks();
     }
 
     public static List<VirtualGood> getGoods() {
-        return mGoods;
+        return mCatalog.getGoods();
     }
 
     public static List<VirtualCategory> getCategories() {
-        return mCategories;
+        return mCatalog.getCategories();
     }
 
     public static List<String> getAllProductIds() {
-        return new ArrayList<String>(mPurchasableItems.keySet());
+        return mCatalog.getAllProductIds();
     }
 
 
@@ -373,150 +426,40 @@ public class StoreInfo {
     }
 
     /**
-     * Transforms given jsonObject to StoreInfo
+     * Transforms the given metadata JSON to StoreInfo.
      *
-     * @param jsonObject
+     * @param json the store's metadata JSON
      * @throws JSONException
      */
-    private static void fromJSONObject(JSONObject jsonObject) throws JSONException {
-
-        mVirtualItems = new HashMap<String, VirtualItem>();
-        mPurchasableItems = new HashMap<String, PurchasableVirtualItem>();
-        mGoodsCategories = new HashMap<String, VirtualCategory>();
-        mGoodsUpgrades = new HashMap<String, List<UpgradeVG>>();
-        mCurrencyPacks = new LinkedList<VirtualCurrencyPack>();
-        mGoods = new LinkedList<VirtualGood>();
-        mCategories = new LinkedList<VirtualCategory>();
-        mCurrencies = new LinkedList<VirtualCurrency>();
-
-        if (jsonObject.has(StoreJSONConsts.STORE_CURRENCIES)) {
-            JSONArray virtualCurrencies = jsonObject.getJSONArray(StoreJSONConsts.STORE_CURRENCIES);
-            for (int i = 0; i < virtualCurrencies.length(); i++) {
-                JSONObject o = virtualCurrencies.getJSONObject(i);
-                VirtualCurrency c = new VirtualCurrency(o);
-                mCurrencies.add(c);
-
-                mVirtualItems.put(c.getItemId(), c);
-            }
-        }
-
-        if (jsonObject.has(StoreJSONConsts.STORE_CURRENCYPACKS)) {
-            JSONArray currencyPacks = jsonObject.getJSONArray(StoreJSONConsts.STORE_CURRENCYPACKS);
-            for (int i = 0; i < currencyPacks.length(); i++) {
-                JSONObject o = currencyPacks.getJSONObject(i);
-                VirtualCurrencyPack pack = new VirtualCurrencyPack(o);
-                mCurrencyPacks.add(pack);
-
-                mVirtualItems.put(pack.getItemId(), pack);
-
-                PurchaseType purchaseType = pack.getPurchaseType();
-                if (purchaseType instanceof PurchaseWithMarket) {
-                    mPurchasableItems.put(((PurchaseWithMarket) purchaseType)
-                            .getMarketItem().getProductId(), pack);
-                }
-            }
-        }
-
-        // The order in which VirtualGoods are created matters!
-        // For example: VGU and VGP depend on other VGs
-        if (jsonObject.has(StoreJSONConsts.STORE_GOODS)) {
-            JSONObject virtualGoods = jsonObject.getJSONObject(StoreJSONConsts.STORE_GOODS);
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_SU)) {
-                JSONArray suGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_SU);
-                for (int i = 0; i < suGoods.length(); i++) {
-                    JSONObject o = suGoods.getJSONObject(i);
-                    SingleUseVG g = new SingleUseVG(o);
-                    addVG(g);
-                }
-            }
-
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_LT)) {
-                JSONArray ltGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_LT);
-                for (int i = 0; i < ltGoods.length(); i++) {
-                    JSONObject o = ltGoods.getJSONObject(i);
-                    LifetimeVG g = new LifetimeVG(o);
-                    addVG(g);
-                }
-            }
-
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_EQ)) {
-                JSONArray eqGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_EQ);
-                for (int i = 0; i < eqGoods.length(); i++) {
-                    JSONObject o = eqGoods.getJSONObject(i);
-                    EquippableVG g = new EquippableVG(o);
-                    addVG(g);
-                }
-            }
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_PA)) {
-                JSONArray paGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_PA);
-                for (int i = 0; i < paGoods.length(); i++) {
-                    JSONObject o = paGoods.getJSONObject(i);
-                    SingleUsePackVG g = new SingleUsePackVG(o);
-                    addVG(g);
-                }
-            }
-
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_UP)) {
-                JSONArray upGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_UP);
-                for (int i = 0; i < upGoods.length(); i++) {
-                    JSONObject o = upGoods.getJSONObject(i);
-                    UpgradeVG g = new UpgradeVG(o);
-                    addVG(g);
-
-                    List<UpgradeVG> upgrades = mGoodsUpgrades.get(g.getGoodItemId());
-                    if (upgrades == null) {
-                        upgrades = new ArrayList<UpgradeVG>();
-                        mGoodsUpgrades.put(g.getGoodItemId(), upgrades);
-                    }
-                    upgrades.add(g);
-                }
-            }
-
-        }
-
-        // Categories depend on virtual goods. That's why the have to be initialized after!
-        if (jsonObject.has(StoreJSONConsts.STORE_CATEGORIES)) {
-            JSONArray virtualCategories = jsonObject.getJSONArray(StoreJSONConsts.STORE_CATEGORIES);
-            for (int i = 0; i < virtualCategories.length(); i++) {
-                JSONObject o = virtualCategories.getJSONObject(i);
-                VirtualCategory category = new VirtualCategory(o);
-                mCategories.add(category);
-                for (String goodItemId : category.getGoodsItemIds()) {
-                    mGoodsCategories.put(goodItemId, category);
-                }
-            }
-        }
-
-        // This is only for NonConsumable balance migration to LifetimeVGs.
-        // Remove this code when no longer needed.
-        if (mNonConsumableMigrationNeeded) {
-            SoomlaUtils.LogDebug(TAG, "NonConsumables balance migration is required. Doing it now.");
-            nonConsBalancesToLTVGs();
-        }
+    private static void fromJSON(String json) throws JSONException {
+        setCatalog(readCatalog(json).build());
     }
 
     /**
-     * Adds the given virtual good to <code>StoreInfo</code>'s <code>mGoods</code>,
-     * <code>mVirtualItems</code>, and if the good has purchase type <code>PurchaseWithMarket</code>
-     * then it is also added to <code>mPurchasableItems</code>.
+     * Parses the given metadata JSON into a catalog, streaming it straight into the items
+     * (see <code>StoreInfoJsonReader</code>) instead of building a <code>JSONObject</code> first.
      *
-     * @param g virtual good to be added
+     * @param json the store's metadata JSON
+     * @return a builder holding the parsed items
+     * @throws JSONException if the JSON can't be parsed
      */
-    private static void addVG(VirtualGood g) {
-        mGoods.add(g);
-
-        mVirtualItems.put(g.getItemId(), g);
+    private static StoreCatalog.Builder readCatalog(String json) throws JSONException {
+        StoreInfoBinary.Catalog catalog = StoreInfoJsonReader.read(json);
+        return newCatalog(catalog.currencies, catalog.currencyPacks, catalog.goods,
+                catalog.categories);
+    }
 
-        PurchaseType purchaseType = g.getPurchaseType();
-        if (purchaseType instanceof PurchaseWithMarket) {
-            mPurchasableItems.put(((PurchaseWithMarket) purchaseType)
-                    .getMarketItem().getProductId(), g);
+    private static UpgradeVG getUpgradeAtOffset(String upgradeItemId, int offset) {
+        StoreCatalog catalog = mCatalog;
+        int level = catalog.getUpgradeLevel(upgradeItemId);
+        VirtualItem item = catalog.getVirtualItem(upgradeItemId);
+        if (level == 0 || !(item instanceof UpgradeVG)) {
+            return null;
         }
+
+        UpgradeVG[] chain = catalog.getUpgradeChain(((UpgradeVG) item).getGoodItemId());
+        int index = level - 1 + offset;
+        return (index >= 0 && index < chain.length) ? chain[index] : null;
     }
 
     /**
@@ -525,14 +468,24 @@ public class StoreInfo {
      * @return a <code>JSONObject</code> representation of <code>StoreInfo</code>.
      */
     public static JSONObject toJSONObject() {
+        return toJSONObject(mCatalog);
+    }
+
+    /**
+     * Converts the given snapshot of the catalog to a <code>JSONObject</code>.
+     *
+     * @param catalog the snapshot to convert
+     * @return a <code>JSONObject</code> representation of the catalog.
+     */
+    private static JSONObject toJSONObject(StoreCatalog catalog) {
 
         JSONArray currencies = new JSONArray();
-        for (VirtualCurrency c : mCurrencies) {
+        for (VirtualCurrency c : catalog.getCurrencies()) {
             currencies.put(c.toJSONObject());
         }
 
         JSONArray currencyPacks = new JSONArray();
-        for (VirtualCurrencyPack pack : mCurrencyPacks) {
+        for (VirtualCurrencyPack pack : catalog.getCurrencyPacks()) {
             currencyPacks.put(pack.toJSONObject());
         }
 
@@ -542,7 +495,8 @@ public class StoreInfo {
         JSONArray eqGoods = new JSONArray();
         JSONArray paGoods = new JSONArray();
         JSONArray upGoods = new JSONArray();
-        for (VirtualGood good : mGoods) {
+        JSONArray tlGoods = new JSONArray();
+        for (VirtualGood good : catalog.getGoods()) {
             if (good instanceof SingleUseVG) {
                 suGoods.put(good.toJSONObject());
             } else if (good instanceof UpgradeVG) {
@@ -553,12 +507,14 @@ public class StoreInfo {
                 paGoods.put(good.toJSONObject());
             } else if (good instanceof LifetimeVG) {
                 ltGoods.put(good.toJSONObject());
+            } else if (good instanceof TimeLimitedVG) {
+                tlGoods.put(good.toJSONObject());
             }
         }
 
 
         JSONArray categories = new JSONArray();
-        for (VirtualCategory cat : mCategories) {
+        for (VirtualCategory cat : catalog.getCategories()) {
             categories.put(cat.toJSONObject());
         }
 
@@ -569,6 +525,7 @@ public class StoreInfo {
             goods.put(StoreJSONConsts.STORE_GOODS_EQ, eqGoods);
             goods.put(StoreJSONConsts.STORE_GOODS_PA, paGoods);
             goods.put(StoreJSONConsts.STORE_GOODS_UP, upGoods);
+            goods.put(StoreJSONConsts.STORE_GOODS_TL, tlGoods);
 
             jsonObject.put(StoreJSONConsts.STORE_CATEGORIES, categories);
             jsonObject.put(StoreJSONConsts.STORE_CURRENCIES, currencies);
@@ -583,16 +540,52 @@ public class StoreInfo {
 
     /**
      * Saves the store's metadata in the database as JSON.
+     * This rewrites the whole catalog, so it also compacts away the per-item records written by
+     * {@link #save(VirtualItem)}.
      */
     public static void save() {
-        String store_json = toJSONObject().toString();
-        SoomlaUtils.LogDebug(TAG, "saving StoreInfo to DB. json is: " + store_json);
-        String key = keyMetaStoreInfo();
-        KeyValueStorage.setValue(key, store_json);
+        synchronized (WRITE_LOCK) {
+            StoreCatalog catalog = mCatalog;
+            String store_json = toJSONObject(catalog).toString();
+            SoomlaUtils.LogDebug(TAG, "saving StoreInfo to DB. json is: " + store_json);
+
+            String binary = null;
+            try {
+                binary = Base64.encodeToString(StoreInfoBinary.write(catalog.getCurrencies(),
+                        catalog.getCurrencyPacks(), catalog.getGoods(), catalog.getCategories()),
+                        Base64.NO_WRAP);
+            } catch (IOException e) {
+                SoomlaUtils.LogError(TAG, "Couldn't save the binary metadata. It will be loaded "
+                        + "from JSON. " + e.getMessage());
+            }
+
+            // The catalog keys are too large to go through the journal of a KeyValueBatch, so
+            // they're written in an order that is safe to interrupt: the old binary goes first,
+            // and until the new one is written the catalog is loaded from the JSON, which is a
+            // single write.
+            KeyValueStorage.deleteKeyValue(keyMetaStoreInfoBinary());
+            KeyValueStorage.setValue(keyMetaStoreInfo(), store_json);
+            if (binary != null) {
+                KeyValueStorage.setValue(keyMetaStoreInfoBinary(), binary);
+            }
+
+            // the records are part of the catalog that was just written, so replaying them after
+            // an interrupted save changes nothing
+            if (!mItemRecordIds.isEmpty()) {
+                KeyValueBatch batch = new KeyValueBatch();
+                for (String itemId : mItemRecordIds) {
+                    batch.deleteKeyValue(keyMetaItemRecord(itemId));
+                }
+                batch.deleteKeyValue(keyMetaItemRecordIds());
+                batch.commit();
+                mItemRecordIds.clear();
+            }
+        }
     }
 
     /**
      * Replaces the given virtual item, and then saves the store's metadata.
+     * Only the given item is written, as a record of its own next to the catalog JSON.
      *
      * @param virtualItem the virtual item to replace.
      */
@@ -606,11 +599,7 @@ public class StoreInfo {
      * @param saveToDB should the store's metadata be saved.
      */
     public static void save(VirtualItem virtualItem, boolean saveToDB) {
-        replaceVirtualItem(virtualItem);
-
-        if (saveToDB) {
-            save();
-        }
+        save(Collections.singletonList(virtualItem), saveToDB);
     }
 
     /**
@@ -634,12 +623,15 @@ public class StoreInfo {
             return;
         }
 
-        for (VirtualItem virtualItem : virtualItems) {
-            replaceVirtualItem(virtualItem);
-        }
+        synchronized (WRITE_LOCK) {
+            StoreCatalog published = mCatalog.replaceAll(virtualItems);
+            // one index write for all new items, instead of one per item
+            StoreKeyIndex.register(published);
+            mCatalog = published;
 
-        if (saveToDB) {
-            save();
+            if (saveToDB) {
+                saveItemRecords(virtualItems);
+            }
         }
     }
 
@@ -647,135 +639,338 @@ public class StoreInfo {
      * Replaces an old virtual item with a new one by doing the following:
      * 1. Determines the type of the given virtual item.
      * 2. Looks for the given virtual item in the relevant list, according to its type.
-     * 3. If found, removes it.
-     * 4. Adds the given virtual item.
+     * 3. If found, replaces it in its position.
+     * 4. Otherwise, adds the given virtual item at the end of the list.
+     * The change is made on a copy of the catalog, which then replaces the current one, so
+     * readers never see a half-updated catalog. Use {@link #save(List, boolean)} to replace
+     * many items with a single copy.
      *
      * @param virtualItem the virtual item that replaces the old one if exists.
      */
     public static void replaceVirtualItem(VirtualItem virtualItem) {
-        mVirtualItems.put(virtualItem.getItemId(), virtualItem);
+        save(virtualItem, false);
+    }
 
-        if (virtualItem instanceof VirtualCurrency) {
-            for (int i = 0; i < mCurrencies.size(); i++) {
-                if (mCurrencies.get(i).getItemId().equals(virtualItem.getItemId())) {
-                    mCurrencies.remove(i);
-                    break;
-                }
-            }
-            mCurrencies.add((VirtualCurrency) virtualItem);
+    /**
+     * Creates a copy of the given virtual item through its JSON. Items of the published catalog
+     * are shared with all readers, so change a copy and publish it with {@link #save(List)}
+     * instead of changing them in place.
+     *
+     * @param virtualItem the virtual item to copy
+     * @return a new virtual item, equal to the given one
+     * @throws JSONException if the item's JSON can't be parsed back into an item
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends VirtualItem> T copyOf(T virtualItem) throws JSONException {
+        return (T) itemFromJSONObject(sectionOf(virtualItem), virtualItem.toJSONObject());
+    }
+
+    /**
+     * Initializes from <code>IStoreAssets</code>.
+     * This happens only once - when the game is loaded for the first time.
+     *
+     * @param storeAssets game economy
+     */
+    private static void initializeWithStoreAssets(IStoreAssets storeAssets) {
+        // fall-back here if the json doesn't exist,
+        // we load the store from the given {@link IStoreAssets}.
+        setCatalog(newCatalog(Arrays.asList(storeAssets.getCurrencies()),
+                Arrays.asList(storeAssets.getCurrencyPacks()),
+                Arrays.asList(storeAssets.getGoods()),
+                Arrays.asList(storeAssets.getCategories())).build());
+
+        save();
+    }
+
+    /**
+     * Starts a catalog with the given items.
+     *
+     * @param currencies the virtual currencies
+     * @param currencyPacks the virtual currency packs
+     * @param goods the virtual goods
+     * @param categories the virtual categories
+     * @return a builder holding the given items
+     */
+    private static StoreCatalog.Builder newCatalog(List<VirtualCurrency> currencies,
+                                                  List<VirtualCurrencyPack> currencyPacks,
+                                                  List<VirtualGood> goods,
+                                                  List<VirtualCategory> categories) {
+        StoreCatalog.Builder catalog = new StoreCatalog.Builder();
+        for (VirtualCurrency currency : currencies) {
+            catalog.addCurrency(currency);
+        }
+        for (VirtualCurrencyPack pack : currencyPacks) {
+            catalog.addCurrencyPack(pack);
+        }
+        for (VirtualGood good : goods) {
+            catalog.addGood(good);
+        }
+        for (VirtualCategory category : categories) {
+            catalog.addCategory(category);
         }
+        return catalog;
+    }
 
-        if (virtualItem instanceof VirtualCurrencyPack) {
-            VirtualCurrencyPack vcp = (VirtualCurrencyPack) virtualItem;
-            PurchaseType purchaseType = vcp.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
-                        .getProductId(), vcp);
+    /**
+     * Publishes the given catalog as the store's metadata.
+     *
+     * @param catalog the catalog to publish
+     */
+    private static void setCatalog(StoreCatalog catalog) {
+        setCatalog(catalog, null);
+    }
+
+    /**
+     * Publishes the given catalog as the store's metadata, together with the ids of the per-item
+     * records it was loaded with.
+     *
+     * @param catalog the catalog to publish
+     * @param itemRecordIds the ids of the records that were applied to the catalog, or null to
+     *                      keep the current ones
+     */
+    private static void setCatalog(StoreCatalog catalog, Set<String> itemRecordIds) {
+        synchronized (WRITE_LOCK) {
+            // one index write for all new items, instead of one per item
+            StoreKeyIndex.register(catalog);
+            mCatalog = catalog;
+            if (itemRecordIds != null) {
+                mItemRecordIds.clear();
+                mItemRecordIds.addAll(itemRecordIds);
             }
+        }
 
-            for (int i = 0; i < mCurrencyPacks.size(); i++) {
-                if (mCurrencyPacks.get(i).getItemId().equals(vcp.getItemId())) {
-                    mCurrencyPacks.remove(i);
-                    break;
-                }
+        // This is only for NonConsumable balance migration to LifetimeVGs.
+        // Remove this code when no longer needed.
+        if (mNonConsumableMigrationNeeded) {
+            SoomlaUtils.LogDebug(TAG, "NonConsumables balance migration is required. Doing it now.");
+            nonConsBalancesToLTVGs();
+        }
+    }
+
+    /**
+     * Writes the given virtual items as per-item records, together with the list of items that
+     * have records, in a single batch. Once there are more than <code>MAX_ITEM_RECORDS</code>
+     * records the whole catalog is saved instead, which compacts them into the catalog JSON.
+     *
+     * @param virtualItems the virtual items to save
+     */
+    private static void saveItemRecords(List<? extends VirtualItem> virtualItems) {
+        if (mItemRecordIds.size() + virtualItems.size() > MAX_ITEM_RECORDS) {
+            SoomlaUtils.LogDebug(TAG, "too many item records. compacting them into the catalog.");
+            save();
+            return;
+        }
+
+        KeyValueBatch batch = new KeyValueBatch();
+        boolean idsChanged = false;
+        try {
+            for (VirtualItem virtualItem : virtualItems) {
+                JSONObject record = new JSONObject();
+                record.put(ITEM_RECORD_SECTION, sectionOf(virtualItem));
+                record.put(ITEM_RECORD_ITEM, virtualItem.toJSONObject());
+                batch.setValue(keyMetaItemRecord(virtualItem.getItemId()), record.toString());
+                idsChanged |= mItemRecordIds.add(virtualItem.getItemId());
             }
-            mCurrencyPacks.add(vcp);
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't create an item record. Saving the whole catalog.");
+            save();
+            return;
+        }
+
+        if (idsChanged) {
+            batch.setValue(keyMetaItemRecordIds(), new JSONArray(mItemRecordIds).toString());
         }
+        batch.commit();
+    }
 
-        if (virtualItem instanceof VirtualGood) {
-            VirtualGood vg = (VirtualGood) virtualItem;
+    /**
+     * Loads the store's metadata from its binary representation, see <code>StoreInfoBinary</code>.
+     * With <code>StoreConfig.lazyCatalog</code> only its index is loaded, and every item is
+     * created the first time it's used, see <code>StoreCatalog</code>.
+     *
+     * @return false if there's no binary metadata, or it can't be used and the JSON needs to be
+     * loaded instead
+     */
+    private static boolean loadFromBinary() {
+        String val = KeyValueStorage.getValue(keyMetaStoreInfoBinary());
+        if (TextUtils.isEmpty(val)) {
+            return false;
+        }
 
-            if (vg instanceof UpgradeVG) {
-                List<UpgradeVG> upgrades = mGoodsUpgrades.get(((UpgradeVG) vg).getGoodItemId());
-                if (upgrades == null) {
-                    upgrades = new ArrayList<UpgradeVG>();
-                    mGoodsUpgrades.put(((UpgradeVG) vg).getGoodItemId(), upgrades);
+        try {
+            byte[] data = Base64.decode(val, Base64.NO_WRAP);
+            if (StoreConfig.lazyCatalog) {
+                StoreInfoBinary.Index index = StoreInfoBinary.index(data);
+                if (index == null) {
+                    SoomlaUtils.LogDebug(TAG, "the binary metadata has another format version. "
+                            + "loading from JSON.");
+                    return false;
                 }
-                upgrades.add((UpgradeVG) vg);
-            }
 
-            PurchaseType purchaseType = vg.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
-                        .getProductId(), vg);
+                LinkedHashSet<String> recordIds = new LinkedHashSet<String>();
+                setCatalog(StoreCatalog.lazy(index).replaceAll(loadItemRecords(recordIds)),
+                        recordIds);
+                return true;
             }
 
-            for (int i = 0; i < mGoods.size(); i++) {
-                if (mGoods.get(i).getItemId().equals(vg.getItemId())) {
-                    mGoods.remove(i);
-                    break;
-                }
+            StoreInfoBinary.Catalog catalog = StoreInfoBinary.read(data);
+            if (catalog == null) {
+                SoomlaUtils.LogDebug(TAG, "the binary metadata has another format version. "
+                        + "loading from JSON.");
+                return false;
             }
-            mGoods.add(vg);
+
+            StoreCatalog.Builder builder = newCatalog(catalog.currencies, catalog.currencyPacks,
+                    catalog.goods, catalog.categories);
+            LinkedHashSet<String> recordIds = new LinkedHashSet<String>();
+            applyItemRecords(builder, recordIds);
+            setCatalog(builder.build(), recordIds);
+            return true;
+        } catch (Exception e) {
+            SoomlaUtils.LogError(TAG, "Can't read the binary metadata. Loading from JSON. "
+                    + e.getMessage());
         }
+        return false;
     }
 
     /**
-     * Initializes from <code>IStoreAssets</code>.
-     * This happens only once - when the game is loaded for the first time.
+     * Applies the per-item records written by {@link #save(VirtualItem)} to the given catalog,
+     * replacing the item with the same itemId or adding it at the end of its list.
      *
-     * @param storeAssets game economy
+     * @param catalog the catalog loaded from the binary metadata or the metadata JSON
+     * @param recordIds filled with the ids of the applied records
+     * @throws JSONException if one of the records can't be parsed into its item
      */
-    private static void initializeWithStoreAssets(IStoreAssets storeAssets) {
-        // fall-back here if the json doesn't exist,
-        // we load the store from the given {@link IStoreAssets}.
-        mCurrencies = new LinkedList<VirtualCurrency>(Arrays.asList(storeAssets.getCurrencies()));
-        mCurrencyPacks = new LinkedList<VirtualCurrencyPack>(Arrays.asList(storeAssets.getCurrencyPacks()));
-        mGoods = new LinkedList<VirtualGood>(Arrays.asList(storeAssets.getGoods()));
-        mCategories = new LinkedList<VirtualCategory>(Arrays.asList(storeAssets.getCategories()));
-
-        mVirtualItems = new HashMap<String, VirtualItem>();
-        mPurchasableItems = new HashMap<String, PurchasableVirtualItem>();
-        mGoodsCategories = new HashMap<String, VirtualCategory>();
-        mGoodsUpgrades = new HashMap<String, List<UpgradeVG>>();
-
-        for (VirtualCurrency vi : mCurrencies) {
-            mVirtualItems.put(vi.getItemId(), vi);
+    private static void applyItemRecords(StoreCatalog.Builder catalog, Set<String> recordIds)
+            throws JSONException {
+        for (VirtualItem virtualItem : loadItemRecords(recordIds)) {
+            catalog.replace(virtualItem);
         }
+    }
 
-        for (VirtualCurrencyPack vi : mCurrencyPacks) {
-            mVirtualItems.put(vi.getItemId(), vi);
+    /**
+     * Loads the items of the per-item records written by {@link #save(VirtualItem)}, skipping
+     * corrupted records. The ids of the loaded records are only published with the catalog, see
+     * {@link #setCatalog(StoreCatalog, Set)}.
+     *
+     * @param recordIds filled with the ids of the loaded records
+     * @return the items of the records, in the order they were first written
+     * @throws JSONException if one of the records can't be parsed into its item
+     */
+    private static List<VirtualItem> loadItemRecords(Set<String> recordIds)
+            throws JSONException {
+        List<VirtualItem> virtualItems = new ArrayList<VirtualItem>();
+        for (String itemId : loadItemRecordIds()) {
+            String val = KeyValueStorage.getValue(keyMetaItemRecord(itemId));
+            if (TextUtils.isEmpty(val)) {
+                continue;
+            }
 
-            PurchaseType purchaseType = vi.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
-                        .getProductId(), vi);
+            JSONObject record;
+            try {
+                record = new JSONObject(val);
+            } catch (JSONException e) {
+                SoomlaUtils.LogError(TAG, "Skipping a corrupted record of item: " + itemId);
+                continue;
             }
+            String section = record.getString(ITEM_RECORD_SECTION);
+            JSONObject item = record.getJSONObject(ITEM_RECORD_ITEM);
+            virtualItems.add(itemFromJSONObject(section, item));
+            recordIds.add(itemId);
         }
+        return virtualItems;
+    }
 
-        for (VirtualGood vi : mGoods) {
-            mVirtualItems.put(vi.getItemId(), vi);
+    /**
+     * Creates the virtual item of the given catalog section from its JSON.
+     *
+     * @param section the JSON key of the item's section, as returned by {@link #sectionOf}
+     * @param item the item's JSON
+     * @return the new virtual item
+     * @throws JSONException if the JSON can't be parsed into an item of the section
+     */
+    private static VirtualItem itemFromJSONObject(String section, JSONObject item)
+            throws JSONException {
+        if (section.equals(StoreJSONConsts.STORE_CURRENCIES)) {
+            return new VirtualCurrency(item);
+        } else if (section.equals(StoreJSONConsts.STORE_CURRENCYPACKS)) {
+            return new VirtualCurrencyPack(item);
+        } else if (section.equals(StoreJSONConsts.STORE_GOODS_SU)) {
+            return new SingleUseVG(item);
+        } else if (section.equals(StoreJSONConsts.STORE_GOODS_UP)) {
+            return new UpgradeVG(item);
+        } else if (section.equals(StoreJSONConsts.STORE_GOODS_EQ)) {
+            return new EquippableVG(item);
+        } else if (section.equals(StoreJSONConsts.STORE_GOODS_PA)) {
+            return new SingleUsePackVG(item);
+        } else if (section.equals(StoreJSONConsts.STORE_GOODS_TL)) {
+            return new TimeLimitedVG(item);
+        }
+        return new LifetimeVG(item);
+    }
 
-            if (vi instanceof UpgradeVG) {
-                List<UpgradeVG> upgrades = mGoodsUpgrades.get(((UpgradeVG) vi).getGoodItemId());
-                if (upgrades == null) {
-                    upgrades = new ArrayList<UpgradeVG>();
-                    mGoodsUpgrades.put(((UpgradeVG) vi).getGoodItemId(), upgrades);
-                }
-                upgrades.add((UpgradeVG) vi);
-            }
+    /**
+     * Deletes all per-item records from the database.
+     */
+    private static void deleteItemRecords() {
+        List<String> itemIds = loadItemRecordIds();
+        if (itemIds.isEmpty()) {
+            return;
+        }
 
-            PurchaseType purchaseType = vi.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
-                        .getProductId(), vi);
-            }
+        KeyValueBatch batch = new KeyValueBatch();
+        for (String itemId : itemIds) {
+            batch.deleteKeyValue(keyMetaItemRecord(itemId));
+        }
+        batch.deleteKeyValue(keyMetaItemRecordIds());
+        synchronized (WRITE_LOCK) {
+            batch.commit();
+            mItemRecordIds.clear();
         }
+    }
 
-        for (VirtualCategory category : mCategories) {
-            for (String goodItemId : category.getGoodsItemIds()) {
-                mGoodsCategories.put(goodItemId, category);
-            }
+    private static List<String> loadItemRecordIds() {
+        List<String> itemIds = new ArrayList<String>();
+        String val = KeyValueStorage.getValue(keyMetaItemRecordIds());
+        if (TextUtils.isEmpty(val)) {
+            return itemIds;
         }
 
-        // This is only for NonConsumable balance migration to LifetimeVGs.
-        // Remove this code when no longer needed.
-        if (mNonConsumableMigrationNeeded) {
-            SoomlaUtils.LogDebug(TAG, "NonConsumables balance migration is required. Doing it now.");
-            nonConsBalancesToLTVGs();
+        try {
+            JSONArray ids = new JSONArray(val);
+            for (int i = 0; i < ids.length(); i++) {
+                itemIds.add(ids.getString(i));
+            }
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "The list of item records is corrupted. Ignoring it.");
         }
+        return itemIds;
+    }
 
-        save();
+    /**
+     * Determines the section of the catalog JSON that the given virtual item is saved in.
+     * The order of the checks follows {@link #toJSONObject()}.
+     *
+     * @param virtualItem the virtual item to check
+     * @return the JSON key of the item's section
+     */
+    private static String sectionOf(VirtualItem virtualItem) {
+        if (virtualItem instanceof VirtualCurrency) {
+            return StoreJSONConsts.STORE_CURRENCIES;
+        } else if (virtualItem instanceof VirtualCurrencyPack) {
+            return StoreJSONConsts.STORE_CURRENCYPACKS;
+        } else if (virtualItem instanceof SingleUseVG) {
+            return StoreJSONConsts.STORE_GOODS_SU;
+        } else if (virtualItem instanceof UpgradeVG) {
+            return StoreJSONConsts.STORE_GOODS_UP;
+        } else if (virtualItem instanceof EquippableVG) {
+            return StoreJSONConsts.STORE_GOODS_EQ;
+        } else if (virtualItem instanceof SingleUsePackVG) {
+            return StoreJSONConsts.STORE_GOODS_PA;
+        } else if (virtualItem instanceof TimeLimitedVG) {
+            return StoreJSONConsts.STORE_GOODS_TL;
+        }
+        return StoreJSONConsts.STORE_GOODS_LT;
     }
 
     private static void checkAndResetMetadata() {
@@ -804,6 +999,8 @@ public class StoreInfo {
             edit.commit();
 
             KeyValueStorage.deleteKeyValue(keyMetaStoreInfo());
+            KeyValueStorage.deleteKeyValue(keyMetaStoreInfoBinary());
+            deleteItemRecords();
         }
     }
 
@@ -813,7 +1010,7 @@ public class StoreInfo {
      * We just need to set the balances of the lifetime items instead of the non-consumables.
      */
     private static void nonConsBalancesToLTVGs() {
-        for(VirtualGood good : mGoods) {
+        for(VirtualGood good : mCatalog.getGoods()) {
             if ((good instanceof LifetimeVG) && good.getPurchaseType() instanceof PurchaseWithMarket) {
                 String keyNonConsExist = DB_NONCONSUMABLE_KEY_PREFIX + good.getItemId() + ".exists";
                 if (KeyValueStorage.getValue(keyNonConsExist) != null) {
@@ -833,34 +1030,37 @@ public class StoreInfo {
         return "meta.storeinfo";
     }
 
-    private static final String TAG = "SOOMLA StoreInfo"; //used for Log messages
-    public static final String DB_NONCONSUMABLE_KEY_PREFIX = "nonconsumable.";
+    private static String keyMetaStoreInfoBinary() {
+        return "meta.storeinfo.bin";
+    }
 
-    private static boolean mNonConsumableMigrationNeeded = false;
+    private static String keyMetaItemRecord(String itemId) {
+        return "meta.storeinfo.item." + itemId;
+    }
 
-    // convenient hash of virtual items
-    private static HashMap<String, VirtualItem> mVirtualItems;
+    private static String keyMetaItemRecordIds() {
+        return "meta.storeinfo.items";
+    }
 
-    // convenient hash of purchasable virtual items
-    private static HashMap<String, PurchasableVirtualItem> mPurchasableItems;
+    private static final String TAG = "SOOMLA StoreInfo"; //used for Log messages
+    public static final String DB_NONCONSUMABLE_KEY_PREFIX = "nonconsumable.";
 
-    // convenient hash of goods-categories
-    private static HashMap<String, VirtualCategory> mGoodsCategories;
+    private static boolean mNonConsumableMigrationNeeded = false;
 
-    // convenient hash of good-upgrades
-    private static HashMap<String, List<UpgradeVG>> mGoodsUpgrades;
+    // the number of per-item records that triggers a full save of the catalog
+    private static final int MAX_ITEM_RECORDS = 64;
 
-    // list of virtual currencies
-    private static List<VirtualCurrency> mCurrencies;
+    private static final String ITEM_RECORD_SECTION = "section";
+    private static final String ITEM_RECORD_ITEM = "item";
 
-    // list of currency-packs
-    private static List<VirtualCurrencyPack> mCurrencyPacks;
+    // ids of the items that were saved as per-item records since the last full save
+    private static LinkedHashSet<String> mItemRecordIds = new LinkedHashSet<String>();
 
-    // list of virtual goods
-    private static List<VirtualGood> mGoods;
+    // the current catalog. every change publishes a new snapshot, see StoreCatalog
+    private static volatile StoreCatalog mCatalog = StoreCatalog.EMPTY;
 
-    // list of virtul categories
-    private static List<VirtualCategory> mCategories;
+    // serializes changes to the catalog and its saved metadata
+    private static final Object WRITE_LOCK = new Object();
 
     private static int mCurrentAssetsVersion = 0;
 }
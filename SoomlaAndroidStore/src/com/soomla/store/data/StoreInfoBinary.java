@@ -0,0 +1,664 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.MarketItem;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.TimeLimitedVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A compact binary representation of the store's metadata. <code>StoreInfo</code> saves it next
+ * to the catalog JSON and prefers it on start, because it is read straight into the domain
+ * objects without building any <code>JSONObject</code>s. With
+ * <code>StoreConfig.lazyCatalog</code> it is only indexed on start, see {@link Index}.
+ *
+ * Layout (numbers are big-endian, strings are modified UTF-8, as in <code>DataOutputStream</code>):
+ *  - header: magic, format version
+ *  - string table: count, then every distinct string once
+ *  - currencies, currency packs, goods and categories: count, then one record each
+ * Every record starts with its length, and goods records with their type before that. Strings
+ * inside records are indexes into the string table, or -1 for null.
+ */
+class StoreInfoBinary {
+
+    /**
+     * The parsed catalog, in the same order as it was written.
+     */
+    static class Catalog {
+        final List<VirtualCurrency> currencies = new ArrayList<VirtualCurrency>();
+        final List<VirtualCurrencyPack> currencyPacks = new ArrayList<VirtualCurrencyPack>();
+        final List<VirtualGood> goods = new ArrayList<VirtualGood>();
+        final List<VirtualCategory> categories = new ArrayList<VirtualCategory>();
+    }
+
+    /**
+     * Serializes the given catalog. Goods are grouped by type in the same order as in the
+     * catalog JSON, so both formats load the goods in the same order.
+     *
+     * @return the serialized catalog
+     * @throws IOException if one of the items can't be serialized
+     */
+    static byte[] write(List<VirtualCurrency> currencies, List<VirtualCurrencyPack> currencyPacks,
+                        List<VirtualGood> goods, List<VirtualCategory> categories)
+            throws IOException {
+        Writer writer = new Writer();
+
+        writer.beginSection(currencies.size());
+        for (VirtualCurrency currency : currencies) {
+            writer.writeItem(currency);
+            writer.endRecord();
+        }
+
+        writer.beginSection(currencyPacks.size());
+        for (VirtualCurrencyPack pack : currencyPacks) {
+            writer.writeItem(pack);
+            writer.writePurchaseType(pack);
+            writer.mRecord.writeInt(pack.getCurrencyAmount());
+            writer.writeString(pack.getCurrencyItemId());
+            writer.endRecord();
+        }
+
+        writer.beginSection(goods.size());
+        for (byte type = TYPE_SINGLE_USE; type <= TYPE_TIME_LIMITED; type++) {
+            for (VirtualGood good : goods) {
+                if (typeOf(good) != type) {
+                    continue;
+                }
+                writer.mBody.writeByte(type);
+                writer.writeItem(good);
+                writer.writePurchaseType(good);
+                if (good instanceof EquippableVG) {
+                    writer.writeString(((EquippableVG) good).getEquippingModel().toString());
+                } else if (good instanceof SingleUsePackVG) {
+                    writer.writeString(((SingleUsePackVG) good).getGoodItemId());
+                    writer.mRecord.writeInt(((SingleUsePackVG) good).getGoodAmount());
+                } else if (good instanceof UpgradeVG) {
+                    UpgradeVG upgrade = (UpgradeVG) good;
+                    writer.writeString(upgrade.getGoodItemId());
+                    writer.writeString(upgrade.getPrevItemId());
+                    writer.writeString(upgrade.getNextItemId());
+                } else if (good instanceof TimeLimitedVG) {
+                    writer.mRecord.writeLong(((TimeLimitedVG) good).getLifetimeMillis());
+                    writer.writeString(((TimeLimitedVG) good).getStacking().toString());
+                }
+                writer.endRecord();
+            }
+        }
+
+        writer.beginSection(categories.size());
+        for (VirtualCategory category : categories) {
+            writer.writeString(category.getName());
+            writer.mRecord.writeInt(category.getGoodsItemIds().size());
+            for (String goodItemId : category.getGoodsItemIds()) {
+                writer.writeString(goodItemId);
+            }
+            writer.endRecord();
+        }
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Parses a catalog written by {@link #write(List, List, List, List)}.
+     *
+     * @param data the serialized catalog
+     * @return the parsed catalog, or null if it was written in another format version
+     * @throws IOException if the data is corrupted
+     */
+    static Catalog read(byte[] data) throws IOException {
+        Index index = index(data);
+        if (index == null) {
+            return null;
+        }
+
+        Catalog catalog = new Catalog();
+        int packsStart = index.currencyCount();
+        int goodsStart = packsStart + index.currencyPackCount();
+        // one reader for all records
+        Reader reader = new Reader(ByteBuffer.wrap(data), index.mStrings);
+        for (int slot = 0; slot < index.size(); slot++) {
+            VirtualItem item = index.readItem(slot, reader);
+            if (slot < packsStart) {
+                catalog.currencies.add((VirtualCurrency) item);
+            } else if (slot < goodsStart) {
+                catalog.currencyPacks.add((VirtualCurrencyPack) item);
+            } else {
+                catalog.goods.add((VirtualGood) item);
+            }
+        }
+        catalog.categories.addAll(index.categories());
+        return catalog;
+    }
+
+    /**
+     * Indexes a catalog written by {@link #write(List, List, List, List)} without creating its
+     * items. See {@link Index}.
+     *
+     * @param data the serialized catalog
+     * @return the catalog's index, or null if it was written in another format version
+     * @throws IOException if the data is corrupted
+     */
+    static Index index(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC
+                || buffer.getInt() != FORMAT_VERSION) {
+            return null;
+        }
+
+        try {
+            return new Index(data, buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("The catalog is truncated.");
+        }
+    }
+
+    /**
+     * The items of a catalog, read only as far as needed to find them: the itemId, the productId
+     * (if bought from the market) and the type of every item, and where its record starts. The
+     * item itself is created from its record by {@link #readItem(int)}, and the strings of the
+     * string table are decoded when a record first uses them. Categories are small and don't
+     * belong to any hot path, so they're read in full.
+     *
+     * Items are numbered by slot, in the order they were written: the currencies, the currency
+     * packs, then the goods. An index is never changed after it was read, and can be used from
+     * any thread.
+     */
+    static class Index {
+
+        int size() {
+            return mItemIds.length;
+        }
+
+        int currencyCount() {
+            return mCurrencyCount;
+        }
+
+        int currencyPackCount() {
+            return mCurrencyPackCount;
+        }
+
+        String itemIdAt(int slot) {
+            return mItemIds[slot];
+        }
+
+        /**
+         * Retrieves the productId of the item in the given slot, or null if it isn't bought from
+         * the market.
+         */
+        String productIdAt(int slot) {
+            return mProductIds[slot];
+        }
+
+        boolean isUpgrade(int slot) {
+            return mTypes[slot] == TYPE_UPGRADE;
+        }
+
+        List<VirtualCategory> categories() {
+            return mCategories;
+        }
+
+        /**
+         * Creates the item in the given slot from its record. Every call creates a new item.
+         *
+         * @param slot the item's slot
+         * @return the item
+         * @throws IOException if the record is corrupted
+         */
+        VirtualItem readItem(int slot) throws IOException {
+            return readItem(slot, new Reader(ByteBuffer.wrap(mData), mStrings));
+        }
+
+        private VirtualItem readItem(int slot, Reader reader) throws IOException {
+            ByteBuffer in = reader.mIn;
+            in.limit(mData.length);
+            in.position(mOffsets[slot]);
+            in.limit(mOffsets[slot] + mLengths[slot]);
+            try {
+                return readRecord(mTypes[slot], reader);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("The record of " + mItemIds[slot] + " is truncated.");
+            }
+        }
+
+        private static VirtualItem readRecord(byte type, Reader reader) throws IOException {
+            ByteBuffer in = reader.mIn;
+
+            String name = reader.readString();
+            String description = reader.readString();
+            String itemId = reader.readString();
+            if (type == TYPE_CURRENCY) {
+                return new VirtualCurrency(name, description, itemId);
+            }
+
+            PurchaseType purchaseType = reader.readPurchaseType();
+            switch (type) {
+                case TYPE_CURRENCY_PACK:
+                    int currencyAmount = in.getInt();
+                    return new VirtualCurrencyPack(name, description, itemId, currencyAmount,
+                            reader.readString(), purchaseType);
+                case TYPE_SINGLE_USE:
+                    return new SingleUseVG(name, description, itemId, purchaseType);
+                case TYPE_LIFETIME:
+                    return new LifetimeVG(name, description, itemId, purchaseType);
+                case TYPE_EQUIPPABLE:
+                    return new EquippableVG(
+                            EquippableVG.EquippingModel.fromString(reader.readString()),
+                            name, description, itemId, purchaseType);
+                case TYPE_PACK:
+                    return new SingleUsePackVG(reader.readString(), in.getInt(),
+                            name, description, itemId, purchaseType);
+                case TYPE_TIME_LIMITED:
+                    long lifetime = in.getLong();
+                    TimeLimitedVG.Stacking stacking =
+                            TimeLimitedVG.Stacking.fromString(reader.readString());
+                    if (stacking == null) {
+                        throw new IOException("Unknown stacking rule of " + itemId);
+                    }
+                    return new TimeLimitedVG(name, description, itemId, purchaseType, lifetime,
+                            stacking);
+                default:
+                    return new UpgradeVG(reader.readString(), reader.readString(),
+                            reader.readString(), name, description, itemId, purchaseType);
+            }
+        }
+
+        private Index(byte[] data, ByteBuffer buffer) throws IOException {
+            mData = data;
+
+            int[] stringOffsets = new int[readCount(buffer)];
+            for (int i = 0; i < stringOffsets.length; i++) {
+                stringOffsets[i] = buffer.position();
+                int length = buffer.getShort() & 0xffff;
+                skip(buffer, length);
+            }
+            mStrings = new StringTable(data, stringOffsets);
+
+            // one slot per record, unknown goods types are dropped below
+            int start = buffer.position();
+            mCurrencyCount = readCount(buffer);
+            skipRecords(buffer, mCurrencyCount);
+            mCurrencyPackCount = readCount(buffer);
+            skipRecords(buffer, mCurrencyPackCount);
+            int goodsCount = readCount(buffer);
+            buffer.position(start);
+
+            int size = mCurrencyCount + mCurrencyPackCount + goodsCount;
+            byte[] types = new byte[size];
+            int[] offsets = new int[size];
+            int[] lengths = new int[size];
+            String[] itemIds = new String[size];
+            String[] productIds = new String[size];
+            int slot = 0;
+
+            for (int section = 0; section < 3; section++) {
+                int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    byte type = section == 0 ? TYPE_CURRENCY
+                            : section == 1 ? TYPE_CURRENCY_PACK : buffer.get();
+                    int length = buffer.getInt();
+                    int offset = buffer.position();
+                    skip(buffer, length);
+                    if (section == 2 && (type < TYPE_SINGLE_USE || type > TYPE_TIME_LIMITED)) {
+                        // written by a newer format, the record length lets us skip it
+                        continue;
+                    }
+
+                    // name, description and itemId come first, then the purchase type
+                    if (length < (type == TYPE_CURRENCY ? 12 : 13)) {
+                        throw new IOException("Record too short: " + length);
+                    }
+                    types[slot] = type;
+                    offsets[slot] = offset;
+                    lengths[slot] = length;
+                    itemIds[slot] = mStrings.get(buffer.getInt(offset + 8));
+                    if (type != TYPE_CURRENCY && buffer.get(offset + 12) == PURCHASE_MARKET) {
+                        if (length < 17) {
+                            throw new IOException("Record too short: " + length);
+                        }
+                        productIds[slot] = mStrings.get(buffer.getInt(offset + 13));
+                    }
+                    slot++;
+                }
+            }
+
+            if (slot < size) {
+                types = Arrays.copyOf(types, slot);
+                offsets = Arrays.copyOf(offsets, slot);
+                lengths = Arrays.copyOf(lengths, slot);
+                itemIds = Arrays.copyOf(itemIds, slot);
+                productIds = Arrays.copyOf(productIds, slot);
+            }
+            mTypes = types;
+            mOffsets = offsets;
+            mLengths = lengths;
+            mItemIds = itemIds;
+            mProductIds = productIds;
+
+            int count = buffer.getInt();
+            List<VirtualCategory> categories = new ArrayList<VirtualCategory>(count);
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                Reader reader = new Reader(
+                        ByteBuffer.wrap(data, buffer.position(), length), mStrings);
+                skip(buffer, length);
+                String name = reader.readString();
+                int goodsItemIdsCount = reader.mIn.getInt();
+                ArrayList<String> goodsItemIds = new ArrayList<String>(goodsItemIdsCount);
+                for (int j = 0; j < goodsItemIdsCount; j++) {
+                    goodsItemIds.add(reader.readString());
+                }
+                categories.add(new VirtualCategory(name, goodsItemIds));
+            }
+            mCategories = Collections.unmodifiableList(categories);
+        }
+
+        private static int readCount(ByteBuffer buffer) throws IOException {
+            int count = buffer.getInt();
+            if (count < 0) {
+                throw new IOException("Negative count: " + count);
+            }
+            return count;
+        }
+
+        private static void skipRecords(ByteBuffer buffer, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                skip(buffer, buffer.getInt());
+            }
+        }
+
+        private static void skip(ByteBuffer buffer, int length) throws IOException {
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("Length out of bounds: " + length);
+            }
+            buffer.position(buffer.position() + length);
+        }
+
+        private final byte[] mData;
+        private final StringTable mStrings;
+        private final int mCurrencyCount;
+        private final int mCurrencyPackCount;
+        private final byte[] mTypes;
+        private final int[] mOffsets;
+        private final int[] mLengths;
+        private final String[] mItemIds;
+        private final String[] mProductIds;
+        private final List<VirtualCategory> mCategories;
+    }
+
+
+    /** Private functions **/
+
+    /**
+     * Determines the type of the given good. The order of the checks follows
+     * <code>StoreInfo.toJSONObject()</code>.
+     */
+    private static byte typeOf(VirtualGood good) {
+        if (good instanceof SingleUseVG) {
+            return TYPE_SINGLE_USE;
+        } else if (good instanceof UpgradeVG) {
+            return TYPE_UPGRADE;
+        } else if (good instanceof EquippableVG) {
+            return TYPE_EQUIPPABLE;
+        } else if (good instanceof SingleUsePackVG) {
+            return TYPE_PACK;
+        } else if (good instanceof TimeLimitedVG) {
+            return TYPE_TIME_LIMITED;
+        }
+        return TYPE_LIFETIME;
+    }
+
+    /**
+     * Writes the records of a catalog while collecting its string table, which is written in
+     * front of them once all strings are known.
+     */
+    private static class Writer {
+
+        void beginSection(int count) throws IOException {
+            mBody.writeInt(count);
+        }
+
+        void writeItem(VirtualItem item) throws IOException {
+            writeString(item.getName());
+            writeString(item.getDescription());
+            writeString(item.getItemId());
+        }
+
+        void writePurchaseType(PurchasableVirtualItem item) throws IOException {
+            PurchaseType purchaseType = item.getPurchaseType();
+            if (purchaseType instanceof PurchaseWithMarket) {
+                PurchaseWithMarket pwm = (PurchaseWithMarket) purchaseType;
+                MarketItem marketItem = pwm.getMarketItem();
+                mRecord.writeByte(PURCHASE_MARKET);
+                writeString(marketItem.getProductId());
+                mRecord.writeDouble(marketItem.getPrice());
+                writeString(marketItem.getMarketPriceAndCurrency());
+                writeString(marketItem.getMarketTitle());
+                writeString(marketItem.getMarketDescription());
+                writeString(marketItem.getMarketCurrencyCode());
+                mRecord.writeLong(marketItem.getMarketPriceMicros());
+                mRecord.writeBoolean(pwm.isSubscription());
+                mRecord.writeLong(pwm.getSubscriptionPeriodMillis());
+            } else if (purchaseType instanceof PurchaseWithVirtualItem) {
+                PurchaseWithVirtualItem pwvi = (PurchaseWithVirtualItem) purchaseType;
+                mRecord.writeByte(PURCHASE_VIRTUAL_ITEM);
+                writeString(pwvi.getTargetItemId());
+                mRecord.writeInt(pwvi.getAmount());
+            } else {
+                throw new IOException("Item " + item.getItemId() + " has no purchase type.");
+            }
+        }
+
+        void writeString(String str) throws IOException {
+            if (str == null) {
+                mRecord.writeInt(-1);
+                return;
+            }
+            Integer index = mStringIndexes.get(str);
+            if (index == null) {
+                index = mStrings.size();
+                mStrings.add(str);
+                mStringIndexes.put(str, index);
+            }
+            mRecord.writeInt(index);
+        }
+
+        void endRecord() throws IOException {
+            mBody.writeInt(mRecordBytes.size());
+            mRecordBytes.writeTo(mBody);
+            mRecordBytes.reset();
+        }
+
+        byte[] toByteArray() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(mBodyBytes.size() * 2);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mStrings.size());
+            for (String str : mStrings) {
+                out.writeUTF(str);
+            }
+            mBodyBytes.writeTo(out);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private final ByteArrayOutputStream mBodyBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mBody = new DataOutputStream(mBodyBytes);
+        private final ByteArrayOutputStream mRecordBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mRecord = new DataOutputStream(mRecordBytes);
+        private final List<String> mStrings = new ArrayList<String>();
+        private final HashMap<String, Integer> mStringIndexes = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Reads the fields of a record, resolving strings from the string table.
+     */
+    private static class Reader {
+
+        Reader(ByteBuffer in, StringTable strings) {
+            mIn = in;
+            mStrings = strings;
+        }
+
+        String readString() throws IOException {
+            int index = mIn.getInt();
+            return index == -1 ? null : mStrings.get(index);
+        }
+
+        PurchaseType readPurchaseType() throws IOException {
+            byte type = mIn.get();
+            if (type == PURCHASE_MARKET) {
+                MarketItem marketItem = new MarketItem(readString(), mIn.getDouble());
+                String marketPriceAndCurrency = readString();
+                String marketTitle = readString();
+                String marketDescription = readString();
+                String marketCurrencyCode = readString();
+                marketItem.setMarketInformation(marketPriceAndCurrency, marketTitle,
+                        marketDescription, marketCurrencyCode, mIn.getLong());
+                boolean isSubscription = mIn.get() != 0;
+                return new PurchaseWithMarket(marketItem, isSubscription, mIn.getLong());
+            } else if (type == PURCHASE_VIRTUAL_ITEM) {
+                return new PurchaseWithVirtualItem(readString(), mIn.getInt());
+            }
+            throw new IOException("Unknown purchase type: " + type);
+        }
+
+        private final ByteBuffer mIn;
+        private final StringTable mStrings;
+    }
+
+    /**
+     * The string table of a serialized catalog. A string is decoded the first time it's used,
+     * so the names and descriptions of items that are never used are never decoded.
+     */
+    private static class StringTable {
+
+        StringTable(byte[] data, int[] offsets) {
+            mData = data;
+            mOffsets = offsets;
+            mStrings = new String[offsets.length];
+        }
+
+        String get(int index) throws IOException {
+            if (index < 0 || index >= mStrings.length) {
+                throw new IOException("String index out of bounds: " + index);
+            }
+            // strings are immutable, so a racing thread at worst decodes the same string again
+            String str = mStrings[index];
+            if (str == null) {
+                str = decode(mOffsets[index]);
+                mStrings[index] = str;
+            }
+            return str;
+        }
+
+        /**
+         * Decodes the string at the given offset like <code>DataInputStream.readUTF()</code>,
+         * without creating a stream for every string. The index already checked that the string
+         * ends within the data.
+         */
+        private String decode(int offset) throws IOException {
+            byte[] data = mData;
+            int i = offset + 2;
+            int end = i + (((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+            int ascii = i;
+            while (ascii < end && data[ascii] >= 0) {
+                ascii++;
+            }
+            if (ascii == end) {
+                // most strings are ids, no need for a char array
+                return new String(data, i, end - i, ASCII);
+            }
+
+            char[] chars = new char[end - i];
+            int count = 0;
+            while (i < end) {
+                int c = data[i] & 0xff;
+                if (c < 0x80) {
+                    chars[count++] = (char) c;
+                    i++;
+                } else if ((c & 0xe0) == 0xc0 && i + 1 < end && (data[i + 1] & 0xc0) == 0x80) {
+                    chars[count++] = (char) (((c & 0x1f) << 6) | (data[i + 1] & 0x3f));
+                    i += 2;
+                } else if ((c & 0xf0) == 0xe0 && i + 2 < end && (data[i + 1] & 0xc0) == 0x80
+                        && (data[i + 2] & 0xc0) == 0x80) {
+                    chars[count++] = (char) (((c & 0x0f) << 12) | ((data[i + 1] & 0x3f) << 6)
+                            | (data[i + 2] & 0x3f));
+                    i += 3;
+                } else {
+                    throw new IOException("Malformed string at " + offset);
+                }
+            }
+            return new String(chars, 0, count);
+        }
+
+        private final byte[] mData;
+        private final int[] mOffsets;
+        private final String[] mStrings;
+    }
+
+
+    /** Private Members **/
+
+    // "SOOM"
+    private static final int MAGIC = 0x534f4f4d;
+
+    // 2: subscriptions and their periods
+    static final int FORMAT_VERSION = 2;
+
+    // never written, they only tag the currencies and currency packs in an Index
+    private static final byte TYPE_CURRENCY = -1;
+    private static final byte TYPE_CURRENCY_PACK = -2;
+
+    private static final byte TYPE_SINGLE_USE = 1;
+    private static final byte TYPE_LIFETIME = 2;
+    private static final byte TYPE_EQUIPPABLE = 3;
+    private static final byte TYPE_PACK = 4;
+    private static final byte TYPE_UPGRADE = 5;
+    // older readers skip it, so it needs no new format version
+    private static final byte TYPE_TIME_LIMITED = 6;
+
+    private static final byte PURCHASE_MARKET = 1;
+    private static final byte PURCHASE_VIRTUAL_ITEM = 2;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+}
@@ -0,0 +1,524 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.data.JSONConsts;
+import com.soomla.store.domain.MarketItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.TimeLimitedVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the store's metadata JSON (as written by <code>StoreInfo.toJSONObject()</code>) straight
+ * into the domain objects, pulling one token at a time. Unlike parsing it into a
+ * <code>JSONObject</code> first, no tree of the whole catalog is built, so only the JSON string
+ * and the items themselves are in memory while loading.
+ *
+ * The sections may come in any order. Goods are collected per type and returned in the order
+ * <code>StoreInfo</code> always created them: single use, lifetime, equippable, packs, upgrades
+ * and then time-limited goods, since packs and upgrades refer to other goods. Unknown keys are
+ * skipped.
+ */
+class StoreInfoJsonReader {
+
+    /**
+     * Parses the given metadata JSON.
+     *
+     * @param json the store's metadata JSON
+     * @return the parsed catalog
+     * @throws JSONException if the JSON is malformed or an item misses a required value
+     */
+    static StoreInfoBinary.Catalog read(String json) throws JSONException {
+        return new StoreInfoJsonReader(json).readCatalog();
+    }
+
+
+    /** Private functions **/
+
+    private StoreInfoJsonReader(String json) {
+        mTokener = new JSONTokener(json);
+    }
+
+    private StoreInfoBinary.Catalog readCatalog() throws JSONException {
+        StoreInfoBinary.Catalog catalog = new StoreInfoBinary.Catalog();
+        List<VirtualGood> singleUse = new ArrayList<VirtualGood>();
+        List<VirtualGood> lifetime = new ArrayList<VirtualGood>();
+        List<VirtualGood> equippable = new ArrayList<VirtualGood>();
+        List<VirtualGood> packs = new ArrayList<VirtualGood>();
+        List<VirtualGood> upgrades = new ArrayList<VirtualGood>();
+        List<VirtualGood> timeLimited = new ArrayList<VirtualGood>();
+
+        beginObject();
+        while (hasNext()) {
+            String name = nextName();
+            if (name.equals(StoreJSONConsts.STORE_CURRENCIES)) {
+                beginArray();
+                while (hasNext()) {
+                    catalog.currencies.add((VirtualCurrency) readItem(ITEM_CURRENCY));
+                }
+                endArray();
+            } else if (name.equals(StoreJSONConsts.STORE_CURRENCYPACKS)) {
+                beginArray();
+                while (hasNext()) {
+                    catalog.currencyPacks.add((VirtualCurrencyPack) readItem(ITEM_CURRENCY_PACK));
+                }
+                endArray();
+            } else if (name.equals(StoreJSONConsts.STORE_GOODS)) {
+                beginObject();
+                while (hasNext()) {
+                    String section = nextName();
+                    if (section.equals(StoreJSONConsts.STORE_GOODS_SU)) {
+                        readGoods(ITEM_SINGLE_USE, singleUse);
+                    } else if (section.equals(StoreJSONConsts.STORE_GOODS_LT)) {
+                        readGoods(ITEM_LIFETIME, lifetime);
+                    } else if (section.equals(StoreJSONConsts.STORE_GOODS_EQ)) {
+                        readGoods(ITEM_EQUIPPABLE, equippable);
+                    } else if (section.equals(StoreJSONConsts.STORE_GOODS_PA)) {
+                        readGoods(ITEM_PACK, packs);
+                    } else if (section.equals(StoreJSONConsts.STORE_GOODS_UP)) {
+                        readGoods(ITEM_UPGRADE, upgrades);
+                    } else if (section.equals(StoreJSONConsts.STORE_GOODS_TL)) {
+                        readGoods(ITEM_TIME_LIMITED, timeLimited);
+                    } else {
+                        skipValue();
+                    }
+                }
+                endObject();
+            } else if (name.equals(StoreJSONConsts.STORE_CATEGORIES)) {
+                beginArray();
+                while (hasNext()) {
+                    catalog.categories.add(readCategory());
+                }
+                endArray();
+            } else {
+                skipValue();
+            }
+        }
+        endObject();
+
+        // The order in which VirtualGoods are created matters!
+        // For example: VGU and VGP depend on other VGs
+        catalog.goods.addAll(singleUse);
+        catalog.goods.addAll(lifetime);
+        catalog.goods.addAll(equippable);
+        catalog.goods.addAll(packs);
+        catalog.goods.addAll(upgrades);
+        catalog.goods.addAll(timeLimited);
+        return catalog;
+    }
+
+    private void readGoods(int type, List<VirtualGood> goods) throws JSONException {
+        beginArray();
+        while (hasNext()) {
+            goods.add((VirtualGood) readItem(type));
+        }
+        endArray();
+    }
+
+    /**
+     * Reads one item object. The values of all item types are collected in one pass, then the
+     * item of the given type is constructed from the ones it uses.
+     */
+    private Object readItem(int type) throws JSONException {
+        String itemName = "";
+        String description = "";
+        String itemId = null;
+        PurchaseType purchaseType = null;
+        Integer amount = null;
+        String targetItemId = null;
+        String equipping = null;
+        String prevItemId = null;
+        String nextItemId = null;
+        Long lifetime = null;
+        String stacking = null;
+
+        beginObject();
+        while (hasNext()) {
+            String name = nextName();
+            if (name.equals(JSONConsts.SOOM_ENTITY_NAME)) {
+                itemName = optString(nextString());
+            } else if (name.equals(JSONConsts.SOOM_ENTITY_DESCRIPTION)) {
+                description = optString(nextString());
+            } else if (name.equals(JSONConsts.SOOM_ENTITY_ID)) {
+                itemId = nextString();
+            } else if (name.equals(StoreJSONConsts.PURCHASABLE_ITEM)) {
+                purchaseType = readPurchaseType();
+            } else if (name.equals(StoreJSONConsts.CURRENCYPACK_CURRENCYAMOUNT)
+                    || name.equals(StoreJSONConsts.VGP_GOOD_AMOUNT)) {
+                amount = nextInt();
+            } else if (name.equals(StoreJSONConsts.CURRENCYPACK_CURRENCYITEMID)
+                    || name.equals(StoreJSONConsts.VGP_GOOD_ITEMID)) {
+                // also VGU_GOOD_ITEMID, which is the same key
+                targetItemId = nextString();
+            } else if (name.equals(StoreJSONConsts.EQUIPPABLE_EQUIPPING)) {
+                equipping = nextString();
+            } else if (name.equals(StoreJSONConsts.VGU_PREV_ITEMID)) {
+                prevItemId = nextString();
+            } else if (name.equals(StoreJSONConsts.VGU_NEXT_ITEMID)) {
+                nextItemId = nextString();
+            } else if (name.equals(StoreJSONConsts.VGT_LIFETIME)) {
+                lifetime = nextLong();
+            } else if (name.equals(StoreJSONConsts.VGT_STACKING)) {
+                stacking = nextString();
+            } else {
+                skipValue();
+            }
+        }
+        endObject();
+
+        required(JSONConsts.SOOM_ENTITY_ID, itemId);
+        if (type == ITEM_CURRENCY) {
+            return new VirtualCurrency(itemName, description, itemId);
+        }
+
+        required(StoreJSONConsts.PURCHASABLE_ITEM, purchaseType);
+        switch (type) {
+            case ITEM_CURRENCY_PACK:
+                required(StoreJSONConsts.CURRENCYPACK_CURRENCYAMOUNT, amount);
+                required(StoreJSONConsts.CURRENCYPACK_CURRENCYITEMID, targetItemId);
+                return new VirtualCurrencyPack(itemName, description, itemId, amount,
+                        targetItemId, purchaseType);
+            case ITEM_SINGLE_USE:
+                return new SingleUseVG(itemName, description, itemId, purchaseType);
+            case ITEM_LIFETIME:
+                return new LifetimeVG(itemName, description, itemId, purchaseType);
+            case ITEM_EQUIPPABLE:
+                required(StoreJSONConsts.EQUIPPABLE_EQUIPPING, equipping);
+                return new EquippableVG(EquippableVG.EquippingModel.fromString(equipping),
+                        itemName, description, itemId, purchaseType);
+            case ITEM_PACK:
+                required(StoreJSONConsts.VGP_GOOD_ITEMID, targetItemId);
+                required(StoreJSONConsts.VGP_GOOD_AMOUNT, amount);
+                return new SingleUsePackVG(targetItemId, amount, itemName, description, itemId,
+                        purchaseType);
+            case ITEM_TIME_LIMITED:
+                required(StoreJSONConsts.VGT_LIFETIME, lifetime);
+                // an unknown stacking rule counts as a missing one
+                TimeLimitedVG.Stacking stackingRule = TimeLimitedVG.Stacking.fromString(stacking);
+                required(StoreJSONConsts.VGT_STACKING, stackingRule);
+                return new TimeLimitedVG(itemName, description, itemId, purchaseType, lifetime,
+                        stackingRule);
+            default:
+                required(StoreJSONConsts.VGU_GOOD_ITEMID, targetItemId);
+                required(StoreJSONConsts.VGU_PREV_ITEMID, prevItemId);
+                required(StoreJSONConsts.VGU_NEXT_ITEMID, nextItemId);
+                return new UpgradeVG(targetItemId, prevItemId, nextItemId, itemName, description,
+                        itemId, purchaseType);
+        }
+    }
+
+    private PurchaseType readPurchaseType() throws JSONException {
+        String purchaseType = null;
+        MarketItem marketItem = null;
+        boolean isSubscription = false;
+        long subscriptionPeriod = 0;
+        String itemId = null;
+        Integer amount = null;
+
+        beginObject();
+        while (hasNext()) {
+            String name = nextName();
+            if (name.equals(StoreJSONConsts.PURCHASE_TYPE)) {
+                purchaseType = nextString();
+            } else if (name.equals(StoreJSONConsts.PURCHASE_MARKET_ITEM)) {
+                marketItem = readMarketItem();
+            } else if (name.equals(StoreJSONConsts.PURCHASE_MARKET_SUBSCRIPTION)) {
+                isSubscription = nextBoolean();
+            } else if (name.equals(StoreJSONConsts.PURCHASE_MARKET_SUBSCRIPTION_PERIOD)) {
+                subscriptionPeriod = nextLong();
+            } else if (name.equals(StoreJSONConsts.PURCHASE_VI_ITEMID)) {
+                itemId = nextString();
+            } else if (name.equals(StoreJSONConsts.PURCHASE_VI_AMOUNT)) {
+                amount = nextInt();
+            } else {
+                skipValue();
+            }
+        }
+        endObject();
+
+        if (StoreJSONConsts.PURCHASE_TYPE_MARKET.equals(purchaseType)) {
+            required(StoreJSONConsts.PURCHASE_MARKET_ITEM, marketItem);
+            return new PurchaseWithMarket(marketItem, isSubscription, subscriptionPeriod);
+        } else if (StoreJSONConsts.PURCHASE_TYPE_VI.equals(purchaseType)) {
+            required(StoreJSONConsts.PURCHASE_VI_ITEMID, itemId);
+            required(StoreJSONConsts.PURCHASE_VI_AMOUNT, amount);
+            return new PurchaseWithVirtualItem(itemId, amount);
+        }
+        throw new JSONException("Purchase type not recognized: " + purchaseType);
+    }
+
+    private MarketItem readMarketItem() throws JSONException {
+        String productId = null;
+        String androidId = null;
+        Double price = null;
+        String marketPriceAndCurrency = "";
+        String marketTitle = "";
+        String marketDescription = "";
+        String marketCurrencyCode = "";
+        long marketPriceMicros = 0;
+
+        beginObject();
+        while (hasNext()) {
+            String name = nextName();
+            if (name.equals(StoreJSONConsts.MARKETITEM_PRODUCT_ID)) {
+                productId = nextString();
+            } else if (name.equals(StoreJSONConsts.MARKETITEM_ANDROID_ID)) {
+                androidId = nextString();
+            } else if (name.equals(StoreJSONConsts.MARKETITEM_PRICE)) {
+                price = nextDouble();
+            } else if (name.equals(StoreJSONConsts.MARKETITEM_MARKETPRICE)) {
+                marketPriceAndCurrency = optString(nextString());
+            } else if (name.equals(StoreJSONConsts.MARKETITEM_MARKETTITLE)) {
+                marketTitle = optString(nextString());
+            } else if (name.equals(StoreJSONConsts.MARKETITEM_MARKETDESC)) {
+                marketDescription = optString(nextString());
+            } else if (name.equals(StoreJSONConsts.MARKETITEM_MARKETCURRENCYCODE)) {
+                marketCurrencyCode = optString(nextString());
+            } else if (name.equals(StoreJSONConsts.MARKETITEM_MARKETPRICEMICROS)) {
+                marketPriceMicros = nextLong();
+            } else {
+                skipValue();
+            }
+        }
+        endObject();
+
+        // the android specific id wins, as in MarketItem(JSONObject)
+        if (androidId != null) {
+            productId = androidId;
+        }
+        required(StoreJSONConsts.MARKETITEM_PRODUCT_ID, productId);
+        required(StoreJSONConsts.MARKETITEM_PRICE, price);
+        MarketItem marketItem = new MarketItem(productId, price);
+        marketItem.setMarketInformation(marketPriceAndCurrency, marketTitle, marketDescription,
+                marketCurrencyCode, marketPriceMicros);
+        return marketItem;
+    }
+
+    private VirtualCategory readCategory() throws JSONException {
+        String name = null;
+        ArrayList<String> goodsItemIds = null;
+
+        beginObject();
+        while (hasNext()) {
+            String key = nextName();
+            if (key.equals(StoreJSONConsts.CATEGORY_NAME)) {
+                name = nextString();
+            } else if (key.equals(StoreJSONConsts.CATEGORY_GOODSITEMIDS)) {
+                goodsItemIds = new ArrayList<String>();
+                beginArray();
+                while (hasNext()) {
+                    goodsItemIds.add(nextString());
+                }
+                endArray();
+            } else {
+                skipValue();
+            }
+        }
+        endObject();
+
+        required(StoreJSONConsts.CATEGORY_NAME, name);
+        required(StoreJSONConsts.CATEGORY_GOODSITEMIDS, goodsItemIds);
+        return new VirtualCategory(name, goodsItemIds);
+    }
+
+    private static void required(String name, Object value) throws JSONException {
+        if (value == null) {
+            throw new JSONException("No value for " + name);
+        }
+    }
+
+    private static String optString(String value) {
+        return value != null ? value : "";
+    }
+
+
+    /** Tokens **/
+
+    private void beginObject() throws JSONException {
+        expect('{');
+    }
+
+    private void endObject() throws JSONException {
+        expect('}');
+    }
+
+    private void beginArray() throws JSONException {
+        expect('[');
+    }
+
+    private void endArray() throws JSONException {
+        expect(']');
+    }
+
+    /**
+     * Checks if the current object or array has another member, consuming the comma before it.
+     */
+    private boolean hasNext() throws JSONException {
+        char c = mTokener.nextClean();
+        if (c == ',') {
+            c = mTokener.nextClean();
+        }
+        if (c == 0) {
+            throw mTokener.syntaxError("Unterminated object or array");
+        }
+        mTokener.back();
+        return c != '}' && c != ']';
+    }
+
+    private String nextName() throws JSONException {
+        char c = mTokener.nextClean();
+        if (c == ',') {
+            c = mTokener.nextClean();
+        }
+        if (c != '"' && c != '\'') {
+            throw mTokener.syntaxError("Expected a name");
+        }
+        String name = mTokener.nextString(c);
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Reads a string, or a number or boolean as a string, like
+     * <code>JSONObject.getString</code>.
+     *
+     * @return the value, or null if it's a JSON null
+     */
+    private String nextString() throws JSONException {
+        char c = mTokener.nextClean();
+        if (c == '"' || c == '\'') {
+            return mTokener.nextString(c);
+        }
+        if (c == '{' || c == '[') {
+            throw mTokener.syntaxError("Expected a string");
+        }
+        mTokener.back();
+        Object value = mTokener.nextValue();
+        return JSONObject.NULL.equals(value) ? null : value.toString();
+    }
+
+    private boolean nextBoolean() throws JSONException {
+        Object value = nextPrimitive();
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if ("true".equalsIgnoreCase(value.toString())) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value.toString())) {
+            return false;
+        }
+        throw new JSONException("Expected a boolean but was " + value);
+    }
+
+    private int nextInt() throws JSONException {
+        return (int) nextDouble();
+    }
+
+    private long nextLong() throws JSONException {
+        Object value = nextPrimitive();
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return (long) Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            throw new JSONException("Expected a number but was " + value);
+        }
+    }
+
+    private double nextDouble() throws JSONException {
+        Object value = nextPrimitive();
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            throw new JSONException("Expected a number but was " + value);
+        }
+    }
+
+    private Object nextPrimitive() throws JSONException {
+        char c = mTokener.nextClean();
+        if (c == '{' || c == '[') {
+            throw mTokener.syntaxError("Expected a number");
+        }
+        mTokener.back();
+        return mTokener.nextValue();
+    }
+
+    /**
+     * Skips the next value, including all of its nested values, without building it.
+     */
+    private void skipValue() throws JSONException {
+        char c = mTokener.nextClean();
+        mTokener.back();
+        if (c == '{') {
+            beginObject();
+            while (hasNext()) {
+                nextName();
+                skipValue();
+            }
+            endObject();
+        } else if (c == '[') {
+            beginArray();
+            while (hasNext()) {
+                skipValue();
+            }
+            endArray();
+        } else {
+            mTokener.nextValue();
+        }
+    }
+
+    private void expect(char expected) throws JSONException {
+        if (mTokener.nextClean() != expected) {
+            throw mTokener.syntaxError("Expected " + expected);
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static final int ITEM_CURRENCY = 0;
+    private static final int ITEM_CURRENCY_PACK = 1;
+    private static final int ITEM_SINGLE_USE = 2;
+    private static final int ITEM_LIFETIME = 3;
+    private static final int ITEM_EQUIPPABLE = 4;
+    private static final int ITEM_PACK = 5;
+    private static final int ITEM_UPGRADE = 6;
+    private static final int ITEM_TIME_LIMITED = 7;
+
+    private final JSONTokener mTokener;
+}
@@ -31,6 +31,7 @@ public class StoreJSONConsts {
     public static final String STORE_GOODS_UP           = "goodUpgrades";
     public static final String STORE_GOODS_LT           = "lifetime";
     public static final String STORE_GOODS_EQ           = "equippable";
+    public static final String STORE_GOODS_TL           = "timeLimited";
 
     public static final String CATEGORY_NAME            = "name";
     public static final String CATEGORY_GOODSITEMIDS    = "goods_itemIds";
@@ -50,6 +51,10 @@ public class StoreJSONConsts {
     public static final String VGP_GOOD_ITEMID          = "good_itemId";
     public static final String VGP_GOOD_AMOUNT          = "good_amount";
 
+    // VGT = TimeLimitedVG
+    public static final String VGT_LIFETIME             = "lifetime";
+    public static final String VGT_STACKING             = "stacking";
+
     // VGU = UpgradeVG
     public static final String VGU_GOOD_ITEMID          = "good_itemId";
     public static final String VGU_PREV_ITEMID          = "prev_itemId";
@@ -66,6 +71,8 @@ public class StoreJSONConsts {
     public static final String PURCHASE_TYPE_VI         = "virtualItem";
 
     public static final String PURCHASE_MARKET_ITEM     = "marketItem";
+    public static final String PURCHASE_MARKET_SUBSCRIPTION = "isSubscription";
+    public static final String PURCHASE_MARKET_SUBSCRIPTION_PERIOD = "subscriptionPeriod";
 
     public static final String PURCHASE_VI_ITEMID       = "pvi_itemId";
     public static final String PURCHASE_VI_AMOUNT       = "pvi_amount";
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import android.text.TextUtils;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The itemIds that may have per-item values (balances, equip states, upgrades, expiry times) in
+ * <code>KeyValueStorage</code>, persisted so the store's inventory can be cleared without
+ * loading every key of the database.
+ *
+ * <code>KeyValueStorage</code> is shared with the other SOOMLA modules and can only list all of
+ * its keys at once, which is slow on big databases. Instead, every itemId is registered here
+ * before the first key of the item is written: the catalog's items when <code>StoreInfo</code>
+ * publishes a catalog, and any other item right before one of its values is written. Reading
+ * the values of an unknown itemId registers nothing. Clearing then only touches the registered
+ * items' keys.
+ *
+ * Keys written before this index existed are found with one last full scan, on the first clear.
+ */
+final class StoreKeyIndex {
+
+    /**
+     * Registers the currencies and goods of the given catalog.
+     *
+     * @param catalog the catalog that is about to be published
+     */
+    static synchronized void register(StoreCatalog catalog) {
+        load();
+        boolean added = false;
+        for (String itemId : catalog.getBalanceItemIds()) {
+            added |= mItemIds.add(itemId);
+        }
+        if (added) {
+            save();
+        }
+    }
+
+    /**
+     * Registers the given itemId.
+     *
+     * @param itemId the itemId whose keys are about to be used
+     */
+    static synchronized void register(String itemId) {
+        load();
+        if (mItemIds.add(itemId)) {
+            save();
+        }
+    }
+
+    /**
+     * Registers the given itemId before one of its values is written, unless it's a catalog item,
+     * which was registered with its catalog.
+     *
+     * @param itemId the itemId whose value is about to be written
+     */
+    static void registerForWrite(String itemId) {
+        if (ItemHandles.handleOf(itemId) < 0) {
+            register(itemId);
+        }
+    }
+
+    /**
+     * Stages the deletion of all per-item keys of the store in the given batch. Call
+     * {@link #cleared()} once the batch was committed.
+     *
+     * @param batch the batch to add the deletions to
+     */
+    static void stageClear(KeyValueBatch batch) {
+        List<String> itemIds;
+        boolean complete;
+        synchronized (StoreKeyIndex.class) {
+            load();
+            itemIds = new ArrayList<String>(mItemIds);
+            complete = mComplete;
+        }
+
+        if (!complete) {
+            SoomlaUtils.LogDebug(TAG, "Clearing the keys written before the index existed.");
+            for (String key : KeyValueStorage.getEncryptedKeys()) {
+                if (key.startsWith(StoreInfo.DB_NONCONSUMABLE_KEY_PREFIX) ||
+                        key.startsWith(VirtualCurrencyStorage.DB_CURRENCY_KEY_PREFIX) ||
+                        key.startsWith(VirtualGoodsStorage.DB_KEY_GOOD_PREFIX)) {
+                    batch.deleteKeyValue(key);
+                }
+            }
+            batch.setValue(KEY_COMPLETE, "true");
+        }
+
+        for (String itemId : itemIds) {
+            batch.deleteKeyValue(VirtualCurrencyStorage.keyCurrencyBalance(itemId));
+            batch.deleteKeyValue(VirtualGoodsStorage.keyGoodBalance(itemId));
+            batch.deleteKeyValue(VirtualGoodsStorage.keyGoodEquipped(itemId));
+            batch.deleteKeyValue(VirtualGoodsStorage.keyGoodUpgrade(itemId));
+            batch.deleteKeyValue(VirtualGoodsStorage.keyGoodExpiries(itemId));
+            batch.deleteKeyValue(StoreInfo.DB_NONCONSUMABLE_KEY_PREFIX + itemId + ".exists");
+        }
+        batch.deleteKeyValue(GoodExpiryEngine.KEY_EXPIRING_GOODS);
+    }
+
+    /**
+     * Records that a batch from {@link #stageClear(KeyValueBatch)} was committed, so the next
+     * clear trusts the index.
+     */
+    static synchronized void cleared() {
+        mComplete = true;
+    }
+
+
+    /** Private functions **/
+
+    private static void load() {
+        if (mItemIds != null) {
+            return;
+        }
+        mItemIds = new LinkedHashSet<String>();
+        String val = KeyValueStorage.getValue(KEY_ITEMS);
+        if (!TextUtils.isEmpty(val)) {
+            try {
+                JSONArray itemIds = new JSONArray(val);
+                for (int i = 0; i < itemIds.length(); i++) {
+                    mItemIds.add(itemIds.getString(i));
+                }
+            } catch (JSONException e) {
+                SoomlaUtils.LogError(TAG, "The key index is corrupted. Rebuilding it. "
+                        + e.getMessage());
+                // items may have keys that aren't in the index anymore
+                KeyValueStorage.deleteKeyValue(KEY_COMPLETE);
+            }
+        }
+        mComplete = KeyValueStorage.getValue(KEY_COMPLETE) != null;
+    }
+
+    private static void save() {
+        KeyValueStorage.setValue(KEY_ITEMS, new JSONArray(mItemIds).toString());
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA StoreKeyIndex"; //used for Log messages
+
+    private static final String KEY_ITEMS = "store.keys.items";
+    private static final String KEY_COMPLETE = "store.keys.complete";
+
+    // loaded on first use, in the order the items were registered
+    private static LinkedHashSet<String> mItemIds;
+    private static boolean mComplete;
+}
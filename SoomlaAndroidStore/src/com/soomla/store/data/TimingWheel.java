@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel: schedules values to expire at given times, in O(1), and finds the
+ * expired ones by looking only at the slots the clock went past since the last call, instead of
+ * at every scheduled value.
+ *
+ * The first level has <code>wheelSize</code> slots of <code>tickMillis</code> each, and every
+ * further level has <code>wheelSize</code> slots as long as a whole turn of the level below it.
+ * A value is put on the finest level its deadline fits in. When the clock reaches a slot of a
+ * coarser level, its values move down to the finer levels, so every value is moved at most once
+ * per level. Deadlines are rounded up to a whole tick.
+ *
+ * This class isn't thread safe; its owner synchronizes it.
+ *
+ * @param <T> the type of the scheduled values
+ */
+public class TimingWheel<T> {
+
+    /**
+     * Constructor
+     *
+     * @param tickMillis the length of a slot of the first level in milliseconds
+     * @param wheelSize the number of slots of every level
+     * @param startMillis the time the wheel starts at
+     */
+    @SuppressWarnings("rawtypes")
+    public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        if (tickMillis < 1 || wheelSize < 2) {
+            throw new IllegalArgumentException(
+                    "tickMillis must be positive and wheelSize at least 2");
+        }
+        mTickMillis = tickMillis;
+        mWheelSize = wheelSize;
+        mTick = startMillis / tickMillis;
+
+        // as many levels as it takes to cover every tick a long can hold
+        List<Long> spans = new ArrayList<Long>();
+        long span = 1;
+        spans.add(span);
+        while (span <= Long.MAX_VALUE / wheelSize / wheelSize) {
+            span *= wheelSize;
+            spans.add(span);
+        }
+        mSpans = new long[spans.size()];
+        for (int i = 0; i < mSpans.length; i++) {
+            mSpans[i] = spans.get(i);
+        }
+        mLevels = new Timeout[mSpans.length][];
+        mLevelSizes = new int[mSpans.length];
+    }
+
+    /**
+     * Schedules the given value to expire at the given time. A deadline that already passed
+     * expires on the next call to {@link #advanceTo(long)}.
+     *
+     * @param value the value to schedule
+     * @param deadlineMillis the time the value expires at
+     * @return the handle to cancel the value with
+     */
+    public Timeout<T> schedule(T value, long deadlineMillis) {
+        Timeout<T> timeout = new Timeout<T>(value, deadlineMillis);
+        timeout.mTick = Math.max(divideRoundingUp(deadlineMillis, mTickMillis), mTick + 1);
+        place(timeout);
+        mSize++;
+        return timeout;
+    }
+
+    /**
+     * Cancels the given value, if it didn't expire yet.
+     *
+     * @param timeout the handle returned when the value was scheduled
+     * @return true if the value was cancelled, false if it already expired or was cancelled
+     */
+    public boolean cancel(Timeout<T> timeout) {
+        if (timeout.mSlot < 0) {
+            return false;
+        }
+        unlink(timeout);
+        mSize--;
+        return true;
+    }
+
+    /**
+     * Moves the wheel to the given time and takes the values that expired on the way.
+     *
+     * @param nowMillis the current time
+     * @return the expired values, in the order of their ticks
+     */
+    public List<T> advanceTo(long nowMillis) {
+        List<T> expired = new ArrayList<T>();
+        long target = nowMillis / mTickMillis;
+        while (mTick < target) {
+            int emptyLevels = 0;
+            while (emptyLevels < mSpans.length && mLevelSizes[emptyLevels] == 0) {
+                emptyLevels++;
+            }
+            if (emptyLevels == mSpans.length) {
+                mTick = target;
+                break;
+            }
+            if (emptyLevels > 0) {
+                // nothing happens before the next slot of the first level that isn't empty
+                long span = mSpans[emptyLevels];
+                long skipTo = (mTick / span + 1) * span - 1;
+                if (skipTo >= target) {
+                    mTick = target;
+                    break;
+                }
+                mTick = Math.max(mTick, skipTo);
+            }
+            tick(expired);
+        }
+        return expired;
+    }
+
+    /**
+     * Retrieves the next time {@link #advanceTo(long)} has something to do: the earliest deadline
+     * on the first level, or the time values move down from a coarser level.
+     *
+     * @return the time in milliseconds, or <code>Long.MAX_VALUE</code> if the wheel is empty
+     */
+    public long nextExpiryMillis() {
+        long next = Long.MAX_VALUE;
+        // values that move down may be due before the ones already on the first level
+        for (int level = 1; level < mSpans.length; level++) {
+            if (mLevelSizes[level] > 0) {
+                next = (mTick / mSpans[level] + 1) * mSpans[level];
+                break;
+            }
+        }
+        if (mLevelSizes[0] > 0) {
+            for (long tick = mTick + 1; tick <= mTick + mWheelSize && tick < next; tick++) {
+                if (mLevels[0][(int) (tick % mWheelSize)] != null) {
+                    next = tick;
+                    break;
+                }
+            }
+        }
+        return next == Long.MAX_VALUE ? next : next * mTickMillis;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getTickMillis() {
+        return mTickMillis;
+    }
+
+    /**
+     * The time source of a wheel's owner, so tests can move time by hand.
+     */
+    public interface Clock {
+
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return System.currentTimeMillis();
+            }
+        };
+
+        long currentTimeMillis();
+    }
+
+    /**
+     * A value scheduled in the wheel.
+     *
+     * @param <T> the type of the value
+     */
+    public static class Timeout<T> {
+
+        Timeout(T value, long deadlineMillis) {
+            mValue = value;
+            mDeadlineMillis = deadlineMillis;
+        }
+
+        public T getValue() {
+            return mValue;
+        }
+
+        public long getDeadlineMillis() {
+            return mDeadlineMillis;
+        }
+
+        private final T mValue;
+        private final long mDeadlineMillis;
+        private long mTick;
+        private int mLevel;
+        private int mSlot = -1;
+        private Timeout<T> mPrev;
+        private Timeout<T> mNext;
+    }
+
+
+    /** Private functions **/
+
+    /**
+     * Moves the clock one tick forward: moves down the values of the coarser slots that start
+     * at the new tick, then takes the values of the first level's slot.
+     */
+    @SuppressWarnings("unchecked")
+    private void tick(List<T> expired) {
+        mTick++;
+        for (int level = mSpans.length - 1; level > 0; level--) {
+            if (mLevelSizes[level] > 0 && mTick % mSpans[level] == 0) {
+                int slot = (int) ((mTick / mSpans[level]) % mWheelSize);
+                Timeout<T> timeout = mLevels[level][slot];
+                while (timeout != null) {
+                    Timeout<T> next = timeout.mNext;
+                    unlink(timeout);
+                    if (timeout.mTick <= mTick) {
+                        mSize--;
+                        expired.add(timeout.mValue);
+                    } else {
+                        place(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+        }
+
+        if (mLevelSizes[0] > 0) {
+            Timeout<T> timeout = mLevels[0][(int) (mTick % mWheelSize)];
+            while (timeout != null) {
+                Timeout<T> next = timeout.mNext;
+                // values that just moved down may be due a whole turn later
+                if (timeout.mTick <= mTick) {
+                    unlink(timeout);
+                    mSize--;
+                    expired.add(timeout.mValue);
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Links the given value into the slot of its tick on the finest level that reaches it.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void place(Timeout<T> timeout) {
+        int level = 0;
+        while (level < mSpans.length - 1
+                && timeout.mTick / mSpans[level] - mTick / mSpans[level] > mWheelSize) {
+            level++;
+        }
+        if (mLevels[level] == null) {
+            mLevels[level] = new Timeout[mWheelSize];
+        }
+        int slot = (int) ((timeout.mTick / mSpans[level]) % mWheelSize);
+        Timeout<T> head = mLevels[level][slot];
+        timeout.mLevel = level;
+        timeout.mSlot = slot;
+        timeout.mNext = head;
+        if (head != null) {
+            head.mPrev = timeout;
+        }
+        mLevels[level][slot] = timeout;
+        mLevelSizes[level]++;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        if (timeout.mPrev != null) {
+            timeout.mPrev.mNext = timeout.mNext;
+        } else {
+            mLevels[timeout.mLevel][timeout.mSlot] = timeout.mNext;
+        }
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrev = timeout.mPrev;
+        }
+        mLevelSizes[timeout.mLevel]--;
+        timeout.mPrev = null;
+        timeout.mNext = null;
+        timeout.mSlot = -1;
+    }
+
+    private static long divideRoundingUp(long value, long divisor) {
+        long quotient = value / divisor;
+        return value % divisor > 0 ? quotient + 1 : quotient;
+    }
+
+
+    /** Private Members **/
+
+    private final long mTickMillis;
+    private final int mWheelSize;
+
+    // the number of ticks a slot of every level spans
+    private final long[] mSpans;
+    @SuppressWarnings("rawtypes")
+    private final Timeout[][] mLevels;
+    private final int[] mLevelSizes;
+
+    // the last tick whose slots were visited
+    private long mTick;
+    private int mSize = 0;
+}
@@ -49,9 +49,13 @@ public class VirtualCurrencyStorage extends VirtualItemStorage{
                 balance, amountAdded));
     }
 
-    private static String keyCurrencyBalance(String itemId) {
-        return DB_CURRENCY_KEY_PREFIX + itemId + ".balance";
+    static String keyCurrencyBalance(String itemId) {
+        return BALANCE_KEYS.keyOf(itemId);
     }
 
     public final static String DB_CURRENCY_KEY_PREFIX = "currency.";
+
+    // the keys are built once per item
+    private static final ItemKeyCache BALANCE_KEYS =
+            new ItemKeyCache(DB_CURRENCY_KEY_PREFIX, ".balance");
 }
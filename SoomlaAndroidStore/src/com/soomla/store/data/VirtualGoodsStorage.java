@@ -27,8 +27,14 @@ import com.soomla.store.events.GoodUnEquippedEvent;
 import com.soomla.store.events.GoodUpgradeEvent;
 import com.soomla.store.exceptions.VirtualItemNotFoundException;
 
+import java.util.Arrays;
+
 /**
  * This class provides basic storage operations on virtual goods.
+ * Like the balances, the goods' equip and upgrade states and the expiry times of time-limited
+ * goods are kept in memory after the first read and written through to
+ * <code>KeyValueStorage</code> on every change. Only catalog goods are kept; the states of other
+ * itemIds are read from <code>KeyValueStorage</code> every time.
  */
 public class VirtualGoodsStorage extends VirtualItemStorage{
 
@@ -58,9 +64,11 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
         SoomlaUtils.LogDebug(mTag, "Removing upgrade information from virtual good: " +
                 goodItemId);
 
-        String key = keyGoodUpgrade(goodItemId);
-
-        KeyValueStorage.deleteKeyValue(key);
+        GoodState state = goodState(goodItemId);
+        synchronized (state) {
+            KeyValueStorage.deleteKeyValue(keyGoodUpgrade(goodItemId));
+            state.upgradeItemId = null;
+        }
 
         if (notify) {
             BusProvider.getInstance().post(new GoodUpgradeEvent(goodItemId, null));
@@ -103,9 +111,12 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
         SoomlaUtils.LogDebug(mTag, "Assigning upgrade " + upgradeVGItemId + " to virtual good: "
                 + goodItemId);
 
-        String key = keyGoodUpgrade(goodItemId);
-
-        KeyValueStorage.setValue(key, upgradeVGItemId);
+        StoreKeyIndex.registerForWrite(goodItemId);
+        GoodState state = goodState(goodItemId);
+        synchronized (state) {
+            KeyValueStorage.setValue(keyGoodUpgrade(goodItemId), upgradeVGItemId);
+            state.upgradeItemId = upgradeVGItemId;
+        }
 
         if (notify) {
             BusProvider.getInstance().post(new GoodUpgradeEvent(goodItemId, upgradeVGItemId));
@@ -121,9 +132,7 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
     public String getCurrentUpgrade(String goodItemId) {
         SoomlaUtils.LogDebug(mTag, "Fetching upgrade to virtual good: " + goodItemId);
 
-        String key = keyGoodUpgrade(goodItemId);
-
-        String upItemId = KeyValueStorage.getValue(key);
+        String upItemId = goodState(goodItemId).upgradeItemId;
 
         if (upItemId == null) {
             SoomlaUtils.LogDebug(mTag, "You tried to fetch the current upgrade of " + goodItemId
@@ -141,6 +150,16 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
         return null;
     }
 
+    /**
+     * Retrieves the itemId of the current upgrade of the virtual good with the given handle.
+     *
+     * @param goodHandle the handle of the virtual good to retrieve upgrade for
+     * @return the current upgrade's itemId, or null if the good has no upgrade
+     */
+    public String getCurrentUpgrade(int goodHandle) {
+        return goodState(goodHandle).upgradeItemId;
+    }
+
     /**
      * Checks if the given <code>EquippableVG</code> is currently equipped or not.
      *
@@ -151,10 +170,17 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
         SoomlaUtils.LogDebug(mTag, "checking if virtual good with itemId: " + goodItemId +
                 " is equipped.");
 
-        String key = keyGoodEquipped(goodItemId);
-        String val = KeyValueStorage.getValue(key);
+        return goodState(goodItemId).equipped;
+    }
 
-        return val != null;
+    /**
+     * Checks if the <code>EquippableVG</code> with the given handle is currently equipped.
+     *
+     * @param goodHandle the handle of the <code>EquippableVG</code> to check the status for
+     * @return true if the good is equipped, false otherwise
+     */
+    public boolean isEquipped(int goodHandle) {
+        return goodState(goodHandle).equipped;
     }
 
     /**
@@ -201,6 +227,75 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
         equipPriv(goodItemId, false, notify);
     }
 
+    /**
+     * Retrieves the times the running grants of the given time-limited good expire at.
+     *
+     * @param goodItemId the <code>TimeLimitedVG</code> to retrieve the expiry times of
+     * @return the expiry times in milliseconds, earliest first. Empty if nothing is running.
+     */
+    public long[] getExpiries(String goodItemId) {
+        GoodState state = goodState(goodItemId);
+        synchronized (state) {
+            if (state.expiries == null) {
+                state.expiries = parseExpiries(
+                        KeyValueStorage.getValue(keyGoodExpiries(goodItemId)));
+            }
+            return state.expiries.clone();
+        }
+    }
+
+    /**
+     * Replaces the times the running grants of the given time-limited good expire at.
+     *
+     * @param goodItemId the <code>TimeLimitedVG</code> to set the expiry times of
+     * @param expiries the expiry times in milliseconds, in any order
+     */
+    public void setExpiries(String goodItemId, long[] expiries) {
+        long[] sorted = expiries.clone();
+        Arrays.sort(sorted);
+
+        GoodState state = goodState(goodItemId);
+        synchronized (state) {
+            if (sorted.length == 0) {
+                KeyValueStorage.deleteKeyValue(keyGoodExpiries(goodItemId));
+            } else {
+                StoreKeyIndex.registerForWrite(goodItemId);
+                StringBuilder val = new StringBuilder();
+                for (long expiry : sorted) {
+                    if (val.length() > 0) {
+                        val.append(',');
+                    }
+                    val.append(expiry);
+                }
+                KeyValueStorage.setValue(keyGoodExpiries(goodItemId), val.toString());
+            }
+            state.expiries = sorted;
+        }
+    }
+
+    /**
+     * Stages the assignment of the given upgrade to the given virtual good in the given batch.
+     * No event is posted; that is up to the caller once the batch is committed.
+     *
+     * @param goodItemId the virtual good to upgrade
+     * @param upgradeVGItemId the upgrade to assign
+     * @param batch the batch to add the write to
+     */
+    void stageUpgrade(String goodItemId, String upgradeVGItemId, KeyValueBatch batch) {
+        StoreKeyIndex.registerForWrite(goodItemId);
+        batch.setValue(keyGoodUpgrade(goodItemId), upgradeVGItemId);
+        // the batch is committed right after the upgrades are staged
+        goodState(goodItemId).upgradeItemId = upgradeVGItemId;
+    }
+
+    /**
+     * Drops the cached equip and upgrade states and expiry times, so the next reads go to
+     * <code>KeyValueStorage</code>.
+     */
+    void invalidateGoodStates() {
+        mGoodStates.clear();
+    }
+
     /**
      * @{inheritDoc}
      */
@@ -225,14 +320,22 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
         SoomlaUtils.LogDebug(mTag, (!equip ? "unequipping " : "equipping ") + goodItemId + ".");
 
         String key = keyGoodEquipped(goodItemId);
+        GoodState state = goodState(goodItemId);
 
         if (equip) {
-            KeyValueStorage.setValue(key, "");
+            StoreKeyIndex.registerForWrite(goodItemId);
+            synchronized (state) {
+                KeyValueStorage.setValue(key, "");
+                state.equipped = true;
+            }
             if (notify) {
                 BusProvider.getInstance().post(new GoodEquippedEvent(goodItemId));
             }
         } else {
-            KeyValueStorage.deleteKeyValue(key);
+            synchronized (state) {
+                KeyValueStorage.deleteKeyValue(key);
+                state.equipped = false;
+            }
             if (notify) {
                 BusProvider.getInstance().post(new GoodUnEquippedEvent(goodItemId));
             }
@@ -240,17 +343,99 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
     }
 
 
-    private static String keyGoodBalance(String itemId) {
-        return DB_KEY_GOOD_PREFIX + itemId + ".balance";
+    private long[] parseExpiries(String val) {
+        if (TextUtils.isEmpty(val)) {
+            return new long[0];
+        }
+        String[] parts = val.split(",");
+        long[] expiries = new long[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                expiries[i] = Long.parseLong(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            SoomlaUtils.LogError(mTag, "Couldn't read expiry times: " + val);
+            return new long[0];
+        }
+        return expiries;
+    }
+
+    /**
+     * Retrieves the equip and upgrade state of the given good. A good that isn't in the catalog
+     * gets a new state, loaded from <code>KeyValueStorage</code>, that isn't kept.
+     */
+    private GoodState goodState(String goodItemId) {
+        int goodHandle = ItemHandles.handleOf(goodItemId);
+        if (goodHandle < 0) {
+            return loadGoodState(goodItemId);
+        }
+        return goodState(goodHandle);
+    }
+
+    /**
+     * Retrieves the equip and upgrade state of the good with the given handle, loading it from
+     * <code>KeyValueStorage</code> on the first access.
+     */
+    private GoodState goodState(int goodHandle) {
+        GoodState state = mGoodStates.get(goodHandle);
+        if (state == null) {
+            state = mGoodStates.putIfAbsent(goodHandle,
+                    loadGoodState(ItemHandles.itemIdOf(goodHandle)));
+        }
+        return state;
+    }
+
+    private GoodState loadGoodState(String goodItemId) {
+        return new GoodState(KeyValueStorage.getValue(keyGoodEquipped(goodItemId)) != null,
+                KeyValueStorage.getValue(keyGoodUpgrade(goodItemId)));
+    }
+
+    /**
+     * The equip and upgrade state and the expiry times of a single good. Changes write
+     * <code>KeyValueStorage</code> and the state together, under the state's lock.
+     */
+    private static class GoodState {
+        GoodState(boolean equipped, String upgradeItemId) {
+            this.equipped = equipped;
+            this.upgradeItemId = upgradeItemId;
+        }
+
+        volatile boolean equipped;
+        volatile String upgradeItemId;
+
+        // loaded on the first access, guarded by the state's lock
+        long[] expiries;
+    }
+
+
+    static String keyGoodBalance(String itemId) {
+        return BALANCE_KEYS.keyOf(itemId);
+    }
+
+    static String keyGoodEquipped(String itemId) {
+        return EQUIPPED_KEYS.keyOf(itemId);
     }
 
-    private static String keyGoodEquipped(String itemId) {
-        return DB_KEY_GOOD_PREFIX + itemId + ".equipped";
+    static String keyGoodUpgrade(String itemId) {
+        return UPGRADE_KEYS.keyOf(itemId);
     }
 
-    private static String keyGoodUpgrade(String itemId) {
-        return DB_KEY_GOOD_PREFIX + itemId + ".currentUpgrade";
+    static String keyGoodExpiries(String itemId) {
+        return EXPIRIES_KEYS.keyOf(itemId);
     }
 
     public final static String DB_KEY_GOOD_PREFIX = "good.";
+
+    // the equip and upgrade states and expiry times by good handle, every change goes through them
+    private final HandleMap<GoodState> mGoodStates = new HandleMap<GoodState>();
+
+    // the keys are built once per item
+    private static final ItemKeyCache BALANCE_KEYS =
+            new ItemKeyCache(DB_KEY_GOOD_PREFIX, ".balance");
+    private static final ItemKeyCache EQUIPPED_KEYS =
+            new ItemKeyCache(DB_KEY_GOOD_PREFIX, ".equipped");
+    private static final ItemKeyCache UPGRADE_KEYS =
+            new ItemKeyCache(DB_KEY_GOOD_PREFIX, ".currentUpgrade");
+    private static final ItemKeyCache EXPIRIES_KEYS =
+            new ItemKeyCache(DB_KEY_GOOD_PREFIX, ".expiries");
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualItem;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.RandomAccess;
+
+/**
+ * A list of virtual items that also keeps the position of every item by its itemId, so that
+ * finding and replacing an item is constant time.
+ *
+ * All modifications go through this class (including the ones made through iterators), so the
+ * positions always match the list.
+ *
+ * @param <T> the type of the virtual items in the list
+ */
+class VirtualItemList<T extends VirtualItem> extends AbstractList<T> implements RandomAccess {
+
+    /**
+     * Constructor
+     */
+    VirtualItemList() {
+        mItems = new ArrayList<T>();
+    }
+
+    /**
+     * Constructor
+     *
+     * @param items the initial items of the list
+     */
+    VirtualItemList(Collection<? extends T> items) {
+        mItems = new ArrayList<T>(items.size());
+        addAll(items);
+    }
+
+    /**
+     * Replaces the item with the same itemId as the given one, keeping its position, or adds the
+     * given item at the end of the list if there's no such item.
+     *
+     * @param item the item to put in the list
+     */
+    void replace(T item) {
+        Integer position = mPositions.get(item.getItemId());
+        if (position != null) {
+            mItems.set(position, item);
+        } else {
+            add(item);
+        }
+    }
+
+    /**
+     * Retrieves the position of the item with the given itemId.
+     *
+     * @param itemId the itemId to look for
+     * @return the item's position, or -1 if it isn't in the list
+     */
+    int positionOf(String itemId) {
+        Integer position = mPositions.get(itemId);
+        return position != null ? position : -1;
+    }
+
+    @Override
+    public T get(int index) {
+        return mItems.get(index);
+    }
+
+    @Override
+    public int size() {
+        return mItems.size();
+    }
+
+    @Override
+    public T set(int index, T item) {
+        T old = mItems.set(index, item);
+        mPositions.remove(old.getItemId());
+        mPositions.put(item.getItemId(), index);
+        return old;
+    }
+
+    @Override
+    public void add(int index, T item) {
+        mItems.add(index, item);
+        reindexFrom(index);
+    }
+
+    @Override
+    public T remove(int index) {
+        T old = mItems.remove(index);
+        mPositions.remove(old.getItemId());
+        reindexFrom(index);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        mItems.clear();
+        mPositions.clear();
+    }
+
+
+    /** Private functions **/
+
+    private void reindexFrom(int index) {
+        for (int i = index; i < mItems.size(); i++) {
+            mPositions.put(mItems.get(i).getItemId(), i);
+        }
+    }
+
+
+    /** Private Members **/
+
+    private final ArrayList<T> mItems;
+
+    // itemId -> position in mItems
+    private final HashMap<String, Integer> mPositions = new HashMap<String, Integer>();
+}
@@ -22,11 +22,15 @@
 
 package com.soomla.store.data;
 
+import com.soomla.SoomlaConfig;
 import com.soomla.SoomlaUtils;
 import com.soomla.data.KeyValueStorage;
 
 /**
  * This class is an abstract definition of a Virtual Item Storage.
+ *
+ * Every balance operation is also available by the item's handle (see {@link ItemHandles}),
+ * which skips the lookup of the itemId.
  */
 public abstract class VirtualItemStorage {
 
@@ -37,22 +41,26 @@ public abstract class VirtualItemStorage {
      * @return the balance of the required virtual item
      */
     public int getBalance(String itemId){
-        SoomlaUtils.LogDebug(mTag, "fetching balance for virtual item with itemId: "
-                + itemId);
-
-        String key = keyBalance(itemId);
-        String val = KeyValueStorage.getValue(key);
+        int balance = mBalanceCache.getBalance(itemId);
 
-        int balance = 0;
-        if (val != null) {
-            balance = Integer.parseInt(val);
+        // balances are read on every frame, so the log messages are only built when needed
+        if (SoomlaConfig.logDebug) {
+            SoomlaUtils.LogDebug(mTag, "the balance for " + itemId + " is " + balance);
         }
 
-        SoomlaUtils.LogDebug(mTag, "the balance for " + itemId + " is " + balance);
-
         return balance;
     }
 
+    /**
+     * Retrieves the balance of the virtual item with the given handle.
+     *
+     * @param handle the required virtual item's handle
+     * @return the balance of the required virtual item
+     */
+    public int getBalance(int handle) {
+        return mBalanceCache.getBalance(handle);
+    }
+
     /**
      * Sets the balance of the given virtual item to be the given balance.
      *
@@ -74,23 +82,20 @@ public abstract class VirtualItemStorage {
      * @return the balance of the required virtual item
      */
     public int setBalance(String itemId, int balance, boolean notify) {
-        SoomlaUtils.LogDebug(mTag, "setting balance " + balance + " to " + itemId + ".");
-
-        int oldBalance = getBalance(itemId);
-        if (oldBalance == balance) {
-            return balance;
-        }
-
-        String balanceStr = "" + balance;
-        String key = keyBalance(itemId);
-
-        KeyValueStorage.setValue(key, balanceStr);
-
-        if (notify) {
-            postBalanceChangeEvent(itemId, balance, 0);
-        }
+        return setBalance(mBalanceCache.counter(itemId), balance, notify);
+    }
 
-        return balance;
+    /**
+     * Sets the balance of the virtual item with the given handle to be the given balance, and if
+     * notify is true posts the change in the balance to the event bus.
+     *
+     * @param handle the required virtual item's handle
+     * @param balance the new balance to be set
+     * @param notify if notify is true post balance change event
+     * @return the balance of the required virtual item
+     */
+    public int setBalance(int handle, int balance, boolean notify) {
+        return setBalance(mBalanceCache.counter(handle), balance, notify);
     }
 
     /**
@@ -114,22 +119,20 @@ public abstract class VirtualItemStorage {
      * @return new balance
      */
     public int add(String itemId, int amount, boolean notify){
-        SoomlaUtils.LogDebug(mTag, "adding " + amount + " " + itemId);
-
-        int balance = getBalance(itemId);
-        if (balance < 0) { /* in case the user "adds" a negative value */
-            balance = 0;
-            amount = 0;
-        }
-        String balanceStr = "" + (balance + amount);
-        String key = keyBalance(itemId);
-        KeyValueStorage.setValue(key, balanceStr);
-
-        if (notify) {
-            postBalanceChangeEvent(itemId, balance+amount, amount);
-        }
+        return add(mBalanceCache.counter(itemId), amount, notify);
+    }
 
-        return balance + amount;
+    /**
+     * Adds the given amount of items to the balance of the virtual item with the given handle,
+     * and if notify is true posts the change in the balance to the event bus.
+     *
+     * @param handle the required virtual item's handle
+     * @param amount the amount of items to add
+     * @param notify if true posts balance change event
+     * @return new balance
+     */
+    public int add(int handle, int amount, boolean notify) {
+        return add(mBalanceCache.counter(handle), amount, notify);
     }
 
     /**
@@ -153,22 +156,42 @@ public abstract class VirtualItemStorage {
      * @return new balance
      */
     public int remove(String itemId, int amount, boolean notify){
-        SoomlaUtils.LogDebug(mTag, "Removing " + amount + " " + itemId + ".");
+        return remove(mBalanceCache.counter(itemId), amount, notify);
+    }
 
-        int balance = getBalance(itemId) - amount;
-        if (balance < 0) {
-            balance = 0;
-            amount = 0;
-        }
-        String balanceStr = "" + balance;
-        String key = keyBalance(itemId);
-        KeyValueStorage.setValue(key, balanceStr);
+    /**
+     * Removes the given amount from the balance of the virtual item with the given handle, and
+     * if notify is true posts the change in the balance to the event bus.
+     *
+     * @param handle the required virtual item's handle
+     * @param amount is the amount to remove
+     * @param notify if notify is true post balance change event
+     * @return new balance
+     */
+    public int remove(int handle, int amount, boolean notify) {
+        return remove(mBalanceCache.counter(handle), amount, notify);
+    }
 
-        if (notify) {
-            postBalanceChangeEvent(itemId, balance, -1*amount);
-        }
+    /**
+     * Retrieves the in-memory balances of this storage.
+     * Use {@link StorageManager#enableBalanceCache(long)} to switch them to write-back.
+     *
+     * @return the balance cache of this storage
+     */
+    BalanceCache getBalanceCache() {
+        return mBalanceCache;
+    }
 
-        return balance;
+    /**
+     * Reads the balance of the given virtual item directly from <code>KeyValueStorage</code>,
+     * bypassing the balance cache.
+     *
+     * @param itemId the required virtual item's itemId
+     * @return the persisted balance of the required virtual item
+     */
+    int loadBalance(String itemId) {
+        String val = KeyValueStorage.getValue(keyBalance(itemId));
+        return val != null ? Integer.parseInt(val) : 0;
     }
 
     /**
@@ -190,7 +213,81 @@ public abstract class VirtualItemStorage {
     protected abstract void postBalanceChangeEvent(String itemId, int balance, int amountAdded);
 
 
+    /** Private functions **/
+
+    private int setBalance(BalanceCache.Counter counter, int balance, boolean notify) {
+        String itemId = counter.itemId;
+        SoomlaUtils.LogDebug(mTag, "setting balance " + balance + " to " + itemId + ".");
+
+        int oldBalance = counter.balance.getAndSet(balance);
+        if (oldBalance == balance) {
+            return balance;
+        }
+
+        mBalanceCache.persist(counter);
+
+        if (notify) {
+            StorageManager.getBalanceEventCoalescer().post(this, itemId, balance, 0);
+        }
+
+        return balance;
+    }
+
+    private int add(BalanceCache.Counter counter, int amount, boolean notify) {
+        String itemId = counter.itemId;
+        SoomlaUtils.LogDebug(mTag, "adding " + amount + " " + itemId);
+
+        int balance;
+        int newBalance;
+        do {
+            balance = counter.balance.get();
+            /* in case the user "adds" a negative value */
+            newBalance = balance < 0 ? 0 : balance + amount;
+        } while (!counter.balance.compareAndSet(balance, newBalance));
+        if (balance < 0) {
+            amount = 0;
+        }
+
+        mBalanceCache.persist(counter);
+
+        if (notify) {
+            StorageManager.getBalanceEventCoalescer().post(this, itemId, newBalance, amount);
+        }
+
+        return newBalance;
+    }
+
+    private int remove(BalanceCache.Counter counter, int amount, boolean notify) {
+        String itemId = counter.itemId;
+        SoomlaUtils.LogDebug(mTag, "Removing " + amount + " " + itemId + ".");
+
+        int balance;
+        int newBalance;
+        do {
+            balance = counter.balance.get();
+            newBalance = balance - amount;
+            if (newBalance < 0) {
+                newBalance = 0;
+            }
+        } while (!counter.balance.compareAndSet(balance, newBalance));
+        if (balance - amount < 0) {
+            amount = 0;
+        }
+
+        mBalanceCache.persist(counter);
+
+        if (notify) {
+            StorageManager.getBalanceEventCoalescer().post(this, itemId, newBalance, -1*amount);
+        }
+
+        return newBalance;
+    }
+
+
     /** Private Members */
 
     protected String mTag = "SOOMLA VirtualItemStorage"; //used for Log messages
+
+    // the in-memory balances, every balance change goes through them
+    private final BalanceCache mBalanceCache = new BalanceCache(this);
 }
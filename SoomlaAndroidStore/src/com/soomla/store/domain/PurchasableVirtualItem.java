@@ -65,7 +65,9 @@ public abstract class PurchasableVirtualItem extends VirtualItem {
             JSONObject marketItemObj =
                     purchasableObj.getJSONObject(StoreJSONConsts.PURCHASE_MARKET_ITEM);
 
-            mPurchaseType = new PurchaseWithMarket(new MarketItem(marketItemObj));
+            mPurchaseType = new PurchaseWithMarket(new MarketItem(marketItemObj),
+                    purchasableObj.optBoolean(StoreJSONConsts.PURCHASE_MARKET_SUBSCRIPTION),
+                    purchasableObj.optLong(StoreJSONConsts.PURCHASE_MARKET_SUBSCRIPTION_PERIOD));
         } else if (purchaseType.equals(StoreJSONConsts.PURCHASE_TYPE_VI)) {
             String itemId = purchasableObj.getString(StoreJSONConsts.PURCHASE_VI_ITEMID);
             int amount = purchasableObj.getInt(StoreJSONConsts.PURCHASE_VI_AMOUNT);
@@ -100,8 +102,14 @@ public abstract class PurchasableVirtualItem extends VirtualItem {
             if(mPurchaseType instanceof PurchaseWithMarket) {
                 purchasableObj.put(StoreJSONConsts.PURCHASE_TYPE, StoreJSONConsts.PURCHASE_TYPE_MARKET);
 
-                MarketItem mi = ((PurchaseWithMarket) mPurchaseType).getMarketItem();
-                purchasableObj.put(StoreJSONConsts.PURCHASE_MARKET_ITEM, mi.toJSONObject());
+                PurchaseWithMarket pwm = (PurchaseWithMarket) mPurchaseType;
+                purchasableObj.put(StoreJSONConsts.PURCHASE_MARKET_ITEM,
+                        pwm.getMarketItem().toJSONObject());
+                if (pwm.isSubscription()) {
+                    purchasableObj.put(StoreJSONConsts.PURCHASE_MARKET_SUBSCRIPTION, true);
+                    purchasableObj.put(StoreJSONConsts.PURCHASE_MARKET_SUBSCRIPTION_PERIOD,
+                            pwm.getSubscriptionPeriodMillis());
+                }
             } else if(mPurchaseType instanceof PurchaseWithVirtualItem) {
                 purchasableObj.put(StoreJSONConsts.PURCHASE_TYPE, StoreJSONConsts.PURCHASE_TYPE_VI);
 
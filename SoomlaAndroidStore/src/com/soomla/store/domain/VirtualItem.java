@@ -17,6 +17,9 @@
 package com.soomla.store.domain;
 
 import com.soomla.SoomlaEntity;
+import com.soomla.store.data.BalanceTransaction;
+import com.soomla.store.data.ItemHandles;
+import com.soomla.store.data.StorageManager;
 import com.soomla.store.data.StoreInfo;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -85,6 +88,25 @@ public abstract class VirtualItem extends SoomlaEntity<VirtualItem> {
      */
     public abstract int give(int amount, boolean notify);
 
+    /**
+     * Works like {@link #give(int)} but records the balance changes in the given
+     * <code>BalanceTransaction</code> instead of applying them, so they are committed together
+     * with the transaction's other changes.
+     * By default this credits the item's own balance. Items whose <code>give</code> does more
+     * than that override this method as well as {@link #give(int, boolean)}.
+     *
+     * NOTE: Purchases give their items through <code>BalanceTransaction.give</code>. For a
+     * subclass that overrides {@link #give(int, boolean)} but not this method, it calls
+     * {@link #give(int, boolean)} instead, with notify true, once the transaction is committed.
+     * That giving isn't part of the transaction.
+     *
+     * @param amount the amount of the specific item to be given
+     * @param transaction the transaction to record the changes in
+     */
+    public void give(int amount, BalanceTransaction transaction) {
+        transaction.credit(StorageManager.getVirtualItemStorage(this), getItemId(), amount);
+    }
+
     /**
      * Takes from your user the given amount of the specific virtual item.
      * For example, when your user requests a refund, you need to TAKE the item he/she is returning.
@@ -145,8 +167,25 @@ public abstract class VirtualItem extends SoomlaEntity<VirtualItem> {
         return mID;
     }
 
+    /**
+     * Retrieves the handle of this item: a small integer that stays the same for its itemId
+     * while the app runs. Pass it to the handle based functions of <code>StoreInventory</code>
+     * and <code>VirtualItemStorage</code> to skip the lookups by itemId.
+     *
+     * @return this item's handle, or -1 if the item isn't in the catalog
+     */
+    public int getHandle() {
+        if (mHandle < 0) {
+            mHandle = ItemHandles.handleOf(mID);
+        }
+        return mHandle;
+    }
+
 
     /** Private Members **/
 
     private static final String TAG = "SOOMLA VirtualItem"; //used for Log messages
+
+    // assigned on first use, see ItemHandles
+    private int mHandle = -1;
 }
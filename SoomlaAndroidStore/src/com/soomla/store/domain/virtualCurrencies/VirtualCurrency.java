@@ -16,6 +16,7 @@
 
 package com.soomla.store.domain.virtualCurrencies;
 
+import com.soomla.store.data.BalanceTransaction;
 import com.soomla.store.data.StorageManager;
 import com.soomla.store.data.StoreInfo;
 import com.soomla.store.domain.VirtualItem;
@@ -77,6 +78,14 @@ public class VirtualCurrency extends VirtualItem {
         return StorageManager.getVirtualCurrencyStorage().add(this.getItemId(), amount, notify);
     }
 
+    /**
+     * @{inheritDoc}
+     */
+    @Override
+    public void give(int amount, BalanceTransaction transaction) {
+        transaction.credit(StorageManager.getVirtualCurrencyStorage(), this.getItemId(), amount);
+    }
+
     /**
      * @{inheritDoc}
      */
@@ -17,6 +17,7 @@
 package com.soomla.store.domain.virtualCurrencies;
 
 import com.soomla.SoomlaUtils;
+import com.soomla.store.data.BalanceTransaction;
 import com.soomla.store.data.StorageManager;
 import com.soomla.store.data.StoreInfo;
 import com.soomla.store.data.StoreJSONConsts;
@@ -119,6 +120,22 @@ public class VirtualCurrencyPack extends PurchasableVirtualItem {
                 currency.getItemId(), mCurrencyAmount * amount, notify);
     }
 
+    /**
+     * @{inheritDoc}
+     */
+    @Override
+    public void give(int amount, BalanceTransaction transaction) {
+        try {
+            StoreInfo.getVirtualItem(mCurrencyItemId);
+        } catch (VirtualItemNotFoundException e) {
+            SoomlaUtils.LogError(TAG, "VirtualCurrency with itemId: " + mCurrencyItemId
+                    + " doesn't exist! Can't give this pack.");
+            return;
+        }
+        transaction.credit(StorageManager.getVirtualCurrencyStorage(), mCurrencyItemId,
+                mCurrencyAmount * amount);
+    }
+
     /**
      * @{inheritDoc}
      */
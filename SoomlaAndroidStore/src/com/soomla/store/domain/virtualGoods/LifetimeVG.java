@@ -17,6 +17,7 @@
 package com.soomla.store.domain.virtualGoods;
 
 import com.soomla.SoomlaUtils;
+import com.soomla.store.data.BalanceTransaction;
 import com.soomla.store.data.StorageManager;
 import com.soomla.store.domain.PurchasableVirtualItem;
 import com.soomla.store.domain.VirtualItem;
@@ -101,6 +102,19 @@ import org.json.JSONObject;
         return 1;
     }
 
+    /**
+     * Records the giving of exactly one <code>LifetimeVG</code> in the given transaction.
+     * The balance never goes above 1.
+     *
+     * @param amount see parent
+     * @param transaction see parent
+     */
+    @Override
+    public void give(int amount, BalanceTransaction transaction) {
+        transaction.credit(StorageManager.getVirtualGoodsStorage(), this.getItemId(),
+                Math.min(amount, 1), 1);
+    }
+
     /**
      * Takes from your user exactly one <code>LifetimeVG</code>.
      *
@@ -17,6 +17,7 @@
 package com.soomla.store.domain.virtualGoods;
 
 import com.soomla.SoomlaUtils;
+import com.soomla.store.data.BalanceTransaction;
 import com.soomla.store.data.StorageManager;
 import com.soomla.store.data.StoreInfo;
 import com.soomla.store.data.StoreJSONConsts;
@@ -121,6 +122,20 @@ public class SingleUsePackVG extends VirtualGood {
         return StorageManager.getVirtualGoodsStorage().add(good.getItemId(), mGoodAmount*amount, notify);
     }
 
+    /**
+     * @{inheritDoc}
+     */
+    @Override
+    public void give(int amount, BalanceTransaction transaction) {
+        try {
+            StoreInfo.getVirtualItem(mGoodItemId);
+        } catch (VirtualItemNotFoundException e) {
+            SoomlaUtils.LogError(TAG, "SingleUseVG with itemId: " + mGoodItemId + " doesn't exist! Can't give this pack.");
+            return;
+        }
+        transaction.credit(StorageManager.getVirtualGoodsStorage(), mGoodItemId, mGoodAmount*amount);
+    }
+
     /**
      * @{inheritDoc}
      */
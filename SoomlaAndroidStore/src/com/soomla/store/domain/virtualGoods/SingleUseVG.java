@@ -16,6 +16,7 @@
 
 package com.soomla.store.domain.virtualGoods;
 
+import com.soomla.store.data.BalanceTransaction;
 import com.soomla.store.data.StorageManager;
 import com.soomla.store.domain.PurchasableVirtualItem;
 import com.soomla.store.domain.VirtualItem;
@@ -81,6 +82,14 @@ public class SingleUseVG extends VirtualGood{
         return StorageManager.getVirtualGoodsStorage().add(this.getItemId(), amount, notify);
     }
 
+    /**
+     * @{inheritDoc}
+     */
+    @Override
+    public void give(int amount, BalanceTransaction transaction) {
+        transaction.credit(StorageManager.getVirtualGoodsStorage(), this.getItemId(), amount);
+    }
+
     /**
      * @{inheritDoc}
      */
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.domain.virtualGoods;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.store.data.BalanceTransaction;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreJSONConsts;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.EnumSet;
+import java.util.Iterator;
+
+/**
+ * A <code>TimeLimitedVG</code> is a virtual good that is taken from your user once its lifetime
+ * is over.
+ *
+ * The <code>TimeLimitedVG</code>'s characteristics are:
+ *  1. Every grant (a purchase or a give) lasts for <code>lifetimeMillis</code>.
+ *  2. How grants add up is decided by the good's {@link Stacking} rule.
+ *  3. When a grant expires the good is taken and a <code>GoodBalanceChangedEvent</code> is
+ *     posted, even if the app was closed in the meantime (then it's taken when
+ *     <code>SoomlaStore</code> is initialized).
+ *
+ * Real Games Examples: '24h Double Coins', '30 Minutes Shield'
+ *
+ * This <code>VirtualItem</code> is purchasable.
+ * In case you want this item to be available for purchase in the market (PurchaseWithMarket),
+ * you will need to define the item in the market (Google Play, Amazon App Store, etc...).
+ *
+ * Inheritance: TimeLimitedVG >
+ * {@link VirtualGood} >
+ * {@link PurchasableVirtualItem} >
+ * {@link VirtualItem}
+ */
+public class TimeLimitedVG extends VirtualGood {
+
+    /** Constructor
+     *
+     * @param mName see parent
+     * @param mDescription see parent
+     * @param mItemId see parent
+     * @param purchaseType see parent
+     * @param lifetimeMillis how long a single grant lasts, in milliseconds
+     * @param stacking how grants add up
+     */
+    public TimeLimitedVG(String mName, String mDescription,
+                         String mItemId,
+                         PurchaseType purchaseType,
+                         long lifetimeMillis, Stacking stacking) {
+        super(mName, mDescription, mItemId, purchaseType);
+
+        mLifetimeMillis = lifetimeMillis;
+        mStacking = stacking;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param jsonObject see parent
+     * @throws JSONException
+     */
+    public TimeLimitedVG(JSONObject jsonObject) throws JSONException {
+        super(jsonObject);
+
+        mLifetimeMillis = jsonObject.getLong(StoreJSONConsts.VGT_LIFETIME);
+        mStacking = Stacking.fromString(jsonObject.getString(StoreJSONConsts.VGT_STACKING));
+        if (mStacking == null) {
+            throw new JSONException("Unknown stacking rule: "
+                    + jsonObject.getString(StoreJSONConsts.VGT_STACKING));
+        }
+    }
+
+    /**
+     * @{inheritDoc}
+     */
+    @Override
+    public JSONObject toJSONObject() {
+        JSONObject parentJsonObject = super.toJSONObject();
+        JSONObject jsonObject = new JSONObject();
+        try {
+            Iterator<?> keys = parentJsonObject.keys();
+            while(keys.hasNext())
+            {
+                String key = (String)keys.next();
+                jsonObject.put(key, parentJsonObject.get(key));
+            }
+
+            jsonObject.put(StoreJSONConsts.VGT_LIFETIME, mLifetimeMillis);
+            jsonObject.put(StoreJSONConsts.VGT_STACKING, mStacking.toString());
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "An error occurred while generating JSON object.");
+        }
+
+        return jsonObject;
+    }
+
+    /**
+     * Gives your user the given amount of grants of this good, each lasting
+     * <code>lifetimeMillis</code> and adding up according to the good's stacking rule.
+     *
+     * @param amount the number of grants to give
+     * @param notify see parent
+     * @return the balance after the giving process
+     */
+    @Override
+    public int give(int amount, boolean notify) {
+        return StorageManager.getGoodExpiryEngine().grant(this, amount, notify);
+    }
+
+    /**
+     * Records the given grants in the given transaction. Their expiry times are recorded once
+     * the transaction is committed.
+     *
+     * @param amount see parent
+     * @param transaction see parent
+     */
+    @Override
+    public void give(final int amount, BalanceTransaction transaction) {
+        transaction.credit(StorageManager.getVirtualGoodsStorage(), this.getItemId(), amount,
+                mStacking == Stacking.STACK ? Integer.MAX_VALUE : 1);
+        transaction.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                StorageManager.getGoodExpiryEngine().recordGrants(TimeLimitedVG.this, amount);
+            }
+        });
+    }
+
+    /**
+     * Takes from your user the given amount of grants of this good, the ones that would expire
+     * first. Unless the good stacks, this takes the single running grant.
+     *
+     * @param amount the number of grants to take
+     * @param notify see parent
+     * @return the balance after the taking process
+     */
+    @Override
+    public int take(int amount, boolean notify) {
+        return StorageManager.getGoodExpiryEngine().revoke(this, amount, notify);
+    }
+
+    /**
+     * Replaces the running grants of this good with the given number of new grants, so a
+     * balance that is reset starts its lifetime over.
+     *
+     * @param balance the new balance
+     * @param notify see parent
+     * @return the balance after the reset process
+     */
+    @Override
+    public int resetBalance(int balance, boolean notify) {
+        return StorageManager.getGoodExpiryEngine().reset(this, balance, notify);
+    }
+
+    /**
+     * Retrieves the time until the last running grant of this good expires.
+     *
+     * @return the time left in milliseconds, or 0 if the user has no running grant
+     */
+    public long getTimeLeftMillis() {
+        return StorageManager.getGoodExpiryEngine().getTimeLeftMillis(this.getItemId());
+    }
+
+    /**
+     * A <code>TimeLimitedVG</code> can always be bought: unless it stacks, buying it again adds
+     * to or restarts the running grant.
+     *
+     * @return true
+     */
+    @Override
+    protected boolean canBuy() {
+        return true;
+    }
+
+    /**
+     * How the grants of a <code>TimeLimitedVG</code> add up.
+     */
+    public static enum Stacking {
+        /**
+         * Every grant adds its lifetime to the time that is left. The balance is at most 1.
+         */
+        EXTEND("extend"),
+
+        /**
+         * Every grant starts the lifetime over. The balance is at most 1.
+         */
+        RESTART("restart"),
+
+        /**
+         * Every grant runs and expires on its own. The balance is the number of running grants.
+         */
+        STACK("stack");
+
+        private Stacking(final String stacking) {
+            this.mStacking = stacking;
+        }
+
+        private final String mStacking;
+
+        public String toString() {
+            return mStacking;
+        }
+
+        public static Stacking fromString(String stacking) {
+            for (final Stacking element : EnumSet.allOf(Stacking.class)) {
+                if (element.toString().equals(stacking)) {
+                    return element;
+                }
+            }
+            return null;
+        }
+    }
+
+
+    /** Setters and Getters **/
+
+    public long getLifetimeMillis() {
+        return mLifetimeMillis;
+    }
+
+    public Stacking getStacking() {
+        return mStacking;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA TimeLimitedVG"; //used for Log messages
+
+    private final long mLifetimeMillis;
+    private final Stacking mStacking;
+}
@@ -18,6 +18,7 @@ package com.soomla.store.domain.virtualGoods;
 
 import android.text.TextUtils;
 import com.soomla.SoomlaUtils;
+import com.soomla.store.data.BalanceTransaction;
 import com.soomla.store.data.StorageManager;
 import com.soomla.store.data.StoreInfo;
 import com.soomla.store.data.StoreJSONConsts;
@@ -151,6 +152,28 @@ public class UpgradeVG extends LifetimeVG {
         return super.give(amount, notify);
     }
 
+    /**
+     * Records the assignment of this upgrade to the associated <code>VirtualGood</code> in the
+     * given transaction. Nothing is recorded if the associated good doesn't exist.
+     *
+     * @param amount is NOT USED HERE!
+     * @param transaction see parent
+     */
+    @Override
+    public void give(int amount, BalanceTransaction transaction) {
+        try {
+            StoreInfo.getVirtualItem(mGoodItemId);
+        } catch (VirtualItemNotFoundException e) {
+            SoomlaUtils.LogError(TAG, "VirtualGood with itemId: " + mGoodItemId +
+                    " doesn't exist! Can't upgrade.");
+            return;
+        }
+
+        transaction.assignUpgrade(mGoodItemId, this.getItemId());
+
+        super.give(amount, transaction);
+    }
+
      /**
      * Takes upgrade from the user, or in other words DOWNGRADES the associated
      * <code>VirtualGood</code> (mGood).
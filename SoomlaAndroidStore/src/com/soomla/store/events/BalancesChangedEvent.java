@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.events;
+
+import com.soomla.events.SoomlaEvent;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This event is fired once for a whole scope or frame window of coalesced balance changes, after
+ * the <code>GoodBalanceChangedEvent</code>s and <code>CurrencyBalanceChangedEvent</code>s of
+ * the changed items. It's only fired if batch events were enabled with
+ * <code>StorageManager.setPostBalancesChangedEvents(true)</code>.
+ *
+ * It's also fired, without any per-item event, when the whole inventory is replaced with
+ * <code>StoreInventory.resetAllItemsBalances</code>.
+ *
+ * Real Game Example:
+ *  A loot drop gives the user 3 "green_hat"s, 2 "blue_hat"s and 50 "currency_coin"s.
+ *  Instead of rebinding the inventory UI for every item, you rebind it once when a
+ *  <code>BalancesChangedEvent</code> is fired.
+ */
+public class BalancesChangedEvent extends SoomlaEvent {
+
+    /**
+     * Constructor
+     *
+     * @param itemIds the ids of the changed items, in the order they first changed
+     * @param balances the final balance of each changed item
+     * @param amountsAdded the sum of the amounts added to each changed item
+     */
+    public BalancesChangedEvent(List<String> itemIds, Map<String, Integer> balances,
+                                Map<String, Integer> amountsAdded) {
+        super(null);
+        mItemIds = Collections.unmodifiableList(itemIds);
+        mBalances = Collections.unmodifiableMap(balances);
+        mAmountsAdded = Collections.unmodifiableMap(amountsAdded);
+    }
+
+
+    /** Setters and Getters */
+
+    public List<String> getItemIds() {
+        return mItemIds;
+    }
+
+    public int getBalance(String itemId) {
+        Integer balance = mBalances.get(itemId);
+        return balance != null ? balance : 0;
+    }
+
+    public int getAmountAdded(String itemId) {
+        Integer amountAdded = mAmountsAdded.get(itemId);
+        return amountAdded != null ? amountAdded : 0;
+    }
+
+    public Map<String, Integer> getBalances() {
+        return mBalances;
+    }
+
+    public Map<String, Integer> getAmountsAdded() {
+        return mAmountsAdded;
+    }
+
+
+    /** Private Members */
+
+    private List<String> mItemIds;
+
+    private Map<String, Integer> mBalances;
+
+    private Map<String, Integer> mAmountsAdded;
+}
@@ -64,8 +64,22 @@ public class PurchaseWithMarket extends PurchaseType {
      * @param isSubscription let PurchaseWithMarket know is current purchase is subscription.
      */
     public PurchaseWithMarket(MarketItem marketItem, boolean isSubscription) {
+        this(marketItem, isSubscription, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param marketItem the representation of the item in the market
+     * @param isSubscription let PurchaseWithMarket know is current purchase is subscription.
+     * @param subscriptionPeriodMillis the billing period of the subscription in milliseconds,
+     *                                 or 0 if it's unknown.
+     */
+    public PurchaseWithMarket(MarketItem marketItem, boolean isSubscription,
+                              long subscriptionPeriodMillis) {
         mMarketItem = marketItem;
         mIsSubscription = isSubscription;
+        mSubscriptionPeriodMillis = subscriptionPeriodMillis;
     }
 
     /**
@@ -106,6 +120,10 @@ public class PurchaseWithMarket extends PurchaseType {
         return mIsSubscription;
     }
 
+    public long getSubscriptionPeriodMillis() {
+        return mSubscriptionPeriodMillis;
+    }
+
 
     /** Private Members */
 
@@ -113,4 +131,5 @@ public class PurchaseWithMarket extends PurchaseType {
 
     private MarketItem mMarketItem; //the representation of the item in the market
     private boolean mIsSubscription; //allows SoomlaStore know if this purchase is subscription
+    private long mSubscriptionPeriodMillis; //lets SoomlaStore expire the subscription locally
 }
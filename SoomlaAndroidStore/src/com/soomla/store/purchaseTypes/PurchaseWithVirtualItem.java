@@ -18,6 +18,7 @@ package com.soomla.store.purchaseTypes;
 
 import com.soomla.BusProvider;
 import com.soomla.SoomlaUtils;
+import com.soomla.store.data.BalanceTransaction;
 import com.soomla.store.data.StorageManager;
 import com.soomla.store.data.StoreInfo;
 import com.soomla.store.data.VirtualItemStorage;
@@ -50,6 +51,8 @@ public class PurchaseWithVirtualItem extends PurchaseType {
 
     /**
      * Buys the virtual item with other virtual items.
+     * Paying and giving happen in one <code>BalanceTransaction</code>, so the user is never
+     * charged without getting the item, and concurrent purchases can't spend the same balance.
      *
      * @throws InsufficientFundsException
      */
@@ -72,14 +75,10 @@ public class PurchaseWithVirtualItem extends PurchaseType {
         VirtualItemStorage storage = StorageManager.getVirtualItemStorage(item);
 
         assert storage != null;
-        int balance = storage.getBalance(item.getItemId());
-        if (balance < mAmount){
-            throw new InsufficientFundsException(mTargetItemId);
-        }
-
-        storage.remove(item.getItemId(), mAmount);
-
-        getAssociatedItem().give(1);
+        BalanceTransaction transaction = new BalanceTransaction();
+        transaction.debit(storage, item.getItemId(), mAmount);
+        transaction.give(getAssociatedItem(), 1);
+        transaction.commit();
         BusProvider.getInstance().post(new ItemPurchasedEvent(getAssociatedItem().getItemId(), payload));
     }
 
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.benchmark;
+
+import com.soomla.store.data.ItemHandles;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.VirtualGoodsStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Balance reads and changes, with the balances written on every change (write-through) or only
+ * on flushes (write-back, see <code>StorageManager.enableBalanceCache</code>).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BalanceBenchmark {
+
+    @Param({"false", "true"})
+    public boolean writeBack;
+
+    @Setup
+    public void setUp() {
+        BenchmarkStore.load(new GeneratedStoreAssets(100));
+        if (writeBack) {
+            StorageManager.enableBalanceCache(1000);
+        }
+        mStorage = StorageManager.getVirtualGoodsStorage();
+        mStorage.setBalance(ITEM_ID, 1000000, false);
+        mHandle = ItemHandles.handleOf(ITEM_ID);
+    }
+
+    @TearDown
+    public void tearDown() {
+        StorageManager.disableBalanceCache();
+    }
+
+    @Benchmark
+    public int getBalance() {
+        return mStorage.getBalance(ITEM_ID);
+    }
+
+    @Benchmark
+    public int getBalanceByHandle() {
+        return mStorage.getBalance(mHandle);
+    }
+
+    @Benchmark
+    public int add() {
+        return mStorage.add(ITEM_ID, 1, false);
+    }
+
+    @Benchmark
+    public int remove() {
+        return mStorage.remove(ITEM_ID, 1, false);
+    }
+
+    /**
+     * The same item changed from several threads, which is where the compare-and-set counters
+     * are contended.
+     */
+    @Benchmark
+    @Threads(4)
+    public int addContended() {
+        return mStorage.add(ITEM_ID, 1, false);
+    }
+
+    @Benchmark
+    public int addAndNotify() {
+        return mStorage.add(ITEM_ID, 1, true);
+    }
+
+
+    /** Private Members **/
+
+    private static final String ITEM_ID = GeneratedStoreAssets.goodItemId(5);
+
+    private VirtualGoodsStorage mStorage;
+    private int mHandle;
+}
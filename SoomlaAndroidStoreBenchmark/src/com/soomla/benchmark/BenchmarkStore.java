@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.benchmark;
+
+import android.content.Context;
+import com.soomla.SoomlaApp;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.IStoreAssets;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+
+/**
+ * Sets up the store for a benchmark run on top of the in-memory stand-ins.
+ */
+public class BenchmarkStore {
+
+    /**
+     * Starts from an empty storage and loads the given economy into <code>StoreInfo</code>,
+     * the way <code>SoomlaStore</code> does on the first run of a game.
+     *
+     * @param storeAssets the economy to load
+     */
+    public static void load(IStoreAssets storeAssets) {
+        SoomlaApp.setExternalContext(new Context());
+        KeyValueStorage.purge();
+        StorageManager.disableBalanceCache();
+        StorageManager.invalidateBalanceCache();
+        StorageManager.getPurchaseLedger().invalidate();
+        StoreInfo.setStoreAssets(storeAssets);
+    }
+}
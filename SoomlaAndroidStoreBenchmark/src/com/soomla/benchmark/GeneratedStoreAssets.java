@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.benchmark;
+
+import com.soomla.store.IStoreAssets;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A generated economy with a configurable number of goods, shaped like a real one:
+ * every group of 10 goods has single-use, lifetime, equippable and pack goods, some of them
+ * bought in the market, and one good in every group has a chain of <code>UPGRADE_LEVELS</code>
+ * upgrades. There's a currency pack for every 20 goods and a category for every 50.
+ */
+public class GeneratedStoreAssets implements IStoreAssets {
+
+    public static final String CURRENCY_ITEM_ID = "currency_coin";
+    public static final int UPGRADE_LEVELS = 5;
+
+    /**
+     * Constructor
+     *
+     * @param goodsCount the number of goods, not counting their upgrades
+     */
+    public GeneratedStoreAssets(int goodsCount) {
+        mGoodsCount = goodsCount;
+    }
+
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+    @Override
+    public VirtualCurrency[] getCurrencies() {
+        return new VirtualCurrency[]{
+                new VirtualCurrency("Coins", "", CURRENCY_ITEM_ID)
+        };
+    }
+
+    @Override
+    public VirtualGood[] getGoods() {
+        List<VirtualGood> goods = new ArrayList<VirtualGood>();
+        for (int i = 0; i < mGoodsCount; i++) {
+            String itemId = goodItemId(i);
+            switch (i % 10) {
+                case 0:
+                    goods.add(new SingleUseVG("Good " + i, "", itemId, coins(10)));
+                    for (int level = 1; level <= UPGRADE_LEVELS; level++) {
+                        goods.add(new UpgradeVG(itemId,
+                                level > 1 ? upgradeItemId(i, level - 1) : "",
+                                level < UPGRADE_LEVELS ? upgradeItemId(i, level + 1) : "",
+                                "Good " + i + " level " + level, "",
+                                upgradeItemId(i, level), coins(level * 10)));
+                    }
+                    break;
+                case 1:
+                case 2:
+                    goods.add(new LifetimeVG("Good " + i, "", itemId,
+                            new PurchaseWithMarket(productId(itemId), 0.99)));
+                    break;
+                case 3:
+                    goods.add(new EquippableVG(EquippableVG.EquippingModel.LOCAL,
+                            "Good " + i, "", itemId, coins(100)));
+                    break;
+                case 4:
+                    goods.add(new SingleUsePackVG(goodItemId(i - 4), 5, "Good " + i, "",
+                            itemId, new PurchaseWithMarket(productId(itemId), 1.99)));
+                    break;
+                default:
+                    goods.add(new SingleUseVG("Good " + i, "", itemId, coins(i % 10 * 5)));
+            }
+        }
+        return goods.toArray(new VirtualGood[goods.size()]);
+    }
+
+    @Override
+    public VirtualCurrencyPack[] getCurrencyPacks() {
+        int count = Math.max(1, mGoodsCount / 20);
+        VirtualCurrencyPack[] packs = new VirtualCurrencyPack[count];
+        for (int i = 0; i < count; i++) {
+            String itemId = "pack_" + i;
+            packs[i] = new VirtualCurrencyPack("Pack " + i, "", itemId, (i + 1) * 100,
+                    CURRENCY_ITEM_ID, new PurchaseWithMarket(productId(itemId), 0.99 * (i + 1)));
+        }
+        return packs;
+    }
+
+    @Override
+    public VirtualCategory[] getCategories() {
+        int count = (mGoodsCount + 49) / 50;
+        VirtualCategory[] categories = new VirtualCategory[count];
+        for (int c = 0; c < count; c++) {
+            ArrayList<String> itemIds = new ArrayList<String>();
+            for (int i = c * 50; i < Math.min(mGoodsCount, (c + 1) * 50); i++) {
+                itemIds.add(goodItemId(i));
+            }
+            categories[c] = new VirtualCategory("Category " + c, itemIds);
+        }
+        return categories;
+    }
+
+    public static String goodItemId(int index) {
+        return "good_" + index;
+    }
+
+    public static String upgradeItemId(int goodIndex, int level) {
+        return goodItemId(goodIndex) + "_up" + level;
+    }
+
+    public static String productId(String itemId) {
+        return "com.soomla.benchmark." + itemId;
+    }
+
+    private static PurchaseWithVirtualItem coins(int amount) {
+        return new PurchaseWithVirtualItem(CURRENCY_ITEM_ID, amount);
+    }
+
+
+    /** Private Members **/
+
+    private final int mGoodsCount;
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.benchmark;
+
+import android.app.Activity;
+import com.soomla.store.billing.CallbackDispatcher;
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabInventory;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.billing.IabResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The overhead of <code>IabHelper</code> around the billing service: queueing operations and
+ * calling their listeners back. Runs with <code>CallbackDispatcher.direct()</code>, so every
+ * callback runs on the benchmark's thread, and with a billing service that answers right away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IabHelperBenchmark {
+
+    @Setup
+    public void setUp() {
+        mHelper = new ImmediateIabHelper();
+        mHelper.setCallbackDispatcher(CallbackDispatcher.direct());
+        mHelper.startSetup(new IabHelper.OnIabSetupFinishedListener() {
+            @Override
+            public void onIabSetupFinished(IabResult result) {
+            }
+        });
+        for (int i = 0; i < SKU_LISTS; i++) {
+            mSkus.add(Collections.singletonList("sku_" + i));
+        }
+    }
+
+    @Benchmark
+    public int restorePurchases() {
+        mHelper.restorePurchasesAsync(mRestoreListener);
+        return mFinished;
+    }
+
+    /**
+     * A restore that is still running while a purchase and fetches of different skus are called,
+     * as happens when the store refreshes on start and the user taps buy.
+     */
+    @Benchmark
+    public int overlappingOperations() {
+        mHelper.mHold = true;
+        mHelper.restorePurchasesAsync(mRestoreListener);
+        mHelper.mHold = false;
+        for (List<String> skus : mSkus) {
+            mHelper.fetchSkusDetailsAsync(skus, mFetchListener);
+        }
+        mHelper.launchPurchaseFlow(null, "sku_0", mPurchaseListener, "");
+        mHelper.finishHeldRestore();
+        return mFinished;
+    }
+
+    /**
+     * A billing service that reports every operation as finished before it returns, unless
+     * it's told to hold it.
+     */
+    private static class ImmediateIabHelper extends IabHelper {
+
+        void finishHeldRestore() {
+            restorePurchasesSuccess(mInventory);
+        }
+
+        @Override
+        protected void startSetupInner() {
+            setupSuccess();
+        }
+
+        @Override
+        protected void launchPurchaseFlowInner(Activity act, String itemType, String sku,
+                                               String extraData) {
+            purchaseSucceeded(null);
+        }
+
+        @Override
+        protected void restorePurchasesAsyncInner() {
+            if (!mHold) {
+                restorePurchasesSuccess(mInventory);
+            }
+        }
+
+        @Override
+        protected void fetchSkusDetailsAsyncInner(List<String> skus) {
+            fetchSkusDetailsSuccess(mInventory);
+        }
+
+        boolean mHold = false;
+        private final IabInventory mInventory = new IabInventory();
+    }
+
+
+    /** Private Members **/
+
+    private static final int SKU_LISTS = 8;
+
+    private ImmediateIabHelper mHelper;
+    private final List<List<String>> mSkus = new ArrayList<List<String>>();
+    private int mFinished;
+
+    private final IabHelper.RestorePurchasessFinishedListener mRestoreListener =
+            new IabHelper.RestorePurchasessFinishedListener() {
+                @Override
+                public void onRestorePurchasessFinished(IabResult result, IabInventory inv) {
+                    mFinished++;
+                }
+            };
+    private final IabHelper.FetchSkusDetailsFinishedListener mFetchListener =
+            new IabHelper.FetchSkusDetailsFinishedListener() {
+                @Override
+                public void onFetchSkusDetailsFinished(IabResult result, IabInventory inv) {
+                    mFinished++;
+                }
+            };
+    private final IabHelper.OnIabPurchaseFinishedListener mPurchaseListener =
+            new IabHelper.OnIabPurchaseFinishedListener() {
+                @Override
+                public void onIabPurchaseFinished(IabResult result, IabPurchase info) {
+                    mFinished++;
+                }
+            };
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.benchmark;
+
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.StoreConfig;
+import com.soomla.store.data.StoreInfo;
+import org.json.JSONObject;
+
+/**
+ * Prints the peak heap of loading the store's metadata JSON, for the <code>JSONObject</code>
+ * tree and for streaming, next to each other. JMH measures time and allocation rate, but not
+ * how much of the heap is live at once, which is what runs a device out of memory.
+ *
+ * The peak is measured as the live heap at the point where every intermediate structure of a
+ * parser is still referenced: the JSON string, the tree (only for the tree path) and the items.
+ *
+ * It then prints the heap that stays live once <code>StoreInfo</code> loaded the binary
+ * metadata: all items for the default catalog, only the index with
+ * <code>StoreConfig.lazyCatalog</code>.
+ *
+ * Usage: <code>java -cp benchmarks.jar com.soomla.benchmark.MetadataFootprint [catalogSize...]</code>
+ */
+public class MetadataFootprint {
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = args.length > 0 ? args : new String[] {"100", "1000", "10000"};
+        printParserPeaks(sizes);
+        System.out.println();
+        printLoadedCatalogs(sizes);
+    }
+
+
+    /** Private functions **/
+
+    // every table is printed by a method of its own, so no local of one table is still on the
+    // stack while the heap of the next one is measured
+    private static void printParserPeaks(String[] sizes) throws Exception {
+        System.out.println("catalogSize\tjson KB\ttree peak KB\tstream peak KB");
+        for (String size : sizes) {
+            BenchmarkStore.load(new GeneratedStoreAssets(Integer.parseInt(size)));
+            String json = KeyValueStorage.getValue(KEY_JSON);
+
+            // the string is referenced by both paths, so it's part of both peaks.
+            // counted as UTF-16, as on Android
+            long jsonBytes = json.length() * 2L;
+
+            long before = liveHeap();
+            JSONObject tree = new JSONObject(json);
+            Object items = MetadataParsers.buildItems(tree);
+            long treePeak = liveHeap() - before;
+            keep(tree, items);
+            tree = null;
+            items = null;
+
+            before = liveHeap();
+            Object catalog = MetadataParsers.parseStream(json);
+            long streamPeak = liveHeap() - before;
+            keep(catalog, json);
+
+            System.out.println(size + "\t" + jsonBytes / 1024 + "\t"
+                    + (jsonBytes + treePeak) / 1024 + "\t" + (jsonBytes + streamPeak) / 1024);
+        }
+    }
+
+    private static void printLoadedCatalogs(String[] sizes) {
+        System.out.println("catalogSize\tbinary KB\tcatalog KB\tlazy catalog KB");
+        for (String size : sizes) {
+            BenchmarkStore.load(new GeneratedStoreAssets(Integer.parseInt(size)));
+            String binary = KeyValueStorage.getValue(KEY_BINARY);
+
+            System.out.println(size + "\t" + binary.length() * 2L / 1024 + "\t"
+                    + loadedCatalog(binary, false) / 1024 + "\t"
+                    + loadedCatalog(binary, true) / 1024);
+        }
+    }
+
+    /**
+     * Loads the given binary metadata into <code>StoreInfo</code>, replacing an empty catalog.
+     * The first load may release what earlier measurements left in the store's caches, so it's
+     * done twice and the second load is measured.
+     *
+     * @return the heap that stays live after loading
+     */
+    private static long loadedCatalog(String binary, boolean lazy) {
+        long loaded = 0;
+        StoreConfig.lazyCatalog = lazy;
+        try {
+            for (int i = 0; i < 2; i++) {
+                BenchmarkStore.load(new GeneratedStoreAssets(0));
+                KeyValueStorage.setValue(KEY_BINARY, binary);
+                long before = liveHeap();
+                StoreInfo.loadFromDB();
+                loaded = liveHeap() - before;
+            }
+        } finally {
+            StoreConfig.lazyCatalog = false;
+        }
+        return loaded;
+    }
+
+    private static long liveHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // keeps the given objects reachable until after the heap was measured
+    private static void keep(Object first, Object second) {
+        sSink = first.hashCode() + second.hashCode();
+    }
+
+
+    /** Private Members **/
+
+    private static final String KEY_JSON = "meta.storeinfo";
+    private static final String KEY_BINARY = "meta.storeinfo.bin";
+
+    private static volatile int sSink;
+}
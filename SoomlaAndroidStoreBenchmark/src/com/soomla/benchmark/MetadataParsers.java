@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.benchmark;
+
+import com.soomla.store.data.StoreJSONConsts;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The two ways of parsing the store's metadata JSON, side by side: through a
+ * <code>JSONObject</code> tree, as <code>StoreInfo</code> used to, and streamed by
+ * <code>StoreInfoJsonReader</code>, as it does now. Neither publishes the parsed catalog.
+ */
+public class MetadataParsers {
+
+    /**
+     * Parses the given JSON into a <code>JSONObject</code> and builds the items from it, in the
+     * order <code>StoreInfo</code> did.
+     *
+     * @param json the store's metadata JSON
+     * @return the parsed items
+     * @throws JSONException if the JSON can't be parsed
+     */
+    public static List<VirtualItem> parseTree(String json) throws JSONException {
+        return buildItems(new JSONObject(json));
+    }
+
+    /**
+     * Builds the items from an already parsed <code>JSONObject</code> tree.
+     *
+     * @param tree the store's metadata JSON, parsed
+     * @return the parsed items
+     * @throws JSONException if the tree misses a required value
+     */
+    public static List<VirtualItem> buildItems(JSONObject tree) throws JSONException {
+        List<VirtualItem> items = new ArrayList<VirtualItem>();
+
+        JSONArray currencies = tree.getJSONArray(StoreJSONConsts.STORE_CURRENCIES);
+        for (int i = 0; i < currencies.length(); i++) {
+            items.add(new VirtualCurrency(currencies.getJSONObject(i)));
+        }
+
+        JSONArray packs = tree.getJSONArray(StoreJSONConsts.STORE_CURRENCYPACKS);
+        for (int i = 0; i < packs.length(); i++) {
+            items.add(new VirtualCurrencyPack(packs.getJSONObject(i)));
+        }
+
+        JSONObject goods = tree.getJSONObject(StoreJSONConsts.STORE_GOODS);
+        JSONArray section = goods.getJSONArray(StoreJSONConsts.STORE_GOODS_SU);
+        for (int i = 0; i < section.length(); i++) {
+            items.add(new SingleUseVG(section.getJSONObject(i)));
+        }
+        section = goods.getJSONArray(StoreJSONConsts.STORE_GOODS_LT);
+        for (int i = 0; i < section.length(); i++) {
+            items.add(new LifetimeVG(section.getJSONObject(i)));
+        }
+        section = goods.getJSONArray(StoreJSONConsts.STORE_GOODS_EQ);
+        for (int i = 0; i < section.length(); i++) {
+            items.add(new EquippableVG(section.getJSONObject(i)));
+        }
+        section = goods.getJSONArray(StoreJSONConsts.STORE_GOODS_PA);
+        for (int i = 0; i < section.length(); i++) {
+            items.add(new SingleUsePackVG(section.getJSONObject(i)));
+        }
+        section = goods.getJSONArray(StoreJSONConsts.STORE_GOODS_UP);
+        for (int i = 0; i < section.length(); i++) {
+            items.add(new UpgradeVG(section.getJSONObject(i)));
+        }
+
+        // categories aren't items, but they're parsed all the same
+        JSONArray categories = tree.getJSONArray(StoreJSONConsts.STORE_CATEGORIES);
+        for (int i = 0; i < categories.length(); i++) {
+            new VirtualCategory(categories.getJSONObject(i));
+        }
+        return items;
+    }
+
+    /**
+     * Streams the given JSON straight into the items with <code>StoreInfoJsonReader</code>.
+     *
+     * @param json the store's metadata JSON
+     * @return the parsed catalog
+     * @throws Exception if the JSON can't be parsed
+     */
+    public static Object parseStream(String json) throws Exception {
+        return streamRead().invoke(null, json);
+    }
+
+
+    /** Private functions **/
+
+    // StoreInfoJsonReader is package private: StoreInfo only parses JSON while loading
+    private static synchronized Method streamRead() throws Exception {
+        if (sStreamRead == null) {
+            Method read = Class.forName("com.soomla.store.data.StoreInfoJsonReader")
+                    .getDeclaredMethod("read", String.class);
+            read.setAccessible(true);
+            sStreamRead = read;
+        }
+        return sStreamRead;
+    }
+
+
+    /** Private Members **/
+
+    private static Method sStreamRead;
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.benchmark;
+
+import com.soomla.store.SoomlaStore;
+import com.soomla.store.billing.IIabService;
+import com.soomla.store.billing.IabCallbacks;
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.data.StorageManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finishing market purchases once the billing service reported them: giving the items,
+ * consuming the purchases and posting the events. Measures a single purchase and a restore of
+ * many owned items, both going through the store's purchase pipeline on the calling thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PurchaseBenchmark {
+
+    @Param({"100", "10000"})
+    public int catalogSize;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkStore.load(new GeneratedStoreAssets(catalogSize));
+
+        // the billing service is normally found through AndroidManifest.xml
+        Field service = SoomlaStore.class.getDeclaredField("mInAppBillingService");
+        service.setAccessible(true);
+        service.set(SoomlaStore.getInstance(), new NoOpIabService());
+
+        Field pipeline = SoomlaStore.class.getDeclaredField("mPurchasePipeline");
+        pipeline.setAccessible(true);
+        mPipeline = pipeline.get(SoomlaStore.getInstance());
+        mProcess = mPipeline.getClass().getDeclaredMethod(
+                "process", List.class, boolean.class, Runnable.class);
+        mProcess.setAccessible(true);
+
+        mPacks = Math.max(1, catalogSize / 20);
+    }
+
+    /**
+     * Every purchase gets a new orderId, since the purchase ledger grants an order only once.
+     */
+    @Benchmark
+    public void handleSuccessfulPurchase() throws Exception {
+        mProcess.invoke(mPipeline, Collections.singletonList(purchase(0)), false, null);
+    }
+
+    @Benchmark
+    public void restorePurchases() throws Exception {
+        List<IabPurchase> purchases = new ArrayList<IabPurchase>(RESTORED_PURCHASES);
+        for (int i = 0; i < RESTORED_PURCHASES; i++) {
+            purchases.add(purchase(i % mPacks));
+        }
+        mProcess.invoke(mPipeline, purchases, true, null);
+    }
+
+    /**
+     * Drops the consumed orders of the previous iteration from the ledger, so they don't pile up.
+     */
+    @TearDown(Level.Iteration)
+    public void compactLedger() {
+        StorageManager.getPurchaseLedger().compact(0);
+    }
+
+    private IabPurchase purchase(int packIndex) {
+        return new IabPurchase(IabHelper.ITEM_TYPE_INAPP,
+                GeneratedStoreAssets.productId("pack_" + packIndex), "token",
+                "order." + (mNextOrder++), 0);
+    }
+
+    /**
+     * A billing service that accepts every consumption right away.
+     */
+    private static class NoOpIabService implements IIabService {
+
+        @Override
+        public boolean isIabServiceInitialized() {
+            return true;
+        }
+
+        @Override
+        public void consume(IabPurchase purchase) {
+        }
+
+        @Override
+        public void consumeAsync(IabPurchase purchase, IabCallbacks.OnConsumeListener consumeListener) {
+            consumeListener.success(purchase);
+        }
+
+        @Override
+        public void launchPurchaseFlow(String itemType, String sku,
+                                       IabCallbacks.OnPurchaseListener purchaseListener,
+                                       String extraData) {
+        }
+
+        @Override
+        public void restorePurchasesAsync(IabCallbacks.OnRestorePurchasesListener restorePurchasesListener) {
+        }
+
+        @Override
+        public void fetchSkusDetailsAsync(List<String> skus,
+                                          IabCallbacks.OnFetchSkusDetailsListener fetchSkusDetailsListener) {
+        }
+
+        @Override
+        public void initializeBillingService(IabCallbacks.IabInitListener initListener) {
+            initListener.success(true);
+        }
+
+        @Override
+        public void startIabServiceInBg(IabCallbacks.IabInitListener initListener) {
+        }
+
+        @Override
+        public void stopIabServiceInBg(IabCallbacks.IabInitListener initListener) {
+        }
+
+        @Override
+        public void configVerifyPurchases(Map<String, Object> verifyPurchases) {
+        }
+
+        @Override
+        public boolean shouldVerifyPurchases() {
+            return false;
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static final int RESTORED_PURCHASES = 300;
+
+    private Object mPipeline;
+    private Method mProcess;
+    private int mPacks;
+    private int mNextOrder;
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.benchmark;
+
+import com.soomla.store.data.BalanceTransaction;
+import com.soomla.store.data.PurchaseLedger;
+import com.soomla.store.exceptions.InsufficientFundsException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The purchase ledger of a user with a long purchase history: checking a purchase, recording a
+ * new one, and loading the ledger on start.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PurchaseLedgerBenchmark {
+
+    @Param({"100000"})
+    public int historicalOrders;
+
+    /**
+     * Rebuilds the history on every iteration, so the purchases recorded by the previous one
+     * don't pile up.
+     */
+    @Setup(Level.Iteration)
+    public void setUp() throws InsufficientFundsException {
+        BenchmarkStore.load(new GeneratedStoreAssets(100));
+        mLedger = new PurchaseLedger();
+
+        List<String> keys = new ArrayList<String>(HISTORY_CHUNK);
+        List<Boolean> needsConsume = new ArrayList<Boolean>(HISTORY_CHUNK);
+        for (int i = 0; i < historicalOrders; i++) {
+            keys.add(orderId(i));
+            needsConsume.add(false);
+            if (keys.size() == HISTORY_CHUNK || i == historicalOrders - 1) {
+                mLedger.commitGranted(keys, needsConsume, new BalanceTransaction());
+                keys.clear();
+                needsConsume.clear();
+            }
+        }
+        mNextOrder = historicalOrders;
+    }
+
+    @Benchmark
+    public boolean isGrantedHit() {
+        mProbe = (mProbe + 7919) % historicalOrders;
+        return mLedger.isGranted(orderId(mProbe));
+    }
+
+    @Benchmark
+    public boolean isGrantedMiss() {
+        return mLedger.isGranted("GPA.missing." + (mProbe++));
+    }
+
+    @Benchmark
+    public void recordPurchase() throws InsufficientFundsException {
+        mLedger.commitGranted(Collections.singletonList(orderId(mNextOrder++)),
+                Collections.singletonList(true), new BalanceTransaction());
+    }
+
+    /**
+     * Loading includes the compaction scan that runs on every load.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int load() {
+        return new PurchaseLedger().size();
+    }
+
+    private static String orderId(int index) {
+        return "GPA.1234-5678-9012-" + index;
+    }
+
+
+    /** Private Members **/
+
+    private static final int HISTORY_CHUNK = 1000;
+
+    private PurchaseLedger mLedger;
+    private int mProbe;
+    private int mNextOrder;
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.benchmark;
+
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.StoreConfig;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.domain.MarketItem;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.exceptions.VirtualItemNotFoundException;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading, saving and refreshing the store's metadata for catalogs of different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreInfoBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int catalogSize;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkStore.load(new GeneratedStoreAssets(catalogSize));
+
+        mBinary = KeyValueStorage.getValue(KEY_BINARY);
+        mJSON = KeyValueStorage.getValue(KEY_JSON);
+
+        mRefreshedItems = new ArrayList<VirtualItem>();
+        for (String productId : StoreInfo.getAllProductIds()) {
+            mRefreshedItems.add(StoreInfo.getPurchasableItem(productId));
+        }
+    }
+
+    @Benchmark
+    public JSONObject toJSONObject() {
+        return StoreInfo.toJSONObject();
+    }
+
+    /**
+     * The metadata JSON parsed into a <code>JSONObject</code> tree, and the items built from it.
+     * This is how <code>StoreInfo</code> loaded the JSON before it streamed it.
+     */
+    @Benchmark
+    public List<VirtualItem> parseJSONTree() throws JSONException {
+        return MetadataParsers.parseTree(mJSON);
+    }
+
+    /**
+     * The metadata JSON streamed straight into the items, as <code>StoreInfo</code> loads it.
+     */
+    @Benchmark
+    public Object parseJSONStream() throws Exception {
+        return MetadataParsers.parseStream(mJSON);
+    }
+
+    @Benchmark
+    public boolean loadFromDBBinary() {
+        KeyValueStorage.setValue(KEY_BINARY, mBinary);
+        return StoreInfo.loadFromDB();
+    }
+
+    /**
+     * Loads only the index of the binary metadata, see <code>StoreConfig.lazyCatalog</code>.
+     */
+    @Benchmark
+    public boolean loadFromDBLazy() {
+        KeyValueStorage.setValue(KEY_BINARY, mBinary);
+        StoreConfig.lazyCatalog = true;
+        try {
+            return StoreInfo.loadFromDB();
+        } finally {
+            StoreConfig.lazyCatalog = false;
+        }
+    }
+
+    /**
+     * A session on a lazy catalog: loads the index and then uses one percent of the goods, which
+     * creates them.
+     */
+    @Benchmark
+    public int loadFromDBLazyAndUseOnePercent() throws VirtualItemNotFoundException {
+        loadFromDBLazy();
+        int used = 0;
+        for (int i = 0; i < catalogSize; i += 100) {
+            used += StoreInfo.getVirtualItem(GeneratedStoreAssets.goodItemId(i)).getHandle();
+        }
+        return used;
+    }
+
+    @Benchmark
+    public boolean loadFromDBJSON() {
+        KeyValueStorage.deleteKeyValue(KEY_BINARY);
+        KeyValueStorage.setValue(KEY_JSON, mJSON);
+        return StoreInfo.loadFromDB();
+    }
+
+    /**
+     * What a market items refresh does after the details arrive: update every market item and
+     * replace all of them in <code>StoreInfo</code> at once.
+     */
+    @Benchmark
+    public void refreshMarketItems() throws VirtualItemNotFoundException {
+        mRefreshes++;
+        for (VirtualItem item : mRefreshedItems) {
+            MarketItem mi = ((PurchaseWithMarket) ((PurchasableVirtualItem) item)
+                    .getPurchaseType()).getMarketItem();
+            mi.setMarketInformation("$0.99", "Refresh " + mRefreshes, "", "USD", 990000);
+        }
+        StoreInfo.save(mRefreshedItems, false);
+    }
+
+    @Benchmark
+    public void replaceVirtualItem() {
+        StoreInfo.replaceVirtualItem(mRefreshedItems.get(mRefreshes++ % mRefreshedItems.size()));
+    }
+
+
+    /** Private Members **/
+
+    private static final String KEY_JSON = "meta.storeinfo";
+    private static final String KEY_BINARY = "meta.storeinfo.bin";
+
+    private String mJSON;
+    private String mBinary;
+    private List<VirtualItem> mRefreshedItems;
+    private int mRefreshes;
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.benchmark;
+
+import com.soomla.store.InventorySnapshot;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.exceptions.VirtualItemNotFoundException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inventory queries that the game engine wrappers run on every screen refresh.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreInventoryBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int catalogSize;
+
+    @Setup
+    public void setUp() throws VirtualItemNotFoundException {
+        BenchmarkStore.load(new GeneratedStoreAssets(catalogSize));
+
+        // the good in the middle of the catalog has an upgrade in the middle of its chain
+        mUpgradedGoodItemId = GeneratedStoreAssets.goodItemId(catalogSize / 20 * 10);
+        StoreInventory.forceUpgrade(GeneratedStoreAssets.upgradeItemId(catalogSize / 20 * 10,
+                GeneratedStoreAssets.UPGRADE_LEVELS / 2 + 1));
+
+        mAllItemsBalances = StoreInventory.allItemsBalances();
+    }
+
+    @Benchmark
+    public HashMap<String, HashMap<String, Object>> allItemsBalances() {
+        return StoreInventory.allItemsBalances();
+    }
+
+    @Benchmark
+    public InventorySnapshot fillSnapshot() {
+        return StoreInventory.fillSnapshot(mSnapshot);
+    }
+
+    @Benchmark
+    public boolean resetAllItemsBalances() {
+        // restores the same inventory every time, like a cloud sync with no remote changes
+        return StoreInventory.resetAllItemsBalances(mAllItemsBalances);
+    }
+
+    @Benchmark
+    public int getGoodUpgradeLevel() throws VirtualItemNotFoundException {
+        return StoreInventory.getGoodUpgradeLevel(mUpgradedGoodItemId);
+    }
+
+
+    /** Private Members **/
+
+    private String mUpgradedGoodItemId;
+    private HashMap<String, HashMap<String, Object>> mAllItemsBalances;
+
+    // reused like a periodic export would
+    private final InventorySnapshot mSnapshot = new InventorySnapshot();
+}
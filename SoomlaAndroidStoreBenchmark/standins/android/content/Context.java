@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import android.content.pm.PackageManager;
+
+import java.util.HashMap;
+
+/**
+ * Benchmark stand-in for the Android <code>Context</code>, with in-memory shared preferences.
+ */
+public class Context {
+
+    public static final int MODE_PRIVATE = 0;
+
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences prefs = mPrefs.get(name);
+        if (prefs == null) {
+            prefs = new SharedPreferences();
+            mPrefs.put(name, prefs);
+        }
+        return prefs;
+    }
+
+    public PackageManager getPackageManager() {
+        return null;
+    }
+
+    public String getPackageName() {
+        return "com.soomla.benchmark";
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public void registerComponentCallbacks(ComponentCallbacks callback) {
+    }
+
+    private final HashMap<String, SharedPreferences> mPrefs =
+            new HashMap<String, SharedPreferences>();
+}
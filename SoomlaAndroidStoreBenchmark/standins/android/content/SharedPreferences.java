@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import java.util.HashMap;
+
+/**
+ * Benchmark stand-in for the Android <code>SharedPreferences</code>, kept in memory.
+ * Edits are applied right away.
+ */
+public class SharedPreferences {
+
+    public synchronized int getInt(String key, int defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    public synchronized long getLong(String key, long defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    public synchronized String getString(String key, String defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+
+    public class Editor {
+
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        public Editor remove(String key) {
+            synchronized (SharedPreferences.this) {
+                mValues.remove(key);
+            }
+            return this;
+        }
+
+        public boolean commit() {
+            return true;
+        }
+
+        public void apply() {
+        }
+
+        private Editor put(String key, Object value) {
+            synchronized (SharedPreferences.this) {
+                mValues.put(key, value);
+            }
+            return this;
+        }
+    }
+
+    private final HashMap<String, Object> mValues = new HashMap<String, Object>();
+}
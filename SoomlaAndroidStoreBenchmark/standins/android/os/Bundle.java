@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.HashMap;
+
+/**
+ * Benchmark stand-in for the Android <code>Bundle</code>.
+ */
+public class Bundle {
+
+    public String getString(String key) {
+        return mValues.get(key);
+    }
+
+    public void putString(String key, String value) {
+        mValues.put(key, value);
+    }
+
+    private final HashMap<String, String> mValues = new HashMap<String, String>();
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla;
+
+/**
+ * Benchmark stand-in for SoomlaAndroidCore's <code>BusProvider</code>. Events are counted and
+ * dropped, so the benchmarks don't include the cost of the subscribers.
+ */
+public class BusProvider {
+
+    public static BusProvider getInstance() {
+        return INSTANCE;
+    }
+
+    public void post(Object event) {
+        mPosted++;
+    }
+
+    public void register(Object object) {
+    }
+
+    public void unregister(Object object) {
+    }
+
+    /**
+     * Retrieves the number of events that were posted so far.
+     */
+    public long getPostedCount() {
+        return mPosted;
+    }
+
+    private static final BusProvider INSTANCE = new BusProvider();
+
+    private volatile long mPosted;
+}
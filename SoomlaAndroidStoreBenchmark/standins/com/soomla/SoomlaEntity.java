@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla;
+
+import com.soomla.data.JSONConsts;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Benchmark stand-in for SoomlaAndroidCore's <code>SoomlaEntity</code>.
+ *
+ * @param <T> the type of the entity
+ */
+public abstract class SoomlaEntity<T> {
+
+    public SoomlaEntity(String name, String description, String id) {
+        mName = name;
+        mDescription = description;
+        mID = id;
+    }
+
+    public SoomlaEntity(JSONObject jsonObject) throws JSONException {
+        mName = jsonObject.optString(JSONConsts.SOOM_ENTITY_NAME);
+        mDescription = jsonObject.optString(JSONConsts.SOOM_ENTITY_DESCRIPTION);
+        mID = jsonObject.getString(JSONConsts.SOOM_ENTITY_ID);
+    }
+
+    public JSONObject toJSONObject() {
+        JSONObject jsonObject = new JSONObject();
+        try {
+            jsonObject.put(JSONConsts.SOOM_ENTITY_NAME, mName);
+            jsonObject.put(JSONConsts.SOOM_ENTITY_DESCRIPTION, mDescription);
+            jsonObject.put(JSONConsts.SOOM_ENTITY_ID, mID);
+            jsonObject.put(JSONConsts.SOOM_CLASSNAME, SoomlaUtils.getClassName(this));
+        } catch (JSONException e) {
+            SoomlaUtils.LogError("SOOMLA SoomlaEntity", "An error occurred while generating JSON object.");
+        }
+        return jsonObject;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SoomlaEntity && ((SoomlaEntity) o).mID.equals(mID);
+    }
+
+    @Override
+    public int hashCode() {
+        return mID.hashCode();
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getDescription() {
+        return mDescription;
+    }
+
+    public String getID() {
+        return mID;
+    }
+
+    protected String mName;
+    protected String mDescription;
+    protected String mID;
+}
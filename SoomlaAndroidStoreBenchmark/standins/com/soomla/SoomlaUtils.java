@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla;
+
+/**
+ * Benchmark stand-in for SoomlaAndroidCore's <code>SoomlaUtils</code>, logging to stderr.
+ */
+public class SoomlaUtils {
+
+    public static void LogDebug(String tag, String message) {
+        if (SoomlaConfig.logDebug) {
+            System.err.println("D/" + tag + ": " + message);
+        }
+    }
+
+    public static void LogWarning(String tag, String message) {
+        System.err.println("W/" + tag + ": " + message);
+    }
+
+    public static void LogError(String tag, String message) {
+        System.err.println("E/" + tag + ": " + message);
+    }
+
+    public static String getClassName(Object target) {
+        return target.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Benchmark stand-in for SoomlaAndroidCore's <code>KeyValueStorage</code>, kept in memory.
+ * It has no encryption and no SQLite, so the benchmarks measure the store's own work.
+ */
+public class KeyValueStorage {
+
+    public static synchronized String getValue(String key) {
+        return sValues.get(key);
+    }
+
+    public static synchronized void setValue(String key, String val) {
+        sValues.put(key, val);
+    }
+
+    public static synchronized void deleteKeyValue(String key) {
+        sValues.remove(key);
+    }
+
+    public static synchronized List<String> getEncryptedKeys() {
+        return new ArrayList<String>(sValues.keySet());
+    }
+
+    public static synchronized void purge() {
+        sValues.clear();
+    }
+
+    private static final HashMap<String, String> sValues = new HashMap<String, String>();
+}
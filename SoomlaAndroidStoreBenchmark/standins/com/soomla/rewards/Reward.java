@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.rewards;
+
+import com.soomla.SoomlaEntity;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Benchmark stand-in for SoomlaAndroidCore's <code>Reward</code>.
+ */
+public abstract class Reward extends SoomlaEntity<Reward> {
+
+    protected Reward(String id, String name) {
+        super(name, "", id);
+    }
+
+    protected Reward(JSONObject jsonObject) throws JSONException {
+        super(jsonObject);
+    }
+
+    public boolean give() {
+        return giveInner();
+    }
+
+    public boolean take() {
+        return takeInner();
+    }
+
+    protected abstract boolean giveInner();
+
+    protected abstract boolean takeInner();
+}
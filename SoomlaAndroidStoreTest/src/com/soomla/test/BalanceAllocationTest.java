@@ -0,0 +1,103 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.SoomlaConfig;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.VirtualCurrencyStorage;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.management.ManagementFactory;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class BalanceAllocationTest {
+
+    private static final int WARMUP_CALLS = 20000;
+    private static final int CALLS = 10000;
+
+    private com.sun.management.ThreadMXBean mThreadBean;
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new MuffinRushAssets());
+        SoomlaConfig.logDebug = false;
+
+        // allocation counters are only available on HotSpot based JVMs
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean()
+                instanceof com.sun.management.ThreadMXBean);
+        mThreadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(mThreadBean.isThreadAllocatedMemorySupported());
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void storageBalanceReadsDontAllocate() {
+        VirtualCurrencyStorage storage = StorageManager.getVirtualCurrencyStorage();
+        String itemId = MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID;
+
+        int sum = 0;
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            sum += storage.getBalance(itemId);
+        }
+
+        long before = allocatedBytes();
+        for (int i = 0; i < CALLS; i++) {
+            sum += storage.getBalance(itemId);
+        }
+        long allocated = allocatedBytes() - before;
+
+        assertThat(allocated / CALLS, equalTo(0L));
+        assertThat(sum, equalTo((WARMUP_CALLS + CALLS) * storage.getBalance(itemId)));
+    }
+
+    @Test
+    public void inventoryBalanceReadsDontAllocate() throws Exception {
+        String itemId = MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID;
+
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            StoreInventory.getVirtualItemBalance(itemId);
+        }
+
+        long before = allocatedBytes();
+        for (int i = 0; i < CALLS; i++) {
+            StoreInventory.getVirtualItemBalance(itemId);
+        }
+        long allocated = allocatedBytes() - before;
+
+        assertThat(allocated / CALLS, equalTo(0L));
+    }
+
+    @Test
+    public void handleBalanceReadsDontAllocate() throws Exception {
+        String itemId = MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID;
+        int handle = StoreInventory.getItemHandle(itemId);
+        StorageManager.getVirtualCurrencyStorage().add(itemId, 7, false);
+
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            StoreInventory.getVirtualItemBalance(handle);
+        }
+
+        long before = allocatedBytes();
+        for (int i = 0; i < CALLS; i++) {
+            StoreInventory.getVirtualItemBalance(handle);
+        }
+        long allocated = allocatedBytes() - before;
+
+        assertThat(allocated / CALLS, equalTo(0L));
+        assertThat(StoreInventory.getVirtualItemBalance(handle),
+                equalTo(StoreInventory.getVirtualItemBalance(itemId)));
+    }
+
+    private long allocatedBytes() {
+        return mThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
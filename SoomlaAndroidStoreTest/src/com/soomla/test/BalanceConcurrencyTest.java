@@ -0,0 +1,139 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.data.BalanceTransaction;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.VirtualCurrencyStorage;
+import com.soomla.store.exceptions.InsufficientFundsException;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class BalanceConcurrencyTest {
+
+    // only catalog items have shared counters
+    private static final String ITEM_ID = MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID;
+    private static final String EMPTY_ITEM_ID = "stress_empty_currency";
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 2000;
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new MuffinRushAssets());
+        StorageManager.getVirtualCurrencyStorage().setBalance(ITEM_ID, 0, false);
+    }
+
+    @Test
+    public void concurrentAddsAndRemovesAreNotLost() throws Exception {
+        final VirtualCurrencyStorage storage = StorageManager.getVirtualCurrencyStorage();
+
+        runConcurrently(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    storage.add(ITEM_ID, 3, false);
+                    storage.remove(ITEM_ID, 1, false);
+                }
+            }
+        });
+
+        int expected = THREADS * ITERATIONS * 2;
+        assertThat(storage.getBalance(ITEM_ID), equalTo(expected));
+        assertThat(KeyValueStorage.getValue("currency." + ITEM_ID + ".balance"),
+                equalTo(String.valueOf(expected)));
+    }
+
+    @Test
+    public void concurrentTransactionsNeverOverdraw() throws Exception {
+        final VirtualCurrencyStorage storage = StorageManager.getVirtualCurrencyStorage();
+        final int initial = THREADS * ITERATIONS / 4;
+        storage.setBalance(ITEM_ID, initial, false);
+        final AtomicInteger succeeded = new AtomicInteger();
+
+        runConcurrently(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    try {
+                        new BalanceTransaction().debit(storage, ITEM_ID, 1).commit(false);
+                        succeeded.incrementAndGet();
+                    } catch (InsufficientFundsException e) {
+                        // expected once the balance runs out
+                    }
+                }
+            }
+        });
+
+        assertThat(succeeded.get(), equalTo(initial));
+        assertThat(storage.getBalance(ITEM_ID), equalTo(0));
+    }
+
+    @Test
+    public void rolledBackDebitsArePersisted() throws Exception {
+        final VirtualCurrencyStorage storage = StorageManager.getVirtualCurrencyStorage();
+        storage.setBalance(ITEM_ID, 5, false);
+
+        // another thread adds to the item between its debit and the rollback: the empty item's
+        // balance is loaded right after the first debit was applied
+        VirtualCurrencyStorage interleaving = new VirtualCurrencyStorage() {
+            private boolean mInterleaved = false;
+
+            @Override
+            protected String keyBalance(String itemId) {
+                if (!mInterleaved) {
+                    mInterleaved = true;
+                    storage.add(ITEM_ID, 1, false);
+                }
+                return super.keyBalance(itemId);
+            }
+        };
+
+        try {
+            new BalanceTransaction().debit(storage, ITEM_ID, 2)
+                    .debit(interleaving, EMPTY_ITEM_ID, 1).commit(false);
+        } catch (InsufficientFundsException e) {
+            // expected, the first debit is given back
+        }
+
+        assertThat(storage.getBalance(ITEM_ID), equalTo(6));
+        assertThat(KeyValueStorage.getValue("currency." + ITEM_ID + ".balance"),
+                equalTo("6"));
+    }
+
+    private static void runConcurrently(final Runnable work) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    work.run();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
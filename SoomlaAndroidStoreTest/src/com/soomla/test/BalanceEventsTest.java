@@ -0,0 +1,151 @@
+package com.soomla.test;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaApp;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.VirtualCurrencyStorage;
+import com.soomla.store.data.VirtualGoodsStorage;
+import com.soomla.store.events.BalancesChangedEvent;
+import com.soomla.store.events.CurrencyBalanceChangedEvent;
+import com.soomla.store.events.GoodBalanceChangedEvent;
+import com.squareup.otto.Subscribe;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class BalanceEventsTest {
+
+    private static final String CURRENCY_ID = "events_currency";
+    private static final String GOOD_ID = "events_good";
+
+    private final List<CurrencyBalanceChangedEvent> mCurrencyEvents =
+            new ArrayList<CurrencyBalanceChangedEvent>();
+    private final List<GoodBalanceChangedEvent> mGoodEvents =
+            new ArrayList<GoodBalanceChangedEvent>();
+    private final List<BalancesChangedEvent> mBatchEvents = new ArrayList<BalancesChangedEvent>();
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StorageManager.getVirtualCurrencyStorage().setBalance(CURRENCY_ID, 0, false);
+        StorageManager.getVirtualGoodsStorage().setBalance(GOOD_ID, 0, false);
+        BusProvider.getInstance().register(this);
+    }
+
+    @After
+    public void tearDown() {
+        BusProvider.getInstance().unregister(this);
+        StorageManager.setPostBalancesChangedEvents(false);
+    }
+
+    @Test
+    public void everyChangeIsPostedByDefault() {
+        VirtualCurrencyStorage currencies = StorageManager.getVirtualCurrencyStorage();
+        currencies.add(CURRENCY_ID, 5);
+        currencies.remove(CURRENCY_ID, 2);
+
+        assertThat(mCurrencyEvents.size(), equalTo(2));
+        assertThat(mCurrencyEvents.get(1).getBalance(), equalTo(3));
+        assertThat(mCurrencyEvents.get(1).getAmountAdded(), equalTo(-2));
+    }
+
+    @Test
+    public void changesInAScopeArePostedOncePerItem() {
+        StorageManager.setPostBalancesChangedEvents(true);
+        VirtualCurrencyStorage currencies = StorageManager.getVirtualCurrencyStorage();
+        VirtualGoodsStorage goods = StorageManager.getVirtualGoodsStorage();
+
+        StorageManager.beginBalanceEvents();
+        for (int i = 0; i < 50; i++) {
+            currencies.add(CURRENCY_ID, 10);
+            goods.add(GOOD_ID, 1);
+        }
+        StorageManager.beginBalanceEvents();
+        currencies.remove(CURRENCY_ID, 100);
+        StorageManager.endBalanceEvents();
+        assertThat(mCurrencyEvents.size(), equalTo(0));
+        StorageManager.endBalanceEvents();
+
+        assertThat(mCurrencyEvents.size(), equalTo(1));
+        assertThat(mCurrencyEvents.get(0).getBalance(), equalTo(400));
+        assertThat(mCurrencyEvents.get(0).getAmountAdded(), equalTo(400));
+        assertThat(mGoodEvents.size(), equalTo(1));
+        assertThat(mGoodEvents.get(0).getBalance(), equalTo(50));
+
+        assertThat(mBatchEvents.size(), equalTo(1));
+        BalancesChangedEvent batch = mBatchEvents.get(0);
+        assertThat(batch.getItemIds(), equalTo(Arrays.asList(CURRENCY_ID, GOOD_ID)));
+        assertThat(batch.getBalance(CURRENCY_ID), equalTo(400));
+        assertThat(batch.getAmountAdded(GOOD_ID), equalTo(50));
+    }
+
+    @Test
+    public void scopesOnlyCollectTheChangesOfTheirThread() throws Exception {
+        StorageManager.beginBalanceEvents();
+        StorageManager.getVirtualCurrencyStorage().add(CURRENCY_ID, 5);
+
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StorageManager.getVirtualGoodsStorage().add(GOOD_ID, 1);
+            }
+        });
+        other.start();
+        other.join();
+
+        // the other thread's change isn't held back by this thread's scope
+        assertThat(mGoodEvents.size(), equalTo(1));
+        assertThat(mCurrencyEvents.size(), equalTo(0));
+
+        // and a scope can't be closed from a thread that didn't open it
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    StorageManager.endBalanceEvents();
+                } catch (IllegalStateException e) {
+                    failures.add(e);
+                }
+            }
+        });
+        closer.start();
+        closer.join();
+        assertThat(failures.size(), equalTo(1));
+        assertThat(mCurrencyEvents.size(), equalTo(0));
+
+        StorageManager.endBalanceEvents();
+        assertThat(mCurrencyEvents.size(), equalTo(1));
+        assertThat(mCurrencyEvents.get(0).getBalance(), equalTo(5));
+    }
+
+    @Subscribe
+    public void onCurrencyBalanceChanged(CurrencyBalanceChangedEvent event) {
+        if (CURRENCY_ID.equals(event.getCurrencyItemId())) {
+            mCurrencyEvents.add(event);
+        }
+    }
+
+    @Subscribe
+    public void onGoodBalanceChanged(GoodBalanceChangedEvent event) {
+        if (GOOD_ID.equals(event.getGoodItemId())) {
+            mGoodEvents.add(event);
+        }
+    }
+
+    @Subscribe
+    public void onBalancesChanged(BalancesChangedEvent event) {
+        mBatchEvents.add(event);
+    }
+}
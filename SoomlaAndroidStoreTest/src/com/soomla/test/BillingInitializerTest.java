@@ -0,0 +1,161 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.store.BillingInitializer;
+import com.soomla.store.SoomlaStore;
+import com.soomla.store.billing.IIabService;
+import com.soomla.store.billing.IabCallbacks;
+import com.soomla.store.billing.IabPurchase;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class BillingInitializerTest {
+
+    private SlowSetupIabService mService;
+    private BillingInitializer mInitializer;
+    private int mSetups;
+    private int mAvoided;
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new MuffinRushAssets());
+
+        mService = new SlowSetupIabService();
+        Field service = SoomlaStore.class.getDeclaredField("mInAppBillingService");
+        service.setAccessible(true);
+        service.set(SoomlaStore.getInstance(), mService);
+
+        // forgets the setups of earlier tests
+        SoomlaStore.getInstance().stopIabServiceInBg();
+        mInitializer = SoomlaStore.getInstance().getBillingInitializer();
+        mSetups = mInitializer.getSetupsCount();
+        mAvoided = mInitializer.getAvoidedSetupsCount();
+    }
+
+    @After
+    public void tearDown() {
+        mInitializer.setBaseBackoffMillis(BillingInitializer.DEFAULT_BASE_BACKOFF_MILLIS);
+    }
+
+    @Test
+    public void concurrentOperationsShareOneSetup() {
+        SoomlaStore.getInstance().restoreTransactions();
+        SoomlaStore.getInstance().refreshMarketItemsDetails();
+        assertThat(mService.initListeners.size(), equalTo(1));
+
+        mService.initialized = true;
+        mService.initListeners.get(0).success(false);
+        assertThat(mService.restores, equalTo(1));
+        assertThat(mService.fetches, equalTo(1));
+
+        // the service is still up, so there's nothing to set up
+        SoomlaStore.getInstance().restoreTransactions();
+        assertThat(mService.initListeners.size(), equalTo(1));
+        assertThat(mService.restores, equalTo(2));
+        assertThat(mInitializer.getSetupsCount() - mSetups, equalTo(1));
+        assertThat(mInitializer.getAvoidedSetupsCount() - mAvoided, equalTo(2));
+
+        SoomlaStore.getInstance().stopIabServiceInBg();
+        SoomlaStore.getInstance().restoreTransactions();
+        assertThat(mService.initListeners.size(), equalTo(2));
+        mService.initListeners.get(1).success(false);
+    }
+
+    @Test
+    public void failedSetupBacksOff() throws Exception {
+        int backedOff = mInitializer.getBackedOffCount();
+        mInitializer.setBaseBackoffMillis(50);
+
+        SoomlaStore.getInstance().restoreTransactions();
+        mService.initListeners.get(0).fail("no connection");
+
+        SoomlaStore.getInstance().restoreTransactions();
+        assertThat(mService.initListeners.size(), equalTo(1));
+        assertThat(mInitializer.getBackedOffCount() - backedOff, equalTo(1));
+
+        Thread.sleep(60);
+        SoomlaStore.getInstance().restoreTransactions();
+        assertThat(mService.initListeners.size(), equalTo(2));
+        mService.initListeners.get(1).fail("no connection");
+    }
+
+    /**
+     * Finishes setups only when the test calls their listeners.
+     */
+    private static class SlowSetupIabService implements IIabService {
+
+        final List<IabCallbacks.IabInitListener> initListeners =
+                new ArrayList<IabCallbacks.IabInitListener>();
+        boolean initialized = false;
+        int restores = 0;
+        int fetches = 0;
+
+        @Override
+        public void initializeBillingService(IabCallbacks.IabInitListener initListener) {
+            initListeners.add(initListener);
+        }
+
+        @Override
+        public boolean isIabServiceInitialized() {
+            return initialized;
+        }
+
+        @Override
+        public void restorePurchasesAsync(IabCallbacks.OnRestorePurchasesListener restorePurchasesListener) {
+            restores++;
+        }
+
+        @Override
+        public void fetchSkusDetailsAsync(List<String> skus,
+                                          IabCallbacks.OnFetchSkusDetailsListener fetchSkusDetailsListener) {
+            fetches++;
+        }
+
+        @Override
+        public void stopIabServiceInBg(IabCallbacks.IabInitListener initListener) {
+            initialized = false;
+        }
+
+        @Override
+        public void consume(IabPurchase purchase) {
+        }
+
+        @Override
+        public void consumeAsync(IabPurchase purchase,
+                                 IabCallbacks.OnConsumeListener consumeListener) {
+        }
+
+        @Override
+        public void launchPurchaseFlow(String itemType, String sku,
+                                       IabCallbacks.OnPurchaseListener purchaseListener,
+                                       String extraData) {
+        }
+
+        @Override
+        public void startIabServiceInBg(IabCallbacks.IabInitListener initListener) {
+        }
+
+        @Override
+        public void configVerifyPurchases(Map<String, Object> verifyPurchases) {
+        }
+
+        @Override
+        public boolean shouldVerifyPurchases() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.store.ConsumeQueue;
+import com.soomla.store.SoomlaStore;
+import com.soomla.store.billing.IIabService;
+import com.soomla.store.billing.IabCallbacks;
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabPurchase;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConsumeQueueTest {
+
+    private static final int PURCHASES = 40;
+    private static final long LATENCY_MILLIS = 5;
+
+    private FlakyIabService mService;
+    private ConsumeQueue mQueue;
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new MuffinRushAssets());
+
+        mService = new FlakyIabService(0.5);
+        Field service = SoomlaStore.class.getDeclaredField("mInAppBillingService");
+        service.setAccessible(true);
+        service.set(SoomlaStore.getInstance(), mService);
+
+        mQueue = SoomlaStore.getInstance().getConsumeQueue();
+        mQueue.setBaseBackoffMillis(1);
+        mQueue.setMaxBackoffMillis(8);
+    }
+
+    @Test
+    public void everyPurchaseIsConsumedOnceDespiteFailures() throws Exception {
+        int retries = mQueue.getRetriesCount();
+        int consumed = mQueue.getConsumedCount();
+
+        List<IabPurchase> purchases = purchases("flaky", PURCHASES);
+        mQueue.enqueue(purchases);
+        // reported again before they were consumed
+        mQueue.enqueue(purchases);
+        awaitDrained();
+
+        assertThat(mService.consumed.size(), equalTo(PURCHASES));
+        for (AtomicInteger count : mService.consumed.values()) {
+            assertThat(count.get(), equalTo(1));
+        }
+        assertThat(mService.failures.get() > 0, is(true));
+        assertThat(mQueue.getRetriesCount() - retries, equalTo(mService.failures.get()));
+        assertThat(mQueue.getConsumedCount() - consumed, equalTo(PURCHASES));
+        assertThat(mService.maxInFlight.get(), equalTo(1));
+    }
+
+    @Test
+    public void failedPurchasesWaitForTheNextDrain() throws Exception {
+        mService.failureRate = 1;
+        mQueue.setBaseBackoffMillis(60 * 1000);
+        mQueue.enqueue(purchases("offline", 3));
+        Thread.sleep(100);
+        assertThat(mQueue.getDepth(), equalTo(3));
+
+        mService.failureRate = 0;
+        mQueue.drainNow();
+        awaitDrained();
+        assertThat(mService.consumed.size(), equalTo(3));
+    }
+
+    private void awaitDrained() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mQueue.getDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(mQueue.getDepth(), equalTo(0));
+    }
+
+    private static List<IabPurchase> purchases(String prefix, int count) {
+        List<IabPurchase> purchases = new ArrayList<IabPurchase>();
+        for (int i = 0; i < count; i++) {
+            purchases.add(new IabPurchase(IabHelper.ITEM_TYPE_INAPP,
+                    MuffinRushAssets.TENMUFF_PACK_PRODUCT_ID, prefix + ".token." + i,
+                    prefix + ".order." + i, 0));
+        }
+        return purchases;
+    }
+
+    /**
+     * Consumes purchases on a background thread, like <code>IabHelper</code>, and fails a given
+     * share of them at random.
+     */
+    private static class FlakyIabService implements IIabService {
+        FlakyIabService(double failureRate) {
+            this.failureRate = failureRate;
+        }
+
+        final Map<String, AtomicInteger> consumed = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final Random random = new Random(42);
+        volatile double failureRate;
+
+        @Override
+        public void consumeAsync(final IabPurchase purchase,
+                                 final IabCallbacks.OnConsumeListener consumeListener) {
+            int current = inFlight.incrementAndGet();
+            int max = maxInFlight.get();
+            while (current > max && !maxInFlight.compareAndSet(max, current)) {
+                max = maxInFlight.get();
+            }
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(LATENCY_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    boolean fail;
+                    synchronized (random) {
+                        fail = random.nextDouble() < failureRate;
+                    }
+                    inFlight.decrementAndGet();
+                    if (fail) {
+                        failures.incrementAndGet();
+                        consumeListener.fail("fake failure");
+                        return;
+                    }
+                    consumed.putIfAbsent(purchase.getToken(), new AtomicInteger());
+                    consumed.get(purchase.getToken()).incrementAndGet();
+                    consumeListener.success(purchase);
+                }
+            }).start();
+        }
+
+        @Override
+        public boolean isIabServiceInitialized() {
+            return true;
+        }
+
+        @Override
+        public void consume(IabPurchase purchase) {
+        }
+
+        @Override
+        public void launchPurchaseFlow(String itemType, String sku,
+                                       IabCallbacks.OnPurchaseListener purchaseListener,
+                                       String extraData) {
+        }
+
+        @Override
+        public void restorePurchasesAsync(IabCallbacks.OnRestorePurchasesListener restorePurchasesListener) {
+        }
+
+        @Override
+        public void fetchSkusDetailsAsync(List<String> skus,
+                                          IabCallbacks.OnFetchSkusDetailsListener fetchSkusDetailsListener) {
+        }
+
+        @Override
+        public void initializeBillingService(IabCallbacks.IabInitListener initListener) {
+            initListener.success(true);
+        }
+
+        @Override
+        public void startIabServiceInBg(IabCallbacks.IabInitListener initListener) {
+        }
+
+        @Override
+        public void stopIabServiceInBg(IabCallbacks.IabInitListener initListener) {
+        }
+
+        @Override
+        public void configVerifyPurchases(Map<String, Object> verifyPurchases) {
+        }
+
+        @Override
+        public boolean shouldVerifyPurchases() {
+            return false;
+        }
+    }
+}
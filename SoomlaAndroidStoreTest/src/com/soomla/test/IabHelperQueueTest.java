@@ -0,0 +1,185 @@
+package com.soomla.test;
+
+import android.app.Activity;
+import com.soomla.SoomlaApp;
+import com.soomla.store.billing.CallbackDispatcher;
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabInventory;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.billing.IabResult;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class IabHelperQueueTest {
+
+    private final List<String> mResults = new ArrayList<String>();
+    private FakeIabHelper mHelper;
+    private CallbackDispatcher.Manual mDispatcher;
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        mHelper = new FakeIabHelper();
+        mDispatcher = CallbackDispatcher.manual();
+        mHelper.setCallbackDispatcher(mDispatcher);
+        mHelper.startSetup(new IabHelper.OnIabSetupFinishedListener() {
+            @Override
+            public void onIabSetupFinished(IabResult result) {
+            }
+        });
+        mDispatcher.runPending();
+    }
+
+    @Test
+    public void queuesOverlappingOperations() {
+        mHelper.restorePurchasesAsync(restoreListener("restore"));
+        mHelper.fetchSkusDetailsAsync(Arrays.asList("a", "b"), fetchListener("fetch1"));
+        mHelper.fetchSkusDetailsAsync(Arrays.asList("b", "a"), fetchListener("fetch2"));
+        mHelper.launchPurchaseFlow(null, "a", purchaseListener("purchase"), "");
+
+        assertThat(mHelper.mStarted, equalTo(Arrays.asList("restore")));
+        assertThat(mHelper.getPendingAsyncCount(), equalTo(2));
+        assertThat(mHelper.getDedupedAsyncCount(), equalTo(1));
+
+        // the purchase was called last, but it goes ahead of the fetch
+        mHelper.finishRestore();
+        mDispatcher.runPending();
+        assertThat(mHelper.mStarted, equalTo(Arrays.asList("restore", "purchase a")));
+        mHelper.finishPurchase();
+        mDispatcher.runPending();
+        mHelper.finishFetch();
+        mDispatcher.runPending();
+
+        assertThat(mHelper.mStarted, equalTo(Arrays.asList("restore", "purchase a", "fetch")));
+        assertThat(mResults, equalTo(Arrays.asList("restore 0", "purchase 0", "fetch1 0",
+                "fetch2 0")));
+        assertThat(mHelper.isAsyncInProgress(), is(false));
+    }
+
+    @Test
+    public void timesOutAStuckOperation() {
+        mHelper.setAsyncTimeoutMillis(IabHelper.AsyncOperationType.RESTORE_PURCHASES, 1000);
+        mHelper.restorePurchasesAsync(restoreListener("restore"));
+        mHelper.fetchSkusDetailsAsync(Arrays.asList("a"), fetchListener("fetch"));
+
+        mDispatcher.advanceBy(999);
+        assertThat(mResults.isEmpty(), is(true));
+        mDispatcher.advanceBy(1);
+        assertThat(mResults, equalTo(Arrays.asList("restore " + IabResult.IABHELPER_TIMEOUT)));
+        assertThat(mHelper.mStarted, equalTo(Arrays.asList("restore", "fetch")));
+
+        // the late result of the restore must not end the fetch
+        mHelper.finishRestore();
+        mDispatcher.runPending();
+        assertThat(mHelper.isAsyncInProgress(), is(true));
+        mHelper.finishFetch();
+        mDispatcher.runPending();
+        assertThat(mResults, equalTo(Arrays.asList("restore " + IabResult.IABHELPER_TIMEOUT,
+                "fetch 0")));
+        assertThat(mHelper.getTimedOutAsyncCount(IabHelper.AsyncOperationType.RESTORE_PURCHASES),
+                equalTo(1));
+    }
+
+    @Test
+    public void disposeFailsTheRunningAndWaitingOperations() {
+        mHelper.setAsyncTimeoutMillis(IabHelper.AsyncOperationType.RESTORE_PURCHASES, 1000);
+        mHelper.restorePurchasesAsync(restoreListener("restore"));
+        mHelper.fetchSkusDetailsAsync(Arrays.asList("a"), fetchListener("fetch"));
+
+        mHelper.disposeHelper();
+        mDispatcher.runPending();
+        assertThat(mResults, equalTo(Arrays.asList("restore " + IabResult.IABHELPER_DISPOSED,
+                "fetch " + IabResult.IABHELPER_DISPOSED)));
+        assertThat(mHelper.getPendingAsyncCount(), equalTo(0));
+        assertThat(mHelper.isAsyncInProgress(), is(false));
+
+        // neither the timeout nor a late result reaches the listeners again
+        mDispatcher.advanceBy(1000);
+        mHelper.finishRestore();
+        mDispatcher.runPending();
+        assertThat(mResults.size(), equalTo(2));
+        assertThat(mHelper.mStarted, equalTo(Arrays.asList("restore")));
+    }
+
+    private IabHelper.RestorePurchasessFinishedListener restoreListener(final String name) {
+        return new IabHelper.RestorePurchasessFinishedListener() {
+            @Override
+            public void onRestorePurchasessFinished(IabResult result, IabInventory inv) {
+                mResults.add(name + " " + result.getResponse());
+            }
+        };
+    }
+
+    private IabHelper.FetchSkusDetailsFinishedListener fetchListener(final String name) {
+        return new IabHelper.FetchSkusDetailsFinishedListener() {
+            @Override
+            public void onFetchSkusDetailsFinished(IabResult result, IabInventory inv) {
+                mResults.add(name + " " + result.getResponse());
+            }
+        };
+    }
+
+    private IabHelper.OnIabPurchaseFinishedListener purchaseListener(final String name) {
+        return new IabHelper.OnIabPurchaseFinishedListener() {
+            @Override
+            public void onIabPurchaseFinished(IabResult result, IabPurchase info) {
+                mResults.add(name + " " + result.getResponse());
+            }
+        };
+    }
+
+    // starts nothing for real, the test reports every result
+    private static class FakeIabHelper extends IabHelper {
+
+        final List<String> mStarted = new ArrayList<String>();
+
+        void finishRestore() {
+            restorePurchasesSuccess(null);
+        }
+
+        void finishFetch() {
+            fetchSkusDetailsSuccess(null);
+        }
+
+        void finishPurchase() {
+            purchaseSucceeded(null);
+        }
+
+        void disposeHelper() {
+            dispose();
+        }
+
+        @Override
+        protected void startSetupInner() {
+            setupSuccess();
+        }
+
+        @Override
+        protected void launchPurchaseFlowInner(Activity act, String itemType, String sku,
+                                               String extraData) {
+            mStarted.add("purchase " + sku);
+        }
+
+        @Override
+        protected void restorePurchasesAsyncInner() {
+            mStarted.add("restore");
+        }
+
+        @Override
+        protected void fetchSkusDetailsAsyncInner(List<String> skus) {
+            mStarted.add("fetch");
+        }
+    }
+}
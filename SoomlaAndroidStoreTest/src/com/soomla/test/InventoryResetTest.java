@@ -0,0 +1,101 @@
+package com.soomla.test;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaApp;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.data.ItemHandles;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.events.BalancesChangedEvent;
+import com.squareup.otto.Subscribe;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class InventoryResetTest {
+
+    // not in the catalog, so it's only known from its storage keys
+    private static final String ORPHAN_ID = "reset_orphan";
+    private static final String UNKNOWN_ID = "reset_never_written";
+
+    private final List<BalancesChangedEvent> mEvents = new ArrayList<BalancesChangedEvent>();
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new MuffinRushAssets());
+        BusProvider.getInstance().register(this);
+    }
+
+    @After
+    public void tearDown() {
+        BusProvider.getInstance().unregister(this);
+    }
+
+    @Test
+    public void resetReplacesTheWholeInventory() throws Exception {
+        StorageManager.getVirtualCurrencyStorage().setBalance(
+                MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID, 500, false);
+        StorageManager.getVirtualGoodsStorage().setBalance(
+                MuffinRushAssets.CHOCLATECAKE_ITEM_ID, 7, false);
+        StorageManager.getVirtualGoodsStorage().setBalance(ORPHAN_ID, 3, false);
+
+        HashMap<String, HashMap<String, Object>> replaceBalances =
+                new HashMap<String, HashMap<String, Object>>();
+        HashMap<String, Object> currency = new HashMap<String, Object>();
+        currency.put("balance", 40);
+        replaceBalances.put(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID, currency);
+        HashMap<String, Object> pavlova = new HashMap<String, Object>();
+        pavlova.put("balance", 2);
+        pavlova.put("currentUpgrade", "pav2");
+        replaceBalances.put(MuffinRushAssets.PAVLOVA_ITEM_ID, pavlova);
+
+        assertThat(StoreInventory.resetAllItemsBalances(replaceBalances), is(true));
+
+        assertThat(StoreInventory.getVirtualItemBalance(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID),
+                equalTo(40));
+        assertThat(StoreInventory.getVirtualItemBalance(MuffinRushAssets.CHOCLATECAKE_ITEM_ID),
+                equalTo(0));
+        assertThat(StorageManager.getVirtualGoodsStorage().getBalance(ORPHAN_ID), equalTo(0));
+        assertThat(StoreInventory.getVirtualItemBalance(MuffinRushAssets.PAVLOVA_ITEM_ID),
+                equalTo(2));
+        assertThat(StoreInventory.getGoodCurrentUpgrade(MuffinRushAssets.PAVLOVA_ITEM_ID),
+                equalTo("pav2"));
+        assertThat(StoreInventory.getVirtualItemBalance("pav2"), equalTo(1));
+
+        assertThat(mEvents.size(), equalTo(1));
+        BalancesChangedEvent event = mEvents.get(0);
+        assertThat(event.getBalance(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID), equalTo(40));
+        assertThat(event.getAmountAdded(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID), equalTo(-460));
+        assertThat(event.getAmountAdded(MuffinRushAssets.CHOCLATECAKE_ITEM_ID), equalTo(-7));
+    }
+
+    @Test
+    public void readingAnUnknownItemWritesNothing() throws Exception {
+        String index = KeyValueStorage.getValue("store.keys.items");
+
+        assertThat(StorageManager.getVirtualCurrencyStorage().getBalance(UNKNOWN_ID), equalTo(0));
+        assertThat(StorageManager.getVirtualGoodsStorage().getBalance(UNKNOWN_ID), equalTo(0));
+        assertThat(StorageManager.getVirtualGoodsStorage().isEquipped(UNKNOWN_ID), is(false));
+
+        assertThat(ItemHandles.handleOf(UNKNOWN_ID), equalTo(-1));
+        assertThat(KeyValueStorage.getValue("store.keys.items"), equalTo(index));
+    }
+
+    @Subscribe
+    public void onBalancesChanged(BalancesChangedEvent event) {
+        mEvents.add(event);
+    }
+}
@@ -0,0 +1,69 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.store.InventorySnapshot;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.data.StorageManager;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class InventorySnapshotTest {
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new MuffinRushAssets());
+    }
+
+    @Test
+    public void snapshotMatchesAllItemsBalances() throws Exception {
+        StorageManager.getVirtualCurrencyStorage().add(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID,
+                1000, false);
+        StorageManager.getVirtualGoodsStorage().setBalance(MuffinRushAssets.PAVLOVA_ITEM_ID, 3,
+                false);
+        StorageManager.getVirtualGoodsStorage().assignCurrentUpgrade(
+                MuffinRushAssets.PAVLOVA_ITEM_ID, "pav2", false);
+
+        InventorySnapshot snapshot = StoreInventory.fillSnapshot(new InventorySnapshot());
+
+        HashMap<String, HashMap<String, Object>> balances = StoreInventory.allItemsBalances();
+        for (Map.Entry<String, HashMap<String, Object>> entry : balances.entrySet()) {
+            int handle = StoreInventory.getItemHandle(entry.getKey());
+            assertThat(snapshot.contains(handle), is(true));
+            assertThat(snapshot.getBalance(handle), equalTo(entry.getValue().get("balance")));
+        }
+
+        int pavlova = StoreInventory.getItemHandle(MuffinRushAssets.PAVLOVA_ITEM_ID);
+        assertThat(snapshot.getBalance(pavlova), equalTo(3));
+        assertThat(snapshot.getUpgradeLevel(pavlova), equalTo(2));
+        assertThat(snapshot.getUpgradeLevel(
+                StoreInventory.getItemHandle(MuffinRushAssets.MUFFINCAKE_GOOD.getItemId())), equalTo(0));
+    }
+
+    @Test
+    public void snapshotIsReused() throws Exception {
+        InventorySnapshot snapshot = StoreInventory.fillSnapshot(new InventorySnapshot());
+        int[] balances = snapshot.getBalances();
+        int handle = StoreInventory.getItemHandle(MuffinRushAssets.CHOCLATECAKE_ITEM_ID);
+        int balance = snapshot.getBalance(handle);
+
+        StorageManager.getVirtualGoodsStorage().add(MuffinRushAssets.CHOCLATECAKE_ITEM_ID, 2,
+                false);
+        StoreInventory.fillSnapshot(snapshot);
+
+        assertThat(snapshot.getBalances(), sameInstance(balances));
+        assertThat(snapshot.getBalance(handle), equalTo(balance + 2));
+    }
+}
@@ -0,0 +1,78 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.data.KeyValueBatch;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class KeyValueBatchTest {
+
+    private static final String KEY_JOURNAL = "store.batch.journal";
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 200;
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        KeyValueStorage.deleteKeyValue(KEY_JOURNAL);
+    }
+
+    @Test
+    public void concurrentBatchesAreAllApplied() throws Exception {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final String prefix = "batch_test." + t + ".";
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        KeyValueBatch batch = new KeyValueBatch();
+                        batch.setValue(prefix + "a", String.valueOf(i));
+                        batch.setValue(prefix + "b", String.valueOf(i));
+                        batch.commit();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int t = 0; t < THREADS; t++) {
+            assertThat(KeyValueStorage.getValue("batch_test." + t + ".a"),
+                    equalTo(String.valueOf(ITERATIONS - 1)));
+            assertThat(KeyValueStorage.getValue("batch_test." + t + ".b"),
+                    equalTo(String.valueOf(ITERATIONS - 1)));
+        }
+        assertThat(KeyValueStorage.getValue(KEY_JOURNAL), nullValue());
+    }
+
+    @Test
+    public void recoverReplaysEveryUnfinishedBatch() throws Exception {
+        KeyValueStorage.setValue("batch_test.deleted", "stale");
+        KeyValueStorage.setValue(KEY_JOURNAL, "[{\"batch_test.first\":\"1\"},"
+                + "{\"batch_test.second\":\"2\",\"batch_test.deleted\":null}]");
+
+        KeyValueBatch.recover();
+
+        assertThat(KeyValueStorage.getValue("batch_test.first"), equalTo("1"));
+        assertThat(KeyValueStorage.getValue("batch_test.second"), equalTo("2"));
+        assertThat(KeyValueStorage.getValue("batch_test.deleted"), nullValue());
+        assertThat(KeyValueStorage.getValue(KEY_JOURNAL), nullValue());
+    }
+}
@@ -0,0 +1,97 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.store.StoreConfig;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class LazyCatalogTest {
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new MuffinRushAssets());
+        StoreConfig.lazyCatalog = true;
+    }
+
+    @After
+    public void tearDown() {
+        StoreConfig.lazyCatalog = false;
+    }
+
+    @Test
+    public void loadsTheSameCatalog() throws Exception {
+        // the saved catalog groups the goods by type, so compare with an eager load of it
+        StoreConfig.lazyCatalog = false;
+        assertThat(StoreInfo.loadFromDB(), is(true));
+        StoreConfig.lazyCatalog = true;
+        List<String> goods = toJSON(StoreInfo.getGoods());
+        int categories = StoreInfo.getCategories().size();
+        String pavlova = StoreInfo.getVirtualItem(MuffinRushAssets.PAVLOVA_ITEM_ID)
+                .toJSONObject().toString();
+
+        assertThat(StoreInfo.loadFromDB(), is(true));
+
+        VirtualItem item = StoreInfo.getVirtualItem(MuffinRushAssets.PAVLOVA_ITEM_ID);
+        assertThat(item.toJSONObject().toString(), equalTo(pavlova));
+        assertThat(StoreInfo.getVirtualItem(item.getHandle()), sameInstance(item));
+
+        PurchasableVirtualItem pack = StoreInfo.getPurchasableItem(
+                MuffinRushAssets.TENMUFF_PACK_PRODUCT_ID);
+        assertThat(((PurchaseWithMarket) pack.getPurchaseType()).getMarketItem().getProductId(),
+                equalTo(MuffinRushAssets.TENMUFF_PACK_PRODUCT_ID));
+
+        assertThat(toJSON(StoreInfo.getGoods()), equalTo(goods));
+        assertThat(StoreInfo.getGoods().get(0),
+                sameInstance(StoreInfo.getVirtualItem(StoreInfo.getGoods().get(0).getItemId())));
+        assertThat(StoreInfo.getCategories().size(), equalTo(categories));
+    }
+
+    @Test
+    public void keepsReplacedItems() throws Exception {
+        assertThat(StoreInfo.loadFromDB(), is(true));
+        VirtualGood cake = new SingleUseVG("Chocolate Cake Deluxe", "",
+                MuffinRushAssets.CHOCLATECAKE_ITEM_ID,
+                new PurchaseWithMarket("chocolate_cake_sku", 1.99));
+        StoreInfo.save(cake);
+
+        assertThat(StoreInfo.getVirtualItem(MuffinRushAssets.CHOCLATECAKE_ITEM_ID),
+                sameInstance((VirtualItem) cake));
+        assertThat(StoreInfo.getPurchasableItem("chocolate_cake_sku"),
+                sameInstance((PurchasableVirtualItem) cake));
+
+        // the record is applied on top of the index
+        assertThat(StoreInfo.loadFromDB(), is(true));
+        assertThat(StoreInfo.getVirtualItem(MuffinRushAssets.CHOCLATECAKE_ITEM_ID).getName(),
+                equalTo("Chocolate Cake Deluxe"));
+        assertThat(StoreInfo.getPurchasableItem("chocolate_cake_sku").getItemId(),
+                equalTo(MuffinRushAssets.CHOCLATECAKE_ITEM_ID));
+    }
+
+    private static List<String> toJSON(List<? extends VirtualItem> items) {
+        List<String> json = new ArrayList<String>();
+        for (VirtualItem item : items) {
+            json.add(item.toJSONObject().toString());
+        }
+        return json;
+    }
+}
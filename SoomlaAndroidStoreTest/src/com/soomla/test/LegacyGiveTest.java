@@ -0,0 +1,103 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.exceptions.InsufficientFundsException;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class LegacyGiveTest {
+
+    private static final String BONUS_ITEM_ID = "bonus_pack";
+    private static final String COUNTED_ITEM_ID = "counted_good";
+    private static final int PRICE = 10;
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new LegacyAssets());
+        StorageManager.getVirtualCurrencyStorage().setBalance(
+                MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID, PRICE, false);
+        StorageManager.getVirtualGoodsStorage().setBalance(BONUS_ITEM_ID, 0, false);
+        StorageManager.getVirtualGoodsStorage().setBalance(COUNTED_ITEM_ID, 0, false);
+    }
+
+    @Test
+    public void buyingRunsAnOverriddenGive() throws Exception {
+        StoreInventory.buy(BONUS_ITEM_ID, null);
+
+        assertThat(currency(), equalTo(0));
+        assertThat(balance(BONUS_ITEM_ID), equalTo(1));
+        // the subclass' own give also gives its bonus
+        assertThat(balance(COUNTED_ITEM_ID), equalTo(1));
+    }
+
+    @Test
+    public void aFailedPurchaseDoesntRunAnOverriddenGive() throws Exception {
+        StorageManager.getVirtualCurrencyStorage().setBalance(
+                MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID, PRICE - 1, false);
+        try {
+            StoreInventory.buy(BONUS_ITEM_ID, null);
+            fail("The purchase should have failed.");
+        } catch (InsufficientFundsException e) {
+            // expected
+        }
+
+        assertThat(currency(), equalTo(PRICE - 1));
+        assertThat(balance(BONUS_ITEM_ID), equalTo(0));
+        assertThat(balance(COUNTED_ITEM_ID), equalTo(0));
+    }
+
+    private static int currency() {
+        return StorageManager.getVirtualCurrencyStorage().getBalance(
+                MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID);
+    }
+
+    private static int balance(String itemId) {
+        return StorageManager.getVirtualGoodsStorage().getBalance(itemId);
+    }
+
+    /**
+     * A good written before transactions existed: it only overrides give(int, boolean).
+     */
+    private static class BonusVG extends SingleUseVG {
+
+        BonusVG() {
+            super("Bonus", "", BONUS_ITEM_ID, new PurchaseWithVirtualItem(
+                    MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID, PRICE));
+        }
+
+        @Override
+        public int give(int amount, boolean notify) {
+            StorageManager.getVirtualGoodsStorage().add(COUNTED_ITEM_ID, amount, notify);
+            return super.give(amount, notify);
+        }
+    }
+
+    private static class LegacyAssets extends MuffinRushAssets {
+
+        @Override
+        public VirtualGood[] getGoods() {
+            VirtualGood[] goods = super.getGoods();
+            VirtualGood[] withBonus = Arrays.copyOf(goods, goods.length + 2);
+            withBonus[goods.length] = new BonusVG();
+            withBonus[goods.length + 1] = new SingleUseVG("Counted", "", COUNTED_ITEM_ID,
+                    new PurchaseWithVirtualItem(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID, PRICE));
+            return withBonus;
+        }
+    }
+}
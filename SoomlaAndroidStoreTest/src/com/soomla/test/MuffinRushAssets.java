@@ -47,7 +47,7 @@ public class MuffinRushAssets implements IStoreAssets{
                 JERRY_GOOD, GEORGE_GOOD, KRAMER_GOOD, ELAINE_GOOD,
                 MC_UPGRADE1, MC_UPGRADE2, MC_UPGRADE3, MC_UPGRADE4, MC_UPGRADE5, MC_UPGRADE6,
                 PAV_UPGRADE1, PAV_UPGRADE2, PAV_UPGRADE3, PAV_UPGRADE4, PAV_UPGRADE5, PAV_UPGRADE6,
-                MARRIAGE_GOOD,
+                MARRIAGE_GOOD, NO_ADS_GOOD,
                 TWENTY_CAKES_PACK, FIFTY_CAKES_PACK, HUNDRED_CAKES_PACK, TWOHUNDRED_CAKES_PACK
         };
     }
@@ -66,21 +66,13 @@ public class MuffinRushAssets implements IStoreAssets{
         };
     }
 
-    @Override
-    public NonConsumableItem[] getNonConsumableItems ()
-    {
-        return new NonConsumableItem[] {
-                NO_ADS_NONCONS
-        };
-    }
-
     /** Static Final members **/
     public static final String MUFFIN_CURRENCY_ITEM_ID      = "currency_muffin";
     public static final String TENMUFF_PACK_PRODUCT_ID      = "android.test.refunded";
     public static final String FIFTYMUFF_PACK_PRODUCT_ID    = "android.test.canceled";
     public static final String FOURHUNDMUFF_PACK_PRODUCT_ID = "android.test.purchased";
     public static final String THOUSANDMUFF_PACK_PRODUCT_ID = "android.test.item_unavailable";
-    public static final String NO_ADDS_NONCONS_PRODUCT_ID   = "my.game.no_ads";
+    public static final String NO_ADS_PRODUCT_ID            = "my.game.no_ads";
 
     public static final String MUFFINCAKE_GOOD_ITEM_ID = "muffin_cake";
     public static final String PAVLOVA_GOOD_ITEM_ID = "pavlova";
@@ -192,6 +184,9 @@ public class MuffinRushAssets implements IStoreAssets{
 
     public static VirtualGood MARRIAGE_GOOD = new LifetimeVG("Marriage", "This is a LIFETIME thing.", "marriage_lt", new PurchaseWithMarket("marriage_lifetime", 9.99));
 
+    // a LifetimeVG purchased with the market is a non-consumable item of the market
+    public static VirtualGood NO_ADS_GOOD = new LifetimeVG("No Ads", "No more ads", "no_ads", new PurchaseWithMarket(new MarketItem(NO_ADS_PRODUCT_ID, 1.99)));
+
 
     // SingleUsePackVG
 
@@ -201,11 +196,6 @@ public class MuffinRushAssets implements IStoreAssets{
     public static VirtualGood TWOHUNDRED_CAKES_PACK = new SingleUsePackVG(CHOCLATECAKE_GOOD_ITEM_ID, 200, "200 chocolate cakes", "A pack of 200 chocolate cakes", "sup_200_cc", new PurchaseWithVirtualItem(MUFFIN_CURRENCY_ITEM_ID, 4000));
 
 
-    // Non Consumables
-
-    public static NonConsumableItem NO_ADS_NONCONS = new NonConsumableItem("No Ads", "No more ads", "no_ads", new PurchaseWithMarket(new GoogleMarketItem(NO_ADDS_NONCONS_PRODUCT_ID, GoogleMarketItem.Managed.MANAGED, 1.99)));
-
-
     /** Virtual Categories **/
 
     public static VirtualCategory MUFFINS = new VirtualCategory ("Muffins", new ArrayList<String>(
@@ -225,7 +215,7 @@ public class MuffinRushAssets implements IStoreAssets{
     ));
 
     public static VirtualCategory LIFETIME_THINGS = new VirtualCategory ("Lifetime things", new ArrayList<String>(
-            Arrays.asList(MARRIAGE_GOOD.getItemId())
+            Arrays.asList(MARRIAGE_GOOD.getItemId(), NO_ADS_GOOD.getItemId())
     ));
 
     public static VirtualCategory GOOD_PACKS = new VirtualCategory ("Packs of Chocolate Cakes", new ArrayList<String>(
@@ -0,0 +1,132 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.data.BalanceTransaction;
+import com.soomla.store.data.PurchaseLedger;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.exceptions.InsufficientFundsException;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class PurchaseLedgerTest {
+
+    private PurchaseLedger mLedger;
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new MuffinRushAssets());
+        mLedger = new PurchaseLedger();
+    }
+
+    @Test
+    public void grantsAreRecordedWithTheirBalances() throws Exception {
+        int balance = muffins();
+        BalanceTransaction transaction = new BalanceTransaction();
+        MuffinRushAssets.TENMUFF_PACK.give(1, transaction);
+        mLedger.commitGranted(Arrays.asList("grant.1", "grant.2"), Arrays.asList(true, false),
+                transaction);
+
+        assertThat(muffins(), equalTo(balance + 10));
+        assertThat(mLedger.isGranted("grant.1"), is(true));
+        assertThat(mLedger.isGranted("grant.3"), is(false));
+
+        // a new ledger reads what the first one persisted
+        PurchaseLedger restarted = new PurchaseLedger();
+        assertThat(restarted.getConsumeStatus("grant.1"),
+                equalTo(PurchaseLedger.ConsumeStatus.PENDING));
+        assertThat(restarted.getConsumeStatus("grant.2"),
+                equalTo(PurchaseLedger.ConsumeStatus.NOT_NEEDED));
+        assertThat(restarted.getPendingConsumes().contains("grant.1"), is(true));
+
+        restarted.markConsumed(Collections.singletonList("grant.1"));
+        assertThat(new PurchaseLedger().getPendingConsumes().contains("grant.1"), is(false));
+    }
+
+    @Test
+    public void failedGrantsAreNotRecorded() {
+        BalanceTransaction transaction = new BalanceTransaction();
+        transaction.debit(StorageManager.getVirtualCurrencyStorage(),
+                MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID, muffins() + 1);
+        try {
+            mLedger.commitGranted(Collections.singletonList("failed.1"),
+                    Collections.singletonList(true), transaction);
+        } catch (InsufficientFundsException e) {
+            // expected
+        }
+        assertThat(mLedger.isGranted("failed.1"), is(false));
+        assertThat(new PurchaseLedger().isGranted("failed.1"), is(false));
+    }
+
+    @Test
+    public void refundsAreRecordedOnce() throws Exception {
+        mLedger.commitGranted(Collections.singletonList("refund.1"),
+                Collections.singletonList(false), new BalanceTransaction());
+
+        assertThat(mLedger.markRefunded("refund.1"), is(true));
+        assertThat(mLedger.markRefunded("refund.1"), is(false));
+        assertThat(new PurchaseLedger().getGrantStatus("refund.1"),
+                equalTo(PurchaseLedger.GrantStatus.REFUNDED));
+    }
+
+    @Test
+    public void compactionKeepsPendingConsumes() throws Exception {
+        List<String> keys = new ArrayList<String>();
+        List<Boolean> needsConsume = new ArrayList<Boolean>();
+        for (int i = 0; i < PurchaseLedger.SEGMENT_SIZE * 3; i++) {
+            keys.add("compact." + i);
+            needsConsume.add(i % 10 == 0);
+        }
+        mLedger.commitGranted(keys, needsConsume, new BalanceTransaction());
+        Thread.sleep(5);
+
+        int size = mLedger.size();
+        int dropped = mLedger.compact(0);
+
+        int pending = mLedger.getPendingConsumes().size();
+        assertThat(dropped, equalTo(size - pending));
+        assertThat(new PurchaseLedger().size(), equalTo(pending));
+        assertThat(new PurchaseLedger().getGrantStatus("compact.1"), nullValue());
+        assertThat(new PurchaseLedger().getConsumeStatus("compact.10"),
+                equalTo(PurchaseLedger.ConsumeStatus.PENDING));
+    }
+
+    @Test
+    public void takenNonConsumablesAreGrantedAgainOnRestore() throws Exception {
+        RestoringIabService service = RestoringIabService.install();
+        String itemId = MuffinRushAssets.NO_ADS_GOOD.getItemId();
+        String token = "take.restore." + System.nanoTime();
+        IabPurchase purchase = new IabPurchase(IabHelper.ITEM_TYPE_INAPP,
+                MuffinRushAssets.NO_ADS_PRODUCT_ID, token, token, 0);
+        StorageManager.getVirtualGoodsStorage().setBalance(itemId, 0, false);
+
+        assertThat(service.restore(purchase), is(true));
+        assertThat(StorageManager.getVirtualGoodsStorage().getBalance(itemId), equalTo(1));
+
+        // the market reports the same purchase again, so the ledger must not block it
+        MuffinRushAssets.NO_ADS_GOOD.take(1);
+        assertThat(service.restore(purchase), is(true));
+        assertThat(StorageManager.getVirtualGoodsStorage().getBalance(itemId), equalTo(1));
+    }
+
+    private static int muffins() {
+        return StorageManager.getVirtualCurrencyStorage().getBalance(
+                MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID);
+    }
+}
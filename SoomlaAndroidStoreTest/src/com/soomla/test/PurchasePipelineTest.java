@@ -0,0 +1,210 @@
+package com.soomla.test;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaApp;
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.events.CurrencyBalanceChangedEvent;
+import com.soomla.store.events.ItemPurchasedEvent;
+import com.soomla.store.events.MarketPurchaseEvent;
+import com.soomla.store.events.MarketRefundEvent;
+import com.soomla.store.events.RestoreTransactionsFinishedEvent;
+import com.squareup.otto.Subscribe;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class PurchasePipelineTest {
+
+    private static final String PACK_SKU = MuffinRushAssets.TENMUFF_PACK_PRODUCT_ID;
+    private static final String NO_ADS_SKU = MuffinRushAssets.NO_ADS_PRODUCT_ID;
+    private static final int PACK_AMOUNT = 10;
+
+    private final List<Object> mEvents = new CopyOnWriteArrayList<Object>();
+    private volatile CountDownLatch mHoldWorker;
+    private RestoringIabService mService;
+    private String mRun;
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new MuffinRushAssets());
+
+        mService = RestoringIabService.install();
+
+        StorageManager.getVirtualCurrencyStorage().setBalance(
+                MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID, 0, false);
+        StorageManager.getVirtualGoodsStorage().setBalance(
+                MuffinRushAssets.NO_ADS_GOOD.getItemId(), 0, false);
+        // the ledger keeps its purchases, so every test uses its own tokens
+        mRun = "run" + System.nanoTime();
+        BusProvider.getInstance().register(this);
+    }
+
+    @After
+    public void tearDown() {
+        if (mHoldWorker != null) {
+            mHoldWorker.countDown();
+        }
+        BusProvider.getInstance().unregister(this);
+    }
+
+    @Subscribe
+    public void onMarketPurchase(MarketPurchaseEvent event) throws InterruptedException {
+        mEvents.add(event);
+        CountDownLatch holdWorker = mHoldWorker;
+        if (holdWorker != null) {
+            holdWorker.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Subscribe
+    public void onCurrencyBalanceChanged(CurrencyBalanceChangedEvent event) {
+        mEvents.add(event);
+    }
+
+    @Subscribe
+    public void onItemPurchased(ItemPurchasedEvent event) {
+        mEvents.add(event);
+    }
+
+    @Subscribe
+    public void onMarketRefund(MarketRefundEvent event) {
+        mEvents.add(event);
+    }
+
+    @Subscribe
+    public void onRestoreTransactionsFinished(RestoreTransactionsFinishedEvent event) {
+        mEvents.add(event);
+    }
+
+    @Test
+    public void duplicateTokensAreGrantedOnce() throws Exception {
+        IabPurchase purchase = purchase(PACK_SKU, "pack", 0);
+        restore(purchase, purchase(PACK_SKU, "pack", 0));
+        restore(purchase);
+
+        assertThat(muffins(), equalTo(PACK_AMOUNT));
+        assertThat(count(MarketPurchaseEvent.class), equalTo(1));
+        awaitConsumed(1);
+        assertThat(mService.consumed, equalTo(Collections.singletonList(purchase.getToken())));
+    }
+
+    @Test
+    public void ownedNonConsumablesAreSkipped() throws Exception {
+        restore(purchase(NO_ADS_SKU, "noads.1", 0), purchase(NO_ADS_SKU, "noads.2", 0));
+        assertThat(noAds(), equalTo(1));
+        assertThat(count(MarketPurchaseEvent.class), equalTo(1));
+
+        restore(purchase(NO_ADS_SKU, "noads.3", 0));
+        assertThat(noAds(), equalTo(1));
+        assertThat(count(MarketPurchaseEvent.class), equalTo(1));
+        // non-consumables stay with the user's account
+        assertThat(mService.consumed.isEmpty(), is(true));
+    }
+
+    @Test
+    public void refundsTakeTheItemOnce() throws Exception {
+        IabPurchase purchase = purchase(PACK_SKU, "refunded", 0);
+        restore(purchase);
+        assertThat(muffins(), equalTo(PACK_AMOUNT));
+
+        restore(purchase(PACK_SKU, "refunded", 1));
+        restore(purchase(PACK_SKU, "refunded", 1));
+        assertThat(muffins(), equalTo(0));
+        assertThat(count(MarketRefundEvent.class), equalTo(1));
+    }
+
+    @Test
+    public void eventsArePostedInPurchaseOrderBeforeFinishing() throws Exception {
+        restore(purchase(PACK_SKU, "order", 0));
+
+        List<Class<?>> order = new ArrayList<Class<?>>();
+        for (Object event : mEvents) {
+            order.add(event.getClass());
+        }
+        assertThat(order, equalTo(Arrays.<Class<?>>asList(MarketPurchaseEvent.class,
+                CurrencyBalanceChangedEvent.class, ItemPurchasedEvent.class,
+                RestoreTransactionsFinishedEvent.class)));
+    }
+
+    @Test
+    public void restoresThatPileUpAreMerged() throws Exception {
+        // the first restore keeps the worker busy while the others are submitted
+        mHoldWorker = new CountDownLatch(1);
+        int restores = 40;
+        for (int i = 0; i < restores; i++) {
+            mService.startRestore(purchase(PACK_SKU, "storm", 0));
+        }
+        mHoldWorker.countDown();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (count(RestoreTransactionsFinishedEvent.class) < restores
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(count(RestoreTransactionsFinishedEvent.class), equalTo(restores));
+        for (Object event : mEvents) {
+            if (event instanceof RestoreTransactionsFinishedEvent) {
+                assertThat(((RestoreTransactionsFinishedEvent) event).isSuccess(), is(true));
+            }
+        }
+        assertThat(muffins(), equalTo(PACK_AMOUNT));
+        assertThat(count(MarketPurchaseEvent.class), equalTo(1));
+    }
+
+    private void restore(IabPurchase... purchases) throws InterruptedException {
+        assertThat(mService.restore(purchases), is(true));
+    }
+
+    private void awaitConsumed(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mService.consumed.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // give an unexpected second consume the time to show up
+        Thread.sleep(50);
+    }
+
+    private int count(Class<?> eventClass) {
+        int count = 0;
+        for (Object event : mEvents) {
+            if (eventClass.isInstance(event)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private IabPurchase purchase(String sku, String name, int purchaseState) {
+        return new IabPurchase(IabHelper.ITEM_TYPE_INAPP, sku, mRun + ".token." + name,
+                mRun + ".order." + name, purchaseState);
+    }
+
+    private static int muffins() {
+        return StorageManager.getVirtualCurrencyStorage().getBalance(
+                MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID);
+    }
+
+    private static int noAds() {
+        return StorageManager.getVirtualGoodsStorage().getBalance(
+                MuffinRushAssets.NO_ADS_GOOD.getItemId());
+    }
+}
@@ -0,0 +1,135 @@
+package com.soomla.test;
+
+import com.soomla.BusProvider;
+import com.soomla.store.SoomlaStore;
+import com.soomla.store.billing.IIabService;
+import com.soomla.store.billing.IabCallbacks;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.events.RestoreTransactionsFinishedEvent;
+import com.squareup.otto.Subscribe;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A billing service that reports the purchases it's given on restore, and consumes purchases
+ * right away.
+ */
+class RestoringIabService implements IIabService {
+
+    final List<String> consumed = new CopyOnWriteArrayList<String>();
+
+    /**
+     * Creates a service and makes it the billing service of <code>SoomlaStore</code>.
+     *
+     * @return the installed service
+     */
+    static RestoringIabService install() throws Exception {
+        RestoringIabService service = new RestoringIabService();
+        Field field = SoomlaStore.class.getDeclaredField("mInAppBillingService");
+        field.setAccessible(true);
+        field.set(SoomlaStore.getInstance(), service);
+        // forgets the setups of earlier tests
+        SoomlaStore.getInstance().stopIabServiceInBg();
+        return service;
+    }
+
+    /**
+     * Restores transactions through <code>SoomlaStore</code>, with the billing service reporting
+     * the given purchases, and waits until the restore finished.
+     *
+     * @param purchases the purchases the billing service reports
+     * @return true if the restore finished in time
+     */
+    boolean restore(IabPurchase... purchases) throws InterruptedException {
+        mRestored = Arrays.asList(purchases);
+        final CountDownLatch finished = new CountDownLatch(1);
+        Object subscriber = new Object() {
+            @Subscribe
+            public void onRestoreTransactionsFinished(RestoreTransactionsFinishedEvent event) {
+                finished.countDown();
+            }
+        };
+        BusProvider.getInstance().register(subscriber);
+        try {
+            SoomlaStore.getInstance().restoreTransactions();
+            return finished.await(10, TimeUnit.SECONDS);
+        } finally {
+            BusProvider.getInstance().unregister(subscriber);
+        }
+    }
+
+    /**
+     * Starts restoring transactions through <code>SoomlaStore</code>, with the billing service
+     * reporting the given purchases, without waiting for the restore.
+     *
+     * @param purchases the purchases the billing service reports
+     */
+    void startRestore(IabPurchase... purchases) {
+        mRestored = Arrays.asList(purchases);
+        SoomlaStore.getInstance().restoreTransactions();
+    }
+
+    @Override
+    public void restorePurchasesAsync(
+            IabCallbacks.OnRestorePurchasesListener restorePurchasesListener) {
+        restorePurchasesListener.success(new ArrayList<IabPurchase>(mRestored));
+    }
+
+    @Override
+    public void consumeAsync(IabPurchase purchase, IabCallbacks.OnConsumeListener consumeListener) {
+        consumed.add(purchase.getToken());
+        consumeListener.success(purchase);
+    }
+
+    @Override
+    public boolean isIabServiceInitialized() {
+        return true;
+    }
+
+    @Override
+    public void consume(IabPurchase purchase) {
+    }
+
+    @Override
+    public void launchPurchaseFlow(String itemType, String sku,
+                                   IabCallbacks.OnPurchaseListener purchaseListener,
+                                   String extraData) {
+    }
+
+    @Override
+    public void fetchSkusDetailsAsync(List<String> skus,
+                                      IabCallbacks.OnFetchSkusDetailsListener fetchSkusDetailsListener) {
+    }
+
+    @Override
+    public void initializeBillingService(IabCallbacks.IabInitListener initListener) {
+        initListener.success(true);
+    }
+
+    @Override
+    public void startIabServiceInBg(IabCallbacks.IabInitListener initListener) {
+    }
+
+    @Override
+    public void stopIabServiceInBg(IabCallbacks.IabInitListener initListener) {
+    }
+
+    @Override
+    public void configVerifyPurchases(Map<String, Object> verifyPurchases) {
+    }
+
+    @Override
+    public boolean shouldVerifyPurchases() {
+        return false;
+    }
+
+    private volatile List<IabPurchase> mRestored = Collections.emptyList();
+}
@@ -0,0 +1,214 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.store.billing.IIabService;
+import com.soomla.store.billing.IabCallbacks;
+import com.soomla.store.billing.IabException;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.billing.IabSkuDetails;
+import com.soomla.store.billing.SkuDetailsFetcher;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class SkuDetailsFetcherTest {
+
+    private static final long LATENCY_MILLIS = 50;
+
+    private FakeIabService mService;
+    private SkuDetailsFetcher mFetcher;
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        mService = new FakeIabService();
+        mFetcher = new SkuDetailsFetcher();
+        mFetcher.invalidate();
+        mFetcher.setChunkSize(10);
+        mFetcher.setMaxParallelChunks(3);
+    }
+
+    @Test
+    public void fetchesMissingSkusInParallelChunks() throws Exception {
+        Result result = fetch(mFetcher, skus(45));
+
+        assertThat(result.failure, nullValue());
+        assertThat(result.details.size(), equalTo(45));
+        assertThat(mService.calls.get(), equalTo(5));
+        assertThat(mService.maxInFlight.get() <= 3, is(true));
+        assertThat(mService.maxInFlight.get() > 1, is(true));
+    }
+
+    @Test
+    public void servesFreshDetailsFromThePersistedCache() throws Exception {
+        fetch(mFetcher, skus(25));
+        assertThat(mService.calls.get(), equalTo(3));
+
+        Result cached = fetch(mFetcher, skus(25));
+        assertThat(cached.details.size(), equalTo(25));
+        assertThat(mService.calls.get(), equalTo(3));
+
+        // a new fetcher reads the cache that the first one persisted
+        SkuDetailsFetcher restarted = new SkuDetailsFetcher();
+        Result persisted = fetch(restarted, skus(30));
+        assertThat(persisted.details.size(), equalTo(30));
+        assertThat(mService.calls.get(), equalTo(4));
+        assertThat(mService.requested.get(), equalTo(30));
+
+        restarted.setTtlMillis(0);
+        fetch(restarted, skus(30));
+        assertThat(mService.requested.get(), equalTo(60));
+    }
+
+    @Test
+    public void failedChunksAreFetchedAgain() throws Exception {
+        mService.failingSku = "sku_12";
+        Result failed = fetch(mFetcher, skus(30));
+        assertThat(failed.failure, notNullValue());
+
+        mService.failingSku = null;
+        Result retried = fetch(mFetcher, skus(30));
+        assertThat(retried.failure, nullValue());
+        assertThat(retried.details.size(), equalTo(30));
+        assertThat(mService.requested.get(), equalTo(40));
+    }
+
+    private Result fetch(SkuDetailsFetcher fetcher, List<String> skus) throws InterruptedException {
+        final Result result = new Result();
+        final CountDownLatch done = new CountDownLatch(1);
+        fetcher.fetch(mService, skus, new IabCallbacks.OnFetchSkusDetailsListener() {
+            @Override
+            public void success(List<IabSkuDetails> skuDetails) {
+                result.details = skuDetails;
+                done.countDown();
+            }
+
+            @Override
+            public void fail(String message) {
+                result.failure = message;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return result;
+    }
+
+    private static List<String> skus(int count) {
+        List<String> skus = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            skus.add("sku_" + i);
+        }
+        return skus;
+    }
+
+    private static class Result {
+        List<IabSkuDetails> details;
+        String failure;
+    }
+
+    /**
+     * Answers skus details requests from a background thread after a fixed latency.
+     */
+    private static class FakeIabService implements IIabService {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger requested = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        volatile String failingSku;
+
+        @Override
+        public void fetchSkusDetailsAsync(final List<String> skus,
+                                          final IabCallbacks.OnFetchSkusDetailsListener listener) {
+            calls.incrementAndGet();
+            requested.addAndGet(skus.size());
+            int current = inFlight.incrementAndGet();
+            int max = maxInFlight.get();
+            while (current > max && !maxInFlight.compareAndSet(max, current)) {
+                max = maxInFlight.get();
+            }
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(LATENCY_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    inFlight.decrementAndGet();
+                    if (skus.contains(failingSku)) {
+                        listener.fail("fake failure");
+                        return;
+                    }
+                    List<IabSkuDetails> details = new ArrayList<IabSkuDetails>();
+                    for (String sku : skus) {
+                        details.add(new IabSkuDetails("inapp", sku, "$0.99", sku, "", 990000, "USD"));
+                    }
+                    listener.success(details);
+                }
+            }).start();
+        }
+
+        @Override
+        public boolean isIabServiceInitialized() {
+            return true;
+        }
+
+        @Override
+        public void consume(IabPurchase purchase) throws IabException {
+        }
+
+        @Override
+        public void consumeAsync(IabPurchase purchase, IabCallbacks.OnConsumeListener consumeListener) {
+        }
+
+        @Override
+        public void launchPurchaseFlow(String itemType, String sku,
+                                       IabCallbacks.OnPurchaseListener purchaseListener,
+                                       String extraData) {
+        }
+
+        @Override
+        public void restorePurchasesAsync(IabCallbacks.OnRestorePurchasesListener restorePurchasesListener) {
+        }
+
+        @Override
+        public void initializeBillingService(IabCallbacks.IabInitListener initListener) {
+            initListener.success(true);
+        }
+
+        @Override
+        public void startIabServiceInBg(IabCallbacks.IabInitListener initListener) {
+        }
+
+        @Override
+        public void stopIabServiceInBg(IabCallbacks.IabInitListener initListener) {
+        }
+
+        @Override
+        public void configVerifyPurchases(Map<String, Object> verifyPurchases) {
+        }
+
+        @Override
+        public boolean shouldVerifyPurchases() {
+            return false;
+        }
+    }
+}
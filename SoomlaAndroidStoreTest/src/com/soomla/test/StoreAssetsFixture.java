@@ -0,0 +1,29 @@
+package com.soomla.test;
+
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.IStoreAssets;
+import com.soomla.store.data.StoreInfo;
+
+/**
+ * Installs the catalog of a test, whatever catalog earlier tests left in the database.
+ */
+final class StoreAssetsFixture {
+
+    private static final String KEY_JSON = "meta.storeinfo";
+    private static final String KEY_BINARY = "meta.storeinfo.bin";
+
+    private StoreAssetsFixture() {
+    }
+
+    /**
+     * Drops the saved catalog, so <code>StoreInfo</code> initializes from the given assets
+     * instead of loading the catalog of an earlier test.
+     *
+     * @param storeAssets the catalog of the test
+     */
+    static void install(IStoreAssets storeAssets) {
+        KeyValueStorage.deleteKeyValue(KEY_BINARY);
+        KeyValueStorage.deleteKeyValue(KEY_JSON);
+        StoreInfo.setStoreAssets(storeAssets);
+    }
+}
@@ -0,0 +1,133 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.domain.MarketItem;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class StoreInfoConcurrencyTest {
+
+    private static final int READERS = 4;
+    private static final int REFRESHES = 500;
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new MuffinRushAssets());
+    }
+
+    @Test
+    public void readersSeeWholeRefreshesWhileTheCatalogChanges() throws Exception {
+        final int goodsCount = StoreInfo.getGoods().size();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < READERS; i++) {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            List<VirtualGood> goods = StoreInfo.getGoods();
+                            String muffinVersion = null;
+                            String pavlovaVersion = null;
+                            for (VirtualGood good : goods) {
+                                assertThat(StoreInfo.getVirtualItem(good.getItemId()),
+                                        notNullValue());
+                                if (good.getItemId().equals(MuffinRushAssets.MUFFINCAKE_GOOD.getItemId())) {
+                                    muffinVersion = versionOf(good);
+                                } else if (good.getItemId().equals(MuffinRushAssets.PAVLOVA_GOOD.getItemId())) {
+                                    pavlovaVersion = versionOf(good);
+                                }
+                            }
+                            assertThat(goods.size(), equalTo(goodsCount));
+                            // both goods are replaced in one batch, so a snapshot has both or none
+                            assertThat(muffinVersion, equalTo(pavlovaVersion));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        for (int i = 1; i <= REFRESHES; i++) {
+            List<VirtualItem> refreshed = new ArrayList<VirtualItem>();
+            refreshed.add(renamed(MuffinRushAssets.MUFFINCAKE_GOOD, i));
+            refreshed.add(renamed(MuffinRushAssets.PAVLOVA_GOOD, i));
+            StoreInfo.save(refreshed, false);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertThat(failure.get(), nullValue());
+        assertThat(StoreInfo.getGoods().size(), equalTo(goodsCount));
+        assertThat(versionOf(StoreInfo.getVirtualItem(MuffinRushAssets.PAVLOVA_GOOD.getItemId())),
+                equalTo(String.valueOf(REFRESHES)));
+    }
+
+    @Test
+    public void copiesCanChangeWithoutTouchingThePublishedItem() throws Exception {
+        VirtualCurrencyPack published = (VirtualCurrencyPack) StoreInfo.getVirtualItem(
+                MuffinRushAssets.TENMUFF_PACK.getItemId());
+        VirtualCurrencyPack copy = StoreInfo.copyOf(published);
+        MarketItem marketItem = ((PurchaseWithMarket) copy.getPurchaseType()).getMarketItem();
+        marketItem.setMarketInformation("$1.49", "10 Muffins", "", "USD", 1490000);
+
+        assertThat(copy == published, is(false));
+        assertThat(copy.getItemId(), equalTo(published.getItemId()));
+        assertThat(copy.getCurrencyAmount(), equalTo(published.getCurrencyAmount()));
+        assertThat(marketOf(published).getMarketPriceAndCurrency(), not(equalTo("$1.49")));
+
+        List<VirtualItem> refreshed = new ArrayList<VirtualItem>();
+        refreshed.add(copy);
+        StoreInfo.save(refreshed, false);
+        assertThat(marketOf(StoreInfo.getVirtualItem(published.getItemId()))
+                .getMarketPriceAndCurrency(), equalTo("$1.49"));
+    }
+
+    private static MarketItem marketOf(VirtualItem item) {
+        return ((PurchaseWithMarket) ((PurchasableVirtualItem) item).getPurchaseType())
+                .getMarketItem();
+    }
+
+    private static VirtualGood renamed(VirtualGood good, int version) {
+        return new SingleUseVG(good.getName() + "#" + version, good.getDescription(),
+                good.getItemId(), new PurchaseWithVirtualItem(
+                MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID, 100));
+    }
+
+    private static String versionOf(VirtualItem item) {
+        int index = item.getName().indexOf('#');
+        return index < 0 ? "" : item.getName().substring(index + 1);
+    }
+}
@@ -0,0 +1,114 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.domain.MarketItem;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class StoreInfoJsonTest {
+
+    private static final String KEY_JSON = "meta.storeinfo";
+    private static final String KEY_BINARY = "meta.storeinfo.bin";
+
+    // sections out of order, goods before the currencies they're bought with, unknown keys
+    private static final String STORE_JSON = "{"
+            + "\"categories\": [{\"name\": \"json_cakes\", \"goods_itemIds\": [\"json_cake\"]}],"
+            + "\"goods\": {"
+            + "  \"goodUpgrades\": [{\"itemId\": \"json_cake_up\", \"name\": \"Cake Up\","
+            + "    \"good_itemId\": \"json_cake\", \"prev_itemId\": \"\", \"next_itemId\": \"\","
+            + "    \"purchasableItem\": {\"purchaseType\": \"virtualItem\","
+            + "      \"pvi_itemId\": \"json_coin\", \"pvi_amount\": 30}}],"
+            + "  \"singleUse\": [{\"className\": \"SingleUseVG\", \"itemId\": \"json_cake\","
+            + "    \"name\": \"Cake\", \"description\": \"A \\\"json\\\" cake\","
+            + "    \"extra\": {\"nested\": [1, 2.5, true, null, {\"deep\": \"value\"}]},"
+            + "    \"purchasableItem\": {\"purchaseType\": \"virtualItem\","
+            + "      \"pvi_itemId\": \"json_coin\", \"pvi_amount\": 10}}]"
+            + "},"
+            + "\"currencyPacks\": [{\"itemId\": \"json_coins_10\", \"currency_amount\": 10,"
+            + "  \"currency_itemId\": \"json_coin\","
+            + "  \"purchasableItem\": {\"purchaseType\": \"market\", \"marketItem\": {"
+            + "    \"androidId\": \"json_coins_10_sku\", \"price\": 0.99,"
+            + "    \"marketPriceMicros\": 990000}}}],"
+            + "\"currencies\": [{\"itemId\": \"json_coin\", \"name\": \"Coin\"}],"
+            + "\"unknown\": [[], {}]"
+            + "}";
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new MuffinRushAssets());
+    }
+
+    @Test
+    public void loadsTheSavedJSON() {
+        List<String> itemIds = catalogItemIds();
+        String muffinCake = StoreInfo.getGoods().get(0).toJSONObject().toString();
+        int categories = StoreInfo.getCategories().size();
+
+        KeyValueStorage.deleteKeyValue(KEY_BINARY);
+        assertThat(StoreInfo.loadFromDB(), is(true));
+
+        assertThat(catalogItemIds(), equalTo(itemIds));
+        assertThat(StoreInfo.getGoods().get(0).toJSONObject().toString(), equalTo(muffinCake));
+        assertThat(StoreInfo.getCategories().size(), equalTo(categories));
+    }
+
+    @Test
+    public void loadsSectionsInAnyOrder() throws Exception {
+        KeyValueStorage.deleteKeyValue(KEY_BINARY);
+        KeyValueStorage.deleteKeyValue(KEY_JSON);
+        StoreInfo.setStoreAssets(1, STORE_JSON);
+
+        assertThat(StoreInfo.getCurrencies().size(), equalTo(1));
+        assertThat(StoreInfo.getGoods().size(), equalTo(2));
+        assertThat(StoreInfo.getGoods().get(0), instanceOf(SingleUseVG.class));
+        assertThat(StoreInfo.getGoods().get(1), instanceOf(UpgradeVG.class));
+        assertThat(StoreInfo.getGoods().get(0).getDescription(), equalTo("A \"json\" cake"));
+        assertThat(StoreInfo.getGoodFirstUpgrade("json_cake").getItemId(),
+                equalTo("json_cake_up"));
+        assertThat(StoreInfo.getCategory("json_cake").getName(), equalTo("json_cakes"));
+
+        VirtualCurrencyPack pack = (VirtualCurrencyPack) StoreInfo.getPurchasableItem(
+                "json_coins_10_sku");
+        assertThat(pack.getCurrencyAmount(), equalTo(10));
+        MarketItem marketItem = ((PurchaseWithMarket) pack.getPurchaseType()).getMarketItem();
+        assertThat(marketItem.getPrice(), equalTo(0.99));
+        assertThat(marketItem.getMarketPriceMicros(), equalTo(990000L));
+    }
+
+    private static List<String> catalogItemIds() {
+        List<String> itemIds = new ArrayList<String>();
+        for (VirtualItem item : StoreInfo.getCurrencies()) {
+            itemIds.add(item.getItemId());
+        }
+        for (VirtualItem item : StoreInfo.getCurrencyPacks()) {
+            itemIds.add(item.getItemId());
+        }
+        for (VirtualItem item : StoreInfo.getGoods()) {
+            itemIds.add(item.getItemId());
+        }
+        // the JSON groups the goods by type, so their order may change
+        Collections.sort(itemIds);
+        return itemIds;
+    }
+}
@@ -0,0 +1,169 @@
+package com.soomla.test;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaApp;
+import com.soomla.store.SoomlaStore;
+import com.soomla.store.SubscriptionManager;
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.data.TimingWheel;
+import com.soomla.store.domain.MarketItem;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.events.GoodBalanceChangedEvent;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.squareup.otto.Subscribe;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class SubscriptionManagerTest {
+
+    private static final String VIP_ITEM_ID = "vip";
+    private static final String VIP_PRODUCT_ID = "vip_monthly";
+    private static final long PERIOD = 30L * 24 * 60 * 60 * 1000;
+
+    private final ManualClock mClock = new ManualClock();
+    private final List<GoodBalanceChangedEvent> mEvents = new ArrayList<GoodBalanceChangedEvent>();
+    private SubscriptionManager mManager;
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new SubscriptionAssets());
+        StorageManager.getVirtualGoodsStorage().setBalance(VIP_ITEM_ID, 0, false);
+
+        mManager = SoomlaStore.getInstance().getSubscriptionManager();
+        mManager.setClock(mClock);
+        mManager.reconcile(Collections.<IabPurchase>emptyList());
+        BusProvider.getInstance().register(this);
+    }
+
+    @After
+    public void tearDown() {
+        BusProvider.getInstance().unregister(this);
+        mManager.reconcile(Collections.<IabPurchase>emptyList());
+        mManager.setClock(TimingWheel.Clock.SYSTEM);
+    }
+
+    @Subscribe
+    public void onGoodBalanceChanged(GoodBalanceChangedEvent event) {
+        mEvents.add(event);
+    }
+
+    @Test
+    public void persistsTheSubscriptionPeriod() throws Exception {
+        StoreInfo.save();
+        assertThat(StoreInfo.loadFromDB(), is(true));
+
+        PurchaseWithMarket pwm = (PurchaseWithMarket)
+                StoreInfo.getPurchasableItem(VIP_PRODUCT_ID).getPurchaseType();
+        assertThat(pwm.isSubscription(), is(true));
+        assertThat(pwm.getSubscriptionPeriodMillis(), equalTo(PERIOD));
+    }
+
+    @Test
+    public void revokesAnExpiredSubscription() throws Exception {
+        // bought two and a half periods ago, so it was renewed twice
+        long purchaseTime = mClock.now - 2 * PERIOD - PERIOD / 2;
+        mManager.reconcile(Arrays.asList(subscription(purchaseTime),
+                new IabPurchase(IabHelper.ITEM_TYPE_INAPP, "no_ads", "token", "order", 0)));
+
+        assertThat(balance(), equalTo(1));
+        assertThat(mManager.getExpiresAt(VIP_ITEM_ID), equalTo(purchaseTime + 3 * PERIOD));
+
+        // survives a restart
+        mManager.setClock(mClock);
+        assertThat(mManager.getScheduledCount(), equalTo(1));
+
+        mClock.now += PERIOD / 2 - 1;
+        assertThat(mManager.revokeExpired(), equalTo(0));
+        assertThat(balance(), equalTo(1));
+
+        mClock.now += SubscriptionManager.TICK_MILLIS;
+        assertThat(mManager.revokeExpired(), equalTo(1));
+        assertThat(balance(), equalTo(0));
+        assertThat(mManager.getExpiresAt(VIP_ITEM_ID), equalTo(0L));
+    }
+
+    @Test
+    public void takesASubscriptionThatIsNoLongerOwned() throws Exception {
+        mManager.reconcile(Collections.singletonList(subscription(mClock.now)));
+        assertThat(balance(), equalTo(1));
+
+        mManager.reconcile(Collections.<IabPurchase>emptyList());
+        assertThat(balance(), equalTo(0));
+        assertThat(mManager.getScheduledCount(), equalTo(0));
+    }
+
+    @Test
+    public void announcesARenewalOfALocallyExpiredSubscription() throws Exception {
+        long purchaseTime = mClock.now;
+        mManager.reconcile(Collections.singletonList(subscription(purchaseTime)));
+        assertThat(mEvents.size(), equalTo(0));
+
+        // expires locally, e.g. while the app was closed, before the renewal is restored
+        mClock.now += PERIOD + SubscriptionManager.TICK_MILLIS;
+        assertThat(mManager.revokeExpired(), equalTo(1));
+        assertThat(mEvents.size(), equalTo(1));
+        assertThat(mEvents.get(0).getBalance(), equalTo(0));
+
+        mManager.reconcile(Collections.singletonList(subscription(purchaseTime)));
+        assertThat(balance(), equalTo(1));
+        assertThat(mEvents.size(), equalTo(2));
+        assertThat(mEvents.get(1).getGoodItemId(), equalTo(VIP_ITEM_ID));
+        assertThat(mEvents.get(1).getBalance(), equalTo(1));
+
+        // a later restore doesn't announce it again
+        mManager.reconcile(Collections.<IabPurchase>emptyList());
+        mManager.reconcile(Collections.singletonList(subscription(purchaseTime)));
+        assertThat(mEvents.size(), equalTo(2));
+    }
+
+    private IabPurchase subscription(long purchaseTime) throws Exception {
+        return new IabPurchase(IabHelper.ITEM_TYPE_SUBS, "{\"productId\":\"" + VIP_PRODUCT_ID
+                + "\",\"purchaseTime\":" + purchaseTime + ",\"purchaseToken\":\"vip_token\"}",
+                null);
+    }
+
+    private int balance() {
+        return StorageManager.getVirtualGoodsStorage().getBalance(VIP_ITEM_ID);
+    }
+
+    private static class ManualClock implements TimingWheel.Clock {
+
+        long now = 1400000000000L;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private static class SubscriptionAssets extends MuffinRushAssets {
+
+        @Override
+        public VirtualGood[] getGoods() {
+            VirtualGood[] goods = super.getGoods();
+            VirtualGood[] withVip = Arrays.copyOf(goods, goods.length + 1);
+            withVip[goods.length] = new LifetimeVG("VIP", "A monthly subscription", VIP_ITEM_ID,
+                    new PurchaseWithMarket(new MarketItem(VIP_PRODUCT_ID, 4.99), true, PERIOD));
+            return withVip;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.soomla.test;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaApp;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.data.BalanceTransaction;
+import com.soomla.store.data.GoodExpiryEngine;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.data.TimingWheel;
+import com.soomla.store.domain.virtualGoods.TimeLimitedVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.events.GoodBalanceChangedEvent;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+import com.squareup.otto.Subscribe;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class TimeLimitedGoodTest {
+
+    private static final String STACK_ITEM_ID = "double_coins";
+    private static final String EXTEND_ITEM_ID = "shield";
+    private static final String RESTART_ITEM_ID = "magnet";
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private final ManualClock mClock = new ManualClock();
+    private final List<GoodBalanceChangedEvent> mEvents = new ArrayList<GoodBalanceChangedEvent>();
+    private GoodExpiryEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreAssetsFixture.install(new TimeLimitedAssets());
+
+        mEngine = StorageManager.getGoodExpiryEngine();
+        mEngine.setClock(mClock);
+        for (String itemId : Arrays.asList(STACK_ITEM_ID, EXTEND_ITEM_ID, RESTART_ITEM_ID)) {
+            good(itemId).resetBalance(0, false);
+        }
+        BusProvider.getInstance().register(this);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        BusProvider.getInstance().unregister(this);
+        for (String itemId : Arrays.asList(STACK_ITEM_ID, EXTEND_ITEM_ID, RESTART_ITEM_ID)) {
+            good(itemId).resetBalance(0, false);
+        }
+        mEngine.setClock(TimingWheel.Clock.SYSTEM);
+    }
+
+    @Subscribe
+    public void onGoodBalanceChanged(GoodBalanceChangedEvent event) {
+        mEvents.add(event);
+    }
+
+    @Test
+    public void stackedGrantsExpireOnTheirOwn() throws Exception {
+        TimeLimitedVG good = good(STACK_ITEM_ID);
+        good.give(2);
+        mClock.now += HOUR / 2;
+        good.give(1);
+        assertThat(balance(STACK_ITEM_ID), equalTo(3));
+        mEvents.clear();
+
+        mClock.now += HOUR / 2 - 1;
+        assertThat(mEngine.advance(), equalTo(0));
+        assertThat(mEvents.size(), equalTo(0));
+
+        mClock.now += 1;
+        assertThat(mEngine.advance(), equalTo(2));
+        assertThat(balance(STACK_ITEM_ID), equalTo(1));
+        assertThat(mEvents.size(), equalTo(1));
+        assertThat(mEvents.get(0).getGoodItemId(), equalTo(STACK_ITEM_ID));
+        assertThat(mEvents.get(0).getBalance(), equalTo(1));
+        assertThat(mEvents.get(0).getAmountAdded(), equalTo(-2));
+
+        mClock.now += HOUR / 2;
+        assertThat(mEngine.advance(), equalTo(1));
+        assertThat(balance(STACK_ITEM_ID), equalTo(0));
+        assertThat(mEngine.getScheduledCount(), equalTo(0));
+    }
+
+    @Test
+    public void takingAStackedGoodTakesTheEarliestGrants() throws Exception {
+        TimeLimitedVG good = good(STACK_ITEM_ID);
+        good.give(1);
+        mClock.now += HOUR / 2;
+        good.give(1);
+
+        good.take(1);
+        assertThat(balance(STACK_ITEM_ID), equalTo(1));
+        assertThat(good.getTimeLeftMillis(), equalTo(HOUR));
+
+        mClock.now += HOUR / 2;
+        assertThat(mEngine.advance(), equalTo(0));
+        assertThat(balance(STACK_ITEM_ID), equalTo(1));
+    }
+
+    @Test
+    public void extendingAndRestartingGrantsKeepOne() throws Exception {
+        TimeLimitedVG extend = good(EXTEND_ITEM_ID);
+        TimeLimitedVG restart = good(RESTART_ITEM_ID);
+        extend.give(1);
+        restart.give(1);
+        mClock.now += HOUR / 4;
+        extend.give(1);
+        restart.give(1);
+
+        assertThat(balance(EXTEND_ITEM_ID), equalTo(1));
+        assertThat(balance(RESTART_ITEM_ID), equalTo(1));
+        assertThat(extend.getTimeLeftMillis(), equalTo(2 * HOUR - HOUR / 4));
+        assertThat(restart.getTimeLeftMillis(), equalTo(HOUR));
+
+        mClock.now += HOUR;
+        assertThat(mEngine.advance(), equalTo(1));
+        assertThat(balance(RESTART_ITEM_ID), equalTo(0));
+        assertThat(balance(EXTEND_ITEM_ID), equalTo(1));
+    }
+
+    @Test
+    public void grantsOfATransactionExpireOnceItsCommitted() throws Exception {
+        BalanceTransaction transaction = StoreInventory.beginTransaction();
+        good(EXTEND_ITEM_ID).give(1, transaction);
+        assertThat(mEngine.getScheduledCount(), equalTo(0));
+
+        transaction.commit();
+        assertThat(balance(EXTEND_ITEM_ID), equalTo(1));
+        assertThat(good(EXTEND_ITEM_ID).getTimeLeftMillis(), equalTo(HOUR));
+
+        mClock.now += HOUR;
+        assertThat(mEngine.advance(), equalTo(1));
+        assertThat(balance(EXTEND_ITEM_ID), equalTo(0));
+    }
+
+    @Test
+    public void grantsExpireAfterARestart() throws Exception {
+        good(STACK_ITEM_ID).give(1);
+        StoreInfo.save();
+        assertThat(StoreInfo.loadFromDB(), is(true));
+
+        TimeLimitedVG good = good(STACK_ITEM_ID);
+        assertThat(good.getLifetimeMillis(), equalTo(HOUR));
+        assertThat(good.getStacking(), equalTo(TimeLimitedVG.Stacking.STACK));
+
+        // expires while the app is closed
+        mEngine.setClock(mClock);
+        mClock.now += 2 * HOUR;
+        assertThat(mEngine.getScheduledCount(), equalTo(1));
+        assertThat(mEngine.advance(), equalTo(1));
+        assertThat(balance(STACK_ITEM_ID), equalTo(0));
+    }
+
+    @Test
+    public void resettingAllBalancesReplacesTheRunningGrants() throws Exception {
+        good(STACK_ITEM_ID).give(2);
+        good(EXTEND_ITEM_ID).give(1);
+        mClock.now += HOUR / 2;
+
+        HashMap<String, HashMap<String, Object>> balances =
+                new HashMap<String, HashMap<String, Object>>();
+        balances.put(STACK_ITEM_ID, balanceOf(1));
+        balances.put(EXTEND_ITEM_ID, balanceOf(0));
+        balances.put(RESTART_ITEM_ID, balanceOf(3));
+        assertThat(StoreInventory.resetAllItemsBalances(balances), is(true));
+
+        assertThat(balance(STACK_ITEM_ID), equalTo(1));
+        assertThat(balance(EXTEND_ITEM_ID), equalTo(0));
+        assertThat(balance(RESTART_ITEM_ID), equalTo(1));
+        assertThat(mEngine.getScheduledCount(), equalTo(2));
+        assertThat(good(STACK_ITEM_ID).getTimeLeftMillis(), equalTo(HOUR));
+        assertThat(good(EXTEND_ITEM_ID).getTimeLeftMillis(), equalTo(0L));
+
+        // the grants from before the reset don't expire anymore
+        mClock.now += HOUR / 2;
+        assertThat(mEngine.advance(), equalTo(0));
+        assertThat(balance(STACK_ITEM_ID), equalTo(1));
+
+        mClock.now += HOUR / 2;
+        assertThat(mEngine.advance(), equalTo(2));
+        assertThat(balance(STACK_ITEM_ID), equalTo(0));
+        assertThat(balance(RESTART_ITEM_ID), equalTo(0));
+        assertThat(mEngine.getScheduledCount(), equalTo(0));
+    }
+
+    private static HashMap<String, Object> balanceOf(int balance) {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        values.put("balance", balance);
+        return values;
+    }
+
+    private static TimeLimitedVG good(String itemId) throws Exception {
+        return (TimeLimitedVG) StoreInfo.getVirtualItem(itemId);
+    }
+
+    private static int balance(String itemId) {
+        return StorageManager.getVirtualGoodsStorage().getBalance(itemId);
+    }
+
+    private static class ManualClock implements TimingWheel.Clock {
+
+        long now = 1400000000000L;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private static class TimeLimitedAssets extends MuffinRushAssets {
+
+        @Override
+        public VirtualGood[] getGoods() {
+            VirtualGood[] goods = super.getGoods();
+            VirtualGood[] withBoosts = Arrays.copyOf(goods, goods.length + 3);
+            withBoosts[goods.length] = new TimeLimitedVG("Double Coins", "", STACK_ITEM_ID,
+                    new PurchaseWithVirtualItem(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID, 10),
+                    HOUR, TimeLimitedVG.Stacking.STACK);
+            withBoosts[goods.length + 1] = new TimeLimitedVG("Shield", "", EXTEND_ITEM_ID,
+                    new PurchaseWithVirtualItem(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID, 10),
+                    HOUR, TimeLimitedVG.Stacking.EXTEND);
+            withBoosts[goods.length + 2] = new TimeLimitedVG("Magnet", "", RESTART_ITEM_ID,
+                    new PurchaseWithVirtualItem(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID, 10),
+                    HOUR, TimeLimitedVG.Stacking.RESTART);
+            return withBoosts;
+        }
+    }
+}